@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark;
+
+import com.lzf.flyingsocks.server.core.access.AccessRule;
+import com.lzf.flyingsocks.server.core.access.AccessRuleMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 代理流建立时访问规则的匹配性能，规则由域名后缀、IPv4/IPv6网段和端口范围混合组成，
+ * 查找目标中约一半命中规则。对比不同规则数量下的耗时，用于确认匹配耗时只与目标长度有关而与规则数量无关
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/24 21:10
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AccessRuleBenchmark {
+
+    /**
+     * 查找顺序表长度，必须是2的幂
+     */
+    private static final int ORDER_SIZE = 1 << 16;
+
+    @Param({"1000", "100000"})
+    public int rules;
+
+    private List<AccessRule> ruleList;
+
+    private AccessRuleMatcher matcher;
+
+    private String[] domains;
+
+    private String[] ipv4Hosts;
+
+    private InetAddress[] ipv6Addresses;
+
+    private int[] ports;
+
+    private int cursor;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        Random random = new Random(rules);
+        ruleList = new ArrayList<>(rules);
+        List<String> domainRules = new ArrayList<>();
+        for (int i = 0; i < rules; i++) {
+            boolean allow = random.nextInt(4) != 0;
+            String pattern;
+            switch (i & 3) {
+                case 0:
+                case 1: {
+                    String domain = "site" + random.nextInt(1 << 24) + "." + tld(random);
+                    domainRules.add(domain);
+                    pattern = (random.nextBoolean() ? "*." : "") + domain;
+                }
+                break;
+                case 2:
+                    pattern = (10 + random.nextInt(200)) + "." + random.nextInt(256) + "." + random.nextInt(256) + ".0/" + (16 + random.nextInt(9));
+                    break;
+                default:
+                    pattern = "[2001:db8:" + Integer.toHexString(random.nextInt(0x10000)) + "::]/" + (32 + random.nextInt(33)) + ":443";
+                    break;
+            }
+
+            if (random.nextInt(8) == 0) {
+                int start = 1024 + random.nextInt(30000);
+                pattern = pattern + (pattern.endsWith(":443") ? ",80" : ":80,443," + start + "-" + (start + random.nextInt(1000)));
+            }
+            ruleList.add(AccessRule.parse(pattern, allow));
+        }
+        matcher = AccessRuleMatcher.compile(ruleList);
+
+        domains = new String[ORDER_SIZE];
+        ipv4Hosts = new String[ORDER_SIZE];
+        ipv6Addresses = new InetAddress[ORDER_SIZE];
+        ports = new int[ORDER_SIZE];
+        byte[] v6 = new byte[16];
+        for (int i = 0; i < ORDER_SIZE; i++) {
+            if (random.nextBoolean()) {
+                domains[i] = "www.cdn" + random.nextInt(100) + "." + domainRules.get(random.nextInt(domainRules.size()));
+            } else {
+                domains[i] = "www.miss" + random.nextInt(1 << 24) + "." + tld(random);
+            }
+            ipv4Hosts[i] = (10 + random.nextInt(200)) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+            random.nextBytes(v6);
+            v6[0] = 0x20;
+            v6[1] = 0x01;
+            v6[2] = 0x0d;
+            v6[3] = (byte) 0xb8;
+            ipv6Addresses[i] = InetAddress.getByAddress(v6.clone());
+            ports[i] = random.nextBoolean() ? 443 : 1024 + random.nextInt(40000);
+        }
+    }
+
+    private static String tld(Random random) {
+        switch (random.nextInt(4)) {
+            case 0: return "com";
+            case 1: return "net";
+            case 2: return "org";
+            default: return "co.jp";
+        }
+    }
+
+    private int next() {
+        return cursor++ & (ORDER_SIZE - 1);
+    }
+
+    @Benchmark
+    public Object matchDomain() {
+        int idx = next();
+        return matcher.match(domains[idx], ports[idx]);
+    }
+
+    @Benchmark
+    public Object matchIpv4() {
+        int idx = next();
+        return matcher.match(ipv4Hosts[idx], ports[idx]);
+    }
+
+    @Benchmark
+    public Object matchIpv6() {
+        int idx = next();
+        return matcher.match(ipv6Addresses[idx], ports[idx]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public Object compile() {
+        return AccessRuleMatcher.compile(ruleList);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 基准测试启动类，默认执行全部基准测试并开启GC Profiler，
+ * 结果中的gc.alloc.rate.norm即为每次操作分配的字节数(B/op)
+ *
+ * 用法：java -jar benchmarks.jar [基准测试名称正则] [JSON结果输出路径]
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/15 21:10
+ */
+public class BenchmarkBoot {
+
+    public static void main(String[] args) throws RunnerException {
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : BenchmarkBoot.class.getPackage().getName() + ".*")
+                .addProfiler(GCProfiler.class);
+
+        if (args.length > 1) {
+            builder.resultFormat(ResultFormatType.JSON).result(args[1]);
+        }
+
+        new Runner(builder.build()).run();
+    }
+
+    private BenchmarkBoot() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark;
+
+import com.lzf.flyingsocks.protocol.Message;
+import com.lzf.flyingsocks.protocol.SerializationException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 基准测试公用的工具方法
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/15 21:20
+ */
+final class BenchmarkUtils {
+
+    /**
+     * 测试使用的目标主机名
+     */
+    static final String TARGET_HOST = "www.example.com";
+
+    /**
+     * 测试使用的目标端口
+     */
+    static final int TARGET_PORT = 443;
+
+    /**
+     * 构造指定长度的随机内容
+     */
+    static ByteBuf payload(ByteBufAllocator allocator, int size) {
+        byte[] b = new byte[size];
+        ThreadLocalRandom.current().nextBytes(b);
+        ByteBuf buf = allocator.directBuffer(size);
+        buf.writeBytes(b);
+        return buf;
+    }
+
+    /**
+     * 将消息序列化为一段连续的ByteBuf，模拟从网络中读取到的完整帧
+     */
+    static ByteBuf frame(ByteBufAllocator allocator, Message message) throws SerializationException {
+        ByteBuf buf = message.serialize(allocator);
+        try {
+            ByteBuf frame = allocator.directBuffer(buf.readableBytes());
+            frame.writeBytes(buf);
+            return frame;
+        } finally {
+            buf.release();
+        }
+    }
+
+    /**
+     * 释放所有收到的消息并计数，作为EmbeddedChannel中的末端Handler
+     */
+    static final class DiscardInboundHandler extends ChannelInboundHandlerAdapter {
+
+        private long count;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            count++;
+            ReferenceCountUtil.release(msg);
+        }
+
+        long count() {
+            return count;
+        }
+    }
+
+    private BenchmarkUtils() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark;
+
+import com.lzf.flyingsocks.protocol.DnsMessage;
+import com.lzf.flyingsocks.protocol.DnsQueryMessage;
+import com.lzf.flyingsocks.protocol.DnsResponseMessage;
+import com.lzf.flyingsocks.protocol.SerializationException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.handler.codec.dns.DnsRecordType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.lzf.flyingsocks.benchmark.BenchmarkUtils.TARGET_HOST;
+
+/**
+ * DNS查询、响应消息的序列化与反序列化性能
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/15 23:05
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DnsMessageBenchmark {
+
+    private static final short TYPE_A = (short) DnsRecordType.A.intValue();
+
+    private static final short CLASS_IN = (short) DnsRecord.CLASS_IN;
+
+    /**
+     * 响应中A记录的数量
+     */
+    @Param({"1", "4"})
+    private int answers;
+
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
+    private ByteBuf queryFrame;
+
+    private ByteBuf responseFrame;
+
+    @Setup
+    public void setup() throws SerializationException {
+        queryFrame = BenchmarkUtils.frame(allocator, newQuery());
+        responseFrame = BenchmarkUtils.frame(allocator, newResponse());
+    }
+
+    @TearDown
+    public void tearDown() {
+        queryFrame.release();
+        responseFrame.release();
+    }
+
+    private DnsQueryMessage newQuery() {
+        DnsQueryMessage msg = new DnsQueryMessage((short) 0x1234);
+        msg.addQuestion(new DnsMessage.Question(TARGET_HOST, TYPE_A, CLASS_IN));
+        return msg;
+    }
+
+    private DnsResponseMessage newResponse() {
+        DnsResponseMessage msg = new DnsResponseMessage((short) 0x1234);
+        msg.setQR(true);
+        msg.setRD(true);
+        msg.setRA(true);
+        msg.setRCODE(DnsMessage.RCODE_SUCCESS);
+        for (int i = 0; i < answers; i++) {
+            byte[] address = new byte[] { 93, (byte) 184, (byte) 216, (byte) (34 + i) };
+            msg.addAnswer(new DnsMessage.Record(TARGET_HOST + ".", TYPE_A, CLASS_IN, 300, (short) address.length, address));
+        }
+        return msg;
+    }
+
+    private static int release(ByteBuf buf) {
+        int len = buf.readableBytes();
+        buf.release();
+        return len;
+    }
+
+    @Benchmark
+    public int serializeQuery() throws SerializationException {
+        return release(newQuery().serialize(allocator));
+    }
+
+    @Benchmark
+    public int serializeResponse() throws SerializationException {
+        return release(newResponse().serialize(allocator));
+    }
+
+    @Benchmark
+    public int deserializeQuery() throws SerializationException {
+        return new DnsQueryMessage(queryFrame.readerIndex(0)).getQuestions().size();
+    }
+
+    @Benchmark
+    public int deserializeResponse() throws SerializationException {
+        return new DnsResponseMessage(responseFrame.readerIndex(0)).getAnswers().size();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark;
+
+import com.lzf.flyingsocks.protocol.AuthRequestMessage;
+import com.lzf.flyingsocks.protocol.AuthResponseMessage;
+import com.lzf.flyingsocks.protocol.CertRequestMessage;
+import com.lzf.flyingsocks.protocol.CertResponseMessage;
+import com.lzf.flyingsocks.protocol.ProtocolVersion;
+import com.lzf.flyingsocks.protocol.SerializationException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 认证阶段与证书请求阶段消息的序列化与反序列化性能
+ *
+ * 证书相关消息的帧不包含分隔符，与DelimiterBasedFrameDecoder的输出一致
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/15 22:30
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HandshakeMessageBenchmark {
+
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
+    private final byte[] certMD5 = new byte[16];
+
+    private final byte[] certFile = new byte[2048];
+
+    private ByteBuf authRequestFrame;
+
+    private ByteBuf authResponseFrame;
+
+    private ByteBuf certRequestFrame;
+
+    private ByteBuf certResponseFrame;
+
+    @Setup
+    public void setup() throws SerializationException {
+        ThreadLocalRandom.current().nextBytes(certMD5);
+        ThreadLocalRandom.current().nextBytes(certFile);
+
+        authRequestFrame = BenchmarkUtils.frame(allocator, newAuthRequest());
+        authResponseFrame = BenchmarkUtils.frame(allocator, newAuthResponse());
+        certRequestFrame = stripEndMark(BenchmarkUtils.frame(allocator, newCertRequest()));
+        certResponseFrame = stripEndMark(BenchmarkUtils.frame(allocator, newCertResponse()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        authRequestFrame.release();
+        authResponseFrame.release();
+        certRequestFrame.release();
+        certResponseFrame.release();
+    }
+
+    private static ByteBuf stripEndMark(ByteBuf frame) {
+        return frame.writerIndex(frame.writerIndex() - CertRequestMessage.END_MARK.length);
+    }
+
+    private AuthRequestMessage newAuthRequest() {
+        AuthRequestMessage msg = new AuthRequestMessage((byte) 0x01);
+        msg.putContent("user", "flyingsocks");
+        msg.putContent("pass", "2a6f1c0d9e8b7a65");
+        msg.putContent(ProtocolVersion.PARAMETER_NAME, String.valueOf(ProtocolVersion.CURRENT));
+        return msg;
+    }
+
+    private AuthResponseMessage newAuthResponse() {
+        AuthResponseMessage msg = new AuthResponseMessage(true);
+        msg.putExtraData(ProtocolVersion.PARAMETER_NAME, String.valueOf(ProtocolVersion.CURRENT));
+        return msg;
+    }
+
+    private CertRequestMessage newCertRequest() {
+        CertRequestMessage msg = new CertRequestMessage((byte) 0x01, certMD5);
+        msg.putContent("user", "flyingsocks");
+        msg.putContent("pass", "2a6f1c0d9e8b7a65");
+        return msg;
+    }
+
+    private CertResponseMessage newCertResponse() {
+        return new CertResponseMessage(true, certFile);
+    }
+
+    private static int release(ByteBuf buf) {
+        int len = buf.readableBytes();
+        buf.release();
+        return len;
+    }
+
+    @Benchmark
+    public int serializeAuthRequest() throws SerializationException {
+        return release(newAuthRequest().serialize(allocator));
+    }
+
+    @Benchmark
+    public int serializeAuthResponse() throws SerializationException {
+        return release(newAuthResponse().serialize(allocator));
+    }
+
+    @Benchmark
+    public int serializeCertRequest() throws SerializationException {
+        return release(newCertRequest().serialize(allocator));
+    }
+
+    @Benchmark
+    public int serializeCertResponse() {
+        return release(newCertResponse().serialize(allocator));
+    }
+
+    @Benchmark
+    public String deserializeAuthRequest() throws SerializationException {
+        return new AuthRequestMessage(authRequestFrame.readerIndex(0)).getParameter(ProtocolVersion.PARAMETER_NAME);
+    }
+
+    @Benchmark
+    public String deserializeAuthResponse() throws SerializationException {
+        return new AuthResponseMessage(authResponseFrame.readerIndex(0)).getExtraData(ProtocolVersion.PARAMETER_NAME);
+    }
+
+    @Benchmark
+    public byte[] deserializeCertRequest() throws SerializationException {
+        return new CertRequestMessage(certRequestFrame.readerIndex(0)).getCertMD5();
+    }
+
+    @Benchmark
+    public int deserializeCertResponse() throws SerializationException {
+        return new CertResponseMessage(certResponseFrame.readerIndex(0)).getLength();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark;
+
+import com.lzf.flyingsocks.misc.MessageHeaderCheckHandler;
+import com.lzf.flyingsocks.protocol.AuthRequestMessage;
+import com.lzf.flyingsocks.protocol.ProtocolVersion;
+import com.lzf.flyingsocks.protocol.SerializationException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 认证阶段{@link MessageHeaderCheckHandler}对一个合法的认证请求帧的处理性能
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/15 23:30
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageHeaderCheckHandlerBenchmark {
+
+    private EmbeddedChannel channel;
+
+    private BenchmarkUtils.DiscardInboundHandler sink;
+
+    private ByteBuf authRequestFrame;
+
+    @Setup
+    public void setup() throws SerializationException {
+        AuthRequestMessage msg = new AuthRequestMessage((byte) 0x00);
+        msg.putContent("password", "2a6f1c0d9e8b7a65");
+        msg.putContent(ProtocolVersion.PARAMETER_NAME, String.valueOf(ProtocolVersion.CURRENT));
+        authRequestFrame = BenchmarkUtils.frame(PooledByteBufAllocator.DEFAULT, msg);
+
+        sink = new BenchmarkUtils.DiscardInboundHandler();
+        channel = new EmbeddedChannel(new MessageHeaderCheckHandler(AuthRequestMessage.getMessageHeader()), sink);
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        authRequestFrame.release();
+    }
+
+    @Benchmark
+    public long checkHeader() {
+        channel.writeInbound(authRequestFrame.retainedDuplicate());
+        return sink.count();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark;
+
+import com.lzf.flyingsocks.protocol.SerializationException;
+import com.lzf.flyingsocks.protocol.ServiceStageMessage;
+import com.lzf.flyingsocks.protocol.StreamMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 代理阶段帧解码器的性能，解码器参数与服务端ProxyHandler中的ProxyRequestFrameDecoder一致
+ *
+ * 每次操作向解码器写入framesPerRead个DATA帧，segmentSize不为0时按照该长度切分后逐段写入，
+ * 用于模拟一次read读取到多个帧以及帧被TCP分段的情况
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/16 0:10
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ProxyFrameDecoderBenchmark {
+
+    /**
+     * 与ProxyHandler.REQUEST_MAX_FRAME保持一致
+     */
+    private static final int REQUEST_MAX_FRAME = 1024 * 1024 * 20;
+
+    @Param({"64", "1024", "16384"})
+    private int payloadSize;
+
+    @Param({"1", "16"})
+    private int framesPerRead;
+
+    @Param({"0", "1460"})
+    private int segmentSize;
+
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
+    private EmbeddedChannel channel;
+
+    private BenchmarkUtils.DiscardInboundHandler sink;
+
+    private ByteBuf input;
+
+    @Setup
+    public void setup() throws SerializationException {
+        ByteBuf payload = BenchmarkUtils.payload(allocator, payloadSize);
+        try {
+            input = allocator.directBuffer();
+            for (int i = 0; i < framesPerRead; i++) {
+                ByteBuf frame = BenchmarkUtils.frame(allocator, StreamMessage.data(i, payload.retainedDuplicate()));
+                input.writeBytes(frame);
+                frame.release();
+            }
+        } finally {
+            payload.release();
+        }
+
+        sink = new BenchmarkUtils.DiscardInboundHandler();
+        channel = new EmbeddedChannel(new LengthFieldBasedFrameDecoder(REQUEST_MAX_FRAME,
+                ServiceStageMessage.LENGTH_FIELD_OFFSET, ServiceStageMessage.LENGTH_FIELD_SIZE, 0, 0), sink);
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        input.release();
+    }
+
+    @Benchmark
+    public long decode() {
+        ByteBuf input = this.input;
+        int segmentSize = this.segmentSize;
+        if (segmentSize == 0) {
+            channel.writeInbound(input.retainedDuplicate());
+        } else {
+            int length = input.readableBytes();
+            for (int offset = 0; offset < length; offset += segmentSize) {
+                channel.writeInbound(input.retainedSlice(offset, Math.min(segmentSize, length - offset)));
+            }
+        }
+
+        return sink.count();
+    }
+}
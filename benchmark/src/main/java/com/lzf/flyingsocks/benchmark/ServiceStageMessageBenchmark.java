@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark;
+
+import com.lzf.flyingsocks.protocol.PingMessage;
+import com.lzf.flyingsocks.protocol.PongMessage;
+import com.lzf.flyingsocks.protocol.ProxyRequestMessage;
+import com.lzf.flyingsocks.protocol.ProxyResponseMessage;
+import com.lzf.flyingsocks.protocol.SerializationException;
+import com.lzf.flyingsocks.protocol.ServiceStageMessage;
+import com.lzf.flyingsocks.protocol.StreamMessage;
+import com.lzf.flyingsocks.protocol.WindowUpdateMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.lzf.flyingsocks.benchmark.BenchmarkUtils.TARGET_HOST;
+import static com.lzf.flyingsocks.benchmark.BenchmarkUtils.TARGET_PORT;
+
+/**
+ * 代理阶段消息(SVID + LEN + MESSAGE)的序列化与反序列化性能
+ *
+ * serialize开头的方法调用{@link com.lzf.flyingsocks.protocol.Message#serialize(ByteBufAllocator)}，
+ * encode开头的方法与{@link com.lzf.flyingsocks.misc.FSMessageOutboundEncoder}的写出路径一致，
+ * deserialize开头的方法从一段完整的帧中解析消息
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/15 21:40
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ServiceStageMessageBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    private int payloadSize;
+
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
+    private ByteBuf payload;
+
+    private ByteBuf proxyRequestFrame;
+
+    private ByteBuf proxyResponseFrame;
+
+    private ByteBuf streamOpenFrame;
+
+    private ByteBuf streamDataFrame;
+
+    private ByteBuf streamCloseFrame;
+
+    private ByteBuf windowUpdateFrame;
+
+    private ByteBuf pingFrame;
+
+    private ByteBuf pongFrame;
+
+    @Setup
+    public void setup() throws SerializationException {
+        payload = BenchmarkUtils.payload(allocator, payloadSize);
+        proxyRequestFrame = BenchmarkUtils.frame(allocator, newProxyRequest());
+        proxyResponseFrame = BenchmarkUtils.frame(allocator, newProxyResponse());
+        streamOpenFrame = BenchmarkUtils.frame(allocator,
+                StreamMessage.open(1, ProxyRequestMessage.Protocol.TCP, TARGET_HOST, TARGET_PORT, payload.retainedDuplicate()));
+        streamDataFrame = BenchmarkUtils.frame(allocator, StreamMessage.data(1, payload.retainedDuplicate()));
+        streamCloseFrame = BenchmarkUtils.frame(allocator, StreamMessage.close(1, false));
+        windowUpdateFrame = BenchmarkUtils.frame(allocator, new WindowUpdateMessage(1, 65536));
+        pingFrame = BenchmarkUtils.frame(allocator, new PingMessage());
+        pongFrame = BenchmarkUtils.frame(allocator, new PongMessage());
+    }
+
+    @TearDown
+    public void tearDown() {
+        ByteBuf[] bufs = { payload, proxyRequestFrame, proxyResponseFrame, streamOpenFrame, streamDataFrame,
+                streamCloseFrame, windowUpdateFrame, pingFrame, pongFrame };
+        for (ByteBuf buf : bufs) {
+            buf.release();
+        }
+    }
+
+    private ProxyRequestMessage newProxyRequest() {
+        ProxyRequestMessage msg = new ProxyRequestMessage(1, ProxyRequestMessage.Protocol.TCP);
+        msg.setHost(TARGET_HOST);
+        msg.setPort(TARGET_PORT);
+        msg.setMessage(payload.retainedDuplicate());
+        return msg;
+    }
+
+    private ProxyResponseMessage newProxyResponse() {
+        ProxyResponseMessage msg = new ProxyResponseMessage(1);
+        msg.setState(ProxyResponseMessage.State.SUCCESS);
+        msg.setMessage(payload.retainedDuplicate());
+        return msg;
+    }
+
+    private static int release(ByteBuf buf) {
+        int len = buf.readableBytes();
+        buf.release();
+        return len;
+    }
+
+    private int encode(ServiceStageMessage msg) throws SerializationException {
+        ByteBuf body = msg.detachPayload();
+        ByteBuf header = msg.serializeHeader(allocator, body);
+        msg.recycle();
+        return release(header) + (body != null ? release(body) : 0);
+    }
+
+    @Benchmark
+    public int serializeProxyRequest() throws SerializationException {
+        return release(newProxyRequest().serialize(allocator));
+    }
+
+    @Benchmark
+    public int serializeProxyResponse() throws SerializationException {
+        return release(newProxyResponse().serialize(allocator));
+    }
+
+    @Benchmark
+    public int serializeStreamOpen() throws SerializationException {
+        return release(StreamMessage.open(1, ProxyRequestMessage.Protocol.TCP, TARGET_HOST, TARGET_PORT,
+                payload.retainedDuplicate()).serialize(allocator));
+    }
+
+    @Benchmark
+    public int serializeStreamData() throws SerializationException {
+        return release(StreamMessage.data(1, payload.retainedDuplicate()).serialize(allocator));
+    }
+
+    @Benchmark
+    public int serializeWindowUpdate() throws SerializationException {
+        return release(new WindowUpdateMessage(1, 65536).serialize(allocator));
+    }
+
+    @Benchmark
+    public int serializePing() throws SerializationException {
+        return release(new PingMessage().serialize(allocator));
+    }
+
+    @Benchmark
+    public int encodeProxyResponse() throws SerializationException {
+        return encode(newProxyResponse());
+    }
+
+    @Benchmark
+    public int encodeStreamData() throws SerializationException {
+        return encode(StreamMessage.data(1, payload.retainedDuplicate()));
+    }
+
+    @Benchmark
+    public int encodeStreamClose() throws SerializationException {
+        return encode(StreamMessage.close(1, false));
+    }
+
+    @Benchmark
+    public int deserializeProxyRequest() throws SerializationException {
+        ProxyRequestMessage msg = new ProxyRequestMessage(proxyRequestFrame.readerIndex(0));
+        return release(msg.getMessage());
+    }
+
+    @Benchmark
+    public int deserializeProxyResponse() throws SerializationException {
+        ProxyResponseMessage msg = new ProxyResponseMessage(proxyResponseFrame.readerIndex(0));
+        return release(msg.getMessage());
+    }
+
+    @Benchmark
+    public int deserializeStreamOpen() throws SerializationException {
+        StreamMessage msg = new StreamMessage(streamOpenFrame.readerIndex(0));
+        return release(msg.getMessage());
+    }
+
+    @Benchmark
+    public int deserializeStreamData() throws SerializationException {
+        StreamMessage msg = new StreamMessage(streamDataFrame.readerIndex(0));
+        return release(msg.getMessage());
+    }
+
+    @Benchmark
+    public boolean deserializeStreamClose() throws SerializationException {
+        return new StreamMessage(streamCloseFrame.readerIndex(0)).isFailure();
+    }
+
+    @Benchmark
+    public int deserializeWindowUpdate() throws SerializationException {
+        return new WindowUpdateMessage(windowUpdateFrame.readerIndex(0)).getIncrement();
+    }
+
+    @Benchmark
+    public byte deserializePing() throws SerializationException {
+        return new PingMessage(pingFrame.readerIndex(0)).getServiceId();
+    }
+
+    @Benchmark
+    public byte deserializePong() throws SerializationException {
+        return new PongMessage(pongFrame.readerIndex(0)).getServiceId();
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark;
+
+import com.lzf.flyingsocks.misc.IntObjectOpenHashMap;
+import com.lzf.flyingsocks.misc.ReturnableLinkedHashSet;
+import com.lzf.flyingsocks.misc.ReturnableSet;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 代理流表在大量活跃代理流下按序列号查找的性能，对比：
+ * 1. 服务端代理流表使用的{@link IntObjectOpenHashMap}，只在会话的EventLoop中访问
+ * 2. 持有锁访问的{@link IntObjectOpenHashMap}，客户端的activeProxyRequestMap由多个EventLoop读写，曾经采用这种做法
+ * 3. Netty的IntObjectHashMap，其直接以键的低位作为槽位，连续的序列号会形成很长的探测链
+ * 4. 装箱Integer键的HashMap与ConcurrentHashMap(客户端的activeProxyRequestMap)
+ * 5. 服务端原先的做法：每一帧以(host, port, serialId)构造新的键对象并对主机名字符串求哈希
+ * churn系列方法模拟代理流的关闭与新建，序列号与客户端一样递增分配
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/20 10:30
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StreamTableBenchmark {
+
+    /**
+     * 查找顺序表长度，必须是2的幂
+     */
+    private static final int ORDER_SIZE = 1 << 16;
+
+    @Param({"10000", "100000"})
+    public int streams;
+
+    private IntObjectOpenHashMap<Object> openHashMap;
+
+    private IntObjectMap<Object> intObjectMap;
+
+    private Map<Integer, Object> hashMap;
+
+    private ConcurrentMap<Integer, Object> concurrentHashMap;
+
+    private ReturnableSet<HostKey> hostKeyedSet;
+
+    /**
+     * 每条代理流的目标主机名，查找时复制一份以模拟反序列化得到的新字符串
+     */
+    private char[][] hosts;
+
+    /**
+     * 活跃代理流序列号
+     */
+    private int[] serialIds;
+
+    /**
+     * 随机的查找顺序，元素为serialIds的下标
+     */
+    private int[] order;
+
+    private int cursor;
+
+    /**
+     * 下一个新建代理流的序列号，客户端按递增顺序分配
+     */
+    private int nextSerialId;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(streams);
+        int base = random.nextInt(1 << 20);
+
+        openHashMap = new IntObjectOpenHashMap<>(64);
+        intObjectMap = new IntObjectHashMap<>(64);
+        hashMap = new HashMap<>(64);
+        concurrentHashMap = new ConcurrentHashMap<>(512);
+        hostKeyedSet = new ReturnableLinkedHashSet<>(128);
+        hosts = new char[streams][];
+        serialIds = new int[streams];
+
+        for (int i = 0; i < streams; i++) {
+            int sid = base + i;
+            String host = "host-" + random.nextInt(1 << 16) + ".example.com";
+            Object stream = new Object();
+            hosts[i] = host.toCharArray();
+            serialIds[i] = sid;
+            openHashMap.put(sid, stream);
+            intObjectMap.put(sid, stream);
+            hashMap.put(sid, stream);
+            concurrentHashMap.put(sid, stream);
+            hostKeyedSet.add(new HostKey(host, 443, sid));
+        }
+
+        order = new int[ORDER_SIZE];
+        for (int i = 0; i < ORDER_SIZE; i++) {
+            order[i] = random.nextInt(streams);
+        }
+
+        nextSerialId = base + streams;
+    }
+
+    private int next() {
+        return order[cursor++ & (ORDER_SIZE - 1)];
+    }
+
+    @Benchmark
+    public Object lookupOpenHashMap() {
+        return openHashMap.get(serialIds[next()]);
+    }
+
+    @Benchmark
+    public Object lookupSynchronizedOpenHashMap() {
+        int sid = serialIds[next()];
+        synchronized (openHashMap) {
+            return openHashMap.get(sid);
+        }
+    }
+
+    @Benchmark
+    public Object lookupIntObjectMap() {
+        return intObjectMap.get(serialIds[next()]);
+    }
+
+    @Benchmark
+    public Object lookupHashMap() {
+        return hashMap.get(serialIds[next()]);
+    }
+
+    @Benchmark
+    public Object lookupConcurrentHashMap() {
+        return concurrentHashMap.get(serialIds[next()]);
+    }
+
+    @Benchmark
+    public Object lookupHostKeyedSet() {
+        int idx = next();
+        return hostKeyedSet.getIfContains(new HostKey(new String(hosts[idx]), 443, serialIds[idx]));
+    }
+
+    @Benchmark
+    public Object churnOpenHashMap() {
+        int idx = next();
+        int sid = nextSerialId++;
+        Object stream = openHashMap.remove(serialIds[idx]);
+        serialIds[idx] = sid;
+        return openHashMap.put(sid, stream);
+    }
+
+    @Benchmark
+    public Object churnSynchronizedOpenHashMap() {
+        int idx = next();
+        int sid = nextSerialId++;
+        synchronized (openHashMap) {
+            Object stream = openHashMap.remove(serialIds[idx]);
+            serialIds[idx] = sid;
+            return openHashMap.put(sid, stream);
+        }
+    }
+
+    @Benchmark
+    public Object churnIntObjectMap() {
+        int idx = next();
+        int sid = nextSerialId++;
+        Object stream = intObjectMap.remove(serialIds[idx]);
+        serialIds[idx] = sid;
+        return intObjectMap.put(sid, stream);
+    }
+
+    @Benchmark
+    public Object churnConcurrentHashMap() {
+        int idx = next();
+        int sid = nextSerialId++;
+        Object stream = concurrentHashMap.remove(serialIds[idx]);
+        serialIds[idx] = sid;
+        return concurrentHashMap.put(sid, stream);
+    }
+
+    @Benchmark
+    public Object churnHashMap() {
+        int idx = next();
+        int sid = nextSerialId++;
+        Object stream = hashMap.remove(serialIds[idx]);
+        serialIds[idx] = sid;
+        return hashMap.put(sid, stream);
+    }
+
+
+    /**
+     * 服务端原先用于查找ActiveConnection的键
+     */
+    private static final class HostKey {
+        final String host;
+        final int port;
+        final int clientSerialId;
+
+        HostKey(String host, int port, int clientSerialId) {
+            this.host = host;
+            this.port = port;
+            this.clientSerialId = clientSerialId;
+        }
+
+        @Override
+        public int hashCode() {
+            return host.hashCode() ^ (port << 16) ^ clientSerialId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            } else if (obj instanceof HostKey) {
+                HostKey k = (HostKey) obj;
+                return this.host.equals(k.host) && this.port == k.port && this.clientSerialId == k.clientSerialId;
+            }
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark.e2e;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.lzf.flyingsocks.client.StandardClient;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 在当前JVM中启动的flyingsocks客户端，关闭GUI，使用全局代理模式，
+ * 同时开启SOCKS5与HTTP代理端口并连接到{@link EmbeddedServer}。
+ * 客户端停止时会退出JVM，因此不提供停止方法
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/18 22:10
+ */
+final class EmbeddedClient {
+
+    private final Path configLocation;
+
+    private final int serverPort;
+
+    private final int socksPort;
+
+    private final int httpPort;
+
+
+    EmbeddedClient(Path configLocation, int serverPort, int socksPort, int httpPort) {
+        this.configLocation = configLocation;
+        this.serverPort = serverPort;
+        this.socksPort = socksPort;
+        this.httpPort = httpPort;
+    }
+
+
+    void start() throws IOException {
+        Files.createDirectories(configLocation);
+
+        String global = "enable-gui=false\n" +
+                "enable-socks5=true\n" +
+                "enable-http=true\n" +
+                "enable-transparent=false\n" +
+                "connect-timeout=8000\n";
+        write("global-options", global);
+        write("pac-setting", "global");
+
+        JSONObject authArg = new JSONObject();
+        authArg.put("password", EmbeddedServer.PASSWORD);
+
+        JSONObject node = new JSONObject();
+        node.put("host", "127.0.0.1");
+        node.put("port", serverPort);
+        node.put("cert-port", 0);
+        node.put("auth", "simple");
+        node.put("auth-arg", authArg);
+        node.put("state", true);
+        node.put("encrypt", "NONE");
+        JSONArray nodes = new JSONArray();
+        nodes.add(node);
+        write("server-setting.json", nodes.toJSONString());
+
+        JSONObject socks = new JSONObject();
+        socks.put("address", "127.0.0.1");
+        socks.put("port", socksPort);
+        socks.put("auth", false);
+        write("socks-setting.json", socks.toJSONString());
+
+        JSONObject http = new JSONObject();
+        http.put("address", "127.0.0.1");
+        http.put("port", httpPort);
+        http.put("auth", false);
+        http.put("windowsSystemProxy", false);
+        write("http-setting.json", http.toJSONString());
+
+        System.setProperty("config.location", configLocation.toString());
+
+        StandardClient client = new StandardClient();
+        client.init();
+        client.start();
+    }
+
+
+    private void write(String file, String content) throws IOException {
+        Files.write(configLocation.resolve(file), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark.e2e;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.lzf.flyingsocks.server.StandardServer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 在当前JVM中启动的flyingsocks服务端，使用临时配置目录，不加密，简单认证
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/18 21:50
+ */
+final class EmbeddedServer {
+
+    static final String PASSWORD = "flyingsocks-benchmark";
+
+    private final Path configLocation;
+
+    private final int port;
+
+
+    EmbeddedServer(Path configLocation, int port) {
+        this.configLocation = configLocation;
+        this.port = port;
+    }
+
+
+    void start() throws IOException {
+        JSONObject node = new JSONObject();
+        node.put("name", "benchmark");
+        node.put("port", port);
+        node.put("cert-port", 0);
+        node.put("max-client", 16);
+        node.put("encrypt", "None");
+        node.put("auth-type", "simple");
+        node.put("password", PASSWORD);
+
+        JSONArray arr = new JSONArray();
+        arr.add(node);
+
+        Files.createDirectories(configLocation);
+        Files.write(configLocation.resolve("server.json"), arr.toJSONString().getBytes(StandardCharsets.UTF_8));
+        System.setProperty("flyingsocks.config.location", configLocation.toString());
+
+        StandardServer server = new StandardServer();
+        server.init();
+        server.start();
+    }
+}
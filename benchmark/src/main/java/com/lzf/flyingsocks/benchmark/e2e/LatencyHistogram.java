@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark.e2e;
+
+/**
+ * 对数线性分桶的延迟直方图，单位为纳秒，相对误差小于1%
+ *
+ * 每个桶区间[2^k, 2^(k+1))被均分为64个子桶，记录操作不分配内存。
+ * 非线程安全，每个IO线程各自持有一个实例，测试结束后合并
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/18 20:40
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+
+    /**
+     * 最大移位数，可记录的最大值约为2^46纳秒
+     */
+    private static final int MAX_SHIFT = 40;
+
+    private final long[] counts = new long[SUB_BUCKET_COUNT + MAX_SHIFT * SUB_BUCKET_HALF];
+
+    private long totalCount;
+
+    private long totalValue;
+
+    private long maxValue;
+
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts[indexOf(value)]++;
+        totalCount++;
+        totalValue += value;
+        if (value > maxValue) {
+            maxValue = value;
+        }
+    }
+
+
+    void merge(LatencyHistogram other) {
+        long[] src = other.counts;
+        for (int i = 0; i < src.length; i++) {
+            counts[i] += src[i];
+        }
+
+        totalCount += other.totalCount;
+        totalValue += other.totalValue;
+        maxValue = Math.max(maxValue, other.maxValue);
+    }
+
+
+    long count() {
+        return totalCount;
+    }
+
+
+    long max() {
+        return maxValue;
+    }
+
+
+    double mean() {
+        return totalCount == 0 ? 0D : (double) totalValue / totalCount;
+    }
+
+    /**
+     * @param percentile 百分位，取值范围(0, 100]
+     * @return 对应百分位所在桶的上界，不超过记录到的最大值
+     */
+    long percentile(double percentile) {
+        if (totalCount == 0) {
+            return 0L;
+        }
+
+        long target = (long) Math.ceil(totalCount * percentile / 100D);
+        if (target < 1) {
+            target = 1;
+        }
+
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), maxValue);
+            }
+        }
+
+        return maxValue;
+    }
+
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        if (shift > MAX_SHIFT) {
+            return SUB_BUCKET_COUNT + MAX_SHIFT * SUB_BUCKET_HALF - 1;
+        }
+
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (int) ((value >>> shift) - SUB_BUCKET_HALF);
+    }
+
+
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        int offset = index - SUB_BUCKET_COUNT;
+        int shift = offset / SUB_BUCKET_HALF + 1;
+        long sub = offset % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
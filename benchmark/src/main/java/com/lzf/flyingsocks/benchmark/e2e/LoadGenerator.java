@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark.e2e;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 端到端负载生成器
+ *
+ * 在同一个JVM中通过回环地址启动flyingsocks服务端、客户端以及一个回显/丢弃目标服务器，
+ * 然后通过客户端的SOCKS5或HTTP代理端口建立N条并发代理流，
+ * 统计吞吐量、消息往返延迟分位数、代理流建立耗时以及测量期间的GC停顿，整个过程不需要外部网络。
+ *
+ * 用法见{@link LoadGeneratorOptions#USAGE}，测试结束后进程退出
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/18 23:20
+ */
+public final class LoadGenerator {
+
+    private static final Logger log = LoggerFactory.getLogger(LoadGenerator.class);
+
+    private final LoadGeneratorOptions options;
+
+    /**
+     * 各IO线程的统计数据
+     */
+    private final Map<Thread, StreamStats> statsMap = new ConcurrentHashMap<>();
+
+    /**
+     * 建立失败或者在建立前被关闭的代理流数量
+     */
+    private final AtomicLong failedStreams = new AtomicLong();
+
+    private final ByteBuf payload;
+
+    private InetSocketAddress targetAddress;
+
+    private EventLoopGroup group;
+
+    private Bootstrap bootstrap;
+
+    private volatile boolean running;
+
+    private volatile boolean measuring;
+
+
+    private LoadGenerator(LoadGeneratorOptions options) {
+        this.options = options;
+
+        byte[] b = new byte[options.messageSize];
+        ThreadLocalRandom.current().nextBytes(b);
+        ByteBuf buf = Unpooled.directBuffer(b.length);
+        buf.writeBytes(b);
+        //多个IO线程共享同一份数据，避免引用计数的竞争
+        this.payload = Unpooled.unreleasableBuffer(buf);
+    }
+
+
+    public static void main(String[] args) {
+        LoadGeneratorOptions options;
+        try {
+            options = LoadGeneratorOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(LoadGeneratorOptions.USAGE);
+            System.exit(1);
+            return;
+        }
+
+        int status = 0;
+        try {
+            new LoadGenerator(options).run();
+        } catch (Exception e) {
+            log.error("Load test failure", e);
+            status = 1;
+        }
+
+        //客户端组件停止时会直接退出JVM，因此服务端、客户端和目标服务器都随进程一同退出
+        System.exit(status);
+    }
+
+
+    private void run() throws Exception {
+        log.info("Load test options: {}", options);
+
+        TargetServer target = new TargetServer(options.mode, 2);
+        this.targetAddress = target.start();
+
+        Path location = Files.createTempDirectory("flyingsocks-benchmark-");
+        int serverPort = findFreePort();
+        int socksPort = findFreePort();
+        int httpPort = findFreePort();
+
+        new EmbeddedServer(location.resolve("server"), serverPort).start();
+
+        //需要模拟广域网时客户端连接中继而不是直接连接服务端
+        int tunnelPort = serverPort;
+        if (options.wan != null) {
+            tunnelPort = new WanRelay(options.wan, serverPort, 1).start().getPort();
+        }
+
+        new EmbeddedClient(location.resolve("client"), tunnelPort, socksPort, httpPort).start();
+        log.info("Target {}, server port {}, tunnel port {}, socks5 port {}, http port {}, config location {}",
+                targetAddress, serverPort, tunnelPort, socksPort, httpPort, location);
+
+        awaitTunnelReady(target, socksPort);
+
+        int proxyPort = options.protocol == LoadGeneratorOptions.Protocol.SOCKS5 ? socksPort : httpPort;
+
+        GcPauseMonitor gc = new GcPauseMonitor();
+        gc.install();
+
+        this.group = new NioEventLoopGroup(options.threads);
+        this.bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
+                .remoteAddress(new InetSocketAddress("127.0.0.1", proxyPort));
+
+        running = true;
+        for (int i = 0; i < options.streams; i++) {
+            openStream();
+        }
+
+        TimeUnit.SECONDS.sleep(options.warmupSeconds);
+
+        long sinkBytes = target.receivedBytes();
+        gc.setMeasuring(true);
+        measuring = true;
+        long start = System.nanoTime();
+
+        TimeUnit.SECONDS.sleep(options.durationSeconds);
+
+        measuring = false;
+        long elapsed = System.nanoTime() - start;
+        gc.setMeasuring(false);
+        sinkBytes = target.receivedBytes() - sinkBytes;
+
+        running = false;
+        group.shutdownGracefully(0, 5, TimeUnit.SECONDS).syncUninterruptibly();
+        gc.uninstall();
+
+        report(elapsed, sinkBytes, gc);
+    }
+
+
+    private void openStream() {
+        StreamDriver driver = new StreamDriver(this, System.nanoTime());
+        bootstrap.clone().handler(driver).connect().addListener(f -> {
+            if (!f.isSuccess()) {
+                streamClosed(false);
+            }
+        });
+    }
+
+    /**
+     * 代理流关闭后调用，测试仍在进行时补充一条新的代理流
+     *
+     * @param opened 代理流是否已经成功建立
+     */
+    void streamClosed(boolean opened) {
+        if (!running) {
+            return;
+        }
+
+        if (opened) {
+            openStream();
+        } else {
+            failedStreams.incrementAndGet();
+            //避免代理端口不可用时不断重试
+            group.schedule(this::openStream, 100, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    private void report(long elapsedNanos, long sinkBytes, GcPauseMonitor gc) {
+        StreamStats total = new StreamStats();
+        for (StreamStats stats : statsMap.values()) {
+            total.merge(stats);
+        }
+
+        double seconds = elapsedNanos / 1e9D;
+        long bytes = options.mode == LoadGeneratorOptions.Mode.SINK ? sinkBytes : total.bytes;
+
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("\n==================== flyingsocks end-to-end load test ====================\n");
+        sb.append(String.format("options         : %s%n", options));
+        sb.append(String.format("elapsed         : %.2f s%n", seconds));
+        sb.append(String.format("throughput      : %.2f MiB/s (%d bytes)%n", bytes / seconds / (1024D * 1024D), bytes));
+        if (options.mode == LoadGeneratorOptions.Mode.ECHO) {
+            LatencyHistogram h = total.latency;
+            sb.append(String.format("round trips     : %d (%.0f/s)%n", total.roundTrips, total.roundTrips / seconds));
+            sb.append(String.format("latency (us)    : mean=%.1f p50=%.1f p99=%.1f p999=%.1f max=%.1f%n",
+                    h.mean() / 1e3D, h.percentile(50) / 1e3D, h.percentile(99) / 1e3D,
+                    h.percentile(99.9) / 1e3D, h.max() / 1e3D));
+        }
+
+        LatencyHistogram open = total.openLatency;
+        sb.append(String.format("streams opened  : %d (including warmup)%n", total.openedStreams));
+        sb.append(String.format("open (ms)       : mean=%.2f p50=%.2f p99=%.2f max=%.2f%n",
+                open.mean() / 1e6D, open.percentile(50) / 1e6D, open.percentile(99) / 1e6D, open.max() / 1e6D));
+        sb.append(String.format("failed streams  : %d (including warmup)%n", failedStreams.get()));
+        sb.append(String.format("gc              : count=%d total=%d ms max pause=%d ms%n",
+                gc.count(), gc.totalMillis(), gc.maxMillis()));
+        sb.append("==========================================================================");
+
+        System.out.println(sb);
+    }
+
+
+    LoadGeneratorOptions options() {
+        return options;
+    }
+
+
+    InetSocketAddress targetAddress() {
+        return targetAddress;
+    }
+
+
+    ByteBuf payload() {
+        return payload.retainedDuplicate();
+    }
+
+
+    boolean isMeasuring() {
+        return measuring;
+    }
+
+    /**
+     * @return 当前IO线程的统计数据，只能在IO线程中调用
+     */
+    StreamStats stats() {
+        return statsMap.computeIfAbsent(Thread.currentThread(), t -> new StreamStats());
+    }
+
+
+    /**
+     * 客户端在代理隧道认证完成前会直接关闭收到的代理请求，高延迟链路下认证需要若干个RTT，
+     * 因此先通过SOCKS5端口反复发送探测数据，直到目标服务器收到数据后再开始施加负载
+     */
+    private void awaitTunnelReady(TargetServer target, int socksPort) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        byte[] ip = targetAddress.getAddress().getAddress();
+        int port = targetAddress.getPort();
+        while (System.nanoTime() < deadline) {
+            long received = target.receivedBytes();
+            try (Socket socket = new Socket("127.0.0.1", socksPort)) {
+                socket.setSoTimeout(10000);
+                OutputStream out = socket.getOutputStream();
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+
+                out.write(new byte[]{0x05, 0x01, 0x00});
+                in.readFully(new byte[2]);
+
+                out.write(new byte[]{0x05, 0x01, 0x00, 0x01, ip[0], ip[1], ip[2], ip[3], (byte) (port >> 8), (byte) port});
+                in.readFully(new byte[10]);
+
+                out.write(0x00);
+                out.flush();
+
+                long wait = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+                while (System.nanoTime() < wait) {
+                    if (target.receivedBytes() > received) {
+                        return;
+                    }
+                    TimeUnit.MILLISECONDS.sleep(10);
+                }
+            } catch (IOException e) {
+                log.debug("Tunnel probe failure", e);
+            }
+
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+
+        throw new IOException("Proxy tunnel is not ready in 30 seconds");
+    }
+
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            socket.setReuseAddress(true);
+            return socket.getLocalPort();
+        }
+    }
+
+
+    /**
+     * 单个IO线程的统计数据，仅由该线程修改
+     */
+    static final class StreamStats {
+
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        final LatencyHistogram openLatency = new LatencyHistogram();
+
+        long bytes;
+
+        long roundTrips;
+
+        long openedStreams;
+
+        void merge(StreamStats other) {
+            latency.merge(other.latency);
+            openLatency.merge(other.openLatency);
+            bytes += other.bytes;
+            roundTrips += other.roundTrips;
+            openedStreams += other.openedStreams;
+        }
+    }
+}
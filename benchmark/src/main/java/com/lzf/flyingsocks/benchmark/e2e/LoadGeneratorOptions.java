@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark.e2e;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 负载测试参数，通过key=value形式的命令行参数指定
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/18 20:15
+ */
+final class LoadGeneratorOptions {
+
+    static final String USAGE = "Usage: LoadGenerator [key=value ...]\n" +
+            "  protocol=socks5|http   客户端入口协议，默认socks5\n" +
+            "  mode=echo|sink|source  echo为闭环往返测试，sink为单向上传测试，source为单向下载测试，默认echo\n" +
+            "  streams=N              并发代理流数量，默认64\n" +
+            "  size=N                 每条消息字节数，默认1024\n" +
+            "  duration=N             测量时长(秒)，默认30\n" +
+            "  warmup=N               预热时长(秒)，默认5\n" +
+            "  reopen=N               每条代理流完成N次往返后关闭并重新建立，0表示不重建，默认0\n" +
+            "  threads=N              负载生成器IO线程数，默认为CPU核心数\n" +
+            "  rtt=N                  客户端与服务端之间模拟的往返时延(毫秒)，默认0\n" +
+            "  jitter=N               模拟的单向时延抖动(毫秒)，默认0\n" +
+            "  bandwidth=N            模拟的单向链路带宽(Mbit/s)，0表示不限制，默认0\n" +
+            "  loss=N                 模拟的报文段丢失率(百分比，可为小数)，默认0\n" +
+            "  stall=N                每次丢包造成的链路停顿(毫秒)，默认200\n" +
+            "  以上任一WAN参数不为0时，客户端与服务端之间的连接将经过广域网模拟中继，\n" +
+            "  例如 rtt=150 bandwidth=20 loss=0.1";
+
+    enum Protocol {
+        SOCKS5, HTTP
+    }
+
+    enum Mode {
+        ECHO, SINK, SOURCE
+    }
+
+    final Protocol protocol;
+
+    final Mode mode;
+
+    final int streams;
+
+    final int messageSize;
+
+    final int durationSeconds;
+
+    final int warmupSeconds;
+
+    final int reopenAfter;
+
+    final int threads;
+
+    /**
+     * 客户端与服务端之间的链路状况，为null表示直连
+     */
+    final WanCondition wan;
+
+
+    private LoadGeneratorOptions(Map<String, String> args) {
+        this.protocol = Protocol.valueOf(args.getOrDefault("protocol", "socks5").toUpperCase());
+        this.mode = Mode.valueOf(args.getOrDefault("mode", "echo").toUpperCase());
+        this.streams = positive(args, "streams", 64);
+        this.messageSize = positive(args, "size", 1024);
+        this.durationSeconds = positive(args, "duration", 30);
+        this.warmupSeconds = nonNegative(args, "warmup", 5);
+        this.reopenAfter = nonNegative(args, "reopen", 0);
+        this.threads = positive(args, "threads", Runtime.getRuntime().availableProcessors());
+
+        int rtt = nonNegative(args, "rtt", 0);
+        int jitter = nonNegative(args, "jitter", 0);
+        int bandwidth = nonNegative(args, "bandwidth", 0);
+        double loss = Double.parseDouble(args.getOrDefault("loss", "0")) / 100D;
+        int stall = nonNegative(args, "stall", 200);
+        if (rtt > 0 || jitter > 0 || bandwidth > 0 || loss != 0D) {
+            this.wan = new WanCondition(rtt, jitter, bandwidth, loss, stall);
+        } else {
+            this.wan = null;
+        }
+    }
+
+
+    static LoadGeneratorOptions parse(String[] args) {
+        Map<String, String> map = new HashMap<>();
+        for (String arg : args) {
+            int idx = arg.indexOf('=');
+            if (idx <= 0) {
+                throw new IllegalArgumentException("Illegal argument: " + arg);
+            }
+
+            String key = arg.substring(0, idx);
+            switch (key) {
+                case "protocol":
+                case "mode":
+                case "streams":
+                case "size":
+                case "duration":
+                case "warmup":
+                case "reopen":
+                case "threads":
+                case "rtt":
+                case "jitter":
+                case "bandwidth":
+                case "loss":
+                case "stall":
+                    map.put(key, arg.substring(idx + 1));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + key);
+            }
+        }
+
+        return new LoadGeneratorOptions(map);
+    }
+
+
+    private static int positive(Map<String, String> args, String key, int defaultValue) {
+        int val = nonNegative(args, key, defaultValue);
+        if (val == 0) {
+            throw new IllegalArgumentException(key + " must be positive");
+        }
+        return val;
+    }
+
+
+    private static int nonNegative(Map<String, String> args, String key, int defaultValue) {
+        String str = args.get(key);
+        if (str == null) {
+            return defaultValue;
+        }
+
+        int val = Integer.parseInt(str);
+        if (val < 0) {
+            throw new IllegalArgumentException(key + " must not be negative");
+        }
+        return val;
+    }
+
+
+    @Override
+    public String toString() {
+        return "protocol=" + protocol.name().toLowerCase() + " mode=" + mode.name().toLowerCase() +
+                " streams=" + streams + " size=" + messageSize + " duration=" + durationSeconds +
+                " warmup=" + warmupSeconds + " reopen=" + reopenAfter + " threads=" + threads +
+                (wan != null ? " wan=[" + wan + "]" : "");
+    }
+}
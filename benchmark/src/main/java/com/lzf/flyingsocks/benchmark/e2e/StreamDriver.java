@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark.e2e;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 驱动一条代理流：通过SOCKS5或HTTP CONNECT与客户端建立隧道，
+ * 然后按照ECHO模式(发送一条消息，等待完整回显后再发送下一条)、SINK模式(持续写入直到不可写)
+ * 或SOURCE模式(发送一条消息后只接收目标服务器持续返回的数据)产生负载
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/18 22:40
+ */
+final class StreamDriver extends ChannelInboundHandlerAdapter {
+
+    private enum State {
+        SOCKS_METHOD, SOCKS_CONNECT, HTTP_CONNECT, OPEN, CLOSED
+    }
+
+    private final LoadGenerator generator;
+
+    private final LoadGeneratorOptions options;
+
+    /**
+     * 发起TCP连接的时间，用于计算代理流建立耗时
+     */
+    private final long startNanos;
+
+    private State state;
+
+    /**
+     * 握手阶段累积的响应数据
+     */
+    private ByteBuf handshake;
+
+    private LoadGenerator.StreamStats stats;
+
+    /**
+     * 当前消息的发送时间
+     */
+    private long sendNanos;
+
+    /**
+     * 当前消息尚未收到回显的字节数
+     */
+    private int pending;
+
+    private int roundTrips;
+
+
+    StreamDriver(LoadGenerator generator, long startNanos) {
+        this.generator = generator;
+        this.options = generator.options();
+        this.startNanos = startNanos;
+    }
+
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.stats = generator.stats();
+    }
+
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        InetSocketAddress target = generator.targetAddress();
+        if (options.protocol == LoadGeneratorOptions.Protocol.SOCKS5) {
+            state = State.SOCKS_METHOD;
+            ctx.writeAndFlush(Unpooled.wrappedBuffer(new byte[] { 0x05, 0x01, 0x00 }), ctx.voidPromise());
+        } else {
+            state = State.HTTP_CONNECT;
+            String authority = target.getHostString() + ":" + target.getPort();
+            String request = "CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n";
+            ctx.writeAndFlush(Unpooled.copiedBuffer(request, StandardCharsets.US_ASCII), ctx.voidPromise());
+        }
+    }
+
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!(msg instanceof ByteBuf)) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+
+        ByteBuf buf = (ByteBuf) msg;
+        if (state == State.OPEN) {
+            int len = buf.readableBytes();
+            buf.release();
+            if (options.mode == LoadGeneratorOptions.Mode.ECHO) {
+                receiveEcho(ctx, len);
+            } else if (options.mode == LoadGeneratorOptions.Mode.SOURCE && generator.isMeasuring()) {
+                stats.bytes += len;
+            }
+            return;
+        }
+
+        try {
+            if (handshake == null) {
+                handshake = ctx.alloc().buffer(64);
+            }
+            handshake.writeBytes(buf);
+        } finally {
+            buf.release();
+        }
+
+        processHandshake(ctx);
+    }
+
+
+    private void processHandshake(ChannelHandlerContext ctx) {
+        ByteBuf buf = this.handshake;
+        if (state == State.SOCKS_METHOD) {
+            if (buf.readableBytes() < 2) {
+                return;
+            }
+
+            if (buf.readByte() != 0x05 || buf.readByte() != 0x00) {
+                ctx.close();
+                return;
+            }
+
+            InetSocketAddress target = generator.targetAddress();
+            ByteBuf request = ctx.alloc().buffer(10);
+            request.writeByte(0x05).writeByte(0x01).writeByte(0x00).writeByte(0x01);
+            request.writeBytes(target.getAddress().getAddress());
+            request.writeShort(target.getPort());
+            ctx.writeAndFlush(request, ctx.voidPromise());
+            state = State.SOCKS_CONNECT;
+        }
+
+        if (state == State.SOCKS_CONNECT) {
+            int idx = buf.readerIndex();
+            if (buf.readableBytes() < 5) {
+                return;
+            }
+
+            int addressLength;
+            switch (buf.getByte(idx + 3)) {
+                case 0x01: addressLength = 4; break;
+                case 0x04: addressLength = 16; break;
+                case 0x03: addressLength = 1 + buf.getUnsignedByte(idx + 4); break;
+                default: {
+                    ctx.close();
+                    return;
+                }
+            }
+
+            int length = 4 + addressLength + 2;
+            if (buf.readableBytes() < length) {
+                return;
+            }
+
+            if (buf.getByte(idx + 1) != 0x00) {
+                ctx.close();
+                return;
+            }
+
+            buf.skipBytes(length);
+            streamOpened(ctx);
+        } else if (state == State.HTTP_CONNECT) {
+            int end = indexOfHeaderEnd(buf);
+            if (end < 0) {
+                return;
+            }
+
+            String response = buf.toString(buf.readerIndex(), end - buf.readerIndex(), StandardCharsets.US_ASCII);
+            int lineEnd = response.indexOf("\r\n");
+            String[] statusLine = (lineEnd < 0 ? response : response.substring(0, lineEnd)).split(" ");
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/1.") || !statusLine[1].equals("200")) {
+                ctx.close();
+                return;
+            }
+
+            buf.readerIndex(end + 4);
+            streamOpened(ctx);
+        }
+    }
+
+
+    private static int indexOfHeaderEnd(ByteBuf buf) {
+        int end = buf.writerIndex() - 3;
+        for (int i = buf.readerIndex(); i < end; i++) {
+            if (buf.getByte(i) == '\r' && buf.getByte(i + 1) == '\n' && buf.getByte(i + 2) == '\r' && buf.getByte(i + 3) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    private void streamOpened(ChannelHandlerContext ctx) {
+        handshake.release();
+        handshake = null;
+        state = State.OPEN;
+
+        //代理流的建立集中发生在预热阶段，因此建立耗时不受测量窗口限制
+        stats.openLatency.record(System.nanoTime() - startNanos);
+        stats.openedStreams++;
+
+        if (options.mode == LoadGeneratorOptions.Mode.ECHO) {
+            sendEcho(ctx);
+        } else if (options.mode == LoadGeneratorOptions.Mode.SINK) {
+            fillSink(ctx);
+        } else {
+            ctx.writeAndFlush(generator.payload(), ctx.voidPromise());
+        }
+    }
+
+
+    private void sendEcho(ChannelHandlerContext ctx) {
+        pending = options.messageSize;
+        sendNanos = System.nanoTime();
+        ctx.writeAndFlush(generator.payload(), ctx.voidPromise());
+    }
+
+
+    private void receiveEcho(ChannelHandlerContext ctx, int length) {
+        pending -= length;
+        if (pending > 0) {
+            return;
+        }
+
+        if (generator.isMeasuring()) {
+            stats.latency.record(System.nanoTime() - sendNanos);
+            stats.bytes += options.messageSize;
+            stats.roundTrips++;
+        }
+
+        int reopenAfter = options.reopenAfter;
+        if (reopenAfter > 0 && ++roundTrips >= reopenAfter) {
+            ctx.close();
+            return;
+        }
+
+        sendEcho(ctx);
+    }
+
+
+    private void fillSink(ChannelHandlerContext ctx) {
+        while (ctx.channel().isWritable()) {
+            ctx.write(generator.payload(), ctx.voidPromise());
+        }
+        ctx.flush();
+    }
+
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (state == State.OPEN && options.mode == LoadGeneratorOptions.Mode.SINK && ctx.channel().isWritable()) {
+            fillSink(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        boolean opened = state == State.OPEN;
+        state = State.CLOSED;
+        if (handshake != null) {
+            handshake.release();
+            handshake = null;
+        }
+
+        generator.streamClosed(opened);
+    }
+
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ctx.close();
+    }
+}
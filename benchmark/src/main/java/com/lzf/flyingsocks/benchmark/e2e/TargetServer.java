@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark.e2e;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 代理目标服务器，ECHO模式下原样返回收到的数据，SINK模式下丢弃数据，
+ * SOURCE模式下收到第一段数据后持续向连接写入数据直到连接不可写
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/18 21:30
+ */
+final class TargetServer {
+
+    /**
+     * SOURCE模式下写出的数据块
+     */
+    private static final ByteBuf SOURCE_CHUNK = Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer(16 * 1024).writeZero(16 * 1024)).asReadOnly();
+
+    private final LoadGeneratorOptions.Mode mode;
+
+    private final EventLoopGroup group;
+
+    private final LongAdder receivedBytes = new LongAdder();
+
+
+    TargetServer(LoadGeneratorOptions.Mode mode, int threads) {
+        this.mode = mode;
+        this.group = new NioEventLoopGroup(threads);
+    }
+
+
+    InetSocketAddress start() throws InterruptedException {
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .option(ChannelOption.SO_BACKLOG, 4096)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                //SOURCE模式下代理流暂停读取时，自动调整的发送缓冲区会让大量代理流的内核缓冲占满TCP内存，导致丢包重传
+                .childOption(ChannelOption.SO_SNDBUF, 128 * 1024)
+                .childHandler(handler());
+
+        Channel channel = bootstrap.bind("127.0.0.1", 0).sync().channel();
+        return (InetSocketAddress) channel.localAddress();
+    }
+
+
+    private ChannelHandler handler() {
+        switch (mode) {
+            case ECHO: return new EchoHandler();
+            case SOURCE: return new SourceHandler();
+            default: return new SinkHandler();
+        }
+    }
+
+
+    long receivedBytes() {
+        return receivedBytes.sum();
+    }
+
+
+    @ChannelHandler.Sharable
+    private final class EchoHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof ByteBuf) {
+                receivedBytes.add(((ByteBuf) msg).readableBytes());
+            }
+
+            ctx.write(msg, ctx.voidPromise());
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ctx.flush();
+            if (!ctx.channel().isWritable()) {
+                ctx.channel().config().setAutoRead(false);
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (ctx.channel().isWritable()) {
+                ctx.channel().config().setAutoRead(true);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+
+    @ChannelHandler.Sharable
+    private final class SinkHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof ByteBuf) {
+                receivedBytes.add(((ByteBuf) msg).readableBytes());
+            }
+            ReferenceCountUtil.release(msg);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+
+    @ChannelHandler.Sharable
+    private final class SourceHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof ByteBuf) {
+                receivedBytes.add(((ByteBuf) msg).readableBytes());
+            }
+            ReferenceCountUtil.release(msg);
+            fill(ctx);
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            fill(ctx);
+        }
+
+        private void fill(ChannelHandlerContext ctx) {
+            Channel channel = ctx.channel();
+            if (!channel.isWritable()) {
+                return;
+            }
+
+            while (channel.isWritable()) {
+                ctx.write(SOURCE_CHUNK.duplicate(), ctx.voidPromise());
+            }
+            ctx.flush();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
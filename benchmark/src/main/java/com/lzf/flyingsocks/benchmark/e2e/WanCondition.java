@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark.e2e;
+
+/**
+ * 模拟的广域网链路状况，单个方向上的参数，双向链路由两个方向各自使用一个{@link WanEmulationHandler}实现
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/19 14:10
+ */
+final class WanCondition {
+
+    /**
+     * 模拟TCP最大报文段长度，用于按报文段计算丢包概率
+     */
+    static final int SEGMENT_SIZE = 1460;
+
+    /**
+     * 单向传播时延(纳秒)
+     */
+    final long latencyNanos;
+
+    /**
+     * 时延抖动幅度(纳秒)，实际时延在[latency - jitter, latency + jitter]之间均匀分布
+     */
+    final long jitterNanos;
+
+    /**
+     * 链路带宽(bit/s)，0表示不限制
+     */
+    final long bandwidthBitsPerSecond;
+
+    /**
+     * 每个报文段的丢失概率
+     */
+    final double lossRate;
+
+    /**
+     * 发生丢包时链路的停顿时长(纳秒)，模拟重传超时造成的队头阻塞
+     */
+    final long stallNanos;
+
+    /**
+     * 链路中允许积压的最大字节数，超过后写入端变为不可写
+     */
+    final int queueLimit;
+
+
+    WanCondition(int rttMillis, int jitterMillis, int bandwidthMbps, double lossRate, int stallMillis) {
+        if (rttMillis < 0 || jitterMillis < 0 || bandwidthMbps < 0 || stallMillis < 0) {
+            throw new IllegalArgumentException("WAN condition must not be negative");
+        }
+
+        if (lossRate < 0D || lossRate >= 1D) {
+            throw new IllegalArgumentException("Loss rate must be in [0, 1)");
+        }
+
+        this.latencyNanos = rttMillis * 1_000_000L / 2;
+        this.jitterNanos = jitterMillis * 1_000_000L;
+        this.bandwidthBitsPerSecond = bandwidthMbps * 1_000_000L;
+        this.lossRate = lossRate;
+        this.stallNanos = stallMillis * 1_000_000L;
+
+        //积压上限取两倍带宽时延积，相当于一个足够大的TCP接收窗口，不限带宽时固定为4MB
+        if (bandwidthBitsPerSecond > 0) {
+            long bdp = bandwidthBitsPerSecond / 8 * Math.max(rttMillis, 1) / 1000;
+            this.queueLimit = (int) Math.min(Math.max(bdp * 2, 256 * 1024), Integer.MAX_VALUE);
+        } else {
+            this.queueLimit = 4 * 1024 * 1024;
+        }
+    }
+
+    /**
+     * @return 传输size字节所需的时间(纳秒)
+     */
+    long transmitNanos(int size) {
+        if (bandwidthBitsPerSecond == 0) {
+            return 0;
+        }
+        return size * 8L * 1_000_000_000L / bandwidthBitsPerSecond;
+    }
+
+
+    @Override
+    public String toString() {
+        return "rtt=" + latencyNanos * 2 / 1_000_000 + "ms jitter=" + jitterNanos / 1_000_000 +
+                "ms bandwidth=" + (bandwidthBitsPerSecond == 0 ? "unlimited" : bandwidthBitsPerSecond / 1_000_000 + "Mbit") +
+                " loss=" + lossRate + " stall=" + stallNanos / 1_000_000 + "ms";
+    }
+}
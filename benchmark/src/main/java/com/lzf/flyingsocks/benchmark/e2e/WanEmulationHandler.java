@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark.e2e;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 广域网链路模拟，按照{@link WanCondition}延迟写出数据：
+ * 1. 数据按带宽依次占用链路，链路忙时后续数据排队等待
+ * 2. 数据离开链路后再经过传播时延和抖动才真正写出，抖动不会造成乱序
+ * 3. 按报文段概率模拟丢包，丢包时整条链路停顿一段时间，后续数据被一同阻塞
+ *
+ * 积压的数据超过{@link WanCondition#queueLimit}时通过用户自定义可写状态将Channel置为不可写，
+ * 使上游可以和处理普通的写缓冲区积压一样进行背压。
+ * 每个Channel需要单独的实例，所有状态只在该Channel的EventLoop中访问
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/19 14:30
+ */
+final class WanEmulationHandler extends ChannelOutboundHandlerAdapter {
+
+    /**
+     * 用户自定义可写状态索引，避开Netty流量整形处理器使用的1~3
+     */
+    private static final int WRITABILITY_INDEX = 4;
+
+    private final WanCondition condition;
+
+    /**
+     * 等待写出的数据，写出时间单调递增
+     */
+    private final ArrayDeque<PendingWrite> queue = new ArrayDeque<>();
+
+    /**
+     * 链路空闲时刻，即上一段数据发送完毕的时刻
+     */
+    private long linkFreeTime;
+
+    /**
+     * 上一段数据的写出时刻，用于保证抖动不会造成乱序
+     */
+    private long lastReleaseTime;
+
+    /**
+     * 当前积压的字节数
+     */
+    private long queuedBytes;
+
+    private ScheduledFuture<?> releaseFuture;
+
+    private ChannelHandlerContext ctx;
+
+
+    WanEmulationHandler(WanCondition condition) {
+        this.condition = Objects.requireNonNull(condition);
+    }
+
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        int size = sizeOf(msg);
+        long now = System.nanoTime();
+        WanCondition condition = this.condition;
+
+        long sendTime = Math.max(now, linkFreeTime);
+        if (condition.lossRate > 0 && isLost(size)) {
+            sendTime += condition.stallNanos;
+        }
+        linkFreeTime = sendTime + condition.transmitNanos(size);
+
+        long delay = condition.latencyNanos;
+        if (condition.jitterNanos > 0) {
+            delay += ThreadLocalRandom.current().nextLong(-condition.jitterNanos, condition.jitterNanos + 1);
+        }
+
+        long releaseTime = Math.max(lastReleaseTime, linkFreeTime + Math.max(delay, 0));
+        lastReleaseTime = releaseTime;
+
+        queue.addLast(new PendingWrite(msg, promise, size, releaseTime));
+        queuedBytes += size;
+        if (queuedBytes > condition.queueLimit) {
+            setWritable(false);
+        }
+
+        if (releaseFuture == null) {
+            scheduleRelease(now);
+        }
+    }
+
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+        //数据到达写出时刻后由release方法统一刷新
+    }
+
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (releaseFuture != null) {
+            releaseFuture.cancel(false);
+            releaseFuture = null;
+        }
+
+        PendingWrite write;
+        while ((write = queue.pollFirst()) != null) {
+            ReferenceCountUtil.release(write.msg);
+            write.promise.tryFailure(new ClosedChannelException());
+        }
+        queuedBytes = 0;
+    }
+
+
+    private void release() {
+        releaseFuture = null;
+        if (ctx.isRemoved()) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        PendingWrite write;
+        while ((write = queue.peekFirst()) != null && write.releaseTime <= now) {
+            queue.pollFirst();
+            queuedBytes -= write.size;
+            ctx.write(write.msg, write.promise);
+        }
+        ctx.flush();
+
+        if (queuedBytes <= condition.queueLimit / 2) {
+            setWritable(true);
+        }
+
+        if (!queue.isEmpty()) {
+            scheduleRelease(now);
+        }
+    }
+
+
+    private void scheduleRelease(long now) {
+        long delay = Math.max(queue.peekFirst().releaseTime - now, 0);
+        releaseFuture = ctx.executor().schedule(this::release, delay, TimeUnit.NANOSECONDS);
+    }
+
+
+    private boolean isLost(int size) {
+        int segments = Math.max(1, (size + WanCondition.SEGMENT_SIZE - 1) / WanCondition.SEGMENT_SIZE);
+        double probability = 1D - Math.pow(1D - condition.lossRate, segments);
+        return ThreadLocalRandom.current().nextDouble() < probability;
+    }
+
+
+    private void setWritable(boolean writable) {
+        ChannelOutboundBuffer buffer = ctx.channel().unsafe().outboundBuffer();
+        if (buffer != null) {
+            buffer.setUserDefinedWritability(WRITABILITY_INDEX, writable);
+        }
+    }
+
+
+    private static int sizeOf(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        } else if (msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        }
+        return 0;
+    }
+
+
+    private static final class PendingWrite {
+
+        final Object msg;
+
+        final ChannelPromise promise;
+
+        final int size;
+
+        final long releaseTime;
+
+        PendingWrite(Object msg, ChannelPromise promise, int size, long releaseTime) {
+            this.msg = msg;
+            this.promise = promise;
+            this.size = size;
+            this.releaseTime = releaseTime;
+        }
+    }
+}
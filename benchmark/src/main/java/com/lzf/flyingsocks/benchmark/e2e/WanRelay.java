@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.benchmark.e2e;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.Objects;
+
+/**
+ * 广域网模拟中继，位于客户端ProxyServerComponent与服务端之间，
+ * 双向转发代理隧道的数据并在两个方向上各自经过一个{@link WanEmulationHandler}，
+ * 无需tc/netem或root权限即可在本机模拟高延迟、低带宽和丢包的链路
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/19 15:20
+ */
+final class WanRelay {
+
+    private static final Logger log = LoggerFactory.getLogger(WanRelay.class);
+
+    private final WanCondition condition;
+
+    private final InetSocketAddress serverAddress;
+
+    private final EventLoopGroup group;
+
+
+    WanRelay(WanCondition condition, int serverPort, int threads) {
+        this.condition = Objects.requireNonNull(condition);
+        this.serverAddress = new InetSocketAddress("127.0.0.1", serverPort);
+        this.group = new NioEventLoopGroup(threads);
+    }
+
+    /**
+     * @return 中继监听地址，客户端应连接该地址而不是服务端
+     */
+    InetSocketAddress start() throws InterruptedException {
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.AUTO_READ, false)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        //写往客户端的方向，即服务端到客户端的下行链路
+                        ch.pipeline().addLast(new WanEmulationHandler(condition));
+                        ch.pipeline().addLast(new ConnectHandler());
+                    }
+                });
+
+        Channel channel = bootstrap.bind("127.0.0.1", 0).sync().channel();
+        log.info("WAN relay {} -> {}, {}", channel.localAddress(), serverAddress, condition);
+        return (InetSocketAddress) channel.localAddress();
+    }
+
+
+    private final class ConnectHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            Channel inbound = ctx.channel();
+            new Bootstrap()
+                    .group(inbound.eventLoop())
+                    .channel(NioSocketChannel.class)
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .option(ChannelOption.AUTO_READ, false)
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            //写往服务端的方向，即客户端到服务端的上行链路
+                            ch.pipeline().addLast(new WanEmulationHandler(condition));
+                            ch.pipeline().addLast(new RelayHandler(inbound));
+                        }
+                    })
+                    .connect(serverAddress).addListener((ChannelFutureListener) f -> {
+                        if (!f.isSuccess()) {
+                            log.warn("WAN relay connect to {} failure", serverAddress, f.cause());
+                            inbound.close();
+                            return;
+                        }
+
+                        Channel outbound = f.channel();
+                        ctx.pipeline().replace(this, null, new RelayHandler(outbound));
+                        inbound.config().setAutoRead(true);
+                        outbound.config().setAutoRead(true);
+                    });
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+
+    /**
+     * 将读取到的数据转发至对端Channel，对端不可写时暂停读取
+     */
+    private static final class RelayHandler extends ChannelInboundHandlerAdapter {
+
+        private final Channel peer;
+
+        RelayHandler(Channel peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            peer.write(msg, peer.voidPromise());
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            peer.flush();
+            if (!peer.isWritable()) {
+                ctx.channel().config().setAutoRead(false);
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (ctx.channel().isWritable()) {
+                peer.config().setAutoRead(true);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            //先让积压的数据经过模拟链路送达再关闭，与TCP FIN跟随在数据之后的行为一致
+            if (peer.isActive()) {
+                peer.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
@@ -45,7 +45,7 @@ import static com.lzf.flyingsocks.client.proxy.server.ProxyServerConfig.Node;
  */
 public final class StandardClient extends Client {
 
-    StandardClient() {
+    public StandardClient() {
         super();
     }
 
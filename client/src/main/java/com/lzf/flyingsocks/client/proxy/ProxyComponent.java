@@ -42,7 +42,22 @@ import com.lzf.flyingsocks.client.proxy.socks.SocksConfig;
 import com.lzf.flyingsocks.client.proxy.socks.SocksReceiverComponent;
 import com.lzf.flyingsocks.client.proxy.transparent.LinuxTransparentProxyComponent;
 import com.lzf.flyingsocks.client.proxy.transparent.TransparentProxyConfig;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -50,8 +65,6 @@ import java.util.Objects;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -88,21 +101,63 @@ public class ProxyComponent extends AbstractComponent<Client> implements ProxyRe
     private final ExecutorService asyncTaskExecutorService;
 
     /**
-     * IO线程池
+     * 所有子组件共享的IO线程池，线程数量只与CPU核心数有关，与服务器节点和监听端口的数量无关
+     * Linux下使用Epoll，其它平台或Epoll不可用时(例如指定了-Dio.netty.transport.noNative=true)使用NIO
      */
-    private final ExecutorService ioExectuorService;
+    private final EventLoopGroup eventLoopGroup;
+
+    private final Class<? extends ServerSocketChannel> serverSocketChannelClass;
+
+    private final Class<? extends SocketChannel> socketChannelClass;
+
+    private final Class<? extends DatagramChannel> datagramChannelClass;
+
+    /**
+     * 连接flyingsocks服务器和直连目标服务器时是否开启TCP Fast Open，仅Epoll可用
+     */
+    private final boolean tcpFastOpen;
+
+    /**
+     * 直连时是否使用splice转发目标服务器返回的数据，仅Epoll可用，默认关闭。
+     * 开启后本地客户端连接和直连出站连接都使用LEVEL_TRIGGERED模式，因为EpollMode只能在连接注册前设置
+     */
+    private final boolean directSplice;
 
 
     public ProxyComponent(Client client) {
         super(NAME, Objects.requireNonNull(client));
 
-        int cpus = getParentComponent().availableProcessors();
+        int cpus = client.availableProcessors();
+        int threads = Math.max(cpus, 2);
+
+        if (!client.isWindows() && !client.isMacOS() && Epoll.isAvailable()) {
+            this.eventLoopGroup = new EpollEventLoopGroup(threads, new DefaultThreadFactory("ClientIO"));
+            this.serverSocketChannelClass = EpollServerSocketChannel.class;
+            this.socketChannelClass = EpollSocketChannel.class;
+            this.datagramChannelClass = EpollDatagramChannel.class;
+        } else {
+            this.eventLoopGroup = new NioEventLoopGroup(threads, new DefaultThreadFactory("ClientIO"));
+            this.serverSocketChannelClass = NioServerSocketChannel.class;
+            this.socketChannelClass = NioSocketChannel.class;
+            this.datagramChannelClass = NioDatagramChannel.class;
+        }
+
+        log.info("EventLoopGroup type: {}, ThreadCount: {}", eventLoopGroup.getClass().getSimpleName(), threads);
+
+        boolean tcpFastOpen = Boolean.parseBoolean(client.getSystemProperties("flyingsocks.proxy.tcp-fastopen"));
+        if (tcpFastOpen && !isEpoll()) {
+            log.warn("TCP Fast Open requires epoll transport, ignore option flyingsocks.proxy.tcp-fastopen");
+            tcpFastOpen = false;
+        }
+        this.tcpFastOpen = tcpFastOpen;
+
+        boolean directSplice = Boolean.parseBoolean(client.getSystemProperties("flyingsocks.direct.splice"));
+        if (directSplice && !isEpoll()) {
+            log.warn("Splice requires epoll transport, ignore option flyingsocks.direct.splice");
+            directSplice = false;
+        }
+        this.directSplice = directSplice;
 
-        ioExectuorService = new ThreadPoolExecutor(Math.max(cpus * 2, 8), Math.max(cpus * 4, 48), 15L, TimeUnit.MINUTES, new SynchronousQueue<>(),
-                (r, executor) -> {
-                    log.error("Can not execture more IO Task");
-                    throw new RejectedExecutionException("Can not execture more IO Task");
-                });
         ThreadPoolExecutor asyncTaskExecutorService = new ThreadPoolExecutor(4, 4,
                 2, TimeUnit.MINUTES, new ArrayBlockingQueue<>(128));
         asyncTaskExecutorService.allowCoreThreadTimeOut(true);
@@ -164,7 +219,7 @@ public class ProxyComponent extends AbstractComponent<Client> implements ProxyRe
     protected void stopInternal() {
         asyncTaskExecutorService.shutdownNow();
         super.stopInternal();
-        ioExectuorService.shutdownNow();
+        eventLoopGroup.shutdownGracefully();
     }
 
     @Override
@@ -173,10 +228,57 @@ public class ProxyComponent extends AbstractComponent<Client> implements ProxyRe
     }
 
     /**
-     * 构造EventLoopGroup
+     * @return 子组件共享的EventLoopGroup，子组件停止时不应关闭
      */
-    public NioEventLoopGroup createNioEventLoopGroup(int threads) {
-        return new NioEventLoopGroup(threads, ioExectuorService);
+    public EventLoopGroup getEventLoopGroup() {
+        return eventLoopGroup;
+    }
+
+    public Class<? extends ServerSocketChannel> getServerSocketChannelClass() {
+        return serverSocketChannelClass;
+    }
+
+    public Class<? extends SocketChannel> getSocketChannelClass() {
+        return socketChannelClass;
+    }
+
+    public Class<? extends DatagramChannel> getDatagramChannelClass() {
+        return datagramChannelClass;
+    }
+
+    /**
+     * @return 共享的EventLoopGroup是否为Epoll
+     */
+    public boolean isEpoll() {
+        return eventLoopGroup instanceof EpollEventLoopGroup;
+    }
+
+    /**
+     * @return 出站连接是否开启TCP Fast Open
+     */
+    public boolean isTcpFastOpen() {
+        return tcpFastOpen;
+    }
+
+    /**
+     * @return 直连时是否使用splice转发目标服务器返回的数据
+     */
+    public boolean isDirectSplice() {
+        return directSplice;
+    }
+
+    /**
+     * 为服务某个本地客户端连接的出站连接选择EventLoop，与该本地连接处于同一线程时转发数据无需切换线程
+     *
+     * @param clientChannel 本地客户端连接
+     * @return 本地连接所在的EventLoop，不属于共享线程池时从共享线程池中选择一个
+     */
+    public EventLoop eventLoopFor(Channel clientChannel) {
+        EventLoop loop = clientChannel.eventLoop();
+        if (loop.parent() == eventLoopGroup) {
+            return loop;
+        }
+        return eventLoopGroup.next();
     }
 
 
@@ -32,9 +32,8 @@ import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.channel.EventLoopGroup;
+import io.netty.channel.EventLoop;
 import io.netty.channel.socket.DatagramPacket;
-import io.netty.channel.socket.nio.NioDatagramChannel;
 
 import java.net.InetSocketAddress;
 import java.util.Objects;
@@ -48,13 +47,11 @@ public class DatagramForwardComponent extends AbstractComponent<ProxyComponent>
 
     private final BootstrapTemplate bootstrapTemplate;
 
-    private final EventLoopGroup eventLoopGroup;
-
     public DatagramForwardComponent(ProxyComponent component) {
         super("DatagramForwardComponent", Objects.requireNonNull(component));
         Bootstrap bootstrap = new Bootstrap();
-        bootstrap.group(this.eventLoopGroup = parent.createNioEventLoopGroup(2))
-                .channel(NioDatagramChannel.class);
+        bootstrap.group(parent.getEventLoopGroup())
+                .channel(parent.getDatagramChannelClass());
 
         this.bootstrapTemplate = new BootstrapTemplate(bootstrap);
     }
@@ -68,13 +65,15 @@ public class DatagramForwardComponent extends AbstractComponent<ProxyComponent>
 
     @Override
     protected void stopInternal() {
-        eventLoopGroup.shutdownGracefully();
+        parent.removeSubscriber(this);
         super.stopInternal();
     }
 
     @Override
     public void receive(ProxyRequest request) {
-        bootstrapTemplate.doBind(0, new ForwardHandler(request), future -> {
+        //UDP端口与本地客户端的UDP代理端口处于同一EventLoop
+        EventLoop loop = parent.eventLoopFor(request.clientChannel());
+        bootstrapTemplate.doBind(loop, 0, ch -> ch.pipeline().addLast(new ForwardHandler(request)), future -> {
             if (!future.isSuccess()) {
                 request.close();
             }
@@ -35,8 +35,10 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ConnectTimeoutException;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollSocketChannel;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
@@ -49,26 +51,36 @@ import java.util.Set;
 public class DirectForwardComponent extends AbstractComponent<ProxyComponent> implements ProxyRequestSubscriber {
 
     /**
-     * Bootstrap模板
+     * 管道默认容量
      */
-    private final BootstrapTemplate connectBootstrapTemplate;
+    private static final int SPLICE_CHUNK_SIZE = 64 * 1024;
 
     /**
-     * IO事件处理器
+     * Bootstrap模板
      */
-    private final EventLoopGroup eventLoopGroup;
+    private final BootstrapTemplate connectBootstrapTemplate;
 
 
     public DirectForwardComponent(ProxyComponent component) {
         super("DirectForwardComponent", component);
 
         Bootstrap template = new Bootstrap();
-        template.group(this.eventLoopGroup = parent.createNioEventLoopGroup(4))
-                .channel(NioSocketChannel.class)
+        template.group(parent.getEventLoopGroup())
+                .channel(parent.getSocketChannelClass())
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 8000)
                 .option(ChannelOption.SO_KEEPALIVE, true)
                 .option(ChannelOption.AUTO_CLOSE, true);
 
+        if (parent.isTcpFastOpen()) {
+            template.option(ChannelOption.TCP_FASTOPEN_CONNECT, true);
+        }
+
+        if (parent.isDirectSplice()) {
+            //splice每次转移的字节数由RecvByteBufAllocator决定，固定为管道的默认容量
+            template.option(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED)
+                    .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(SPLICE_CHUNK_SIZE));
+        }
+
         this.connectBootstrapTemplate = new BootstrapTemplate(template);
     }
 
@@ -81,7 +93,8 @@ public class DirectForwardComponent extends AbstractComponent<ProxyComponent> im
 
     @Override
     protected void stopInternal() {
-        eventLoopGroup.shutdownGracefully();
+        parent.removeSubscriber(this);
+        super.stopInternal();
     }
 
     @Override
@@ -91,7 +104,8 @@ public class DirectForwardComponent extends AbstractComponent<ProxyComponent> im
 
         log.trace("connect to server {}:{} established...", host, port);
 
-        connectBootstrapTemplate.doConnect(host, port,
+        //出站连接与本地客户端连接处于同一EventLoop，转发数据时无需切换线程
+        connectBootstrapTemplate.doConnect(parent.eventLoopFor(request.clientChannel()), host, port,
                 ch -> ch.pipeline().addFirst(new ConnectHandler(request)),
                 f -> {
                     if (!f.isSuccess()) {
@@ -164,9 +178,40 @@ public class DirectForwardComponent extends AbstractComponent<ProxyComponent> im
                 }
             });
 
+            Channel channel = ctx.channel();
+            Channel clientChannel = request.clientChannel();
+            if (parent.isDirectSplice() && canSplice(channel, clientChannel)) {
+                spliceToClient((EpollSocketChannel) channel, (EpollSocketChannel) clientChannel);
+            }
+
             ctx.fireChannelActive();
         }
 
+        /**
+         * splice要求两个连接都是LEVEL_TRIGGERED模式的Epoll连接并且位于同一个EventLoop，
+         * 透明代理等未开启LEVEL_TRIGGERED模式的本地连接仍使用MessageReceiver转发
+         */
+        private boolean canSplice(Channel channel, Channel clientChannel) {
+            return channel instanceof EpollSocketChannel && clientChannel instanceof EpollSocketChannel &&
+                    channel.eventLoop() == clientChannel.eventLoop() &&
+                    ((EpollSocketChannel) channel).config().getEpollMode() == EpollMode.LEVEL_TRIGGERED &&
+                    ((EpollSocketChannel) clientChannel).config().getEpollMode() == EpollMode.LEVEL_TRIGGERED;
+        }
+
+        /**
+         * 目标服务器返回的数据不再经过ByteBuf，而是通过管道在内核中转移到本地客户端连接，
+         * splice的写出操作与本地客户端连接中已有的写操作保持顺序。本地客户端发送的数据仍由MessageReceiver转发，
+         * 因为HTTP明文代理需要改写请求
+         */
+        private void spliceToClient(EpollSocketChannel channel, EpollSocketChannel clientChannel) {
+            channel.spliceTo(clientChannel, Integer.MAX_VALUE).addListener(future -> {
+                if (!future.isSuccess()) {
+                    log.trace("Splice to client channel terminated, target server {}:{}", request.getHost(), request.getPort());
+                    channel.close();
+                }
+            });
+        }
+
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
             if (cause instanceof MessageDelivererCancelledException) {
@@ -32,16 +32,17 @@ import com.lzf.flyingsocks.misc.BaseUtils;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.EventLoopGroup;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
@@ -87,7 +88,10 @@ public class HttpReceiverComponent extends AbstractComponent<ProxyComponent> {
 
     private volatile AuthenticationStrategy authenticationStrategy;
 
-    private volatile EventLoopGroup eventLoopGroup;
+    /**
+     * 本地HTTP代理端口
+     */
+    private volatile Channel serverChannel;
 
     private volatile boolean enableWindowsSystemProxy;
 
@@ -117,24 +121,14 @@ public class HttpReceiverComponent extends AbstractComponent<ProxyComponent> {
             }
         });
 
-        int threadCount;
-        int cpus = configManager.availableProcessors();
-        if (cpus <= 4) {
-            threadCount = 2;
-        } else if (cpus <= 16) {
-            threadCount = 4;
-        } else {
-            threadCount = 6;
-        }
-        this.eventLoopGroup = parent.createNioEventLoopGroup(threadCount);
         super.initInternal();
     }
 
     @Override
     protected void startInternal() {
         ServerBootstrap bootstrap = new ServerBootstrap();
-        bootstrap.group(this.eventLoopGroup)
-                .channel(NioServerSocketChannel.class)
+        bootstrap.group(parent.getEventLoopGroup())
+                .channel(parent.getServerSocketChannelClass())
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) {
@@ -145,6 +139,10 @@ public class HttpReceiverComponent extends AbstractComponent<ProxyComponent> {
                     }
                 });
 
+        if (parent.isDirectSplice()) {
+            bootstrap.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        }
+
         HttpProxyConfig config = getConfigManager().getConfig(HttpProxyConfig.NAME, HttpProxyConfig.class);
         int port = config.getBindPort();
         String address = config.getBindAddress();
@@ -160,6 +158,7 @@ public class HttpReceiverComponent extends AbstractComponent<ProxyComponent> {
         if (!bindFuture.isSuccess()) {
             throw new ComponentException(bindFuture.cause());
         }
+        this.serverChannel = bindFuture.channel();
 
         if (config.isEnableWindowsSystemProxy() && getConfigManager().isWindows()) {
             if (WindowsSystemProxy.isAvailable()) {
@@ -185,9 +184,9 @@ public class HttpReceiverComponent extends AbstractComponent<ProxyComponent> {
             this.enableWindowsSystemProxy = false;
         }
 
-        EventLoopGroup eventLoopGroup = this.eventLoopGroup;
-        if (eventLoopGroup != null) {
-            eventLoopGroup.shutdownGracefully();
+        Channel serverChannel = this.serverChannel;
+        if (serverChannel != null) {
+            serverChannel.close();
         }
 
         super.stopInternal();
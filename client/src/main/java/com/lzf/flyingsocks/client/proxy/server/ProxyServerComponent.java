@@ -36,22 +36,34 @@ import com.lzf.flyingsocks.client.proxy.misc.MessageReceiver;
 import com.lzf.flyingsocks.encrypt.EncryptProvider;
 import com.lzf.flyingsocks.encrypt.EncryptSupport;
 import com.lzf.flyingsocks.encrypt.OpenSSLEncryptProvider;
+import com.lzf.flyingsocks.jfr.AuthEvent;
+import com.lzf.flyingsocks.jfr.FlightRecorderSupport;
+import com.lzf.flyingsocks.jfr.StreamCloseEvent;
+import com.lzf.flyingsocks.jfr.StreamFirstByteEvent;
+import com.lzf.flyingsocks.jfr.StreamOpenEvent;
+import com.lzf.flyingsocks.jfr.TlsHandshakeEvent;
+import com.lzf.flyingsocks.jfr.TunnelFrameEvent;
 import com.lzf.flyingsocks.protocol.AuthRequestMessage;
 import com.lzf.flyingsocks.protocol.AuthResponseMessage;
 import com.lzf.flyingsocks.protocol.CertRequestMessage;
 import com.lzf.flyingsocks.protocol.CertResponseMessage;
 import com.lzf.flyingsocks.protocol.PingMessage;
 import com.lzf.flyingsocks.protocol.PongMessage;
+import com.lzf.flyingsocks.protocol.ProtocolVersion;
 import com.lzf.flyingsocks.protocol.ProxyRequestMessage;
 import com.lzf.flyingsocks.protocol.ProxyResponseMessage;
 import com.lzf.flyingsocks.protocol.SerializationException;
 import com.lzf.flyingsocks.protocol.ServiceStageMessage;
+import com.lzf.flyingsocks.protocol.StreamMessage;
+import com.lzf.flyingsocks.protocol.WindowUpdateMessage;
 import com.lzf.flyingsocks.misc.FSMessageOutboundEncoder;
+import com.lzf.flyingsocks.misc.FlowControlWindow;
 import com.lzf.flyingsocks.misc.MessageHeaderCheckHandler;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
@@ -59,12 +71,11 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.ConnectTimeoutException;
-import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.DelimiterBasedFrameDecoder;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.handler.traffic.ChannelTrafficShapingHandler;
@@ -72,7 +83,9 @@ import io.netty.handler.traffic.TrafficCounter;
 import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
+import org.apache.commons.lang3.StringUtils;
 
+import javax.net.ssl.SSLSession;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -120,8 +133,8 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
     //连接状态监听器
     private final List<ConnectionStateListener> connectionStateListeners = new CopyOnWriteArrayList<>();
 
-    //连接线程池
-    private volatile EventLoopGroup loopGroup;
+    //与flyingsocks服务器的连接
+    private volatile Channel serverChannel;
 
     //通用Netty引导对象
     private volatile Bootstrap bootstrap;
@@ -135,7 +148,7 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
     //下次重连的时间(绝对时间戳)
     private volatile long nextReconnectTime = -1L;
 
-    //活跃的代理请求Map
+    //活跃的代理请求Map，Key为代理请求序列号，隧道EventLoop处理每一帧服务器数据时都需要无锁查找一次
     private final ConcurrentMap<Integer, SerialProxyRequest> activeProxyRequestMap = new ConcurrentHashMap<>(512);
 
     //代理请求ID生成器
@@ -158,9 +171,36 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
 
         private final ProxyRequest request;
 
+        private final FlowControlWindow window = new FlowControlWindow();
+
+        //以下为JFR事件，未开启记录时为null
+        private StreamOpenEvent openEvent;
+
+        private StreamFirstByteEvent firstByteEvent;
+
+        private StreamCloseEvent closeEvent;
+
+        /**
+         * 发往服务器的字节数，仅在记录StreamCloseEvent时累计，只由本地客户端连接的线程写入
+         */
+        private volatile long uploadBytes;
+
+        /**
+         * 服务器返回的字节数，仅在记录StreamCloseEvent时累计，只由代理服务器连接的线程写入
+         */
+        private volatile long downloadBytes;
+
         SerialProxyRequest(int serialId, ProxyRequest request) {
             this.serialId = serialId;
             this.request = request;
+
+            StreamOpenEvent open = FlightRecorderSupport.beginStreamOpen();
+            if (open != null) {
+                open.protocol = request.protocol().name();
+            }
+            this.openEvent = open;
+            this.firstByteEvent = FlightRecorderSupport.beginStreamFirstByte();
+            this.closeEvent = FlightRecorderSupport.beginStreamClose();
         }
 
         public String getHost() {
@@ -183,9 +223,24 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
             request.setClientMessageReceiver(receiver);
         }
 
-        public void sendMessage(ByteBuf message) {
+        public ChannelFuture sendMessage(ByteBuf message) {
             Objects.requireNonNull(message);
-            request.clientChannel().writeAndFlush(message);
+            return request.clientChannel().writeAndFlush(message);
+        }
+
+        /**
+         * 发送信用耗尽时暂停读取本地客户端连接
+         */
+        void pauseRead() {
+            Channel channel = request.clientChannel();
+            channel.config().setAutoRead(false);
+            if (window.hasCredit()) {  //期间可能已经收到了窗口更新消息
+                channel.config().setAutoRead(true);
+            }
+        }
+
+        void resumeRead() {
+            request.clientChannel().config().setAutoRead(true);
         }
 
         public ProxyRequest.Protocol protocol() {
@@ -195,6 +250,56 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
         public ProxyRequest unwrap() {
             return request;
         }
+
+        void recordUpload(int bytes) {
+            if (closeEvent != null) {
+                uploadBytes += bytes;
+            }
+        }
+
+        void recordDownload(int bytes) {
+            StreamFirstByteEvent first = this.firstByteEvent;
+            if (first != null) {
+                this.firstByteEvent = null;
+                first.host = getHost();
+                first.port = getPort();
+                first.serialId = serialId;
+                first.bytes = bytes;
+                first.commit();
+            }
+
+            if (closeEvent != null) {
+                downloadBytes += bytes;
+            }
+        }
+
+        /**
+         * @param success 是否已经向服务器发出该代理流的首段数据
+         */
+        synchronized void commitOpenEvent(boolean success) {
+            StreamOpenEvent event = this.openEvent;
+            if (event != null) {
+                this.openEvent = null;
+                event.host = getHost();
+                event.port = getPort();
+                event.serialId = serialId;
+                event.success = success;
+                event.commit();
+            }
+        }
+
+        synchronized void commitCloseEvent() {
+            StreamCloseEvent event = this.closeEvent;
+            if (event != null) {
+                this.closeEvent = null;
+                event.host = getHost();
+                event.port = getPort();
+                event.serialId = serialId;
+                event.uploadBytes = uploadBytes;
+                event.downloadBytes = downloadBytes;
+                event.commit();
+            }
+        }
     }
 
 
@@ -219,7 +324,6 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
             final String host = config.getHost();
             final int certPort = config.getCertPort();
             //尝试从服务器上获取SSL证书
-            final EventLoopGroup sslGroup = parent.createNioEventLoopGroup(1);
             Bootstrap sslBoot = createSslServiceBootstrap(cfg);
             updateConnectionState(ConnectionState.SSL_CONNECTING);
             //连接到服务器的证书端口
@@ -237,7 +341,6 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
 
             //等待上述证书操作的完成
             LockSupport.parkNanos((cfg.getConnectTimeout() + 1000 * 20) * 1_000_000L);  //20秒加上连接超时时间
-            sslGroup.shutdownGracefully();
 
             if (!connectionState.isNormal()) {
                 log.warn("Can not connect to cert service {}:{}", host, config.getCertPort());
@@ -278,9 +381,9 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
         Map<String, Object> params = new HashMap<>(2);
         params.put("alloc", PooledByteBufAllocator.DEFAULT);
 
-        loopGroup = parent.createNioEventLoopGroup(1);
         bootstrap = new Bootstrap()
-                .channel(NioSocketChannel.class)
+                .group(parent.getEventLoopGroup())
+                .channel(parent.getSocketChannelClass())
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, cfg.getConnectTimeout())
                 .option(ChannelOption.SO_KEEPALIVE, true)
                 .handler(new ChannelInitializer<SocketChannel>() {
@@ -299,11 +402,31 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
                             cp.addLast(provider.decodeHandler(params));
                         }
 
+                        SslHandler sslHandler = cp.get(SslHandler.class);
+                        TlsHandshakeEvent event = sslHandler != null ? FlightRecorderSupport.beginTlsHandshake() : null;
+                        if (event != null) {
+                            sslHandler.handshakeFuture().addListener(future -> {
+                                event.remoteAddress = String.valueOf(ch.remoteAddress());
+                                if (future.isSuccess()) {
+                                    SSLSession session = sslHandler.engine().getSession();
+                                    event.protocol = session.getProtocol();
+                                    event.cipherSuite = session.getCipherSuite();
+                                }
+                                event.success = future.isSuccess();
+                                event.commit();
+                            });
+                        }
+
                         cp.addLast(FSMessageOutboundEncoder.HANDLER_NAME, FSMessageOutboundEncoder.INSTANCE);
                         cp.addLast(AuthHandler.HANDLER_NAME, new AuthHandler());
                     }
                 });
 
+        //认证请求可以随SYN发出
+        if (parent.isTcpFastOpen()) {
+            bootstrap.option(ChannelOption.TCP_FASTOPEN_CONNECT, true);
+        }
+
         super.initInternal();
     }
 
@@ -322,10 +445,9 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
         final String host = config.getHost();
         final int certPort = config.getCertPort();
         //尝试从服务器上获取SSL证书
-        final EventLoopGroup sslGroup = parent.createNioEventLoopGroup(1);
         Bootstrap sslBoot = new Bootstrap()
-                .group(sslGroup)
-                .channel(NioSocketChannel.class)
+                .group(parent.getEventLoopGroup())
+                .channel(parent.getSocketChannelClass())
                 .option(ChannelOption.SO_KEEPALIVE, true)
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, cfg.getConnectTimeout());
 
@@ -482,10 +604,10 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
 
         log.info("Connect to flyingsocks server {}:{}...", host, port);
 
-        Bootstrap b = bootstrap.clone().group(this.loopGroup);
         updateConnectionState(ConnectionState.PROXY_CONNECTING);
 
-        ChannelFuture f = b.connect(host, port);
+        ChannelFuture f = bootstrap.connect(host, port);
+        this.serverChannel = f.channel();
         final CountDownLatch waitLatch = new CountDownLatch(1);
 
         f.addListener(new GenericFutureListener<Future<? super Void>>() {
@@ -544,17 +666,9 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
         parent.removeProxyServer(this);
         getConfigManager().removeConfig(OpenSSLConfig.generalName(config.getHost(), config.getPort()));
 
-        if (loopGroup != null) {
-            loopGroup.shutdownGracefully().addListener(future -> {
-                if (future.isSuccess()) {
-                    active = false;
-                } else {
-                    Throwable t = future.cause();
-                    if (log.isWarnEnabled()) {
-                        log.warn("Shutdown Component " + getName() + "Failure, cause:", t);
-                    }
-                }
-            });
+        Channel serverChannel = this.serverChannel;
+        if (serverChannel != null) {
+            serverChannel.close();
         }
 
         connectionStateListeners.clear();
@@ -609,8 +723,7 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
 
         parent.removeSubscriber(this); //移除订阅，防止在此期间请求涌入队列
         active = false;
-
-        loopGroup.shutdownGracefully();
+        serverChannel = null;
 
         activeProxyRequestMap.values().forEach(SerialProxyRequest::close);
         activeProxyRequestMap.clear();
@@ -627,7 +740,7 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
 
         //处理掉线重连
         //如果父组件没有处于正在停止状态并且用户还希望继续使用该节点
-        if (!parent.getState().after(LifecycleState.STOPING) && use) {
+        if (canReconnect()) {
             long time = this.nextReconnectTime;
             if (time == -1L) {
                 nextReconnectTime = time = 2 * 1000;
@@ -638,23 +751,29 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
             if (time > 2000L) {
                 if (log.isInfoEnabled())
                     log.info("Waiting {}ms before reconnect server {}:{}", time, config.getHost(), config.getPort());
-                Thread.interrupted(); //上述clientMessageProcessor和loopGroup调用了
-                try {
-                    wait(time);
-                } catch (InterruptedException ignore) {
-                }
-                //wait会释放锁所以再一次检查
-                if (parent.getState().after(LifecycleState.STOPING) || !use) {
-                    return;
-                }
+                //当前线程为共享的EventLoop，不能阻塞等待
+                parent.getEventLoopGroup().schedule(this::reconnect, time, TimeUnit.MILLISECONDS);
+                return;
             }
 
-            if (log.isInfoEnabled())
-                log.info("Retry to connect flyingsocks server {}:{}", config.getHost(), config.getPort());
-            this.proxyServerSession = null;
-            this.loopGroup = parent.createNioEventLoopGroup(1);
-            doConnect(false);
+            reconnect();
+        }
+    }
+
+    private boolean canReconnect() {
+        return !parent.getState().after(LifecycleState.STOPING) && !getState().after(LifecycleState.STOPING) && use;
+    }
+
+    private synchronized void reconnect() {
+        //等待期间组件可能已被停止，所以再一次检查
+        if (!canReconnect()) {
+            return;
         }
+
+        if (log.isInfoEnabled())
+            log.info("Retry to connect flyingsocks server {}:{}", config.getHost(), config.getPort());
+        this.proxyServerSession = null;
+        doConnect(false);
     }
 
     /**
@@ -740,6 +859,11 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
 
         private static final String RESPONSE_FRAME_DECODER_NAME = "AuthResponseMessageFrameDecoder";
 
+        /**
+         * 认证JFR事件，未开启记录时为null
+         */
+        private AuthEvent authEvent;
+
         @Override
         public void handlerAdded(ChannelHandlerContext ctx) {
             ChannelPipeline cp = ctx.pipeline();
@@ -767,6 +891,14 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
             }
 
             config.allAuthArgument().forEach(msg::putContent);
+            msg.putContent(ProtocolVersion.PARAMETER_NAME, String.valueOf(ProtocolVersion.CURRENT));
+
+            AuthEvent event = FlightRecorderSupport.beginAuth();
+            if (event != null) {
+                event.remoteAddress = String.valueOf(ctx.channel().remoteAddress());
+                event.user = StringUtils.defaultString(msg.getParameter("user"));
+            }
+            this.authEvent = event;
             ctx.writeAndFlush(msg, ctx.voidPromise());
             super.channelActive(ctx);
         }
@@ -776,6 +908,7 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
             if (msg instanceof ByteBuf) {
                 try {
                     AuthResponseMessage response = new AuthResponseMessage((ByteBuf) msg);
+                    commitAuthEvent(response.isSuccess());
                     if (!response.isSuccess()) {
                         log.trace("Auth failure, from server {}:{}", config.getHost(), config.getPort());
                         updateConnectionState(ConnectionState.PROXY_CONNECT_AUTH_FAILURE);
@@ -784,6 +917,10 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
 
                     log.trace("Auth success");
 
+                    //旧版本服务器不会返回协议版本，此时使用ProxyRequestMessage/ProxyResponseMessage
+                    int version = ProtocolVersion.negotiate(response.getExtraData(ProtocolVersion.PARAMETER_NAME));
+                    ProxyServerComponent.this.proxyServerSession.setProtocolVersion(version);
+
                     ChannelPipeline cp = ctx.pipeline();
                     cp.remove(this);
                     cp.remove(RESPONSE_HEADER_CHECKER_NAME);
@@ -811,8 +948,18 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
         @Override
         public void channelInactive(ChannelHandlerContext ctx) {
             log.trace("Remote server force to close, server [{}:{}]", config.getHost(), config.getPort());
+            commitAuthEvent(false);
             afterChannelInactive();
         }
+
+        private void commitAuthEvent(boolean success) {
+            AuthEvent event = this.authEvent;
+            if (event != null) {
+                this.authEvent = null;
+                event.success = success;
+                event.commit();
+            }
+        }
     }
 
 
@@ -832,6 +979,8 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
             //cp.addBefore(RESPONSE_FRAME_DECODER_NAME, HeartbeatMessageHandler.NAME, HeartbeatMessageHandler.INSTANCE);
             cp.addFirst(new IdleStateHandler(15, 0, 0));
             ProxyServerComponent.this.proxyServerSession.setReady(true);
+            //声明支持流量控制，旧版本服务器会忽略该消息
+            ctx.writeAndFlush(WindowUpdateMessage.announcement(), ctx.voidPromise());
         }
 
         @Override
@@ -859,6 +1008,10 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
                         ctx.writeAndFlush(pong, ctx.voidPromise());
                     } else if (serviceId == PongMessage.SERVICE_ID) {
                         new PongMessage(buf);
+                    } else if (serviceId == StreamMessage.SERVICE_ID) {
+                        processStreamMessage(ctx, buf);
+                    } else if (serviceId == WindowUpdateMessage.SERVICE_ID) {
+                        processWindowUpdateMessage(buf);
                     }
                 } finally {
                     ReferenceCountUtil.release(msg);
@@ -889,14 +1042,105 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
                 return;
             }
 
+            TunnelFrameEvent event = FlightRecorderSupport.tunnelFrame();
+            if (event != null) {
+                event.frameType = "RESPONSE";
+                event.serialId = response.serialId();
+                event.bytes = response.messageLength();
+                event.commit();
+            }
+
             if (response.getState() == ProxyResponseMessage.State.SUCCESS) {
                 SerialProxyRequest request = activeProxyRequestMap.get(response.serialId());
                 if (request == null) {
-                    buf.release();
+                    response.getMessage().release();
+                    return;
+                }
+
+                transferServerMessage(ctx, request, response.getMessage());
+            }
+        }
+
+        private void processStreamMessage(ChannelHandlerContext ctx, ByteBuf buf) {
+            StreamMessage msg;
+            try {
+                msg = new StreamMessage(buf);
+            } catch (SerializationException e) {
+                log.warn("Serialize StreamMessage error", e);
+                ctx.close();
+                return;
+            }
+
+            SerialProxyRequest request = activeProxyRequestMap.get(msg.serialId());
+            TunnelFrameEvent event = FlightRecorderSupport.tunnelFrame();
+            if (msg.getType() == StreamMessage.Type.DATA) {
+                ByteBuf message = msg.getMessage();
+                if (event != null) {
+                    event.frameType = "DATA";
+                    event.serialId = msg.serialId();
+                    event.bytes = message.readableBytes();
+                    event.commit();
+                }
+                if (request == null) {
+                    message.release();
                     return;
                 }
 
-                request.sendMessage(response.getMessage());
+                transferServerMessage(ctx, request, message);
+            } else if (msg.getType() == StreamMessage.Type.CLOSE) {
+                if (event != null) {
+                    event.frameType = "CLOSE";
+                    event.serialId = msg.serialId();
+                    event.commit();
+                }
+
+                if (request == null) {
+                    return;
+                }
+
+                if (msg.isFailure() && log.isDebugEnabled()) {
+                    log.debug("Server can not connect to {}:{}", request.getHost(), request.getPort());
+                }
+
+                //等待已经写入的数据发送完毕后关闭本地客户端连接
+                request.sendMessage(Unpooled.EMPTY_BUFFER).addListener(future -> request.close());
+            }
+        }
+
+        /**
+         * 将服务器返回的数据写入本地客户端连接
+         */
+        private void transferServerMessage(ChannelHandlerContext ctx, SerialProxyRequest request, ByteBuf message) {
+            request.recordDownload(message.readableBytes());
+            if (request.protocol() != ProxyRequest.Protocol.TCP) {
+                request.sendMessage(message);
+                return;
+            }
+
+            //数据写入本地客户端连接后再通知服务器增加该代理流的窗口
+            int length = message.readableBytes();
+            request.sendMessage(message).addListener(future -> {
+                if (!future.isSuccess()) {
+                    return;
+                }
+
+                int increment = request.window.release(length);
+                if (increment > 0 && ctx.channel().isActive()) {
+                    ctx.writeAndFlush(new WindowUpdateMessage(request.serialId, increment), ctx.voidPromise());
+                }
+            });
+        }
+
+        private void processWindowUpdateMessage(ByteBuf buf) throws SerializationException {
+            WindowUpdateMessage msg = new WindowUpdateMessage(buf);
+            if (msg.isAnnouncement()) {
+                ProxyServerComponent.this.proxyServerSession.enableFlowControl();
+                return;
+            }
+
+            SerialProxyRequest request = activeProxyRequestMap.get(msg.serialId());
+            if (request != null && request.window.update(msg.getIncrement())) {
+                request.resumeRead();
             }
         }
 
@@ -926,6 +1170,11 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
 
         private final SerialProxyRequest request;
 
+        /**
+         * 是否已经向服务器发送过该代理请求的数据(协议版本2下即是否已经发送OPEN帧)
+         */
+        private boolean opened = false;
+
         ClientMessageReceiver(SerialProxyRequest request) {
             this.request = Objects.requireNonNull(request);
             activeProxyRequestMap.put(request.serialId, request);
@@ -940,30 +1189,64 @@ public class ProxyServerComponent extends AbstractComponent<ProxyComponent> impl
                 return;
             }
 
+            int length = buf.readableBytes();
+            SocketChannel channel = session.socketChannel();
+            channel.writeAndFlush(createRequestMessage(session, buf), channel.voidPromise());
+            request.recordUpload(length);
+
+            if (request.protocol() == ProxyRequest.Protocol.TCP && !request.window.consume(length)
+                    && session.isFlowControlEnabled()) {
+                request.pauseRead();
+            }
+
+            if (!opened) {
+                opened = true;
+                request.commitOpenEvent(true);
+                request.unwrap().addClientChannelCloseListener(future -> {
+                    if (channel.isActive()) {
+                        channel.writeAndFlush(createCloseMessage(session), channel.voidPromise());
+                    }
+                });
+            }
+        }
+
+        private ServiceStageMessage createRequestMessage(ProxyServerSession session, ByteBuf buf) {
+            if (session.protocolVersion() >= ProtocolVersion.V2) {
+                //目标主机与端口仅在OPEN帧中发送一次
+                if (!opened) {
+                    return StreamMessage.open(request.serialId, request.protocol().toMessageType(),
+                            request.getHost(), request.getPort(), buf);
+                }
+                return StreamMessage.data(request.serialId, buf);
+            }
+
             ProxyRequestMessage prm = new ProxyRequestMessage(request.serialId,
                     request.protocol().toMessageType());
 
             prm.setHost(request.getHost());
             prm.setPort(request.getPort());
             prm.setMessage(buf);
+            return prm;
+        }
 
-            SocketChannel channel = session.socketChannel();
-            channel.writeAndFlush(prm, channel.voidPromise());
-
-            request.unwrap().addClientChannelCloseListener(future -> {
-                if (channel.isActive()) {
-                    ProxyRequestMessage msg = new ProxyRequestMessage(request.serialId, ProxyRequestMessage.Protocol.CLOSE);
-                    msg.setHost(request.getHost());
-                    msg.setPort(request.getPort());
-                    msg.setMessage(Unpooled.EMPTY_BUFFER);
-                    channel.writeAndFlush(msg, channel.voidPromise());
-                }
-            });
+        private ServiceStageMessage createCloseMessage(ProxyServerSession session) {
+            if (session.protocolVersion() >= ProtocolVersion.V2) {
+                return StreamMessage.close(request.serialId, false);
+            }
+
+            ProxyRequestMessage msg = new ProxyRequestMessage(request.serialId, ProxyRequestMessage.Protocol.CLOSE);
+            msg.setHost(request.getHost());
+            msg.setPort(request.getPort());
+            msg.setMessage(Unpooled.EMPTY_BUFFER);
+            return msg;
         }
 
         @Override
         public void close() {
             activeProxyRequestMap.remove(request.serialId);
+
+            request.commitOpenEvent(false);
+            request.commitCloseEvent();
         }
     }
 
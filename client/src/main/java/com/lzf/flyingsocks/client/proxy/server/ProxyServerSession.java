@@ -22,12 +22,23 @@
 package com.lzf.flyingsocks.client.proxy.server;
 
 import com.lzf.flyingsocks.AbstractSession;
+import com.lzf.flyingsocks.protocol.ProtocolVersion;
 import io.netty.channel.socket.SocketChannel;
 
 public class ProxyServerSession extends AbstractSession {
 
     private boolean ready = false;
 
+    /**
+     * 服务器是否声明支持代理流的流量控制
+     */
+    private volatile boolean flowControl = false;
+
+    /**
+     * 认证阶段协商的协议版本
+     */
+    private volatile int protocolVersion = ProtocolVersion.V1;
+
     ProxyServerSession(SocketChannel serverChannel) {
         super(serverChannel);
     }
@@ -39,4 +50,20 @@ public class ProxyServerSession extends AbstractSession {
     public boolean isReady() {
         return ready;
     }
+
+    void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    public int protocolVersion() {
+        return protocolVersion;
+    }
+
+    void enableFlowControl() {
+        this.flowControl = true;
+    }
+
+    public boolean isFlowControlEnabled() {
+        return flowControl;
+    }
 }
@@ -30,6 +30,7 @@ import com.lzf.flyingsocks.client.proxy.ProxyRequest;
 import com.lzf.flyingsocks.misc.BaseUtils;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
@@ -37,10 +38,10 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioDatagramChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.socks.SocksAddressType;
 import io.netty.handler.codec.socks.SocksAuthRequest;
 import io.netty.handler.codec.socks.SocksAuthRequestDecoder;
@@ -67,8 +68,8 @@ public final class SocksReceiverComponent extends AbstractComponent<ProxyCompone
     // UDP代理引导类
     private Bootstrap udpProxyBootstrap;
 
-    // Netty线程池
-    private EventLoopGroup eventLoopGroup;
+    // 本地Socks5代理端口
+    private Channel serverChannel;
 
     //认证策略
     private volatile AuthenticationStrategy authenticationStrategy;
@@ -106,21 +107,20 @@ public final class SocksReceiverComponent extends AbstractComponent<ProxyCompone
             }
         });
 
-        this.eventLoopGroup = parent.createNioEventLoopGroup(4);
         Bootstrap udpBoot = new Bootstrap();
-        udpBoot.group(eventLoopGroup).channel(NioDatagramChannel.class);
+        udpBoot.group(parent.getEventLoopGroup()).channel(parent.getDatagramChannelClass());
         this.udpProxyBootstrap = udpBoot;
     }
 
     @Override
     protected void startInternal() {
-        EventLoopGroup eventLoopGroup = this.eventLoopGroup;
+        EventLoopGroup eventLoopGroup = parent.getEventLoopGroup();
         String bindAddress = this.bindAddress;
         int port = this.port;
         try {
             ServerBootstrap boot = new ServerBootstrap();
             boot.group(eventLoopGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(parent.getServerSocketChannelClass())
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel channel) {
@@ -131,7 +131,11 @@ public final class SocksReceiverComponent extends AbstractComponent<ProxyCompone
                         }
                     });
 
-            boot.bind(bindAddress, port).addListener(f -> {
+            if (parent.isDirectSplice()) {
+                boot.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+            }
+
+            ChannelFuture future = boot.bind(bindAddress, port).addListener(f -> {
                 if (!f.isSuccess()) {
                     log.error("Socks server bind failure, address:[{}:{}]", bindAddress, port, f.cause());
                     Client.exitWithNotify(1, "exitmsg.socks.bind_error", port, f.cause().getMessage());
@@ -139,6 +143,10 @@ public final class SocksReceiverComponent extends AbstractComponent<ProxyCompone
                     log.info("Netty socks server complete");
                 }
             }).await();
+
+            if (future.isSuccess()) {
+                this.serverChannel = future.channel();
+            }
         } catch (InterruptedException e) {
             throw new ComponentException(e);
         }
@@ -148,7 +156,10 @@ public final class SocksReceiverComponent extends AbstractComponent<ProxyCompone
 
     @Override
     protected void stopInternal() {
-        eventLoopGroup.shutdownGracefully();
+        Channel serverChannel = this.serverChannel;
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
         super.stopInternal();
     }
 
@@ -171,7 +182,8 @@ public final class SocksReceiverComponent extends AbstractComponent<ProxyCompone
      */
 
     private ChannelFuture bindUdpTunnelService(ChannelFuture closeFuture) {
-        Bootstrap boot = udpProxyBootstrap.clone()
+        //UDP代理端口与Socks5代理请求连接处于同一EventLoop
+        Bootstrap boot = udpProxyBootstrap.clone(closeFuture.channel().eventLoop())
                 .handler(new ChannelInitializer<DatagramChannel>() {
                     @Override
                     protected void initChannel(DatagramChannel channel) {
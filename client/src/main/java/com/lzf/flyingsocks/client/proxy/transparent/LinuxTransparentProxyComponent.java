@@ -29,6 +29,7 @@ import com.lzf.flyingsocks.client.proxy.misc.MessageDelivererCancelledException;
 import com.lzf.flyingsocks.misc.BaseUtils;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
@@ -36,7 +37,6 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.epoll.Epoll;
 import io.netty.channel.epoll.EpollChannelOption;
-import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.handler.timeout.IdleStateEvent;
@@ -55,10 +55,10 @@ import java.util.Objects;
  */
 public class LinuxTransparentProxyComponent extends AbstractComponent<ProxyComponent> {
 
-    private final EpollEventLoopGroup eventLoopGroup;
-
     private int bindPort;
 
+    private Channel serverChannel;
+
     {
         if (!Epoll.isAvailable()) {
             throw new ComponentException("Epoll not support", Epoll.unavailabilityCause());
@@ -73,8 +73,9 @@ public class LinuxTransparentProxyComponent extends AbstractComponent<ProxyCompo
 
     public LinuxTransparentProxyComponent(ProxyComponent component) {
         super("LinuxTransparentProxyComponent", Objects.requireNonNull(component));
-        int cpus = getConfigManager().availableProcessors();
-        this.eventLoopGroup = new EpollEventLoopGroup(Math.max(cpus / 2, 1));
+        if (!component.isEpoll()) {
+            throw new ComponentException("Transparent proxy requires epoll transport");
+        }
     }
 
     @Override
@@ -97,7 +98,7 @@ public class LinuxTransparentProxyComponent extends AbstractComponent<ProxyCompo
     @Override
     protected void startInternal() {
         ServerBootstrap bootstrap = new ServerBootstrap();
-        bootstrap.group(eventLoopGroup)
+        bootstrap.group(parent.getEventLoopGroup())
                 .channel(EpollServerSocketChannel.class)
                 .option(EpollChannelOption.IP_TRANSPARENT, true)
                 .childHandler(new ChannelInitializer<EpollSocketChannel>() {
@@ -125,13 +126,17 @@ public class LinuxTransparentProxyComponent extends AbstractComponent<ProxyCompo
             log.error("Bind port {} failure: {}", port, future.cause().getMessage());
             throw new ComponentException("Bind port failure", future.cause());
         }
+        this.serverChannel = future.channel();
 
         super.startInternal();
     }
 
     @Override
     protected void stopInternal() {
-        eventLoopGroup.shutdownGracefully();
+        Channel serverChannel = this.serverChannel;
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
         super.stopInternal();
     }
 
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.jfr;
+
+import jdk.jfr.EventType;
+
+/**
+ * 创建JDK Flight Recorder事件的入口。所有事件默认关闭，只有在运行中的记录开启了对应事件时才会创建事件对象，
+ * 否则返回null，调用方只需要一次判空，因此可以一直保留在热路径上。
+ * 运行在不支持JFR的JDK(8u262之前的Java 8)上时所有方法都返回null，也不会加载任何事件类。
+ *
+ * 在运行中的节点上开启记录，例如：
+ * <pre>
+ * jcmd &lt;pid&gt; JFR.start name=fs settings=$FS_HOME/config/flyingsocks.jfc duration=5m filename=fs.jfr
+ * </pre>
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/27 10:40
+ */
+public final class FlightRecorderSupport {
+
+    private static final boolean AVAILABLE = isFlightRecorderPresent();
+
+    /**
+     * 各个事件类型，只在JFR可用时才会初始化
+     */
+    private static final class Types {
+        static final EventType STREAM_OPEN = EventType.getEventType(StreamOpenEvent.class);
+        static final EventType TARGET_CONNECT = EventType.getEventType(TargetConnectEvent.class);
+        static final EventType STREAM_FIRST_BYTE = EventType.getEventType(StreamFirstByteEvent.class);
+        static final EventType STREAM_CLOSE = EventType.getEventType(StreamCloseEvent.class);
+        static final EventType AUTH = EventType.getEventType(AuthEvent.class);
+        static final EventType TLS_HANDSHAKE = EventType.getEventType(TlsHandshakeEvent.class);
+        static final EventType TUNNEL_FRAME = EventType.getEventType(TunnelFrameEvent.class);
+    }
+
+
+    private static boolean isFlightRecorderPresent() {
+        try {
+            Class.forName("jdk.jfr.Event", false, FlightRecorderSupport.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return 当前JDK是否支持JFR
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * @return 已经开始计时的事件，未开启时返回null
+     */
+    public static StreamOpenEvent beginStreamOpen() {
+        if (!AVAILABLE || !Types.STREAM_OPEN.isEnabled()) {
+            return null;
+        }
+        StreamOpenEvent event = new StreamOpenEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @return 已经开始计时的事件，未开启时返回null
+     */
+    public static TargetConnectEvent beginTargetConnect() {
+        if (!AVAILABLE || !Types.TARGET_CONNECT.isEnabled()) {
+            return null;
+        }
+        TargetConnectEvent event = new TargetConnectEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @return 已经开始计时的事件，未开启时返回null
+     */
+    public static StreamFirstByteEvent beginStreamFirstByte() {
+        if (!AVAILABLE || !Types.STREAM_FIRST_BYTE.isEnabled()) {
+            return null;
+        }
+        StreamFirstByteEvent event = new StreamFirstByteEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @return 已经开始计时的事件，未开启时返回null
+     */
+    public static StreamCloseEvent beginStreamClose() {
+        if (!AVAILABLE || !Types.STREAM_CLOSE.isEnabled()) {
+            return null;
+        }
+        StreamCloseEvent event = new StreamCloseEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @return 已经开始计时的事件，未开启时返回null
+     */
+    public static AuthEvent beginAuth() {
+        if (!AVAILABLE || !Types.AUTH.isEnabled()) {
+            return null;
+        }
+        AuthEvent event = new AuthEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @return 已经开始计时的事件，未开启时返回null
+     */
+    public static TlsHandshakeEvent beginTlsHandshake() {
+        if (!AVAILABLE || !Types.TLS_HANDSHAKE.isEnabled()) {
+            return null;
+        }
+        TlsHandshakeEvent event = new TlsHandshakeEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @return 隧道帧事件(没有持续时间)，未开启时返回null
+     */
+    public static TunnelFrameEvent tunnelFrame() {
+        if (!AVAILABLE || !Types.TUNNEL_FRAME.isEnabled()) {
+            return null;
+        }
+        return new TunnelFrameEvent();
+    }
+
+    private FlightRecorderSupport() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * 隧道中收到的代理流帧，每一帧记录一次，没有持续时间
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/27 10:20
+ */
+@Name("flyingsocks.TunnelFrame")
+@Label("Tunnel Frame")
+@Category({"flyingsocks", "Tunnel"})
+@Description("Proxy stream frame received from the tunnel")
+@Enabled(false)
+@StackTrace(false)
+public final class TunnelFrameEvent extends Event {
+
+    @Label("Frame Type")
+    @Description("OPEN, DATA or CLOSE, REQUEST or RESPONSE for protocol version 1")
+    public String frameType;
+
+    @Label("Serial ID")
+    public int serialId;
+
+    @Label("Host")
+    @Description("Target host, only present in OPEN and REQUEST frames")
+    public String host;
+
+    @Label("Port")
+    public int port;
+
+    @Label("Payload Bytes")
+    @DataAmount
+    public long bytes;
+}
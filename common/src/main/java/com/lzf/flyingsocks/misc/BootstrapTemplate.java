@@ -26,6 +26,7 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.util.concurrent.GenericFutureListener;
@@ -46,7 +47,14 @@ public final class BootstrapTemplate {
     }
 
     public <T extends Channel> Bootstrap newInstance(Consumer<T> channelInitializer) {
-        Bootstrap b = bootstrap.clone();
+        return newInstance(bootstrap.config().group(), channelInitializer);
+    }
+
+    /**
+     * @param group 新建Channel注册的EventLoopGroup，可以传入EventLoop使Channel与已有的连接处于同一线程
+     */
+    public <T extends Channel> Bootstrap newInstance(EventLoopGroup group, Consumer<T> channelInitializer) {
+        Bootstrap b = bootstrap.clone(group);
         b.handler(new ChannelInitializer<T>() {
             @Override
             protected void initChannel(T ch) {
@@ -64,6 +72,12 @@ public final class BootstrapTemplate {
         return b.connect(host, port).addListener(future);
     }
 
+    public ChannelFuture doConnect(EventLoopGroup group, String host, int port, Consumer<SocketChannel> channelInitializer,
+                                   GenericFutureListener<ChannelFuture> future) {
+        Bootstrap b = newInstance(group, channelInitializer);
+        return b.connect(host, port).addListener(future);
+    }
+
     public ChannelFuture doConnect(String host, int port, ChannelHandler handler,
                                    GenericFutureListener<ChannelFuture> future) {
         Bootstrap b = bootstrap.clone().handler(handler);
@@ -77,6 +91,12 @@ public final class BootstrapTemplate {
         return b.bind(port).addListener(future);
     }
 
+    public ChannelFuture doBind(EventLoopGroup group, int port, Consumer<DatagramChannel> channelInitializer,
+                                GenericFutureListener<ChannelFuture> future) {
+        Bootstrap b = newInstance(group, channelInitializer);
+        return b.bind(port).addListener(future);
+    }
+
     public ChannelFuture doBind(int port, ChannelHandler handler,
                                 GenericFutureListener<ChannelFuture> future) {
         Bootstrap b = bootstrap.clone().handler(handler);
@@ -23,11 +23,13 @@ package com.lzf.flyingsocks.misc;
 
 import com.lzf.flyingsocks.protocol.Message;
 import com.lzf.flyingsocks.protocol.SerializationException;
+import com.lzf.flyingsocks.protocol.ServiceStageMessage;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,7 +47,9 @@ public class FSMessageOutboundEncoder extends ChannelOutboundHandlerAdapter {
 
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
-        if (msg instanceof Message) {
+        if (msg instanceof ServiceStageMessage) {
+            writeServiceStageMessage(ctx, (ServiceStageMessage) msg, promise);
+        } else if (msg instanceof Message) {
             Message message = (Message) msg;
 
             try {
@@ -59,6 +63,33 @@ public class FSMessageOutboundEncoder extends ChannelOutboundHandlerAdapter {
         }
     }
 
+    /**
+     * 代理阶段消息的头部和正文分两次写出，由ChannelOutboundBuffer负责聚合，
+     * 正文直接交给下游，不再经过CompositeByteBuf包装
+     */
+    private void writeServiceStageMessage(ChannelHandlerContext ctx, ServiceStageMessage message, ChannelPromise promise) {
+        ByteBuf payload = message.detachPayload();
+        ByteBuf header;
+        try {
+            header = message.serializeHeader(ctx.alloc(), payload);
+        } catch (SerializationException e) {
+            ReferenceCountUtil.release(payload);
+            log.error("Serialize exception occur, with type: {}", message.getClass().getName(), e);
+            promise.tryFailure(e);
+            return;
+        } finally {
+            message.recycle();
+        }
+
+        if (payload == null || !payload.isReadable()) {
+            ReferenceCountUtil.release(payload);
+            ctx.write(header, promise);
+        } else {
+            ctx.write(header, ctx.voidPromise());
+            ctx.write(payload, promise);
+        }
+    }
+
     @Override
     public boolean isSharable() {
         return true;
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.misc;
+
+import com.lzf.flyingsocks.protocol.WindowUpdateMessage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个代理流的流量控制窗口
+ * 发送方向：每发送一段数据扣减相应的信用，信用耗尽后发送方应暂停读取数据源，收到对端窗口更新后恢复
+ * 接收方向：累计已经消费(写出)的字节数，超过阈值后返回需要通知对端的窗口增量
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/12 15:48
+ */
+public final class FlowControlWindow {
+
+    /**
+     * 剩余发送信用，可能短暂小于0(一次读操作可能读取多个ByteBuf)
+     */
+    private final AtomicLong sendCredit;
+
+    /**
+     * 已经消费但尚未通知对端的字节数
+     */
+    private final AtomicInteger unacknowledged = new AtomicInteger(0);
+
+    /**
+     * 发送窗口更新消息的阈值
+     */
+    private final int updateThreshold;
+
+
+    public FlowControlWindow() {
+        this(WindowUpdateMessage.INITIAL_WINDOW_SIZE);
+    }
+
+    public FlowControlWindow(int initialWindowSize) {
+        if (initialWindowSize <= 0) {
+            throw new IllegalArgumentException("Initial window size: " + initialWindowSize);
+        }
+
+        this.sendCredit = new AtomicLong(initialWindowSize);
+        this.updateThreshold = Math.max(initialWindowSize / 4, 1);
+    }
+
+    /**
+     * @return 是否还有剩余发送信用
+     */
+    public boolean hasCredit() {
+        return sendCredit.get() > 0;
+    }
+
+    /**
+     * 发送数据后扣减信用
+     *
+     * @param bytes 发送的字节数
+     * @return 扣减后是否还有剩余信用
+     */
+    public boolean consume(int bytes) {
+        return sendCredit.addAndGet(-bytes) > 0;
+    }
+
+    /**
+     * 收到对端窗口更新消息后增加信用
+     *
+     * @param increment 窗口增量
+     * @return 信用是否由耗尽状态恢复，调用方需要据此恢复读取
+     */
+    public boolean update(int increment) {
+        long prev = sendCredit.getAndAdd(increment);
+        return prev <= 0 && prev + increment > 0;
+    }
+
+    /**
+     * 接收方已经将数据写出后调用
+     *
+     * @param bytes 已经写出的字节数
+     * @return 需要通知对端的窗口增量，为0表示暂不需要发送窗口更新消息
+     */
+    public int release(int bytes) {
+        if (unacknowledged.addAndGet(bytes) < updateThreshold) {
+            return 0;
+        }
+
+        return unacknowledged.getAndSet(0);
+    }
+
+    @Override
+    public String toString() {
+        return "FlowControlWindow{" +
+                "sendCredit=" + sendCredit.get() +
+                ", unacknowledged=" + unacknowledged.get() +
+                '}';
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.misc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 以int为键的开放寻址哈希表，键值不装箱，查找过程不产生任何对象分配
+ *
+ * 键通过斐波那契散列打散后线性探测，删除时采用后移法回填空槽，因此不需要墓碑标记。
+ * 连续递增的键(例如代理流序列号)也能均匀分布，不会形成过长的探测链。
+ * 值不允许为null，null用于标记空槽。该类不是线程安全的
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/20 10:20
+ */
+public class IntObjectOpenHashMap<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    private int[] keys;
+
+    private Object[] values;
+
+    /**
+     * 数组长度减一
+     */
+    private int mask;
+
+    /**
+     * 散列值右移位数，等于32减去数组长度的位数
+     */
+    private int shift;
+
+    /**
+     * 扩容阈值，负载因子固定为0.5
+     */
+    private int threshold;
+
+    private int size;
+
+
+    public IntObjectOpenHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize 预期的元素数量
+     */
+    public IntObjectOpenHashMap(int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("expectedSize: " + expectedSize);
+        }
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        long n = Math.max(DEFAULT_CAPACITY, (long) expectedSize * 2);
+        if (n >= MAXIMUM_CAPACITY) {
+            return MAXIMUM_CAPACITY;
+        }
+        return Integer.highestOneBit((int) n - 1) << 1;
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new int[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+        this.shift = 32 - Integer.numberOfTrailingZeros(capacity);
+        this.threshold = capacity >>> 1;
+    }
+
+    private int slot(int key) {
+        return (key * 0x9E3779B9) >>> shift;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return 键对应的值，不存在时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int[] keys = this.keys;
+        Object[] values = this.values;
+        int mask = this.mask;
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            Object value = values[i];
+            if (value == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                return (V) value;
+            }
+        }
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return 该键原先对应的值，不存在时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+
+        int[] keys = this.keys;
+        Object[] values = this.values;
+        int mask = this.mask;
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            Object old = values[i];
+            if (old == null) {
+                keys[i] = key;
+                values[i] = value;
+                if (++size > threshold) {
+                    rehash(keys.length << 1);
+                }
+                return null;
+            }
+            if (keys[i] == key) {
+                values[i] = value;
+                return (V) old;
+            }
+        }
+    }
+
+    /**
+     * @return 被删除的值，不存在时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int[] keys = this.keys;
+        Object[] values = this.values;
+        int mask = this.mask;
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            Object value = values[i];
+            if (value == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                size--;
+                shiftBack(i);
+                return (V) value;
+            }
+        }
+    }
+
+    /**
+     * 删除槽位gap上的元素，并将其后同一探测链上的元素前移，保证查找时不会提前遇到空槽
+     */
+    private void shiftBack(int gap) {
+        int[] keys = this.keys;
+        Object[] values = this.values;
+        int mask = this.mask;
+        for (int i = (gap + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+            int home = slot(keys[i]);
+            //元素的理想槽位不在(gap, i]区间内时，才可以移动到gap
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        keys[gap] = 0;
+        values[gap] = null;
+    }
+
+    private void rehash(int capacity) {
+        if (capacity > MAXIMUM_CAPACITY) {
+            throw new IllegalStateException("IntObjectOpenHashMap is full");
+        }
+
+        int[] oldKeys = this.keys;
+        Object[] oldValues = this.values;
+        allocate(capacity);
+
+        int[] keys = this.keys;
+        Object[] values = this.values;
+        int mask = this.mask;
+        for (int j = 0; j < oldValues.length; j++) {
+            Object value = oldValues[j];
+            if (value == null) {
+                continue;
+            }
+            int i = slot(oldKeys[j]);
+            while (values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            values[i] = value;
+        }
+    }
+
+    public void clear() {
+        if (size == 0) {
+            return;
+        }
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * @return 当前所有值的快照，调用方可以在遍历过程中修改该Map
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> list = new ArrayList<>(size);
+        for (Object value : values) {
+            if (value != null) {
+                list.add((V) value);
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        return "IntObjectOpenHashMap{size=" + size + ", capacity=" + keys.length + '}';
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.misc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 耗时统计，按照微秒数以2为底的对数分桶，可以被多个线程同时记录
+ *
+ * 第i个桶统计耗时在[2^i, 2^(i+1))微秒范围内的记录(第0个桶包含小于1微秒的记录)，
+ * 因此百分位数只能精确到所在桶的上界
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/21 10:20
+ */
+public final class LatencyRecorder {
+
+    private static final int BUCKET_COUNT = 40;
+
+    private final LongAdder[] buckets;
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder totalNanos = new LongAdder();
+
+
+    public LatencyRecorder() {
+        LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new LongAdder();
+        }
+        this.buckets = buckets;
+    }
+
+    /**
+     * @param nanos 耗时(纳秒)，负数按0处理
+     */
+    public void record(long nanos) {
+        long micros = Math.max(nanos, 0) / 1000;
+        int index = micros == 0 ? 0 : Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1);
+        buckets[index].increment();
+        count.increment();
+        totalNanos.add(Math.max(nanos, 0));
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long totalNanos() {
+        return totalNanos.sum();
+    }
+
+    /**
+     * @return 各个桶的记录数快照
+     */
+    public long[] buckets() {
+        long[] result = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            result[i] = buckets[i].sum();
+        }
+        return result;
+    }
+
+    /**
+     * @return 第index个桶的上界(微秒)
+     */
+    public static long bucketUpperBoundMicros(int index) {
+        return 1L << (index + 1);
+    }
+
+    /**
+     * @param percentile 百分位，取值范围(0, 100]
+     * @return 该百分位所在桶的上界(微秒)，没有记录时返回0
+     */
+    public long percentileMicros(double percentile) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile: " + percentile);
+        }
+
+        long[] buckets = buckets();
+        long total = 0;
+        for (long c : buckets) {
+            total += c;
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long threshold = (long) Math.ceil(total * percentile / 100);
+        long sum = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            sum += buckets[i];
+            if (sum >= threshold) {
+                return bucketUpperBoundMicros(i);
+            }
+        }
+        return bucketUpperBoundMicros(buckets.length - 1);
+    }
+
+    @Override
+    public String toString() {
+        long count = count();
+        long mean = count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos() / count);
+        return "count=" + count + ", mean=" + mean + "us, p50<=" + percentileMicros(50) + "us, p99<=" + percentileMicros(99) + "us";
+    }
+}
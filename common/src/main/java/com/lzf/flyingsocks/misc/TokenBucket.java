@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.misc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 令牌桶限速器，令牌单位为字节。
+ * 读取数据后先扣减令牌(允许透支)，调用方根据返回的等待时间暂停读取，不缓存任何数据。
+ * 同一个令牌桶可能被多个EventLoop共享，每次操作只涉及少量算术运算，因此直接使用对象锁
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/23 21:05
+ */
+public final class TokenBucket {
+
+    /**
+     * 桶容量对应的时长，决定了空闲后允许的突发流量
+     */
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    /**
+     * 最小桶容量，保证单次读取的数据不会让低速率的令牌桶长时间透支
+     */
+    private static final long MIN_BURST = 16 * 1024;
+
+    /**
+     * 每秒产生的令牌数，小于等于0表示不限速。不限速时无需加锁即可返回
+     */
+    private volatile long rate;
+
+    /**
+     * 桶容量
+     */
+    private long burst;
+
+    /**
+     * 当前令牌数，透支时小于0
+     */
+    private long tokens;
+
+    /**
+     * 上次补充令牌的时间
+     */
+    private long lastRefillNanos;
+
+
+    /**
+     * @param rate 每秒产生的令牌数(字节/秒)，小于等于0表示不限速
+     */
+    public TokenBucket(long rate) {
+        this.lastRefillNanos = System.nanoTime();
+        setRate(rate);
+        this.tokens = burst;
+    }
+
+    /**
+     * 修改令牌产生速率，已透支的令牌不会被清除
+     *
+     * @param rate 每秒产生的令牌数(字节/秒)，小于等于0表示不限速
+     */
+    public synchronized void setRate(long rate) {
+        refill(System.nanoTime());
+        this.rate = rate;
+        this.burst = rate <= 0 ? 0 : Math.max(rate * BURST_NANOS / TimeUnit.SECONDS.toNanos(1), MIN_BURST);
+        this.tokens = Math.min(tokens, burst);
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * 扣减令牌，令牌不足时透支
+     *
+     * @param bytes 已读取的字节数
+     * @return 令牌恢复为非负数前需要等待的时间(纳秒)，不需要等待时返回0
+     */
+    public long consume(long bytes) {
+        if (rate <= 0) {
+            return 0;
+        }
+
+        synchronized (this) {
+            refill(System.nanoTime());
+            tokens -= bytes;
+            return waitNanos();
+        }
+    }
+
+    /**
+     * 仅在令牌未透支时扣减
+     *
+     * @param bytes 已读取的字节数
+     * @return 是否扣减成功，不限速时总是返回true
+     */
+    public boolean tryConsume(long bytes) {
+        if (rate <= 0) {
+            return true;
+        }
+
+        synchronized (this) {
+            refill(System.nanoTime());
+            if (tokens < 0) {
+                return false;
+            }
+
+            tokens -= bytes;
+            return true;
+        }
+    }
+
+    private long waitNanos() {
+        long rate = this.rate;
+        if (rate <= 0) {
+            return 0;
+        }
+
+        return tokens >= 0 ? 0 : -tokens * TimeUnit.SECONDS.toNanos(1) / rate;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefillNanos;
+        if (rate <= 0 || elapsed <= 0) {
+            lastRefillNanos = now;
+            return;
+        }
+
+        //只需要补满桶容量，限制间隔避免乘法溢出
+        long nanosPerSecond = TimeUnit.SECONDS.toNanos(1);
+        long fillNanos = (burst - tokens) * nanosPerSecond / rate + 1;
+        if (elapsed >= fillNanos) {
+            tokens = burst;
+            lastRefillNanos = now;
+            return;
+        }
+
+        //调用频繁时单次产生的令牌可能不足1个，只把已经换算成令牌的时间计入补充时间，余下的留到下一次
+        long added = elapsed * rate / nanosPerSecond;
+        tokens += added;
+        lastRefillNanos += added * nanosPerSecond / rate;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TokenBucket{rate=" + rate + ", tokens=" + tokens + '}';
+    }
+}
@@ -81,12 +81,27 @@ public class AuthResponseMessage extends Message {
         return extraData != null ? Collections.unmodifiableMap(extraData) : null;
     }
 
+    public String getExtraData(String key) {
+        Map<String, String> extraData = this.extraData;
+        return extraData != null ? extraData.get(key) : null;
+    }
+
+    public void putExtraData(String key, String value) {
+        Map<String, String> extraData = this.extraData;
+        if (extraData == null) {
+            extraData = new HashMap<>(4);
+            this.extraData = extraData;
+        }
+
+        extraData.put(key, value);
+    }
+
     @Override
     public ByteBuf serialize(ByteBufAllocator allocator) throws SerializationException {
         Map<String, String> extraData = this.extraData;
         boolean success = this.success;
 
-        int len = HEADER.length + 1;
+        int len = HEADER.length + 1 + 2;
         byte[] data = null;
         if (extraData != null) {
             @SuppressWarnings({"rawtypes", "unchecked"})
@@ -129,7 +144,9 @@ public class AuthResponseMessage extends Message {
             byte[] dst = new byte[extraDataLen];
             buf.readBytes(dst);
             JSONObject obj = JSON.parseObject(new String(dst, DEFAULT_ENCODING));
-            this.extraData = new HashMap<>(obj.size() * 2);
+            Map<String, String> extraData = new HashMap<>(obj.size() * 2);
+            obj.forEach((k, v) -> extraData.put(k, v.toString()));
+            this.extraData = extraData;
         }
 
         this.success = success;
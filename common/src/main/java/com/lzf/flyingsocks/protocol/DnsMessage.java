@@ -22,8 +22,6 @@
 package com.lzf.flyingsocks.protocol;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
-import io.netty.buffer.CompositeByteBuf;
 
 /**
  * DNS解析请求，解决国内域名解析被污染的问题
@@ -309,33 +307,35 @@ public abstract class DnsMessage extends ServiceStageMessage {
 
 
     @Override
-    protected final ByteBuf serialize0(ByteBufAllocator allocator) throws SerializationException {
-        ByteBuf header = allocator.directBuffer(HEADER_SIZE);
-        header.writeShort(transactionId);
-        header.writeShortLE(flags);
-        header.writeShort(questionCount);
-        header.writeShort(answerCount);
-        header.writeShort(authorityCount);
-        header.writeShort(additionalInfomationCount);
-
-        ByteBuf body;
+    protected final int sizeHint() {
+        return HEADER_SIZE + bodySizeHint();
+    }
+
+    @Override
+    protected final void serialize0(ByteBuf out, ByteBuf payload) throws SerializationException {
+        out.writeShort(transactionId);
+        out.writeShortLE(flags);
+        out.writeShort(questionCount);
+        out.writeShort(answerCount);
+        out.writeShort(authorityCount);
+        out.writeShort(additionalInfomationCount);
+
         try {
-            body = serializeBody(allocator);
+            serializeBody(out);
         } catch (RuntimeException e) {
-            header.release();
             throw new SerializationException(getClass(), e);
         }
-
-        CompositeByteBuf result = allocator.compositeBuffer(2);
-        result.addComponent(true, header);
-        result.addComponent(true, body);
-        return result;
     }
 
+    /**
+     * @return DNS非头部字段的长度
+     */
+    protected abstract int bodySizeHint();
+
     /**
      * 序列化DNS非头部字段
      */
-    protected abstract ByteBuf serializeBody(ByteBufAllocator allocator) throws SerializationException;
+    protected abstract void serializeBody(ByteBuf out) throws SerializationException;
 
 
     @Override
@@ -22,7 +22,6 @@
 package com.lzf.flyingsocks.protocol;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
 
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -54,26 +53,27 @@ public class DnsQueryMessage extends DnsMessage {
     }
 
     @Override
-    protected ByteBuf serializeBody(ByteBufAllocator allocator) throws SerializationException {
-        if (questions.isEmpty()) {
-            throw new SerializationException(getClass(), "No question");
-        }
-
+    protected int bodySizeHint() {
         int size = 0;
         for (Question q : questions) {
             size += q.getName().length() + 1;
             size += 4;
         }
+        return size;
+    }
 
-        ByteBuf body = allocator.directBuffer(size);
-        for (Question q : questions) {
-            body.writeCharSequence(q.getName(), StandardCharsets.US_ASCII);
-            body.writeByte(0);
-            body.writeShort(q.getType());
-            body.writeShort(q.getKlass());
+    @Override
+    protected void serializeBody(ByteBuf out) throws SerializationException {
+        if (questions.isEmpty()) {
+            throw new SerializationException(getClass(), "No question");
         }
 
-        return body;
+        for (Question q : questions) {
+            out.writeCharSequence(q.getName(), StandardCharsets.US_ASCII);
+            out.writeByte(0);
+            out.writeShort(q.getType());
+            out.writeShort(q.getKlass());
+        }
     }
 
     @Override
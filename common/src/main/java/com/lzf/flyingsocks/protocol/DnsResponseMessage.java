@@ -22,14 +22,12 @@
 package com.lzf.flyingsocks.protocol;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
 
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
-import java.util.function.Consumer;
 
 /**
  * @author lzf abc123lzf@126.com
@@ -37,15 +35,21 @@ import java.util.function.Consumer;
  */
 public class DnsResponseMessage extends DnsMessage {
 
-    protected final List<Record> answers = new ArrayList<>();
+    /**
+     * 反序列化在父类构造方法中完成，这些字段不能使用字段初始化器，否则会覆盖反序列化的结果
+     */
+    protected List<Record> answers;
 
-    protected final List<Record> authority = new ArrayList<>();
+    protected List<Record> authority;
 
-    protected final List<Record> additionalInfomation = new ArrayList<>();
+    protected List<Record> additionalInfomation;
 
 
     public DnsResponseMessage(short transactionId) {
         super(transactionId);
+        this.answers = new ArrayList<>();
+        this.authority = new ArrayList<>();
+        this.additionalInfomation = new ArrayList<>();
     }
 
 
@@ -89,7 +93,7 @@ public class DnsResponseMessage extends DnsMessage {
     }
 
     @Override
-    protected ByteBuf serializeBody(ByteBufAllocator allocator) throws SerializationException {
+    protected int bodySizeHint() {
         int size = 0;
         for (Record r : answers) {
             size += r.getDomain().length() + 1;
@@ -109,39 +113,47 @@ public class DnsResponseMessage extends DnsMessage {
             size += r.getDataLength();
         }
 
-        ByteBuf body = allocator.directBuffer(size);
+        return size;
+    }
 
-        final Consumer<Record> consumer = r -> {
-            body.writeCharSequence(r.getDomain(), StandardCharsets.US_ASCII);
-            body.writeByte(0);
-            body.writeShort(r.getType());
-            body.writeShort(r.getKlass());
-            body.writeInt(r.getTTL());
-            body.writeShort(r.getDataLength());
+    @Override
+    protected void serializeBody(ByteBuf out) {
+        writeRecords(out, answers);
+        writeRecords(out, authority);
+        writeRecords(out, additionalInfomation);
+    }
+
+    private static void writeRecords(ByteBuf out, List<Record> records) {
+        for (Record r : records) {
+            out.writeCharSequence(r.getDomain(), StandardCharsets.US_ASCII);
+            out.writeByte(0);
+            out.writeShort(r.getType());
+            out.writeShort(r.getKlass());
+            out.writeInt(r.getTTL());
+            out.writeShort(r.getDataLength());
             if (r.getDataLength() > 0) {
-                body.writeBytes(r.getData());
+                out.writeBytes(r.getData());
             }
-        };
-        answers.forEach(consumer);
-        authority.forEach(consumer);
-        additionalInfomation.forEach(consumer);
-        return body;
+        }
     }
 
     @Override
     protected void deserializeBody(ByteBuf buf) throws SerializationException {
         try {
             int cnt = Short.toUnsignedInt(super.answerCount);
+            this.answers = new ArrayList<>(cnt);
             for (int i = 0; i < cnt; i++) {
                 answers.add(readResource(buf));
             }
 
             cnt = Short.toUnsignedInt(super.authorityCount);
+            this.authority = new ArrayList<>(cnt);
             for (int i = 0; i < cnt; i++) {
                 authority.add(readResource(buf));
             }
 
             cnt = Short.toUnsignedInt(super.additionalInfomationCount);
+            this.additionalInfomation = new ArrayList<>(cnt);
             for (int i = 0; i < cnt; i++) {
                 additionalInfomation.add(readResource(buf));
             }
@@ -22,8 +22,6 @@
 package com.lzf.flyingsocks.protocol;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
-import io.netty.buffer.Unpooled;
 
 import java.nio.charset.StandardCharsets;
 
@@ -37,14 +35,6 @@ public class PingMessage extends ServiceStageMessage {
 
     private static final byte[] CONTENT = "PING".getBytes(StandardCharsets.US_ASCII);
 
-    private static final ByteBuf BODY;
-
-    static {
-        ByteBuf body = Unpooled.directBuffer(1 + CONTENT.length);
-        body.writeBytes(CONTENT);
-        BODY = body.asReadOnly();
-    }
-
     public PingMessage() {
         super(SERVICE_ID);
     }
@@ -54,8 +44,13 @@ public class PingMessage extends ServiceStageMessage {
     }
 
     @Override
-    public ByteBuf serialize0(ByteBufAllocator allocator) throws SerializationException {
-        return BODY.retainedSlice();
+    protected int sizeHint() {
+        return CONTENT.length;
+    }
+
+    @Override
+    protected void serialize0(ByteBuf out, ByteBuf payload) {
+        out.writeBytes(CONTENT);
     }
 
     @Override
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.protocol;
+
+import org.apache.commons.lang3.math.NumberUtils;
+
+/**
+ * 代理阶段协议版本，在认证阶段由客户端通过{@link AuthRequestMessage}参数携带，
+ * 服务器取双方支持的最高版本后通过{@link AuthResponseMessage}附加信息返回
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/13 10:12
+ */
+public final class ProtocolVersion {
+
+    /**
+     * 认证参数/附加信息中协议版本的键名
+     */
+    public static final String PARAMETER_NAME = "protocol.version";
+
+    /**
+     * 使用{@link ProxyRequestMessage}和{@link ProxyResponseMessage}转发代理数据
+     */
+    public static final int V1 = 1;
+
+    /**
+     * 使用{@link StreamMessage}转发代理数据
+     */
+    public static final int V2 = 2;
+
+    /**
+     * 当前实现支持的最高版本
+     */
+    public static final int CURRENT = V2;
+
+    /**
+     * 协商协议版本
+     *
+     * @param peerVersion 对端声明的版本，旧版本的实现不会携带该参数
+     * @return 双方都支持的最高版本
+     */
+    public static int negotiate(String peerVersion) {
+        int version = NumberUtils.toInt(peerVersion, V1);
+        if (version < V1) {
+            return V1;
+        }
+
+        return Math.min(version, CURRENT);
+    }
+
+    private ProtocolVersion() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -71,6 +71,20 @@ abstract class ProxyMessage extends ServiceStageMessage {
         throw new IllegalStateException("ProxyMessage content is only can get one time");
     }
 
+    /**
+     * @return 代理消息正文的字节数，正文已被取出时返回0
+     */
+    public synchronized final int messageLength() {
+        return message != null ? message.readableBytes() : 0;
+    }
+
+    @Override
+    public synchronized final ByteBuf detachPayload() {
+        ByteBuf buf = message;
+        message = null;
+        return buf;
+    }
+
     public synchronized final void setMessage(ByteBuf buf) {
         if (message != null) {
             throw new IllegalStateException("message has set");
@@ -23,8 +23,6 @@ package com.lzf.flyingsocks.protocol;
 
 import com.lzf.flyingsocks.misc.BaseUtils;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
-import io.netty.buffer.CompositeByteBuf;
 
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
@@ -126,33 +124,35 @@ public class ProxyRequestMessage extends ProxyMessage {
     }
 
     @Override
-    public ByteBuf serialize0(ByteBufAllocator allocator) throws SerializationException {
-        ByteBuf message = getMessage();
+    protected int sizeHint() {
         String host = this.host;
-        int port = this.port;
-
-        assertTrue(host != null && port > 0 && port <= 65535 && message != null,
-                "ProxyRequestMessage is not complete, or port is illegal, message detail: \n" + toString());
+        return 4 + 1 + (host != null ? host.length() : 0) + 1 + 2 + 4;
+    }
 
-        byte[] hostBytes = host.getBytes(HOST_ENCODING);
-        int length = 4 + 1 + hostBytes.length + 1 + 2 + 4;
-        ByteBuf header = allocator.directBuffer(length);
+    @Override
+    protected void serialize0(ByteBuf out, ByteBuf payload) throws SerializationException {
+        String host = this.host;
+        int port = this.port;
 
-        int sid = super.serialId;
-        int hlen = hostBytes.length;
-        header.writeInt(sid);
-        header.writeByte(hlen);
-        header.writeBytes(hostBytes);
+        if (host == null || port <= 0 || port > 65535 || payload == null) {
+            //仅在出错时构造诊断信息
+            throw new SerializationException(ProxyRequestMessage.class,
+                    "ProxyRequestMessage is not complete, or port is illegal, message detail: \n" + toString());
+        }
 
-        header.writeByte(protocol.value);
+        out.writeInt(super.serialId);
+        int hlenIndex = out.writerIndex();
+        out.writeByte(0);
+        int hlen = out.writeCharSequence(host, HOST_ENCODING);
+        if (hlen > 0xFF) {
+            throw new SerializationException(ProxyRequestMessage.class, "Host name is too long");
+        }
+        out.setByte(hlenIndex, hlen);
 
-        header.writeShort(port);
-        header.writeInt(message.readableBytes());
+        out.writeByte(protocol.value);
 
-        CompositeByteBuf result = allocator.compositeBuffer(2);
-        result.addComponent(true, header);
-        result.addComponent(true, message);
-        return result;
+        out.writeShort(port);
+        out.writeInt(payload.readableBytes());
     }
 
 
@@ -22,8 +22,6 @@
 package com.lzf.flyingsocks.protocol;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
-import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 
 /**
@@ -79,42 +77,25 @@ public class ProxyResponseMessage extends ProxyMessage {
     }
 
     @Override
-    public ByteBuf serialize0(ByteBufAllocator allocator) throws SerializationException {
-        State state = this.state;
-        assertTrue(state != null, "ProxyResponseMessage is not complete, message detail: \n" + toString());
-
-        byte h = state.head;
-        ByteBuf message = getMessage();
-        int sid = this.serialId;
-
-        if (state == State.SUCCESS) {
-            assertTrue(message != null, "When ProxyResponseMessage's state is SUCCESS, message must not be null");
-            CompositeByteBuf result = allocator.compositeBuffer(2);
-            ByteBuf header = allocator.buffer(1 + 4 + 1 + 4);
-            header.writeInt(sid);
-            header.writeByte(h);
-            header.writeInt(message.readableBytes());
-
-            result.addComponent(true, header);
-            result.addComponent(true, message);
-            return result;
-        } else {
-            ByteBuf header = allocator.buffer(1 + 4 + 1 + 4);
-            header.writeInt(sid);
-            header.writeByte(h);
-
-            if (message == null) {
-                header.writeInt(0);
-                return header;
-            } else {
-                header.writeInt(message.readableBytes());
-            }
+    protected int sizeHint() {
+        return 4 + 1 + 4;
+    }
 
-            CompositeByteBuf result = allocator.compositeBuffer(2);
-            result.addComponent(true, header);
-            result.addComponent(true, message);
-            return result;
+    @Override
+    protected void serialize0(ByteBuf out, ByteBuf payload) throws SerializationException {
+        State state = this.state;
+        if (state == null) {
+            //仅在出错时构造诊断信息
+            throw new SerializationException(ProxyResponseMessage.class,
+                    "ProxyResponseMessage is not complete, message detail: \n" + toString());
         }
+
+        assertTrue(state != State.SUCCESS || payload != null,
+                "When ProxyResponseMessage's state is SUCCESS, message must not be null");
+
+        out.writeInt(this.serialId);
+        out.writeByte(state.head);
+        out.writeInt(payload != null ? payload.readableBytes() : 0);
     }
 
     @Override
@@ -132,7 +113,7 @@ public class ProxyResponseMessage extends ProxyMessage {
                 if (len > 0) {
                     msg = buf.readRetainedSlice(len);
                 } else {
-                    msg = Unpooled.wrappedBuffer(new byte[0]);
+                    msg = Unpooled.EMPTY_BUFFER;
                 }
             } else {
                 throw new SerializationException("Unknown ProxyResponseMessage type " + h);
@@ -24,6 +24,7 @@ package com.lzf.flyingsocks.protocol;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.CompositeByteBuf;
+import io.netty.util.ReferenceCountUtil;
 
 /**
  * 代理阶段消息
@@ -31,9 +32,11 @@ import io.netty.buffer.CompositeByteBuf;
  * |  SVID |  LEN |    MESSAGE    |
  * +-------+------+---------------+
  *
- * 目前SVID有四种类型：
+ * 目前SVID有六种类型：
  * 0x00：TCP、UDP流量转发请求与响应
  * 0x01：DNS域名解析请求、响应
+ * 0x02：代理流窗口更新(流量控制)
+ * 0x03：代理流OPEN、DATA、CLOSE帧(协议版本2)
  * 0x7E：PONG消息
  * 0x7F：PING消息
  *
@@ -46,6 +49,11 @@ public abstract class ServiceStageMessage extends Message {
 
     public static final int LENGTH_FIELD_SIZE = 4;
 
+    /**
+     * SVID + LEN
+     */
+    public static final int HEADER_LENGTH = LENGTH_FIELD_OFFSET + LENGTH_FIELD_SIZE;
+
     /**
      * 消息类型
      */
@@ -65,23 +73,76 @@ public abstract class ServiceStageMessage extends Message {
 
     @Override
     public final ByteBuf serialize(ByteBufAllocator allocator) throws SerializationException {
-        ByteBuf header = allocator.directBuffer(5);
-        header.writeByte(serviceId);
+        ByteBuf payload = detachPayload();
+        ByteBuf header;
+        try {
+            header = serializeHeader(allocator, payload);
+        } catch (SerializationException e) {
+            ReferenceCountUtil.release(payload);
+            throw e;
+        }
 
-        ByteBuf body = serialize0(allocator);
-        int length = body.readableBytes();
-        header.writeInt(length);
+        if (payload == null) {
+            return header;
+        }
 
         CompositeByteBuf buf = allocator.compositeBuffer(2);
-        buf.addComponent(true, header);
-        buf.addComponent(true, body);
+        buf.addComponents(true, header, payload);
         return buf;
     }
 
     /**
-     * 序列化消息体(MESSAGE部分)
+     * 将SVID、LEN以及消息体中正文之前的字段写入一个按照{@link #sizeHint()}分配的ByteBuf，
+     * 正文由调用方紧随其后写出，从而避免CompositeByteBuf
+     *
+     * @param allocator ByteBuf分配器
+     * @param payload   通过{@link #detachPayload()}取出的正文，可以为null，该方法不会写出或释放它
+     * @return 消息头部
+     * @throws SerializationException 消息不完整
      */
-    protected abstract ByteBuf serialize0(ByteBufAllocator allocator) throws SerializationException;
+    public final ByteBuf serializeHeader(ByteBufAllocator allocator, ByteBuf payload) throws SerializationException {
+        ByteBuf header = allocator.directBuffer(HEADER_LENGTH + sizeHint());
+        try {
+            header.writeByte(serviceId);
+            header.writeInt(0);
+            serialize0(header, payload);
+
+            int length = header.readableBytes() - HEADER_LENGTH + (payload != null ? payload.readableBytes() : 0);
+            header.setInt(LENGTH_FIELD_OFFSET, length);
+            return header;
+        } catch (SerializationException | RuntimeException e) {
+            header.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return 消息体中正文之前部分的预估长度，用于分配ByteBuf
+     */
+    protected abstract int sizeHint();
+
+    /**
+     * 序列化消息体中正文之前的部分
+     *
+     * @param out     输出ByteBuf
+     * @param payload 消息正文，可能为null，不应写出或释放
+     */
+    protected abstract void serialize0(ByteBuf out, ByteBuf payload) throws SerializationException;
+
+    /**
+     * 取出消息正文，调用后消息不再持有该ByteBuf
+     *
+     * @return 消息正文，没有正文的消息返回null
+     */
+    public ByteBuf detachPayload() {
+        return null;
+    }
+
+    /**
+     * 消息写出后由{@link com.lzf.flyingsocks.misc.FSMessageOutboundEncoder}调用，使用对象池的消息可以在此回收自身
+     */
+    public void recycle() {
+    }
 
 
     @Override
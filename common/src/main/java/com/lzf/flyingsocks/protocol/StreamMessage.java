@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.protocol;
+
+import com.lzf.flyingsocks.misc.BaseUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.Recycler;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * 面向代理流的消息(协议版本{@link ProtocolVersion#V2})，目标主机与端口仅在OPEN帧中出现一次，
+ * 后续的DATA帧只携带代理流序列号，长度由外层{@link ServiceStageMessage}的LEN字段确定
+ *
+ * 0      1       5
+ * +------+-------+----------------------------+
+ * | TYPE |  SID  |          PAYLOAD           |
+ * |  1B  |  4B   |                            |
+ * +------+-------+----------------------------+
+ * TYPE：帧类型，0x01为OPEN，0x02为DATA，0x03为CLOSE
+ * SID：代理流序列号(客户端代理请求序列号)
+ *
+ * OPEN帧PAYLOAD：
+ * +-----+------+------+----------+------------+
+ * |PROTO| PORT | HLEN |   HOST   |    DATA    |
+ * | 1B  |  2B  |  1B  |          |            |
+ * +-----+------+------+----------+------------+
+ * DATA帧PAYLOAD：代理数据
+ * CLOSE帧PAYLOAD：1字节关闭原因，0x00为正常关闭，0x01为连接目标服务器失败
+ *
+ * 发送方通过静态工厂方法构造的对象来自对象池，写出后由编码器回收，调用方不应再持有其引用
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/13 10:30
+ */
+public class StreamMessage extends ServiceStageMessage {
+
+    public static final byte SERVICE_ID = 0x03;
+
+    /**
+     * TYPE + SID
+     */
+    private static final int HEADER_LENGTH = 1 + 4;
+
+    /**
+     * 目标主机名编码
+     */
+    private static final Charset HOST_ENCODING = StandardCharsets.UTF_8;
+
+    private static final Recycler<StreamMessage> RECYCLER = new Recycler<StreamMessage>() {
+        @Override
+        protected StreamMessage newObject(Handle<StreamMessage> handle) {
+            return new StreamMessage(handle);
+        }
+    };
+
+    /**
+     * 对象池句柄，反序列化得到的对象为null
+     */
+    private final Recycler.Handle<StreamMessage> handle;
+
+    /**
+     * 帧类型
+     */
+    private Type type;
+
+    /**
+     * 代理流序列号
+     */
+    private int serialId;
+
+    /**
+     * 传输层协议，仅OPEN帧有效
+     */
+    private ProxyRequestMessage.Protocol protocol;
+
+    /**
+     * 目标主机名，仅OPEN帧有效
+     */
+    private String host;
+
+    /**
+     * 目标端口号，仅OPEN帧有效
+     */
+    private int port;
+
+    /**
+     * 是否因为失败而关闭，仅CLOSE帧有效
+     */
+    private boolean failure;
+
+    /**
+     * 代理数据，OPEN帧和DATA帧有效
+     */
+    private ByteBuf message;
+
+
+    public enum Type {
+        OPEN(0x01), DATA(0x02), CLOSE(0x03);
+
+        private final byte value;
+
+        Type(int value) {
+            this.value = (byte) value;
+        }
+
+        private static Type of(byte value) {
+            switch (value) {
+                case 0x01: return OPEN;
+                case 0x02: return DATA;
+                case 0x03: return CLOSE;
+                default: return null;
+            }
+        }
+    }
+
+
+    private StreamMessage(Recycler.Handle<StreamMessage> handle) {
+        super(SERVICE_ID);
+        this.handle = handle;
+    }
+
+    public StreamMessage(ByteBuf buf) throws SerializationException {
+        super(buf);
+        this.handle = null;
+    }
+
+    private static StreamMessage newInstance(Type type, int serialId) {
+        StreamMessage msg = RECYCLER.get();
+        msg.type = type;
+        msg.serialId = serialId;
+        return msg;
+    }
+
+    /**
+     * 构造OPEN帧
+     *
+     * @param serialId 代理流序列号
+     * @param protocol 传输层协议，只能为TCP或UDP
+     * @param host     目标主机名
+     * @param port     目标端口号
+     * @param data     首段代理数据
+     */
+    public static StreamMessage open(int serialId, ProxyRequestMessage.Protocol protocol, String host, int port, ByteBuf data) {
+        if (protocol == ProxyRequestMessage.Protocol.CLOSE) {
+            throw new IllegalArgumentException("Protocol: " + protocol);
+        }
+
+        if (!BaseUtils.isPort(port)) {
+            throw new IllegalArgumentException("Port:" + port);
+        }
+
+        StreamMessage msg = newInstance(Type.OPEN, serialId);
+        msg.protocol = protocol;
+        msg.host = Objects.requireNonNull(host);
+        msg.port = port;
+        msg.message = Objects.requireNonNull(data);
+        return msg;
+    }
+
+    /**
+     * 构造DATA帧
+     *
+     * @param serialId 代理流序列号
+     * @param data     代理数据
+     */
+    public static StreamMessage data(int serialId, ByteBuf data) {
+        StreamMessage msg = newInstance(Type.DATA, serialId);
+        msg.message = Objects.requireNonNull(data);
+        return msg;
+    }
+
+    /**
+     * 构造CLOSE帧
+     *
+     * @param serialId 代理流序列号
+     * @param failure  是否因为连接目标服务器失败而关闭
+     */
+    public static StreamMessage close(int serialId, boolean failure) {
+        StreamMessage msg = newInstance(Type.CLOSE, serialId);
+        msg.failure = failure;
+        return msg;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int serialId() {
+        return serialId;
+    }
+
+    public ProxyRequestMessage.Protocol getProtocol() {
+        return protocol;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean isFailure() {
+        return failure;
+    }
+
+    /**
+     * @return 代理数据，只能获取一次，CLOSE帧返回空的ByteBuf
+     */
+    public synchronized ByteBuf getMessage() {
+        if (type == Type.CLOSE) {
+            return Unpooled.EMPTY_BUFFER;
+        }
+
+        if (message != null) {
+            ByteBuf buf = message;
+            message = null;
+            return buf;
+        }
+
+        throw new IllegalStateException("StreamMessage content is only can get one time");
+    }
+
+    @Override
+    public synchronized ByteBuf detachPayload() {
+        ByteBuf buf = message;
+        message = null;
+        return buf;
+    }
+
+    @Override
+    public void recycle() {
+        Recycler.Handle<StreamMessage> handle = this.handle;
+        if (handle == null) {
+            return;
+        }
+
+        ByteBuf message = detachPayload();
+        if (message != null) {
+            message.release();
+        }
+
+        this.type = null;
+        this.protocol = null;
+        this.host = null;
+        this.port = 0;
+        this.failure = false;
+        handle.recycle(this);
+    }
+
+    @Override
+    protected int sizeHint() {
+        if (type == Type.OPEN) {
+            return HEADER_LENGTH + 1 + 2 + 1 + host.length();
+        } else if (type == Type.CLOSE) {
+            return HEADER_LENGTH + 1;
+        }
+        return HEADER_LENGTH;
+    }
+
+    @Override
+    protected void serialize0(ByteBuf out, ByteBuf payload) throws SerializationException {
+        Type type = this.type;
+        if (type != Type.CLOSE && payload == null) {
+            throw new SerializationException(StreamMessage.class, "StreamMessage has no payload");
+        }
+
+        out.writeByte(type.value);
+        out.writeInt(serialId);
+
+        if (type == Type.OPEN) {
+            out.writeByte(protocol.value);
+            out.writeShort(port);
+            int hlenIndex = out.writerIndex();
+            out.writeByte(0);
+            int hlen = out.writeCharSequence(host, HOST_ENCODING);
+            if (hlen > 0xFF) {
+                throw new SerializationException(StreamMessage.class, "Host name is too long");
+            }
+            out.setByte(hlenIndex, hlen);
+        } else if (type == Type.CLOSE) {
+            out.writeByte(failure ? 0x01 : 0x00);
+        }
+    }
+
+    @Override
+    protected void deserialize0(ByteBuf buf) throws SerializationException {
+        try {
+            Type type = Type.of(buf.readByte());
+            if (type == null) {
+                throw new SerializationException(StreamMessage.class, "Unknown frame type");
+            }
+
+            int sid = buf.readInt();
+            switch (type) {
+                case OPEN: {
+                    byte proto = buf.readByte();
+                    if (proto == ProxyRequestMessage.Protocol.TCP.value) {
+                        this.protocol = ProxyRequestMessage.Protocol.TCP;
+                    } else if (proto == ProxyRequestMessage.Protocol.UDP.value) {
+                        this.protocol = ProxyRequestMessage.Protocol.UDP;
+                    } else {
+                        throw new SerializationException(StreamMessage.class, "Illegal protocol " + proto);
+                    }
+
+                    int port = BaseUtils.parseUnsignedShortToInteger(buf.readShort());
+                    if (port == 0) {
+                        throw new SerializationException(StreamMessage.class, "Illegal port");
+                    }
+
+                    int hlen = BaseUtils.parseByteToInteger(buf.readByte());
+                    this.host = buf.readCharSequence(hlen, HOST_ENCODING).toString();
+                    this.port = port;
+                    this.message = buf.readRetainedSlice(buf.readableBytes());
+                }
+                break;
+
+                case DATA:
+                    this.message = buf.readRetainedSlice(buf.readableBytes());
+                    break;
+
+                case CLOSE:
+                    this.failure = buf.readByte() != 0x00;
+                    break;
+            }
+
+            this.type = type;
+            this.serialId = sid;
+        } catch (IndexOutOfBoundsException e) {
+            throw new SerializationException("Illegal StreamMessage", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StreamMessage{" +
+                "type=" + type +
+                ", serialId=" + serialId +
+                ", protocol=" + protocol +
+                ", host='" + host + '\'' +
+                ", port=" + port +
+                ", failure=" + failure +
+                '}';
+    }
+}
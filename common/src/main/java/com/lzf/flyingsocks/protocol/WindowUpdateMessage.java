@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.protocol;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 代理流窗口更新消息，用于实现基于信用(Credit)的单连接流量控制
+ * 0       4          8
+ * +-------+----------+
+ * |  SID  | INCREMENT|
+ * |  4B   |    4B    |
+ * +-------+----------+
+ * SID：客户端代理请求序列号
+ * INCREMENT：接收方已经消费的字节数，发送方收到后可以继续发送的字节数(信用)相应增加
+ *
+ * 每个代理流在建立时双方各自拥有{@link #INITIAL_WINDOW_SIZE}字节的发送信用，
+ * 当信用耗尽时发送方应当停止读取数据源，直到收到对端的窗口更新消息。
+ * INCREMENT为0的消息仅用于向对端声明支持流量控制，不对应任何代理流。
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/12 15:20
+ */
+public class WindowUpdateMessage extends ServiceStageMessage {
+
+    public static final byte SERVICE_ID = 0x02;
+
+    /**
+     * 代理流初始窗口大小
+     */
+    public static final int INITIAL_WINDOW_SIZE = 1024 * 1024;
+
+    private static final int BODY_LENGTH = 4 + 4;
+
+    /**
+     * 客户端代理请求序列号
+     */
+    private int serialId;
+
+    /**
+     * 窗口增量
+     */
+    private int increment;
+
+
+    public WindowUpdateMessage(int serialId, int increment) {
+        super(SERVICE_ID);
+        if (increment < 0) {
+            throw new IllegalArgumentException("Window increment: " + increment);
+        }
+
+        this.serialId = serialId;
+        this.increment = increment;
+    }
+
+    public WindowUpdateMessage(ByteBuf buf) throws SerializationException {
+        super(buf);
+    }
+
+    /**
+     * @return 用于声明支持流量控制的消息
+     */
+    public static WindowUpdateMessage announcement() {
+        return new WindowUpdateMessage(0, 0);
+    }
+
+    /**
+     * @return 客户端代理请求序列号
+     */
+    public int serialId() {
+        return serialId;
+    }
+
+    /**
+     * @return 窗口增量
+     */
+    public int getIncrement() {
+        return increment;
+    }
+
+    /**
+     * @return 是否是流量控制声明消息
+     */
+    public boolean isAnnouncement() {
+        return increment == 0;
+    }
+
+    @Override
+    protected int sizeHint() {
+        return BODY_LENGTH;
+    }
+
+    @Override
+    protected void serialize0(ByteBuf out, ByteBuf payload) {
+        out.writeInt(serialId);
+        out.writeInt(increment);
+    }
+
+    @Override
+    protected void deserialize0(ByteBuf buf) throws SerializationException {
+        if (buf.readableBytes() != BODY_LENGTH) {
+            throw new SerializationException(WindowUpdateMessage.class, "Illegal WindowUpdateMessage length");
+        }
+
+        int sid = buf.readInt();
+        int increment = buf.readInt();
+        if (increment < 0) {
+            throw new SerializationException(WindowUpdateMessage.class, "Illegal window increment " + increment);
+        }
+
+        this.serialId = sid;
+        this.increment = increment;
+    }
+
+    @Override
+    public String toString() {
+        return "WindowUpdateMessage{" +
+                "serialId=" + serialId +
+                ", increment=" + increment +
+                '}';
+    }
+}
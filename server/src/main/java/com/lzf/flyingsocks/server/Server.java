@@ -26,6 +26,7 @@ import com.lzf.flyingsocks.ConfigManager;
 import com.lzf.flyingsocks.Environment;
 import com.lzf.flyingsocks.VoidComponent;
 import com.lzf.flyingsocks.server.db.UserDatabase;
+import com.lzf.flyingsocks.server.usermanage.UserManageComponent;
 
 public interface Server extends Component<VoidComponent>, Environment {
 
@@ -49,4 +50,9 @@ public interface Server extends Component<VoidComponent>, Environment {
      */
     UserDatabase getUserDatabase();
 
+    /**
+     * @return 用户管理组件，未启用时返回null
+     */
+    UserManageComponent getUserManageComponent();
+
 }
@@ -106,6 +106,7 @@ public class ServerConfig extends AbstractConfig implements Config {
                 int port = obj.getIntValue("port");
                 int certPort = obj.getIntValue("cert-port");
                 int client = obj.getIntValue("max-client");
+                int speedLimit = Math.max(obj.getIntValue("speed-limit"), 0);
 
                 if (!BaseUtils.isPort(port)) {
                     log.error("Illegal Port {}, should be large than 0 and smaller than 65536", port);
@@ -127,7 +128,7 @@ public class ServerConfig extends AbstractConfig implements Config {
                     System.exit(1);
                 }
 
-                Node n = new Node(name, port, certPort, client, authType, encryptType);
+                Node n = new Node(name, port, certPort, client, speedLimit, authType, encryptType);
 
                 switch (authType) {
                     case SIMPLE: {
@@ -184,17 +185,19 @@ public class ServerConfig extends AbstractConfig implements Config {
         public final int port;      //绑定端口
         public final int certPort;  //收发CA证书端口
         public final int maxClient; //最大客户端连接数
+        public final int speedLimit; //节点上传和下载各自的总限速(KB/s)，0表示不限速
         public final ClientAuthType authType; //认证方式
         public final ClientEncryptType encryptType;   //加密方式
 
         //认证参数
         private final Map<String, String> args = new HashMap<>(4);
 
-        private Node(String name, int port, int certPort, int maxClient, ClientAuthType authType, ClientEncryptType encryptType) {
+        private Node(String name, int port, int certPort, int maxClient, int speedLimit, ClientAuthType authType, ClientEncryptType encryptType) {
             this.name = Objects.requireNonNull(name);
             this.port = port;
             this.certPort = certPort;
             this.maxClient = maxClient;
+            this.speedLimit = speedLimit;
             this.authType = Objects.requireNonNull(authType);
             this.encryptType = Objects.requireNonNull(encryptType);
         }
@@ -219,7 +222,8 @@ public class ServerConfig extends AbstractConfig implements Config {
             StringBuilder sb = new StringBuilder();
             sb.append("[").append("name:").append(name).append(" port:")
                     .append(port).append(" cert-port:").append(certPort)
-                    .append(" maxClient:").append(maxClient).append(" Auth:")
+                    .append(" maxClient:").append(maxClient).append(" speedLimit:")
+                    .append(speedLimit).append(" Auth:")
                     .append(authType.name());
 
             switch (authType) {
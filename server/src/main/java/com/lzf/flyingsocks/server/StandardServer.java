@@ -24,14 +24,21 @@ package com.lzf.flyingsocks.server;
 import com.lzf.flyingsocks.ComponentException;
 import com.lzf.flyingsocks.ConfigManager;
 import com.lzf.flyingsocks.TopLevelComponent;
+import com.lzf.flyingsocks.misc.BaseUtils;
 import com.lzf.flyingsocks.server.core.ProxyProcessor;
+import com.lzf.flyingsocks.server.db.MyBatisUserDatabase;
 import com.lzf.flyingsocks.server.db.TextUserDatabase;
 import com.lzf.flyingsocks.server.db.UserDatabase;
+import com.lzf.flyingsocks.server.metrics.MetricsComponent;
+import com.lzf.flyingsocks.server.usermanage.UserManageComponent;
+import org.apache.commons.lang3.StringUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.Scanner;
 
@@ -50,6 +57,8 @@ public class StandardServer extends TopLevelComponent implements Server {
 
     private UserDatabase userDatabase;
 
+    private UserManageComponent userManageComponent;
+
     public StandardServer() {
         super("Server");
     }
@@ -69,15 +78,33 @@ public class StandardServer extends TopLevelComponent implements Server {
         this.serverConfig = new ServerConfig(configManager);
         getConfigManager().registerConfig(serverConfig);
 
+        if (Boolean.parseBoolean(configManager.getSystemProperties("flyingsocks.usermanage.enable"))) {
+            this.userManageComponent = new UserManageComponent(this);
+            addComponent(userManageComponent);
+        }
+
         ServerConfig.Node[] nodes = serverConfig.getServerNode();
+        List<ProxyProcessor> processors = new ArrayList<>(nodes.length);
         for (ServerConfig.Node node : nodes) {
-            addComponent(new ProxyProcessor(this, node));
+            ProxyProcessor processor = new ProxyProcessor(this, node);
+            processors.add(processor);
+            addComponent(processor);
         }
 
-        TextUserDatabase db = new TextUserDatabase(getConfigManager());
-        configManager.registerConfig(db);
+        String metricsPort = configManager.getSystemProperties("flyingsocks.metrics.port");
+        if (StringUtils.isNotBlank(metricsPort) && BaseUtils.isPortString(metricsPort) && !processors.isEmpty()) {
+            addComponent(new MetricsComponent(this, processors, Integer.parseInt(metricsPort)));
+        }
 
-        this.userDatabase = db;
+        if ("database".equalsIgnoreCase(configManager.getSystemProperties("flyingsocks.userdatabase.type"))) {
+            MyBatisUserDatabase db = new MyBatisUserDatabase(configManager);
+            configManager.registerConfig(db);
+            this.userDatabase = db;
+        } else {
+            TextUserDatabase db = new TextUserDatabase(configManager);
+            configManager.registerConfig(db);
+            this.userDatabase = db;
+        }
         super.initInternal();
     }
 
@@ -96,6 +123,11 @@ public class StandardServer extends TopLevelComponent implements Server {
         return userDatabase;
     }
 
+    @Override
+    public UserManageComponent getUserManageComponent() {
+        return userManageComponent;
+    }
+
     @Override
     public String getSystemProperties(String key) {
         return super.getSystemProperties(key);
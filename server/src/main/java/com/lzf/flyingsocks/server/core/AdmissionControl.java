@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.core;
+
+import java.net.InetAddress;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 代理节点的接入控制：
+ * 1. 按来源IP限制新建连接的速率，在连接被接受后、注册到EventLoop以及TLS握手之前执行，
+ *    被拒绝的连接直接关闭，因此大量客户端同时重连时节点只需要付出accept的代价
+ * 2. 节点的最大客户端连接数(max-client)
+ * 3. 每个用户的最大并发会话数和最大并发代理流数
+ *
+ * 来源IP的速率限制使用固定大小的分段表：来源IP散列到其中一个槽位，每个槽位是一个GCRA令牌桶，
+ * 仅保存一个理论到达时间并通过CAS更新，不需要加锁也不会随来源IP数量增长。
+ * 散列到同一槽位的来源IP共享同一个令牌桶，只会使限制更严格
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/26 10:20
+ */
+public final class AdmissionControl {
+
+    /**
+     * 来源IP分段表的槽位数量，必须是2的幂
+     */
+    private static final int STRIPES = 4096;
+
+    /**
+     * 每个槽位的理论到达时间(纳秒)，为0表示从未使用
+     */
+    private final AtomicLongArray stripes;
+
+    /**
+     * 相邻两个连接之间的理论间隔(纳秒)，不限制连接速率时为0
+     */
+    private final long emissionInterval;
+
+    /**
+     * 允许的突发量对应的提前时间(纳秒)
+     */
+    private final long burstTolerance;
+
+    /**
+     * 节点最大客户端连接数，小于等于0表示不限制
+     */
+    private final int maxClient;
+
+    /**
+     * 每个用户的最大并发会话数，小于等于0表示不限制
+     */
+    private final int maxUserSessions;
+
+    /**
+     * 每个用户的最大并发代理流数，小于等于0表示不限制
+     */
+    private final int maxUserStreams;
+
+    /**
+     * 当前客户端连接数
+     */
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * 已登录用户的并发计数，Key为用户名
+     */
+    private final ConcurrentMap<String, UserQuota> users = new ConcurrentHashMap<>();
+
+    private final LongAdder rejectedConnections = new LongAdder();
+
+    private final LongAdder rejectedSessions = new LongAdder();
+
+    private final LongAdder rejectedStreams = new LongAdder();
+
+
+    /**
+     * @param connectionRate  单个来源IP每秒允许新建的连接数，小于等于0表示不限制
+     * @param connectionBurst 单个来源IP允许的突发连接数
+     * @param maxClient       节点最大客户端连接数
+     * @param maxUserSessions 每个用户的最大并发会话数
+     * @param maxUserStreams  每个用户的最大并发代理流数
+     */
+    public AdmissionControl(int connectionRate, int connectionBurst, int maxClient, int maxUserSessions, int maxUserStreams) {
+        if (connectionRate > 0) {
+            this.stripes = new AtomicLongArray(STRIPES);
+            this.emissionInterval = TimeUnit.SECONDS.toNanos(1) / connectionRate;
+            this.burstTolerance = emissionInterval * (Math.max(connectionBurst, 1) - 1);
+        } else {
+            this.stripes = null;
+            this.emissionInterval = 0;
+            this.burstTolerance = 0;
+        }
+
+        this.maxClient = maxClient;
+        this.maxUserSessions = maxUserSessions;
+        this.maxUserStreams = maxUserStreams;
+    }
+
+    /**
+     * 在接受客户端连接时调用，通过后需要在连接关闭时调用{@link #releaseConnection()}
+     *
+     * @param address 客户端IP地址
+     * @return 是否允许该连接
+     */
+    public boolean tryAcquireConnection(InetAddress address) {
+        if (stripes != null && !tryAcquireRate(address)) {
+            rejectedConnections.increment();
+            return false;
+        }
+
+        int max = this.maxClient;
+        if (max > 0) {
+            int current;
+            do {
+                current = connections.get();
+                if (current >= max) {
+                    rejectedConnections.increment();
+                    return false;
+                }
+            } while (!connections.compareAndSet(current, current + 1));
+        } else {
+            connections.incrementAndGet();
+        }
+        return true;
+    }
+
+    public void releaseConnection() {
+        connections.decrementAndGet();
+    }
+
+    private boolean tryAcquireRate(InetAddress address) {
+        int index = stripeIndex(address);
+        AtomicLongArray stripes = this.stripes;
+        long now = System.nanoTime();
+        while (true) {
+            long tat = stripes.get(index);
+            long base = tat == 0 || tat - now < 0 ? now : tat;
+            if (base - now > burstTolerance) {
+                return false;
+            }
+
+            if (stripes.compareAndSet(index, tat, base + emissionInterval)) {
+                return true;
+            }
+        }
+    }
+
+    private static int stripeIndex(InetAddress address) {
+        byte[] b = address.getAddress();
+        int h = 1;
+        for (byte value : b) {
+            h = 31 * h + value;
+        }
+        h *= 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * @return 是否需要对用户计数
+     */
+    public boolean isUserLimited() {
+        return maxUserSessions > 0 || maxUserStreams > 0;
+    }
+
+    /**
+     * 用户通过认证后调用，通过后需要在会话关闭时调用{@link UserQuota#release()}
+     *
+     * @param username 用户名
+     * @return 用户的并发计数，超出最大并发会话数时返回null
+     */
+    public UserQuota acquireSession(String username) {
+        Objects.requireNonNull(username);
+        boolean[] rejected = new boolean[1];
+        UserQuota quota = users.compute(username, (k, q) -> {
+            if (q == null) {
+                q = new UserQuota(k);
+            } else if (maxUserSessions > 0 && q.sessions >= maxUserSessions) {
+                rejected[0] = true;
+                return q;
+            }
+
+            q.sessions++;
+            return q;
+        });
+
+        if (rejected[0]) {
+            rejectedSessions.increment();
+            return null;
+        }
+        return quota;
+    }
+
+    public int connectionCount() {
+        return connections.get();
+    }
+
+    public long rejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    public long rejectedSessions() {
+        return rejectedSessions.sum();
+    }
+
+    public long rejectedStreams() {
+        return rejectedStreams.sum();
+    }
+
+
+    /**
+     * 单个用户在当前节点上的并发会话数和代理流数
+     */
+    public final class UserQuota {
+
+        private final String username;
+
+        /**
+         * 并发会话数，只在{@link #users}的compute中修改
+         */
+        private int sessions;
+
+        private final AtomicInteger streams = new AtomicInteger();
+
+        private UserQuota(String username) {
+            this.username = username;
+        }
+
+        /**
+         * 新建代理流前调用，通过后需要在代理流关闭时调用{@link #releaseStreams(int)}
+         *
+         * @return 是否未超出最大并发代理流数
+         */
+        public boolean tryAcquireStream() {
+            int max = maxUserStreams;
+            if (max <= 0) {
+                streams.incrementAndGet();
+                return true;
+            }
+
+            int current;
+            do {
+                current = streams.get();
+                if (current >= max) {
+                    rejectedStreams.increment();
+                    return false;
+                }
+            } while (!streams.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        public void releaseStreams(int count) {
+            streams.addAndGet(-count);
+        }
+
+        /**
+         * 会话关闭时调用，用户的最后一个会话关闭后移除计数
+         */
+        public void release() {
+            users.computeIfPresent(username, (k, q) -> {
+                if (q != this) {
+                    return q;
+                }
+                return --q.sessions > 0 ? q : null;
+            });
+        }
+
+        public String username() {
+            return username;
+        }
+    }
+}
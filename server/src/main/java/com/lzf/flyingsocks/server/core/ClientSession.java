@@ -23,9 +23,24 @@ package com.lzf.flyingsocks.server.core;
 
 import com.lzf.flyingsocks.AbstractSession;
 import com.lzf.flyingsocks.Session;
+import com.lzf.flyingsocks.misc.IntObjectOpenHashMap;
+import com.lzf.flyingsocks.protocol.ProtocolVersion;
+import com.lzf.flyingsocks.protocol.ProxyResponseMessage;
+import com.lzf.flyingsocks.protocol.ServiceStageMessage;
+import com.lzf.flyingsocks.protocol.StreamMessage;
+import com.lzf.flyingsocks.server.usermanage.TrafficAccount;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.EventLoop;
 import io.netty.channel.socket.SocketChannel;
 
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
 /**
  * 客户端会话对象
  */
@@ -36,8 +51,51 @@ public class ClientSession extends AbstractSession implements Session {
      */
     private boolean auth = false;
 
-    public ClientSession(Channel channel) {
+    /**
+     * 认证阶段协商的协议版本
+     */
+    private volatile int protocolVersion = ProtocolVersion.V1;
+
+    /**
+     * 客户端是否声明支持代理流的流量控制，旧版本客户端不会发送窗口更新消息
+     */
+    private volatile boolean flowControl = false;
+
+    /**
+     * 该会话的代理流，Key为客户端代理请求序列号，只能在该会话的EventLoop中访问。
+     * 每一帧代理数据都需要查找一次，因此使用开放寻址的int键哈希表，查找时不需要装箱
+     */
+    private final IntObjectOpenHashMap<ProxyStream> streams = new IntObjectOpenHashMap<>(64);
+
+    /**
+     * 因客户端连接不可写而暂停读取目标服务器数据的代理流，客户端连接恢复可写后按先后顺序恢复读取，
+     * 只能在该会话的EventLoop中访问
+     */
+    private final Queue<ProxyStream> suspendedStreams = new ArrayDeque<>();
+
+    /**
+     * 用户流量账户，仅在启用用户管理并通过用户认证后存在
+     */
+    private volatile TrafficAccount trafficAccount;
+
+    /**
+     * 该会话所属用户在节点限速器中的份额，节点和用户都不限速时为null
+     */
+    private volatile TrafficShaper.Share trafficShare;
+
+    /**
+     * 该会话所属用户的并发计数，未限制用户并发数时为null
+     */
+    private volatile AdmissionControl.UserQuota userQuota;
+
+    /**
+     * 所属节点的运行指标
+     */
+    private final NodeMetrics metrics;
+
+    public ClientSession(Channel channel, NodeMetrics metrics) {
         super((SocketChannel) channel);
+        this.metrics = Objects.requireNonNull(metrics);
     }
 
     public boolean isWriteable() {
@@ -67,6 +125,222 @@ public class ClientSession extends AbstractSession implements Session {
         auth = true;
     }
 
+    /**
+     * @return 用户流量账户，未启用用户管理时返回null
+     */
+    public TrafficAccount trafficAccount() {
+        return trafficAccount;
+    }
+
+    public void setTrafficAccount(TrafficAccount trafficAccount) {
+        this.trafficAccount = trafficAccount;
+    }
+
+    /**
+     * @return 限速份额，节点和用户都不限速时返回null
+     */
+    public TrafficShaper.Share trafficShare() {
+        return trafficShare;
+    }
+
+    public void setTrafficShare(TrafficShaper.Share trafficShare) {
+        this.trafficShare = trafficShare;
+    }
+
+    /**
+     * @return 用户并发计数，未限制用户并发数时返回null
+     */
+    public AdmissionControl.UserQuota userQuota() {
+        return userQuota;
+    }
+
+    public void setUserQuota(AdmissionControl.UserQuota userQuota) {
+        this.userQuota = userQuota;
+    }
+
+    /**
+     * @return 所属节点的运行指标
+     */
+    public NodeMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * 因上传限速暂停读取客户端连接，到期后自动恢复，已经处于暂停状态时不做处理。
+     * 只能在该会话的EventLoop中调用
+     *
+     * @param nanos 暂停时长(纳秒)
+     */
+    public void pauseRead(long nanos) {
+        ChannelConfig config = socketChannel.config();
+        if (!config.isAutoRead()) {
+            return;
+        }
+
+        config.setAutoRead(false);
+        socketChannel.eventLoop().schedule(() -> config.setAutoRead(true), nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public int protocolVersion() {
+        return protocolVersion;
+    }
+
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     * 计入节点和用户的上传流量，超出上传限速份额时暂停读取客户端连接，已经读取的数据照常转发。
+     * 只能在该会话的EventLoop中调用
+     *
+     * @param bytes 客户端发往目标服务器的字节数
+     */
+    public void recordUpload(int bytes) {
+        metrics.recordBytesIn(bytes);
+        TrafficAccount account = this.trafficAccount;
+        if (account != null) {
+            account.recordUpload(bytes);
+        }
+
+        TrafficShaper.Share share = this.trafficShare;
+        if (share != null) {
+            long wait = share.acquireUpload(bytes);
+            if (wait > 0) {
+                pauseRead(wait);
+            }
+        }
+    }
+
+    /**
+     * 根据协商的协议版本构造代理数据消息，同时计入节点和用户的下载流量
+     *
+     * @param serialId 客户端代理请求序列号
+     * @param data     目标服务器返回的数据
+     */
+    public ServiceStageMessage createDataMessage(int serialId, ByteBuf data) {
+        metrics.recordBytesOut(data.readableBytes());
+        TrafficAccount account = this.trafficAccount;
+        if (account != null) {
+            account.recordDownload(data.readableBytes());
+        }
+
+        if (protocolVersion >= ProtocolVersion.V2) {
+            return StreamMessage.data(serialId, data);
+        }
+
+        ProxyResponseMessage msg = new ProxyResponseMessage(serialId);
+        msg.setState(ProxyResponseMessage.State.SUCCESS);
+        msg.setMessage(data);
+        return msg;
+    }
+
+    /**
+     * 根据协商的协议版本构造连接目标服务器失败的消息
+     *
+     * @param serialId 客户端代理请求序列号
+     */
+    public ServiceStageMessage createFailureMessage(int serialId) {
+        if (protocolVersion >= ProtocolVersion.V2) {
+            return StreamMessage.close(serialId, true);
+        }
+
+        ProxyResponseMessage msg = new ProxyResponseMessage(serialId);
+        msg.setState(ProxyResponseMessage.State.FAILURE);
+        return msg;
+    }
+
+    public boolean isFlowControlEnabled() {
+        return flowControl;
+    }
+
+    public void enableFlowControl() {
+        flowControl = true;
+    }
+
+    /**
+     * @return 该会话所在的EventLoop，代理流的分发以及目标服务器连接都在该EventLoop中进行
+     */
+    public EventLoop eventLoop() {
+        return socketChannel.eventLoop();
+    }
+
+    public ProxyStream stream(int serialId) {
+        return streams.get(serialId);
+    }
+
+    public void putStream(ProxyStream stream) {
+        streams.put(stream.serialId(), stream);
+        metrics.streamOpened();
+    }
+
+    public void removeStream(ProxyStream stream) {
+        int serialId = stream.serialId();
+        if (streams.get(serialId) == stream) {
+            streams.remove(serialId);
+            metrics.streamsClosed(1);
+            stream.removed();
+            AdmissionControl.UserQuota quota = this.userQuota;
+            if (quota != null) {
+                quota.releaseStreams(1);
+            }
+        }
+    }
+
+    /**
+     * 收到客户端窗口更新消息后增加代理流的信用，信用由耗尽状态恢复时恢复读取目标服务器的数据
+     */
+    public void updateStreamWindow(int serialId, int increment) {
+        ProxyStream stream = streams.get(serialId);
+        if (stream != null && stream.window().update(increment)) {
+            stream.resumeRead();
+        }
+    }
+
+    /**
+     * 客户端连接不可写时由代理流调用，暂停读取目标服务器的数据，直到客户端连接恢复可写
+     */
+    public void suspendStream(ProxyStream stream) {
+        if (!stream.suspended) {
+            stream.suspended = true;
+            suspendedStreams.add(stream);
+        }
+    }
+
+    /**
+     * 客户端连接恢复可写后调用，只恢复此前被暂停的代理流。
+     * 若恢复过程中客户端连接再次变为不可写，剩余的代理流留待下一次恢复
+     */
+    public void resumeStreams() {
+        Queue<ProxyStream> queue = this.suspendedStreams;
+        for (int i = queue.size(); i > 0 && socketChannel.isWritable(); i--) {
+            ProxyStream stream = queue.poll();
+            stream.suspended = false;
+            stream.resumeRead();
+        }
+    }
+
+    /**
+     * 客户端连接关闭后调用，关闭所有代理流
+     */
+    public void closeStreams() {
+        if (streams.isEmpty()) {
+            return;
+        }
+
+        List<ProxyStream> list = streams.values();
+        streams.clear();
+        suspendedStreams.clear();
+        metrics.streamsClosed(list.size());
+        AdmissionControl.UserQuota quota = this.userQuota;
+        if (quota != null) {
+            quota.releaseStreams(list.size());
+        }
+        for (ProxyStream stream : list) {
+            stream.removed();
+            stream.close();
+        }
+    }
+
     public void updateLastActiveTime() {
         lastActiveTime = System.currentTimeMillis();
     }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个代理服务监听Socket的接入统计，开启SO_REUSEPORT时每个监听Socket各有一份，
+ * 用于观察内核是否将新连接均匀地分配到各个EventLoop
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/26 15:30
+ */
+public final class ListenerStats {
+
+    /**
+     * 监听Socket序号
+     */
+    private final int index;
+
+    private final long startNanos = System.nanoTime();
+
+    private final LongAdder accepted = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    public ListenerStats(int index) {
+        this.index = index;
+    }
+
+    public void recordAccepted() {
+        accepted.increment();
+    }
+
+    public void recordRejected() {
+        rejected.increment();
+    }
+
+    public int index() {
+        return index;
+    }
+
+    /**
+     * @return 通过接入控制的连接数
+     */
+    public long accepted() {
+        return accepted.sum();
+    }
+
+    /**
+     * @return 被接入控制拒绝的连接数
+     */
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return 自监听开始以来平均每秒接受的连接数(包括被拒绝的连接)
+     */
+    public double acceptRate() {
+        long elapsed = System.nanoTime() - startNanos;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return (accepted.sum() + rejected.sum()) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("listener=%d, accepted=%d, rejected=%d, rate=%.2f/s",
+                index, accepted(), rejected(), acceptRate());
+    }
+}
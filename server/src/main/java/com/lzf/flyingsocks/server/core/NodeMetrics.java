@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.core;
+
+import com.lzf.flyingsocks.misc.LatencyRecorder;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 代理节点的运行指标，由各个EventLoop在热路径上并发更新，因此只使用LongAdder和{@link LatencyRecorder}，
+ * 读取时得到的是各个计数器的近似快照
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/26 20:10
+ */
+public final class NodeMetrics {
+
+    /**
+     * 客户端上传的代理数据(字节)
+     */
+    private final LongAdder bytesIn = new LongAdder();
+
+    /**
+     * 返回给客户端的代理数据(字节)
+     */
+    private final LongAdder bytesOut = new LongAdder();
+
+    /**
+     * 通过认证的客户端会话数
+     */
+    private final LongAdder sessions = new LongAdder();
+
+    /**
+     * 代理流数量，包含正在解析域名和连接目标服务器的代理流
+     */
+    private final LongAdder streams = new LongAdder();
+
+    /**
+     * 客户端DNS查询服务的缓存命中和未命中次数
+     */
+    private final LongAdder dnsQueryHits = new LongAdder();
+
+    private final LongAdder dnsQueryMisses = new LongAdder();
+
+    /**
+     * 失败的TLS握手次数
+     */
+    private final LongAdder handshakeFailures = new LongAdder();
+
+    /**
+     * 目标服务器域名解析耗时
+     */
+    private final LatencyRecorder resolveLatency = new LatencyRecorder();
+
+    /**
+     * 代理流建立耗时(从收到代理请求到目标服务器连接建立)
+     */
+    private final LatencyRecorder openLatency = new LatencyRecorder();
+
+    /**
+     * 客户端连接TLS握手耗时(从连接注册到握手完成)
+     */
+    private final LatencyRecorder handshakeLatency = new LatencyRecorder();
+
+    /**
+     * 各个监听Socket的接入统计，开启SO_REUSEPORT时每个监听Socket各有一份
+     */
+    private final List<ListenerStats> listeners = new CopyOnWriteArrayList<>();
+
+
+    NodeMetrics() { }
+
+    public void recordBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void recordBytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public void sessionOpened() {
+        sessions.increment();
+    }
+
+    public void sessionClosed() {
+        sessions.decrement();
+    }
+
+    public void streamOpened() {
+        streams.increment();
+    }
+
+    public void streamsClosed(int count) {
+        streams.add(-count);
+    }
+
+    public void recordDnsQuery(boolean hit) {
+        if (hit) {
+            dnsQueryHits.increment();
+        } else {
+            dnsQueryMisses.increment();
+        }
+    }
+
+    public void recordHandshake(long nanos) {
+        handshakeLatency.record(nanos);
+    }
+
+    public void recordHandshakeFailure() {
+        handshakeFailures.increment();
+    }
+
+    /**
+     * 创建一个监听Socket的接入统计，序号按照创建顺序递增
+     */
+    public ListenerStats newListenerStats() {
+        synchronized (listeners) {
+            ListenerStats stats = new ListenerStats(listeners.size());
+            listeners.add(stats);
+            return stats;
+        }
+    }
+
+    public long bytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long bytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long sessions() {
+        return sessions.sum();
+    }
+
+    public long streams() {
+        return streams.sum();
+    }
+
+    public long dnsQueryHits() {
+        return dnsQueryHits.sum();
+    }
+
+    public long dnsQueryMisses() {
+        return dnsQueryMisses.sum();
+    }
+
+    public long handshakeFailures() {
+        return handshakeFailures.sum();
+    }
+
+    public LatencyRecorder resolveLatency() {
+        return resolveLatency;
+    }
+
+    public LatencyRecorder openLatency() {
+        return openLatency;
+    }
+
+    public LatencyRecorder handshakeLatency() {
+        return handshakeLatency;
+    }
+
+    public List<ListenerStats> listeners() {
+        return Collections.unmodifiableList(listeners);
+    }
+}
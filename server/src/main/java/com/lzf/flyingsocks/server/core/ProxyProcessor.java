@@ -44,6 +44,8 @@ import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.validator.routines.IntegerValidator;
 
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -76,6 +78,24 @@ public class ProxyProcessor extends AbstractComponent<Server> implements ProxyTa
     //代理任务订阅者列表
     private final CopyOnWriteArrayList<ProxyTaskSubscriber> proxyTaskSubscribers = new CopyOnWriteArrayList<>();
 
+    //目标服务器域名解析组
+    private volatile TargetResolver targetResolver;
+
+    /**
+     * 节点限速器
+     */
+    private volatile TrafficShaper trafficShaper;
+
+    /**
+     * 节点接入控制
+     */
+    private volatile AdmissionControl admissionControl;
+
+    /**
+     * 节点运行指标
+     */
+    private final NodeMetrics metrics = new NodeMetrics();
+
 
     public ProxyProcessor(Server server, ServerConfig.Node serverConfig) {
         super(serverConfig.name, server);
@@ -128,16 +148,33 @@ public class ProxyProcessor extends AbstractComponent<Server> implements ProxyTa
 
     @Override
     protected void initInternal() {
+        this.targetResolver = new TargetResolver(datagramChannelClass);
+        this.trafficShaper = new TrafficShaper(serverConfig.speedLimit * 1024L);
+        this.admissionControl = new AdmissionControl(intProperty("flyingsocks.client.admission.ip-rate"),
+                intProperty("flyingsocks.client.admission.ip-burst"), serverConfig.maxClient,
+                intProperty("flyingsocks.client.admission.user-sessions"), intProperty("flyingsocks.client.admission.user-streams"));
         addComponent(new ClientProcessor(this));
         addComponent(new DispatchProceessor(this));
         super.initInternal();
     }
 
+    /**
+     * @return 系统参数的整数值，未配置或格式错误时返回0
+     */
+    private int intProperty(String key) {
+        String value = getConfigManager().getSystemProperties(key);
+        if (StringUtils.isBlank(value) || !IntegerValidator.getInstance().isValid(value)) {
+            return 0;
+        }
+        return Math.max(0, Integer.parseInt(value));
+    }
+
     @Override
     protected void stopInternal() {
         bossWorker.shutdownGracefully();
         childWorker.shutdownGracefully();
         super.stopInternal();
+        targetResolver.close();
     }
 
     public final int getHandlerId() {
@@ -180,6 +217,37 @@ public class ProxyProcessor extends AbstractComponent<Server> implements ProxyTa
     }
 
 
+    /**
+     * @return 该代理处理器共用的异步域名解析组
+     */
+    public final TargetResolver getTargetResolver() {
+        return targetResolver;
+    }
+
+
+    /**
+     * @return 节点限速器
+     */
+    public final TrafficShaper getTrafficShaper() {
+        return trafficShaper;
+    }
+
+
+    /**
+     * @return 节点接入控制
+     */
+    public final AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+
+    /**
+     * @return 节点运行指标
+     */
+    public final NodeMetrics getMetrics() {
+        return metrics;
+    }
+
     @Override
     public void registerSubscriber(ProxyTaskSubscriber subscriber) {
         proxyTaskSubscribers.add(subscriber);
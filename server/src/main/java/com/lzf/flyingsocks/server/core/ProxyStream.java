@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.core;
+
+import com.lzf.flyingsocks.misc.FlowControlWindow;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 客户端会话中的一条代理流，由{@link ClientSession}按照客户端代理请求序列号保存。
+ * 代理流及其目标服务器连接都注册在该会话的EventLoop上，因此所有方法只能在该EventLoop中调用
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/19 19:40
+ */
+public abstract class ProxyStream {
+
+    /**
+     * 客户端代理请求序列号
+     */
+    private final int serialId;
+
+    /**
+     * 目标主机IP/域名
+     */
+    private final String host;
+
+    /**
+     * 目标主机端口号
+     */
+    private final int port;
+
+    /**
+     * 该代理流的流量控制窗口
+     */
+    private final FlowControlWindow window = new FlowControlWindow();
+
+    /**
+     * 是否因为客户端连接不可写而暂停读取，由{@link ClientSession}维护
+     */
+    boolean suspended;
+
+
+    protected ProxyStream(int serialId, String host, int port) {
+        this.serialId = serialId;
+        this.host = host;
+        this.port = port;
+    }
+
+    public final int serialId() {
+        return serialId;
+    }
+
+    public final String host() {
+        return host;
+    }
+
+    public final int port() {
+        return port;
+    }
+
+    public final FlowControlWindow window() {
+        return window;
+    }
+
+    /**
+     * 转发客户端发往目标服务器的数据，连接尚未建立时缓存，该方法负责释放data
+     *
+     * @param data 客户端数据
+     */
+    public abstract void upload(ByteBuf data);
+
+    /**
+     * 流量控制信用恢复或客户端连接恢复可写时调用，尝试恢复读取目标服务器的数据
+     */
+    public abstract void resumeRead();
+
+    /**
+     * 关闭目标服务器连接并释放该代理流持有的资源
+     */
+    public abstract void close();
+
+    /**
+     * 代理流从{@link ClientSession}中移除后调用，每条代理流只会调用一次
+     */
+    protected void removed() { }
+}
@@ -49,8 +49,8 @@ public class ProxyTask {
 
     @Override
     public int hashCode() {
-        return session.hashCode() ^ proxyRequestMessage.getHost().hashCode() ^
-                (proxyRequestMessage.getPort() << 16) ^ proxyRequestMessage.getProtocol().hashCode();
+        //同一条代理流的所有任务(包括CLOSE)必须交由同一个订阅者处理，因此不能包含协议类型
+        return session.hashCode() ^ proxyRequestMessage.serialId();
     }
 
     @Override
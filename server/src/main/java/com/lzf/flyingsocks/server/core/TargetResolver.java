@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.core;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.resolver.AddressResolver;
+import io.netty.resolver.ResolvedAddressTypes;
+import io.netty.resolver.dns.DefaultAuthoritativeDnsServerCache;
+import io.netty.resolver.dns.DefaultDnsCache;
+import io.netty.resolver.dns.DefaultDnsCnameCache;
+import io.netty.resolver.dns.DnsAddressResolverGroup;
+import io.netty.resolver.dns.DnsCache;
+import io.netty.resolver.dns.DnsCacheEntry;
+import io.netty.resolver.dns.DnsNameResolver;
+import io.netty.resolver.dns.DnsNameResolverBuilder;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 代理处理器共用的异步域名解析组，每个EventLoop拥有各自的解析器，但共享同一组缓存：
+ * 1. 解析结果按照DNS记录的TTL缓存，解析失败的结果缓存{@link #NEGATIVE_TTL}秒
+ * 2. 同一个域名正在进行中的解析请求会被合并，不会重复向DNS服务器查询
+ * 3. 同时查询A记录和AAAA记录，由调用方决定连接顺序
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/20 15:10
+ */
+public class TargetResolver implements Closeable {
+
+    /**
+     * 解析失败(例如NXDOMAIN)结果的缓存时间(秒)
+     */
+    private static final int NEGATIVE_TTL = 10;
+
+    /**
+     * 解析结果的最长缓存时间(秒)
+     */
+    private static final int MAX_TTL = (int) TimeUnit.DAYS.toSeconds(1);
+
+    /**
+     * 单次DNS查询超时时间(毫秒)
+     */
+    private static final long QUERY_TIMEOUT = 5000L;
+
+    private final DnsNameResolverBuilder builder;
+
+    private final DnsAddressResolverGroup resolverGroup;
+
+    private final CountingDnsCache resolveCache;
+
+
+    TargetResolver(Class<? extends DatagramChannel> datagramChannelClass) {
+        this.resolveCache = new CountingDnsCache(new DefaultDnsCache(0, MAX_TTL, NEGATIVE_TTL));
+        this.builder = new DnsNameResolverBuilder()
+                .channelType(Objects.requireNonNull(datagramChannelClass))
+                .resolveCache(resolveCache)
+                .cnameCache(new DefaultDnsCnameCache(0, MAX_TTL))
+                .authoritativeDnsServerCache(new DefaultAuthoritativeDnsServerCache())
+                .resolvedAddressTypes(ResolvedAddressTypes.IPV4_PREFERRED)
+                .queryTimeoutMillis(QUERY_TIMEOUT)
+                .recursionDesired(true);
+
+        this.resolverGroup = new DnsAddressResolverGroup(builder);
+    }
+
+    /**
+     * @param eventLoop 调用方所在的EventLoop，解析结果在该EventLoop中回调
+     * @return 该EventLoop对应的地址解析器
+     */
+    public AddressResolver<InetSocketAddress> resolver(EventLoop eventLoop) {
+        return resolverGroup.getResolver(eventLoop);
+    }
+
+    /**
+     * 创建与该解析组共享缓存的DNS解析器，用于转发客户端的DNS查询请求，调用方负责关闭
+     *
+     * @param eventLoop 解析器所在的EventLoop
+     */
+    public DnsNameResolver newNameResolver(EventLoop eventLoop) {
+        return builder.copy().eventLoop(eventLoop).build();
+    }
+
+    /**
+     * @return 解析结果缓存的命中次数(包含解析失败结果的命中)
+     */
+    public long cacheHits() {
+        return resolveCache.hits.sum();
+    }
+
+    /**
+     * @return 解析结果缓存的未命中次数
+     */
+    public long cacheMisses() {
+        return resolveCache.misses.sum();
+    }
+
+    @Override
+    public void close() {
+        resolverGroup.close();
+    }
+
+
+    /**
+     * 统计命中率的解析结果缓存，各个EventLoop的解析器并发查询，因此使用LongAdder计数
+     */
+    private static final class CountingDnsCache implements DnsCache {
+
+        private final DnsCache cache;
+
+        private final LongAdder hits = new LongAdder();
+
+        private final LongAdder misses = new LongAdder();
+
+        CountingDnsCache(DnsCache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public void clear() {
+            cache.clear();
+        }
+
+        @Override
+        public boolean clear(String hostname) {
+            return cache.clear(hostname);
+        }
+
+        @Override
+        public List<? extends DnsCacheEntry> get(String hostname, DnsRecord[] additionals) {
+            List<? extends DnsCacheEntry> entries = cache.get(hostname, additionals);
+            if (entries == null || entries.isEmpty()) {
+                misses.increment();
+            } else {
+                hits.increment();
+            }
+            return entries;
+        }
+
+        @Override
+        public DnsCacheEntry cache(String hostname, DnsRecord[] additionals, InetAddress address, long originalTtl, EventLoop loop) {
+            return cache.cache(hostname, additionals, address, originalTtl, loop);
+        }
+
+        @Override
+        public DnsCacheEntry cache(String hostname, DnsRecord[] additionals, Throwable cause, EventLoop loop) {
+            return cache.cache(hostname, additionals, cause, loop);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.core;
+
+import com.lzf.flyingsocks.misc.TokenBucket;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 代理节点的分层令牌桶限速器，上传和下载方向分别限速。
+ *
+ * 每个用户(未启用用户管理时为每个客户端会话)在节点内拥有一份{@link Share}：
+ * 1. 用户限速桶：速率来自用户组流量规则的speedLimit，由该用户的所有会话共享，超出时必须等待
+ * 2. 保障速率桶：速率为节点总限速除以当前用户数，用户在保障速率内的流量不受节点限速影响
+ * 3. 节点限速桶：所有用户的流量都会扣减，超出保障速率的流量只有在节点令牌充足时才能继续，
+ *    因此空闲用户的带宽可以被其他用户借用，而单个大流量用户无法挤占其他用户的保障速率
+ *
+ * 限速通过暂停读取实现：调用方在读取数据后调用acquire方法，根据返回的等待时间暂停读取数据源
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/23 21:40
+ */
+public final class TrafficShaper {
+
+    /**
+     * 小于该时长的等待直接忽略，透支的令牌累计到下一次读取，避免频繁调度定时任务
+     */
+    private static final long MIN_PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * 节点上传总限速，节点不限速时为null
+     */
+    private final TokenBucket uploadBucket;
+
+    /**
+     * 节点下载总限速，节点不限速时为null
+     */
+    private final TokenBucket downloadBucket;
+
+    /**
+     * 节点总限速(字节/秒)
+     */
+    private final long rate;
+
+    /**
+     * 当前节点的用户份额，Key为流量账户或客户端会话
+     */
+    private final ConcurrentMap<Object, Share> shares = new ConcurrentHashMap<>();
+
+
+    /**
+     * @param rate 节点总限速(字节/秒)，小于等于0表示不限速
+     */
+    public TrafficShaper(long rate) {
+        this.rate = rate;
+        this.uploadBucket = rate > 0 ? new TokenBucket(rate) : null;
+        this.downloadBucket = rate > 0 ? new TokenBucket(rate) : null;
+    }
+
+    /**
+     * 获取用户在该节点的份额，客户端连接关闭时需要调用{@link Share#release()}
+     *
+     * @param owner          份额所有者，同一个用户的会话应该传入同一个对象
+     * @param uploadLimit    用户上传限速，不限速时为null
+     * @param downloadLimit  用户下载限速，不限速时为null
+     * @return 用户份额
+     */
+    public Share acquireShare(Object owner, TokenBucket uploadLimit, TokenBucket downloadLimit) {
+        Objects.requireNonNull(owner);
+        Share share = shares.compute(owner, (k, s) -> {
+            if (s == null) {
+                s = new Share(k, uploadLimit, downloadLimit);
+            }
+            s.references++;
+            return s;
+        });
+
+        updateAssuredRate();
+        return share;
+    }
+
+    /**
+     * 用户数量变化后重新计算每个用户的保障速率
+     */
+    private void updateAssuredRate() {
+        if (rate <= 0) {
+            return;
+        }
+
+        long assured = Math.max(rate / Math.max(shares.size(), 1), 1);
+        for (Share share : shares.values()) {
+            share.assuredUpload.setRate(assured);
+            share.assuredDownload.setRate(assured);
+        }
+    }
+
+    public int shareCount() {
+        return shares.size();
+    }
+
+
+    /**
+     * 用户在节点内的限速份额
+     */
+    public final class Share {
+
+        private final Object owner;
+
+        private final TokenBucket uploadLimit;
+
+        private final TokenBucket downloadLimit;
+
+        private final TokenBucket assuredUpload;
+
+        private final TokenBucket assuredDownload;
+
+        /**
+         * 引用该份额的客户端连接数量，只在ConcurrentHashMap的compute中修改
+         */
+        private int references;
+
+        private Share(Object owner, TokenBucket uploadLimit, TokenBucket downloadLimit) {
+            this.owner = owner;
+            this.uploadLimit = uploadLimit;
+            this.downloadLimit = downloadLimit;
+            this.assuredUpload = new TokenBucket(rate);
+            this.assuredDownload = new TokenBucket(rate);
+        }
+
+        /**
+         * @param bytes 从客户端读取的字节数
+         * @return 暂停读取客户端连接的时间(纳秒)，0表示不需要暂停
+         */
+        public long acquireUpload(long bytes) {
+            return acquire(bytes, uploadLimit, assuredUpload, uploadBucket);
+        }
+
+        /**
+         * @param bytes 从目标服务器读取的字节数
+         * @return 暂停读取目标服务器连接的时间(纳秒)，0表示不需要暂停
+         */
+        public long acquireDownload(long bytes) {
+            return acquire(bytes, downloadLimit, assuredDownload, downloadBucket);
+        }
+
+        private long acquire(long bytes, TokenBucket limit, TokenBucket assured, TokenBucket node) {
+            long wait = limit != null ? limit.consume(bytes) : 0;
+            if (node == null) {
+                return wait < MIN_PAUSE_NANOS ? 0 : wait;
+            }
+
+            long nodeWait = node.consume(bytes);
+            if (!assured.tryConsume(bytes)) {
+                //超出保障速率的部分向节点借用，节点令牌不足时等待
+                wait = Math.max(wait, nodeWait);
+            }
+            return wait < MIN_PAUSE_NANOS ? 0 : wait;
+        }
+
+        /**
+         * 客户端连接关闭时调用
+         */
+        public void release() {
+            boolean removed = shares.computeIfPresent(owner, (k, s) -> --s.references == 0 ? null : s) == null;
+            if (removed) {
+                updateAssuredRate();
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.core.access;
+
+import io.netty.util.NetUtil;
+
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * 解析后的访问规则，规则格式为 主机[:端口]：
+ * 1. 主机为域名时匹配该域名及其所有子域名，前缀"*."或"."可以省略，例如example.com、*.example.com
+ * 2. 主机为IP地址或CIDR网段时匹配该网段，例如10.0.0.0/8、2001:db8::/32，IPv6地址需要指定端口时使用方括号，例如[2001:db8::/32]:443或[2001:db8::]/32:443
+ * 3. 主机为"*"时匹配所有目标
+ * 端口可以是单个端口、端口区间或以逗号分隔的组合，例如443、8000-9000、80,443,8000-9000，省略时匹配所有端口
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/24 20:30
+ */
+public final class AccessRule {
+
+    enum Kind {
+        ANY, DOMAIN, NETWORK
+    }
+
+    private final String pattern;
+
+    private final boolean allow;
+
+    private final Kind kind;
+
+    /**
+     * 域名，仅DOMAIN有效
+     */
+    private final String domain;
+
+    /**
+     * 网段地址，仅NETWORK有效
+     */
+    private final byte[] address;
+
+    /**
+     * 网段前缀长度，仅NETWORK有效
+     */
+    private final int prefixLength;
+
+    /**
+     * 端口区间，每两个元素为一个闭区间，匹配所有端口时为null
+     */
+    private final int[] ports;
+
+
+    private AccessRule(String pattern, boolean allow, Kind kind, String domain, byte[] address, int prefixLength, int[] ports) {
+        this.pattern = pattern;
+        this.allow = allow;
+        this.kind = kind;
+        this.domain = domain;
+        this.address = address;
+        this.prefixLength = prefixLength;
+        this.ports = ports;
+    }
+
+    /**
+     * 解析访问规则
+     *
+     * @param pattern 规则
+     * @param allow   是否为允许规则
+     * @return 访问规则
+     * @throws IllegalArgumentException 规则格式错误
+     */
+    public static AccessRule parse(String pattern, boolean allow) {
+        String p = Objects.requireNonNull(pattern).trim();
+        if (p.isEmpty()) {
+            throw new IllegalArgumentException("Empty access rule");
+        }
+
+        String host = p;
+        String port = null;
+        if (p.startsWith("[")) {
+            int close = p.indexOf(']');
+            if (close < 0) {
+                throw new IllegalArgumentException("Illegal access rule: " + pattern);
+            }
+
+            host = p.substring(1, close);
+            String rest = p.substring(close + 1);
+            if (rest.startsWith("/")) { //前缀长度可以写在方括号外，例如[2001:db8::]/32:443
+                int colon = rest.indexOf(':');
+                host = host + (colon < 0 ? rest : rest.substring(0, colon));
+                rest = colon < 0 ? "" : rest.substring(colon);
+            }
+
+            if (!rest.isEmpty()) {
+                if (rest.charAt(0) != ':') {
+                    throw new IllegalArgumentException("Illegal access rule: " + pattern);
+                }
+                port = rest.substring(1);
+            }
+        } else {
+            //只有一个冒号时才视为端口分隔符，否则为不带端口的IPv6地址
+            int colon = p.indexOf(':');
+            if (colon >= 0 && colon == p.lastIndexOf(':')) {
+                host = p.substring(0, colon);
+                port = p.substring(colon + 1);
+            }
+        }
+
+        int[] ports = port == null ? null : parsePorts(port, pattern);
+        if (host.equals("*")) {
+            return new AccessRule(p, allow, Kind.ANY, null, null, 0, ports);
+        }
+
+        int slash = host.indexOf('/');
+        String addr = slash < 0 ? host : host.substring(0, slash);
+        byte[] address = NetUtil.createByteArrayFromIpAddressString(addr);
+        if (address != null) {
+            int bits = address.length * 8;
+            int prefixLength = bits;
+            if (slash >= 0) {
+                try {
+                    prefixLength = Integer.parseInt(host.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Illegal prefix length: " + pattern);
+                }
+
+                if (prefixLength < 0 || prefixLength > bits) {
+                    throw new IllegalArgumentException("Illegal prefix length: " + pattern);
+                }
+            }
+
+            return new AccessRule(p, allow, Kind.NETWORK, null, address, prefixLength, ports);
+        }
+
+        if (slash >= 0) {
+            throw new IllegalArgumentException("Illegal network address: " + pattern);
+        }
+
+        String domain = normalizeDomain(host);
+        if (domain.startsWith("*.")) {
+            domain = domain.substring(2);
+        } else if (domain.startsWith(".")) {
+            domain = domain.substring(1);
+        }
+
+        if (domain.isEmpty() || domain.indexOf('*') >= 0 || domain.startsWith(".") || domain.contains("..")) {
+            throw new IllegalArgumentException("Illegal domain: " + pattern);
+        }
+
+        return new AccessRule(p, allow, Kind.DOMAIN, domain, null, 0, ports);
+    }
+
+
+    private static int[] parsePorts(String value, String pattern) {
+        String[] items = value.split(",");
+        int[] ports = new int[items.length * 2];
+        for (int i = 0; i < items.length; i++) {
+            String item = items[i].trim();
+            int dash = item.indexOf('-');
+            int start, end;
+            try {
+                start = Integer.parseInt(dash < 0 ? item : item.substring(0, dash).trim());
+                end = dash < 0 ? start : Integer.parseInt(item.substring(dash + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Illegal port: " + pattern);
+            }
+
+            if (start < 1 || end > 65535 || start > end) {
+                throw new IllegalArgumentException("Illegal port: " + pattern);
+            }
+
+            ports[i * 2] = start;
+            ports[i * 2 + 1] = end;
+        }
+        return ports;
+    }
+
+    /**
+     * 转换为小写并去除末尾的点，已经是小写时不会创建新的字符串
+     */
+    static String normalizeDomain(String host) {
+        int end = host.length();
+        if (end > 0 && host.charAt(end - 1) == '.') {
+            host = host.substring(0, end - 1);
+        }
+
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                return host.toLowerCase(Locale.ROOT);
+            }
+        }
+        return host;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public boolean isAllow() {
+        return allow;
+    }
+
+    Kind kind() {
+        return kind;
+    }
+
+    String domain() {
+        return domain;
+    }
+
+    byte[] address() {
+        return address;
+    }
+
+    int prefixLength() {
+        return prefixLength;
+    }
+
+    int[] ports() {
+        return ports;
+    }
+
+    @Override
+    public String toString() {
+        return (allow ? "allow " : "deny ") + pattern;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.core.access;
+
+import io.netty.util.NetUtil;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * 由一组访问规则编译得到的不可变匹配器，可以被多个EventLoop同时使用，重新加载规则时整体替换。
+ *
+ * 匹配时选择最具体的规则：域名越长、网段前缀越长越具体，同一域名或网段上指定了端口的规则优先于未指定端口的规则，
+ * 主机为"*"的规则最不具体；同样具体的允许规则和拒绝规则同时匹配时拒绝优先。
+ * 域名只匹配域名规则，IP地址只匹配网段规则，未命中域名规则的域名在存在网段规则时返回{@link Decision#NONE}，
+ * 由解析得到的地址再次匹配网段规则和主机为"*"的规则。查找耗时只与域名标签数量或地址位数有关，与规则数量无关
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/24 21:40
+ */
+public final class AccessRuleMatcher {
+
+    public enum Decision {
+        /**
+         * 匹配到允许规则
+         */
+        ALLOW,
+
+        /**
+         * 匹配到拒绝规则
+         */
+        DENY,
+
+        /**
+         * 没有匹配的规则，默认允许
+         */
+        NONE;
+
+        public boolean isAllowed() {
+            return this != DENY;
+        }
+    }
+
+    private static final Decision[] DECISIONS = { Decision.NONE, Decision.ALLOW, Decision.DENY };
+
+    /**
+     * 没有任何规则的匹配器
+     */
+    public static final AccessRuleMatcher EMPTY = compile(new AccessRule[0]);
+
+    private final DomainTrie domains;
+
+    private final CidrTree networks;
+
+    /**
+     * 主机为"*"的规则
+     */
+    private final PortRules anyHost;
+
+    private final int ruleCount;
+
+
+    private AccessRuleMatcher(DomainTrie domains, CidrTree networks, PortRules anyHost, int ruleCount) {
+        this.domains = domains;
+        this.networks = networks;
+        this.anyHost = anyHost;
+        this.ruleCount = ruleCount;
+    }
+
+    /**
+     * 编译访问规则
+     *
+     * @param rules 访问规则
+     * @return 匹配器
+     */
+    public static AccessRuleMatcher compile(AccessRule... rules) {
+        return compile(Arrays.asList(rules));
+    }
+
+    /**
+     * 编译访问规则
+     *
+     * @param rules 访问规则
+     * @return 匹配器
+     */
+    public static AccessRuleMatcher compile(Iterable<AccessRule> rules) {
+        DomainTrie domains = new DomainTrie();
+        CidrTree networks = new CidrTree();
+        PortRules.Builder anyHost = new PortRules.Builder();
+        int count = 0;
+        for (AccessRule rule : rules) {
+            switch (rule.kind()) {
+                case ANY:
+                    anyHost.add(rule.ports(), rule.isAllow());
+                    break;
+                case DOMAIN:
+                    domains.add(rule);
+                    break;
+                case NETWORK:
+                    networks.add(rule);
+                    break;
+            }
+            count++;
+        }
+
+        return new AccessRuleMatcher(domains.compile(), networks.compile(), anyHost.build(), count);
+    }
+
+    /**
+     * @param host 目标主机，域名或IP地址
+     * @param port 目标端口
+     * @return 匹配结果
+     */
+    public Decision match(String host, int port) {
+        Objects.requireNonNull(host);
+        byte[] address = NetUtil.createByteArrayFromIpAddressString(host);
+        byte r;
+        if (address != null) {
+            r = networks.match(address, port);
+        } else {
+            //域名未命中域名规则且存在网段规则时不使用主机为"*"的规则，由解析得到的地址决定，否则"allow *"会使网段拒绝规则失效
+            r = domains.match(AccessRule.normalizeDomain(host), port);
+            if (r == PortRules.NONE && !networks.isEmpty()) {
+                return Decision.NONE;
+            }
+        }
+
+        if (r == PortRules.NONE) {
+            r = anyHost.match(port);
+        }
+        return DECISIONS[r];
+    }
+
+    /**
+     * 匹配域名解析得到的地址，只匹配网段规则和主机为"*"的规则
+     *
+     * @param address 目标地址
+     * @param port    目标端口
+     * @return 匹配结果
+     */
+    public Decision match(InetAddress address, int port) {
+        byte r = networks.match(address.getAddress(), port);
+        if (r == PortRules.NONE) {
+            r = anyHost.match(port);
+        }
+        return DECISIONS[r];
+    }
+
+    /**
+     * @return 是否包含网段规则，包含时未命中域名规则的域名需要使用解析得到的地址调用{@link #match(InetAddress, int)}
+     */
+    public boolean hasNetworkRules() {
+        return !networks.isEmpty();
+    }
+
+    public int ruleCount() {
+        return ruleCount;
+    }
+
+    @Override
+    public String toString() {
+        return "AccessRuleMatcher{ruleCount=" + ruleCount + '}';
+    }
+}
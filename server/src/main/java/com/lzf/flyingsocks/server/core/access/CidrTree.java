@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.core.access;
+
+import java.util.Arrays;
+
+/**
+ * IPv4/IPv6网段的路径压缩二叉基数树，只有规则节点和分叉节点，节点数量不超过规则数量的两倍。
+ * 查找时沿地址的二进制位向下，最多经过地址位数个节点，与规则数量无关，前缀越长的节点越具体
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/24 21:20
+ */
+final class CidrTree {
+
+    private Node ipv4Root;
+
+    private Node ipv6Root;
+
+    private static final class Node {
+        final byte[] key;   //网段地址，前缀之后的位为0
+        final int bits;     //前缀长度
+        Node zero, one;
+        PortRules rules;
+        PortRules.Builder builder;
+
+        Node(byte[] address, int bits) {
+            byte[] key = address.clone();
+            for (int i = bits; i < key.length * 8; i++) {
+                key[i >> 3] &= ~(0x80 >>> (i & 7));
+            }
+            this.key = key;
+            this.bits = bits;
+        }
+
+        void addRule(AccessRule rule) {
+            if (builder == null) {
+                builder = new PortRules.Builder();
+            }
+            builder.add(rule.ports(), rule.isAllow());
+        }
+
+        void setChild(int bit, Node child) {
+            if (bit == 0) {
+                zero = child;
+            } else {
+                one = child;
+            }
+        }
+    }
+
+    /**
+     * 编译期间添加规则
+     */
+    void add(AccessRule rule) {
+        byte[] address = rule.address();
+        if (address.length == 4) {
+            ipv4Root = insert(ipv4Root, address, rule.prefixLength(), rule);
+        } else {
+            ipv6Root = insert(ipv6Root, address, rule.prefixLength(), rule);
+        }
+    }
+
+    /**
+     * @return 插入后该子树的根节点
+     */
+    private static Node insert(Node node, byte[] key, int bits, AccessRule rule) {
+        if (node == null) {
+            Node leaf = new Node(key, bits);
+            leaf.addRule(rule);
+            return leaf;
+        }
+
+        int common = commonPrefix(node.key, key, Math.min(node.bits, bits));
+        if (common == node.bits) {
+            if (bits == node.bits) {
+                node.addRule(rule);
+            } else if (bit(key, node.bits) == 0) {
+                node.zero = insert(node.zero, key, bits, rule);
+            } else {
+                node.one = insert(node.one, key, bits, rule);
+            }
+            return node;
+        }
+
+        //新网段与该节点只有部分前缀相同，需要在上方插入新的规则节点或分叉节点
+        Node parent;
+        if (common == bits) {
+            parent = new Node(key, bits);
+            parent.addRule(rule);
+        } else {
+            parent = new Node(key, common);
+            Node leaf = new Node(key, bits);
+            leaf.addRule(rule);
+            parent.setChild(bit(key, common), leaf);
+        }
+        parent.setChild(bit(node.key, common), node);
+        return parent;
+    }
+
+    /**
+     * 所有规则添加完成后调用，之后该对象不再修改
+     */
+    CidrTree compile() {
+        compile(ipv4Root);
+        compile(ipv6Root);
+        return this;
+    }
+
+    private static void compile(Node node) {
+        if (node == null) {
+            return;
+        }
+
+        if (node.builder != null) {
+            node.rules = node.builder.build();
+            node.builder = null;
+        }
+        compile(node.zero);
+        compile(node.one);
+    }
+
+    /**
+     * @return 是否没有任何网段规则
+     */
+    boolean isEmpty() {
+        return ipv4Root == null && ipv6Root == null;
+    }
+
+    /**
+     * @param address IPv4(4字节)或IPv6(16字节)地址，IPv4映射地址和IPv4兼容地址按照IPv4地址匹配
+     * @param port    目标端口
+     * @return 最长前缀的匹配结果
+     */
+    byte match(byte[] address, int port) {
+        address = unwrapIPv4(address);
+        int total = address.length * 8;
+        Node node = address.length == 4 ? ipv4Root : ipv6Root;
+        byte result = PortRules.NONE;
+        while (node != null && commonPrefix(node.key, address, node.bits) == node.bits) {
+            if (node.rules != null) {
+                byte r = node.rules.match(port);
+                if (r != PortRules.NONE) {
+                    result = r;
+                }
+            }
+
+            if (node.bits == total) {
+                break;
+            }
+            node = bit(address, node.bits) == 0 ? node.zero : node.one;
+        }
+        return result;
+    }
+
+    /**
+     * 将IPv4映射地址(::ffff:a.b.c.d)和IPv4兼容地址(::a.b.c.d)转换为4字节的IPv4地址，
+     * 否则连接这些地址时实际访问的IPv4目标不会受到IPv4网段规则的限制。::和::1不是IPv4兼容地址
+     */
+    static byte[] unwrapIPv4(byte[] address) {
+        if (address.length != 16) {
+            return address;
+        }
+
+        for (int i = 0; i < 10; i++) {
+            if (address[i] != 0) {
+                return address;
+            }
+        }
+
+        boolean mapped = address[10] == (byte) 0xFF && address[11] == (byte) 0xFF;
+        boolean compatible = address[10] == 0 && address[11] == 0
+                && ((address[12] | address[13] | address[14]) != 0 || (address[15] & 0xFF) > 1);
+        return mapped || compatible ? Arrays.copyOfRange(address, 12, 16) : address;
+    }
+
+    /**
+     * @return a与b在前max位中相同前缀的长度
+     */
+    private static int commonPrefix(byte[] a, byte[] b, int max) {
+        for (int i = 0, n = 0; n < max; i++, n += 8) {
+            int x = (a[i] ^ b[i]) & 0xFF;
+            if (x != 0) {
+                return Math.min(max, n + Integer.numberOfLeadingZeros(x) - 24);
+            }
+        }
+        return max;
+    }
+
+    private static int bit(byte[] key, int index) {
+        return (key[index >> 3] >>> (7 - (index & 7))) & 1;
+    }
+}
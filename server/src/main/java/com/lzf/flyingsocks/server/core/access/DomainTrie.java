@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.core.access;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 按标签倒序组织的域名后缀树，例如www.example.com依次经过com、example、www三个节点。
+ * 查找耗时只与目标域名的标签数量有关，与规则数量无关，越深的节点越具体
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/24 21:00
+ */
+final class DomainTrie {
+
+    private final Node root = new Node();
+
+    private static final class Node {
+        Map<String, Node> children;
+        PortRules rules;
+        PortRules.Builder builder;
+    }
+
+    /**
+     * 编译期间添加规则
+     */
+    void add(AccessRule rule) {
+        String domain = rule.domain();
+        Node node = root;
+        int end = domain.length();
+        while (end > 0) {
+            int dot = domain.lastIndexOf('.', end - 1);
+            String label = domain.substring(dot + 1, end);
+            if (node.children == null) {
+                node.children = new HashMap<>(4);
+            }
+            node = node.children.computeIfAbsent(label, k -> new Node());
+            end = dot;
+        }
+
+        if (node.builder == null) {
+            node.builder = new PortRules.Builder();
+        }
+        node.builder.add(rule.ports(), rule.isAllow());
+    }
+
+    /**
+     * 所有规则添加完成后调用，之后该对象不再修改
+     */
+    DomainTrie compile() {
+        compile(root);
+        return this;
+    }
+
+    private static void compile(Node node) {
+        if (node.builder != null) {
+            node.rules = node.builder.build();
+            node.builder = null;
+        }
+
+        if (node.children != null) {
+            for (Node child : node.children.values()) {
+                compile(child);
+            }
+        }
+    }
+
+    /**
+     * @param host 已转换为小写的目标域名
+     * @param port 目标端口
+     * @return 最具体的匹配结果
+     */
+    byte match(String host, int port) {
+        byte result = PortRules.NONE;
+        Node node = root;
+        int end = host.length();
+        while (end > 0 && node.children != null) {
+            int dot = host.lastIndexOf('.', end - 1);
+            node = node.children.get(host.substring(dot + 1, end));
+            if (node == null) {
+                break;
+            }
+
+            if (node.rules != null) {
+                byte r = node.rules.match(port);
+                if (r != PortRules.NONE) {
+                    result = r;
+                }
+            }
+            end = dot;
+        }
+        return result;
+    }
+}
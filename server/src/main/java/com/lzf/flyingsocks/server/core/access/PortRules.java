@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.core.access;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 某个域名或网段上的端口规则，编译后为按起始端口排序且互不重叠的端口区间，
+ * 查找时二分搜索，耗时只与该节点上的端口区间数量有关
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/24 20:10
+ */
+final class PortRules {
+
+    static final byte NONE = 0;
+
+    static final byte ALLOW = 1;
+
+    static final byte DENY = 2;
+
+    /**
+     * 未指定端口的规则的结果
+     */
+    private final byte anyPort;
+
+    private final int[] starts;
+
+    private final int[] ends;
+
+    private final byte[] actions;
+
+    private PortRules(byte anyPort, int[] starts, int[] ends, byte[] actions) {
+        this.anyPort = anyPort;
+        this.starts = starts;
+        this.ends = ends;
+        this.actions = actions;
+    }
+
+    /**
+     * @param port 目标端口
+     * @return 指定了端口的规则优先，其次是未指定端口的规则，都不匹配时返回{@link #NONE}
+     */
+    byte match(int port) {
+        int[] starts = this.starts;
+        int lo = 0, hi = starts.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] > port) {
+                hi = mid - 1;
+            } else if (ends[mid] < port) {
+                lo = mid + 1;
+            } else {
+                return actions[mid];
+            }
+        }
+        return anyPort;
+    }
+
+
+    /**
+     * 编译期间收集规则，同一端口同时存在允许和拒绝规则时拒绝优先
+     */
+    static final class Builder {
+
+        private byte anyPort = NONE;
+
+        private final List<int[]> ranges = new ArrayList<>(2);
+
+        void add(int[] portRanges, boolean allow) {
+            byte action = allow ? ALLOW : DENY;
+            if (portRanges == null) {
+                anyPort = (byte) Math.max(anyPort, action);
+                return;
+            }
+
+            for (int i = 0; i < portRanges.length; i += 2) {
+                ranges.add(new int[] { portRanges[i], portRanges[i + 1], action });
+            }
+        }
+
+        PortRules build() {
+            if (ranges.isEmpty()) {
+                return new PortRules(anyPort, new int[0], new int[0], new byte[0]);
+            }
+
+            //以所有区间的起点和终点+1作为分界点，用差分数组统计每个基本区间被允许和拒绝规则覆盖的次数
+            int[] bounds = new int[ranges.size() * 2];
+            int n = 0;
+            for (int[] r : ranges) {
+                bounds[n++] = r[0];
+                bounds[n++] = r[1] + 1;
+            }
+            Arrays.sort(bounds);
+            int size = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                if (i == 0 || bounds[i] != bounds[i - 1]) {
+                    bounds[size++] = bounds[i];
+                }
+            }
+            bounds = Arrays.copyOf(bounds, size);
+
+            int[] allow = new int[size + 1], deny = new int[size + 1];
+            for (int[] r : ranges) {
+                int[] diff = r[2] == ALLOW ? allow : deny;
+                diff[Arrays.binarySearch(bounds, r[0])]++;
+                diff[Arrays.binarySearch(bounds, r[1] + 1)]--;
+            }
+
+            int[] starts = new int[size], ends = new int[size];
+            byte[] actions = new byte[size];
+            int count = 0, allowCover = 0, denyCover = 0;
+            for (int i = 0; i < size - 1; i++) {
+                allowCover += allow[i];
+                denyCover += deny[i];
+                byte action = denyCover > 0 ? DENY : allowCover > 0 ? ALLOW : NONE;
+                if (action == NONE) {
+                    continue;
+                }
+
+                int start = bounds[i], end = bounds[i + 1] - 1;
+                if (count > 0 && actions[count - 1] == action && ends[count - 1] == start - 1) {
+                    ends[count - 1] = end;
+                } else {
+                    starts[count] = start;
+                    ends[count] = end;
+                    actions[count] = action;
+                    count++;
+                }
+            }
+
+            return new PortRules(anyPort, Arrays.copyOf(starts, count), Arrays.copyOf(ends, count),
+                    Arrays.copyOf(actions, count));
+        }
+    }
+}
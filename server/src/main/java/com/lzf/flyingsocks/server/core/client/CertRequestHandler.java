@@ -28,6 +28,7 @@ import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Promise;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,7 +37,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Objects;
-import java.util.function.Predicate;
+import java.util.function.BiConsumer;
 
 /**
  * @author lzf abc123lzf@126.com
@@ -58,12 +59,12 @@ class CertRequestHandler extends ChannelInboundHandlerAdapter {
     private final byte[] certMd5;
 
     /**
-     * 用于决策认证是否通过
+     * 用于决策认证是否通过，认证结果通过Promise通知
      */
-    private final Predicate<CertRequestMessage> authPredicate;
+    private final BiConsumer<CertRequestMessage, Promise<Boolean>> authenticator;
 
 
-    public CertRequestHandler(byte[] cert, Predicate<CertRequestMessage> authPredicate) {
+    public CertRequestHandler(byte[] cert, BiConsumer<CertRequestMessage, Promise<Boolean>> authenticator) {
         this.cert = Arrays.copyOf(cert, cert.length);
 
         try {
@@ -73,7 +74,7 @@ class CertRequestHandler extends ChannelInboundHandlerAdapter {
             throw new Error(e);
         }
 
-        this.authPredicate = Objects.requireNonNull(authPredicate);
+        this.authenticator = Objects.requireNonNull(authenticator);
     }
 
 
@@ -103,9 +104,20 @@ class CertRequestHandler extends ChannelInboundHandlerAdapter {
 
     protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
         CertRequestMessage req = new CertRequestMessage(msg);
-        boolean auth = authPredicate.test(req);
-        if (!auth) {
-            ctx.close();
+        Promise<Boolean> promise = ctx.executor().newPromise();
+        promise.addListener(future -> {
+            if (future.isSuccess() && Boolean.TRUE.equals(future.getNow())) {
+                writeCert(ctx, req);
+            } else {
+                ctx.close();
+            }
+        });
+
+        authenticator.accept(req, promise);
+    }
+
+    private void writeCert(ChannelHandlerContext ctx, CertRequestMessage req) {
+        if (!ctx.channel().isActive()) {
             return;
         }
 
@@ -31,9 +31,16 @@ import com.lzf.flyingsocks.encrypt.OpenSSLEncryptProvider;
 import com.lzf.flyingsocks.protocol.AuthRequestMessage;
 import com.lzf.flyingsocks.server.ClientAuthType;
 import com.lzf.flyingsocks.server.ServerConfig;
+import com.lzf.flyingsocks.server.core.AdmissionControl;
+import com.lzf.flyingsocks.server.core.ClientSession;
+import com.lzf.flyingsocks.server.core.NodeMetrics;
 import com.lzf.flyingsocks.server.core.OpenSSLConfig;
 import com.lzf.flyingsocks.server.core.ProxyProcessor;
+import com.lzf.flyingsocks.server.core.TrafficShaper;
 import com.lzf.flyingsocks.server.db.UserDatabase;
+import com.lzf.flyingsocks.server.usermanage.TrafficAccount;
+import com.lzf.flyingsocks.server.usermanage.UserManageComponent;
+import io.netty.util.concurrent.Promise;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -132,28 +139,84 @@ public class ClientProcessor extends AbstractComponent<ProxyProcessor> {
     }
 
     /**
-     * 对客户端认证报文进行比对
+     * 对客户端认证报文进行比对，user认证方式可能在其它线程中完成，认证结果通过promise通知
      *
-     * @param msg 客户端认证报文
-     * @return 是否通过认证
+     * @param msg     客户端认证报文
+     * @param promise 是否通过认证，应当由客户端连接的EventLoop创建
      */
-    boolean doAuth(AuthRequestMessage msg) {
+    void doAuth(AuthRequestMessage msg, Promise<Boolean> promise) {
         ServerConfig.Node n = parent.getServerConfig();
         if (n.authType.getMessageHeader() != msg.getAuthType()) { //如果认证方式不匹配
-            return false;
+            promise.trySuccess(false);
+            return;
         }
 
         Map<String, String> parameters = msg.getParameters();
 
         if (n.authType == ClientAuthType.SIMPLE) {
             String password = parameters.get("password");
-            return Objects.equals(n.getArgument("password"), password);
+            promise.trySuccess(Objects.equals(n.getArgument("password"), password));
         } else if (n.authType == ClientAuthType.USER) {
             String group = n.getArgument("group");
             UserDatabase db = parent.getParentComponent().getUserDatabase();
-            return db.doAuth(group, msg.getParameter("user"), msg.getParameter("pass"));
+            db.doAuth(group, msg.getParameter("user"), msg.getParameter("pass"), promise);
+        } else {
+            promise.trySuccess(false);
+        }
+    }
+
+    /**
+     * 认证成功后为客户端会话绑定用户并发计数、流量账户和限速份额，客户端连接关闭时释放
+     *
+     * @param session 已通过认证的客户端会话
+     * @param msg     认证请求
+     * @return 是否允许建立会话，用户并发会话数超出上限时返回false
+     */
+    boolean onAuthSuccess(ClientSession session, AuthRequestMessage msg) {
+        ServerConfig.Node n = parent.getServerConfig();
+        AdmissionControl admission = parent.getAdmissionControl();
+        AdmissionControl.UserQuota quota = null;
+        if (n.authType == ClientAuthType.USER && admission.isUserLimited()) {
+            quota = admission.acquireSession(msg.getParameter("user"));
+            if (quota == null) {
+                log.info("User {} has too many sessions on node \"{}\"", msg.getParameter("user"), n.name);
+                return false;
+            }
         }
 
-        return false;
+        UserManageComponent component = parent.getParentComponent().getUserManageComponent();
+        TrafficAccount account = component != null && n.authType == ClientAuthType.USER ?
+                component.acquireTrafficAccount(msg.getParameter("user")) : null;
+
+        //同一个用户的所有会话共用一份限速份额，未启用用户管理时每个会话各自一份
+        TrafficShaper.Share share = null;
+        if (account != null) {
+            share = parent.getTrafficShaper().acquireShare(account, account.uploadLimit(), account.downloadLimit());
+        } else if (n.speedLimit > 0) {
+            share = parent.getTrafficShaper().acquireShare(session, null, null);
+        }
+
+        session.setUserQuota(quota);
+        session.setTrafficAccount(account);
+        session.setTrafficShare(share);
+
+        NodeMetrics metrics = session.metrics();
+        metrics.sessionOpened();
+
+        AdmissionControl.UserQuota q = quota;
+        TrafficShaper.Share s = share;
+        session.socketChannel().closeFuture().addListener(future -> {
+            metrics.sessionClosed();
+            if (q != null) {
+                q.release();
+            }
+            if (s != null) {
+                s.release();
+            }
+            if (account != null) {
+                account.release();
+            }
+        });
+        return true;
     }
 }
@@ -25,13 +25,14 @@ import com.lzf.flyingsocks.protocol.AuthRequestMessage;
 import com.lzf.flyingsocks.server.core.ClientSession;
 import com.lzf.flyingsocks.server.core.ProxyTaskManager;
 import io.netty.channel.Channel;
-import io.netty.resolver.dns.DnsNameResolver;
 import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.Promise;
 
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
-import java.util.function.Predicate;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
 
 /**
  * 用于保存每个客户端连接所需要的参数
@@ -59,14 +60,19 @@ final class ConnectionContext {
     private ProxyTaskManager proxyTaskManager;
 
     /**
-     * 认证逻辑
+     * 认证逻辑，认证结果通过Promise通知
      */
-    private Predicate<AuthRequestMessage> authPredicate;
+    private BiConsumer<AuthRequestMessage, Promise<Boolean>> authenticator;
 
     /**
-     * DNS客户端
+     * 认证成功后初始化客户端会话的逻辑，返回false时拒绝该会话
      */
-    private DnsNameResolver nameResolver;
+    private BiPredicate<ClientSession, AuthRequestMessage> authSuccessHandler;
+
+    /**
+     * DNS查询服务
+     */
+    private DnsQueryService dnsQueryService;
 
 
     private ConnectionContext() {
@@ -77,15 +83,17 @@ final class ConnectionContext {
      *
      * @param channel 客户端与服务端连接的 {@link io.netty.channel.socket.SocketChannel}
      * @param proxyTaskManager 发布代理任务 {@link com.lzf.flyingsocks.server.core.ProxyProcessor}
-     * @param authPredicate 认证逻辑 {@link com.lzf.flyingsocks.server.core.client.ClientProcessor#doAuth(AuthRequestMessage)}
+     * @param authenticator 认证逻辑 {@link com.lzf.flyingsocks.server.core.client.ClientProcessor#doAuth(AuthRequestMessage, Promise)}
+     * @param authSuccessHandler 认证成功后的会话初始化逻辑 {@link com.lzf.flyingsocks.server.core.client.ClientProcessor#onAuthSuccess(ClientSession, AuthRequestMessage)}
      */
-    static void initial(Channel channel, ProxyTaskManager proxyTaskManager, Predicate<AuthRequestMessage> authPredicate,
-                        DnsNameResolver nameResolver) {
+    static void initial(Channel channel, ProxyTaskManager proxyTaskManager, BiConsumer<AuthRequestMessage, Promise<Boolean>> authenticator,
+                        BiPredicate<ClientSession, AuthRequestMessage> authSuccessHandler, DnsQueryService dnsQueryService) {
         accessCheckout(channel);
         ConnectionContext ctx = new ConnectionContext();
         ctx.proxyTaskManager = Objects.requireNonNull(proxyTaskManager);
-        ctx.authPredicate = Objects.requireNonNull(authPredicate);
-        ctx.nameResolver = Objects.requireNonNull(nameResolver);
+        ctx.authenticator = Objects.requireNonNull(authenticator);
+        ctx.authSuccessHandler = Objects.requireNonNull(authSuccessHandler);
+        ctx.dnsQueryService = Objects.requireNonNull(dnsQueryService);
 
         Map<Channel, ConnectionContext> map = CONTEXT.get();
         map.put(channel, ctx);
@@ -130,7 +138,20 @@ final class ConnectionContext {
         return ctx.proxyTaskManager;
     }
 
-    static Predicate<AuthRequestMessage> authPredicate(Channel channel) {
+    static BiConsumer<AuthRequestMessage, Promise<Boolean>> authenticator(Channel channel) {
+        accessCheckout(channel);
+        Map<Channel, ConnectionContext> map = CONTEXT.get();
+        ConnectionContext ctx = map.get(channel);
+        if (ctx == null) {
+            ctx = new ConnectionContext();
+            map.put(channel, ctx);
+        }
+
+        return ctx.authenticator;
+    }
+
+
+    static BiPredicate<ClientSession, AuthRequestMessage> authSuccessHandler(Channel channel) {
         accessCheckout(channel);
         Map<Channel, ConnectionContext> map = CONTEXT.get();
         ConnectionContext ctx = map.get(channel);
@@ -139,11 +160,11 @@ final class ConnectionContext {
             map.put(channel, ctx);
         }
 
-        return ctx.authPredicate;
+        return ctx.authSuccessHandler;
     }
 
 
-    static DnsNameResolver nameResolver(Channel channel) {
+    static DnsQueryService dnsQueryService(Channel channel) {
         accessCheckout(channel);
         Map<Channel, ConnectionContext> map = CONTEXT.get();
         ConnectionContext ctx = map.get(channel);
@@ -152,7 +173,7 @@ final class ConnectionContext {
             map.put(channel, ctx);
         }
 
-        return ctx.nameResolver;
+        return ctx.dnsQueryService;
     }
 
 
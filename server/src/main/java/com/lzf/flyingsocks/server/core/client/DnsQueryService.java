@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.core.client;
+
+import com.lzf.flyingsocks.protocol.DnsMessage;
+import com.lzf.flyingsocks.protocol.DnsQueryMessage;
+import com.lzf.flyingsocks.protocol.DnsResponseMessage;
+import com.lzf.flyingsocks.server.core.NodeMetrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.AddressedEnvelope;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.dns.DefaultDnsQuestion;
+import io.netty.handler.codec.dns.DnsQuestion;
+import io.netty.handler.codec.dns.DnsRawRecord;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsResponse;
+import io.netty.handler.codec.dns.DnsResponseCode;
+import io.netty.handler.codec.dns.DnsSection;
+import io.netty.resolver.dns.DnsNameResolver;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import static com.lzf.flyingsocks.protocol.DnsMessage.Question;
+import static com.lzf.flyingsocks.protocol.DnsMessage.Record;
+
+/**
+ * 处理客户端发来的DNS查询请求，并缓存上游DNS服务器的应答：
+ * 1. 应答按照(域名, 类型, 类)缓存，缓存时间为应答记录中最小的TTL，返回给客户端的TTL会扣除已缓存的时间
+ * 2. 域名不存在或没有对应记录的应答按照权威段SOA记录的TTL缓存(RFC 2308)
+ * 3. 同一个问题正在进行中的查询会被合并，不会重复向上游DNS服务器查询
+ * 4. 一个请求中包含多个问题时分别查询，全部完成后合并为一个应答
+ *
+ * 缓存和进行中的查询只在DNS解析器所在的EventLoop中访问，因此不需要加锁
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/20 20:30
+ */
+final class DnsQueryService implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(DnsQueryService.class);
+
+    /**
+     * 最多缓存的应答数量，超出后淘汰最久没有被访问的应答
+     */
+    private static final int MAX_CACHED_ANSWERS = 4096;
+
+    /**
+     * 应答的最长缓存时间(秒)
+     */
+    private static final int MAX_TTL = (int) TimeUnit.HOURS.toSeconds(1);
+
+    private final DnsNameResolver resolver;
+
+    /**
+     * DNS解析器所在的EventLoop
+     */
+    private final EventLoop eventLoop;
+
+    private final Map<QuestionKey, CachedAnswer> cache = new LinkedHashMap<QuestionKey, CachedAnswer>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<QuestionKey, CachedAnswer> eldest) {
+            return size() > MAX_CACHED_ANSWERS;
+        }
+    };
+
+    /**
+     * 正在向上游DNS服务器查询的问题
+     */
+    private final Map<QuestionKey, Promise<CachedAnswer>> inflight = new HashMap<>();
+
+    /**
+     * 所属节点的运行指标，记录缓存命中率
+     */
+    private final NodeMetrics metrics;
+
+
+    /**
+     * @param resolver  上游DNS解析器，由该对象负责关闭
+     * @param eventLoop 解析器所在的EventLoop
+     * @param metrics   所属节点的运行指标
+     */
+    DnsQueryService(DnsNameResolver resolver, EventLoop eventLoop, NodeMetrics metrics) {
+        this.resolver = Objects.requireNonNull(resolver);
+        this.eventLoop = Objects.requireNonNull(eventLoop);
+        this.metrics = Objects.requireNonNull(metrics);
+    }
+
+
+    /**
+     * 查询请求中的所有问题
+     *
+     * @return 应答消息，该Future总是成功完成，查询失败时应答的RCODE为SERVFAIL
+     */
+    Future<DnsResponseMessage> query(DnsQueryMessage message) {
+        Promise<DnsResponseMessage> promise = eventLoop.newPromise();
+        if (eventLoop.inEventLoop()) {
+            query0(message, promise);
+        } else {
+            eventLoop.execute(() -> query0(message, promise));
+        }
+        return promise;
+    }
+
+
+    private void query0(DnsQueryMessage message, Promise<DnsResponseMessage> promise) {
+        List<Question> questions = message.getQuestions();
+        int size = questions.size();
+        if (size == 0) {
+            DnsResponseMessage msg = new DnsResponseMessage(message.getTransactionId());
+            msg.setRCODE((byte) DnsResponseCode.FORMERR.intValue());
+            promise.setSuccess(msg);
+            return;
+        }
+
+        CachedAnswer[] answers = new CachedAnswer[size];
+        int[] remaining = { size };
+        for (int i = 0; i < size; i++) {
+            int index = i;
+            Future<CachedAnswer> future = lookup(questions.get(i));
+            future.addListener(f -> {
+                if (future.isSuccess()) {
+                    answers[index] = future.getNow();
+                } else {
+                    log.warn("DNS resolve failure, tid: {}", message.getTransactionId(), future.cause());
+                }
+
+                if (--remaining[0] == 0) {
+                    promise.setSuccess(buildResponse(message.getTransactionId(), answers));
+                }
+            });
+        }
+    }
+
+
+    private Future<CachedAnswer> lookup(Question question) {
+        QuestionKey key = new QuestionKey(question);
+        CachedAnswer answer = cache.get(key);
+        if (answer != null) {
+            if (answer.expireNanos - System.nanoTime() > 0) {
+                metrics.recordDnsQuery(true);
+                return eventLoop.newSucceededFuture(answer);
+            }
+            cache.remove(key);
+        }
+
+        //合并到正在进行的查询时不会向上游DNS服务器查询，同样视为命中
+        Promise<CachedAnswer> promise = inflight.get(key);
+        if (promise != null) {
+            metrics.recordDnsQuery(true);
+            return promise;
+        }
+
+        metrics.recordDnsQuery(false);
+
+        Promise<CachedAnswer> newPromise = eventLoop.newPromise();
+        inflight.put(key, newPromise);
+
+        DnsQuestion dnsq = new DefaultDnsQuestion(question.getName(), DnsRecordType.valueOf(question.getType()), question.getKlass());
+        Future<AddressedEnvelope<DnsResponse, InetSocketAddress>> future = resolver.query(dnsq);
+        future.addListener(f -> {
+            inflight.remove(key);
+            if (!future.isSuccess()) {
+                newPromise.setFailure(future.cause());
+                return;
+            }
+
+            AddressedEnvelope<DnsResponse, InetSocketAddress> env = future.getNow();
+            CachedAnswer result;
+            try {
+                result = new CachedAnswer(env.content());
+            } finally {
+                env.release();
+            }
+
+            if (result.expireNanos != result.createNanos) {
+                cache.put(key, result);
+            }
+            newPromise.setSuccess(result);
+        });
+
+        return newPromise;
+    }
+
+
+    /**
+     * 合并各个问题的应答，任一问题查询失败时返回SERVFAIL，否则RCODE取第一个不成功的应答的RCODE
+     */
+    private static DnsResponseMessage buildResponse(short transactionId, CachedAnswer[] answers) {
+        DnsResponseMessage msg = new DnsResponseMessage(transactionId);
+        for (CachedAnswer answer : answers) {
+            if (answer == null) {
+                msg.setRCODE((byte) DnsResponseCode.SERVFAIL.intValue());
+                return msg;
+            }
+        }
+
+        CachedAnswer first = answers[0];
+        byte rcode = DnsMessage.RCODE_SUCCESS;
+        boolean truncated = false;
+        for (CachedAnswer answer : answers) {
+            if (rcode == DnsMessage.RCODE_SUCCESS) {
+                rcode = answer.rcode;
+            }
+            truncated |= answer.truncated;
+        }
+
+        msg.setRCODE(rcode);
+        msg.setOpcode(first.opcode);
+        msg.setTC(truncated);
+        msg.setRA(first.recursionAvailable);
+        msg.setRD(first.recursionDesired);
+        msg.setAA(first.authoritative);
+
+        long now = System.nanoTime();
+        for (CachedAnswer answer : answers) {
+            int elapsed = (int) TimeUnit.NANOSECONDS.toSeconds(now - answer.createNanos);
+            for (Record r : answer.answers) {
+                msg.addAnswer(decay(r, elapsed));
+            }
+            for (Record r : answer.authority) {
+                msg.addAuthority(decay(r, elapsed));
+            }
+            for (Record r : answer.additional) {
+                msg.addAdditionalInfomation(decay(r, elapsed));
+            }
+        }
+
+        return msg;
+    }
+
+
+    private static Record decay(Record record, int elapsed) {
+        if (elapsed == 0) {
+            return record;
+        }
+
+        int ttl = Math.max(record.getTTL() - elapsed, 0);
+        return new Record(record.getDomain(), record.getType(), record.getKlass(), ttl, record.getDataLength(), record.getData());
+    }
+
+
+    @Override
+    public void close() {
+        resolver.close();
+    }
+
+
+    private static Record parseDnsRecord(DnsRecord record) {
+        int ttl = (int) record.timeToLive();
+        int klass = record.dnsClass();
+        String name = record.name();
+        DnsRecordType type = record.type();
+
+        short len = 0;
+        byte[] data = null;
+
+        if (record instanceof DnsRawRecord) {
+            DnsRawRecord raw = (DnsRawRecord) record;
+            ByteBuf buf = raw.content();
+            len = (short) buf.readableBytes();
+            if (len > 0) {
+                data = new byte[buf.readableBytes()];
+                buf.getBytes(buf.readerIndex(), data);
+            }
+        }
+
+        return new Record(name, (short) type.intValue(), (short) klass, ttl, len, data);
+    }
+
+
+    private static Record[] parseSection(DnsResponse response, DnsSection section) {
+        int count = response.count(section);
+        Record[] records = new Record[count];
+        for (int i = 0; i < count; i++) {
+            records[i] = parseDnsRecord(response.recordAt(section, i));
+        }
+        return records;
+    }
+
+
+    /**
+     * 缓存键，域名不区分大小写
+     */
+    private static final class QuestionKey {
+        final String name;
+        final short type;
+        final short klass;
+
+        QuestionKey(Question question) {
+            this.name = question.getName().toLowerCase(Locale.ROOT);
+            this.type = question.getType();
+            this.klass = question.getKlass();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof QuestionKey)) {
+                return false;
+            }
+            QuestionKey k = (QuestionKey) o;
+            return type == k.type && klass == k.klass && name.equals(k.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return (name.hashCode() * 31 + type) * 31 + klass;
+        }
+    }
+
+
+    /**
+     * 上游DNS服务器的应答，记录在解析时复制一次，之后只读
+     */
+    private static final class CachedAnswer {
+        final byte rcode;
+        final byte opcode;
+        final boolean truncated;
+        final boolean recursionAvailable;
+        final boolean recursionDesired;
+        final boolean authoritative;
+        final Record[] answers;
+        final Record[] authority;
+        final Record[] additional;
+        final long createNanos;
+        final long expireNanos;     //与createNanos相等表示不可缓存
+
+        CachedAnswer(DnsResponse response) {
+            this.rcode = (byte) response.code().intValue();
+            this.opcode = response.opCode().byteValue();
+            this.truncated = response.isTruncated();
+            this.recursionAvailable = response.isRecursionAvailable();
+            this.recursionDesired = response.isRecursionDesired();
+            this.authoritative = response.isAuthoritativeAnswer();
+            this.answers = parseSection(response, DnsSection.ANSWER);
+            this.authority = parseSection(response, DnsSection.AUTHORITY);
+            this.additional = parseSection(response, DnsSection.ADDITIONAL);
+            this.createNanos = System.nanoTime();
+            this.expireNanos = createNanos + TimeUnit.SECONDS.toNanos(cacheTtl());
+        }
+
+        /**
+         * @return 该应答可以缓存的时间(秒)，0表示不可缓存
+         */
+        private int cacheTtl() {
+            if (truncated) {
+                return 0;
+            }
+
+            int ttl = MAX_TTL;
+            if (rcode == DnsMessage.RCODE_SUCCESS && answers.length > 0) {
+                for (Record r : answers) {
+                    ttl = Math.min(ttl, r.getTTL());
+                }
+                return Math.max(ttl, 0);
+            }
+
+            if (rcode != DnsMessage.RCODE_SUCCESS && rcode != DnsMessage.RCODE_NOT_EXISTS) {
+                return 0;
+            }
+
+            //否定应答按照SOA记录的TTL与MINIMUM字段中较小的值缓存，没有SOA记录时不缓存
+            for (Record r : authority) {
+                byte[] data = r.getData();
+                if (r.getType() == DnsRecordType.SOA.intValue() && data != null && data.length >= 4) {
+                    int l = data.length;
+                    int minimum = (data[l - 4] & 0xFF) << 24 | (data[l - 3] & 0xFF) << 16 | (data[l - 2] & 0xFF) << 8 | (data[l - 1] & 0xFF);
+                    return Math.max(Math.min(ttl, Math.min(r.getTTL(), minimum)), 0);
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -21,8 +21,11 @@
  */
 package com.lzf.flyingsocks.server.core.client;
 
+import com.lzf.flyingsocks.jfr.AuthEvent;
+import com.lzf.flyingsocks.jfr.FlightRecorderSupport;
 import com.lzf.flyingsocks.protocol.AuthRequestMessage;
 import com.lzf.flyingsocks.protocol.AuthResponseMessage;
+import com.lzf.flyingsocks.protocol.ProtocolVersion;
 import com.lzf.flyingsocks.protocol.SerializationException;
 import com.lzf.flyingsocks.server.core.ClientSession;
 import com.lzf.flyingsocks.misc.MessageHeaderCheckHandler;
@@ -37,11 +40,11 @@ import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Promise;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.function.Predicate;
-
 /**
  * @author lzf abc123lzf@126.com
  * @since 2021/1/15 7:47
@@ -62,6 +65,16 @@ public class ProxyAuthenticationHandler extends ChannelInboundHandlerAdapter {
 
     private ClientSession clientSession;
 
+    /**
+     * 是否正在等待认证结果，等待期间暂停读取客户端数据
+     */
+    private boolean authenticating;
+
+    /**
+     * 认证JFR事件，未开启记录时为null
+     */
+    private AuthEvent authEvent;
+
     ProxyAuthenticationHandler() {
         super();
     }
@@ -106,33 +119,96 @@ public class ProxyAuthenticationHandler extends ChannelInboundHandlerAdapter {
     }
 
     protected void channelRead0(ChannelHandlerContext ctx, ByteBuf buf) throws SerializationException {
-        ClientSession session = this.clientSession;
-        Predicate<AuthRequestMessage> authPredicate = ConnectionContext.authPredicate(ctx.channel());
+        if (authenticating) { //客户端应当在收到认证响应后再发送其它数据
+            ctx.close();
+            return;
+        }
 
         AuthRequestMessage msg = new AuthRequestMessage(buf);
-        boolean auth = authPredicate.test(msg);
-        if (!auth) {
-            if (log.isTraceEnabled()) {
-                log.trace("Auth failure, from client {}", ((SocketChannel) ctx.channel()).remoteAddress().getHostName());
+        Channel channel = ctx.channel();
+        AuthEvent event = FlightRecorderSupport.beginAuth();
+        if (event != null) {
+            event.remoteAddress = String.valueOf(channel.remoteAddress());
+            event.user = StringUtils.defaultString(msg.getParameter("user"));
+        }
+        this.authEvent = event;
+        authenticating = true;
+        channel.config().setAutoRead(false);
+
+        //认证可能在其它线程中完成，Promise的监听器总是在客户端连接的EventLoop中执行
+        Promise<Boolean> promise = ctx.executor().newPromise();
+        promise.addListener(future -> {
+            authenticating = false;
+            if (!channel.isActive()) {
+                commitAuthEvent(false);
+                return;
             }
 
-            AuthResponseMessage response = new AuthResponseMessage(false);
-            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
-            return;
+            if (!future.isSuccess()) {
+                log.warn("Auth error, from client {}", channel.remoteAddress(), future.cause());
+                commitAuthEvent(false);
+                ctx.close();
+            } else if (Boolean.TRUE.equals(future.getNow())) {
+                authSuccess(ctx, msg);
+            } else {
+                authFailure(ctx);
+            }
+        });
+
+        ConnectionContext.authenticator(channel).accept(msg, promise);
+    }
+
+
+    private void authFailure(ChannelHandlerContext ctx) {
+        if (log.isTraceEnabled()) {
+            log.trace("Auth failure, from client {}", ((SocketChannel) ctx.channel()).remoteAddress().getHostName());
         }
 
+        commitAuthEvent(false);
+        AuthResponseMessage response = new AuthResponseMessage(false);
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+
+    private void authSuccess(ChannelHandlerContext ctx, AuthRequestMessage msg) {
         if (log.isTraceEnabled()) {
             log.trace("Auth success, from client {}", ((SocketChannel) ctx.channel()).remoteAddress().getHostName());
         }
 
+        ClientSession session = this.clientSession;
+        if (!ConnectionContext.authSuccessHandler(ctx.channel()).test(session, msg)) {
+            authFailure(ctx);
+            return;
+        }
+
         session.passAuth();
+        commitAuthEvent(true);
 
-        ctx.write(new AuthResponseMessage(true), ctx.voidPromise());
+        //旧版本客户端不携带协议版本参数，此时使用ProxyRequestMessage/ProxyResponseMessage
+        int version = ProtocolVersion.negotiate(msg.getParameter(ProtocolVersion.PARAMETER_NAME));
+        session.setProtocolVersion(version);
+
+        AuthResponseMessage response = new AuthResponseMessage(true);
+        if (version > ProtocolVersion.V1) {
+            response.putExtraData(ProtocolVersion.PARAMETER_NAME, String.valueOf(version));
+        }
+        ctx.write(response, ctx.voidPromise());
 
         ChannelPipeline cp = ctx.pipeline();
         cp.remove(this);
         cp.addLast(ProxyHandler.HANDLER_NAME, new ProxyHandler());
         ctx.flush();
+        ctx.channel().config().setAutoRead(true);
+    }
+
+
+    private void commitAuthEvent(boolean success) {
+        AuthEvent event = this.authEvent;
+        if (event != null) {
+            this.authEvent = null;
+            event.success = success;
+            event.commit();
+        }
     }
 
 
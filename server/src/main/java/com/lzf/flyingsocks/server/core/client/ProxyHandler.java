@@ -21,6 +21,8 @@
  */
 package com.lzf.flyingsocks.server.core.client;
 
+import com.lzf.flyingsocks.jfr.FlightRecorderSupport;
+import com.lzf.flyingsocks.jfr.TunnelFrameEvent;
 import com.lzf.flyingsocks.protocol.DnsMessage;
 import com.lzf.flyingsocks.protocol.DnsQueryMessage;
 import com.lzf.flyingsocks.protocol.DnsResponseMessage;
@@ -30,36 +32,25 @@ import com.lzf.flyingsocks.protocol.ProxyRequestMessage;
 import com.lzf.flyingsocks.protocol.ProxyResponseMessage;
 import com.lzf.flyingsocks.protocol.SerializationException;
 import com.lzf.flyingsocks.protocol.ServiceStageMessage;
+import com.lzf.flyingsocks.protocol.StreamMessage;
+import com.lzf.flyingsocks.protocol.WindowUpdateMessage;
 import com.lzf.flyingsocks.server.core.ClientSession;
+import com.lzf.flyingsocks.server.core.ProxyStream;
 import com.lzf.flyingsocks.server.core.ProxyTask;
 import com.lzf.flyingsocks.server.core.ProxyTaskManager;
 import io.netty.buffer.ByteBuf;
-import io.netty.channel.AddressedEnvelope;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
-import io.netty.handler.codec.dns.DefaultDnsQuestion;
-import io.netty.handler.codec.dns.DnsQuestion;
-import io.netty.handler.codec.dns.DnsRawRecord;
-import io.netty.handler.codec.dns.DnsRecord;
-import io.netty.handler.codec.dns.DnsRecordType;
-import io.netty.handler.codec.dns.DnsResponse;
-import io.netty.handler.codec.dns.DnsResponseCode;
-import io.netty.handler.codec.dns.DnsSection;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.IdleStateHandler;
-import io.netty.resolver.dns.DnsNameResolver;
 import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.InetSocketAddress;
-import java.util.List;
 
-import static com.lzf.flyingsocks.protocol.DnsMessage.Question;
-import static com.lzf.flyingsocks.protocol.DnsMessage.Record;
 
 /**
  * @author lzf abc123lzf@126.com
@@ -116,6 +107,10 @@ class ProxyHandler extends ChannelInboundHandlerAdapter {
                     new PongMessage(buf);
                 } else if (serviceId == DnsMessage.SERVICE_ID) {
                     processDnsQueryMessage(ctx, buf);
+                } else if (serviceId == StreamMessage.SERVICE_ID) {
+                    processStreamMessage(ctx, buf);
+                } else if (serviceId == WindowUpdateMessage.SERVICE_ID) {
+                    processWindowUpdateMessage(ctx, buf);
                 }
             } finally {
                 ReferenceCountUtil.release(msg);
@@ -125,6 +120,20 @@ class ProxyHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable()) {
+            clientSession.resumeStreams();
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        clientSession.closeStreams();
+        ctx.fireChannelInactive();
+    }
+
     @Override
     public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
         if (evt instanceof IdleStateEvent) {
@@ -142,94 +151,100 @@ class ProxyHandler extends ChannelInboundHandlerAdapter {
             log.debug("ProxyRequestMessage [{}:{}]", msg.getHost(), msg.getPort());
         }
 
+        TunnelFrameEvent event = FlightRecorderSupport.tunnelFrame();
+        if (event != null) {
+            commitFrameEvent(event, "REQUEST", msg.serialId(), msg.getHost(), msg.getPort(), msg.messageLength());
+        }
+
         ProxyTask task = new ProxyTask(msg, clientSession);
         proxyTaskManager.publish(task);
     }
 
 
-    protected void processDnsQueryMessage(ChannelHandlerContext ctx, ByteBuf buf) throws SerializationException {
-        DnsNameResolver resolver = ConnectionContext.nameResolver(ctx.channel());
+    protected void processStreamMessage(ChannelHandlerContext ctx, ByteBuf buf) throws SerializationException {
+        StreamMessage msg = new StreamMessage(buf);
+        int sid = msg.serialId();
+        TunnelFrameEvent event = FlightRecorderSupport.tunnelFrame();
 
-        DnsQueryMessage message = new DnsQueryMessage(buf);
-        List<Question> questions = message.getQuestions();
+        switch (msg.getType()) {
+            case OPEN: {
+                if (log.isDebugEnabled()) {
+                    log.debug("Open stream {} [{}:{}]", sid, msg.getHost(), msg.getPort());
+                }
 
-        // 暂时不处理QUESTION大于1的请求
-        if (questions.size() > 1) {
-            DnsResponseMessage msg = new DnsResponseMessage(message.getTransactionId());
-            msg.setRCODE((byte) DnsResponseCode.FORMERR.intValue());
-            ctx.writeAndFlush(msg);
-            return;
-        }
+                ByteBuf data = msg.getMessage();
+                if (event != null) {
+                    commitFrameEvent(event, "OPEN", sid, msg.getHost(), msg.getPort(), data.readableBytes());
+                }
 
-        DnsMessage.Question q = questions.get(0);
-        DnsQuestion dnsq = new DefaultDnsQuestion(q.getName(), DnsRecordType.valueOf(q.getType()), q.getKlass());
-        Future<AddressedEnvelope<DnsResponse, InetSocketAddress>> future = resolver.query(dnsq);
-        future.addListener(f -> {
-            if (!f.isSuccess()) {
-                log.warn("DNS resolve failure, tid: {}", message.getTransactionId(), f.cause());
-                DnsResponseMessage msg = new DnsResponseMessage(message.getTransactionId());
-                msg.setRCODE((byte) DnsResponseCode.SERVFAIL.intValue());
-                ctx.writeAndFlush(msg);
-                return;
+                ProxyRequestMessage request = new ProxyRequestMessage(sid, msg.getProtocol());
+                request.setHost(msg.getHost());
+                request.setPort(msg.getPort());
+                request.setMessage(data);
+                proxyTaskManager.publish(new ProxyTask(request, clientSession));
             }
+            break;
 
-            @SuppressWarnings("all")
-            AddressedEnvelope<DnsResponse, InetSocketAddress> env = (AddressedEnvelope<DnsResponse, InetSocketAddress>) f.get();
-            DnsResponse resp = env.content();
-            DnsResponseCode code = resp.code();
-
-            DnsResponseMessage msg = new DnsResponseMessage(message.getTransactionId());
-            msg.setRCODE((byte) code.intValue());
-            msg.setOpcode(resp.opCode().byteValue());
-            msg.setTC(resp.isTruncated());
-            msg.setRA(resp.isRecursionAvailable());
-            msg.setRD(resp.isRecursionDesired());
-            msg.setAA(resp.isAuthoritativeAnswer());
-
-            int answerCnt = resp.count(DnsSection.ANSWER);
-            for (int i = 0; i < answerCnt; i++) {
-                Record r = parseDnsRecord(resp.recordAt(DnsSection.ANSWER, i));
-                msg.addAnswer(r);
-            }
+            case DATA: {
+                ProxyStream stream = clientSession.stream(sid);
+                ByteBuf data = msg.getMessage();
+                if (event != null) {
+                    commitFrameEvent(event, "DATA", sid, null, 0, data.readableBytes());
+                }
 
-            int authorityCnt = resp.count(DnsSection.AUTHORITY);
-            for (int i = 0; i < authorityCnt; i++) {
-                Record r = parseDnsRecord(resp.recordAt(DnsSection.AUTHORITY, i));
-                msg.addAuthority(r);
-            }
+                //只有OPEN帧可以建立代理流，已经关闭的代理流在客户端收到CLOSE之前发出的数据直接丢弃
+                if (stream == null) {
+                    data.release();
+                    ctx.writeAndFlush(StreamMessage.close(sid, true), ctx.voidPromise());
+                    return;
+                }
 
-            int additionalCnt = resp.count(DnsSection.ADDITIONAL);
-            for (int i = 0; i < additionalCnt; i++) {
-                Record r = parseDnsRecord(resp.recordAt(DnsSection.ADDITIONAL, i));
-                msg.addAdditionalInfomation(r);
+                clientSession.recordUpload(data.readableBytes());
+                stream.upload(data);
             }
+            break;
 
-            ctx.writeAndFlush(msg);
-            env.release();
-        });
+            case CLOSE: {
+                ProxyStream stream = clientSession.stream(sid);
+                if (event != null) {
+                    commitFrameEvent(event, "CLOSE", sid, null, 0, 0);
+                }
+                if (stream != null) {
+                    clientSession.removeStream(stream);
+                    stream.close();
+                }
+            }
+        }
     }
 
+    private static void commitFrameEvent(TunnelFrameEvent event, String frameType, int serialId, String host, int port, int bytes) {
+        event.frameType = frameType;
+        event.serialId = serialId;
+        event.host = host;
+        event.port = port;
+        event.bytes = bytes;
+        event.commit();
+    }
 
-    protected static Record parseDnsRecord(DnsRecord record) {
-        int ttl = (int) record.timeToLive();
-        int klass = record.dnsClass();
-        String name = record.name();
-        DnsRecordType type = record.type();
-
-        short len = 0;
-        byte[] data = null;
-
-        if (record instanceof DnsRawRecord) {
-            DnsRawRecord raw = (DnsRawRecord) record;
-            ByteBuf buf = raw.content();
-            len = (short) buf.readableBytes();
-            if (len > 0) {
-                data = new byte[buf.readableBytes()];
-                buf.readBytes(data);
+    protected void processWindowUpdateMessage(ChannelHandlerContext ctx, ByteBuf buf) throws SerializationException {
+        WindowUpdateMessage msg = new WindowUpdateMessage(buf);
+        if (msg.isAnnouncement()) {
+            if (!clientSession.isFlowControlEnabled()) {
+                clientSession.enableFlowControl();
+                ctx.writeAndFlush(WindowUpdateMessage.announcement(), ctx.voidPromise());
             }
+            return;
         }
 
-        return new Record(name, (short) type.intValue(), (short) klass, ttl, len, data);
+        clientSession.updateStreamWindow(msg.serialId(), msg.getIncrement());
+    }
+
+
+    protected void processDnsQueryMessage(ChannelHandlerContext ctx, ByteBuf buf) throws SerializationException {
+        DnsQueryService service = ConnectionContext.dnsQueryService(ctx.channel());
+        DnsQueryMessage message = new DnsQueryMessage(buf);
+        Future<DnsResponseMessage> future = service.query(message);
+        future.addListener(f -> ctx.writeAndFlush(future.getNow()));
     }
 
 
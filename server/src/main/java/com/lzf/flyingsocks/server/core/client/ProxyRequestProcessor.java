@@ -25,9 +25,16 @@ import com.lzf.flyingsocks.AbstractComponent;
 import com.lzf.flyingsocks.ComponentException;
 import com.lzf.flyingsocks.ConfigManager;
 import com.lzf.flyingsocks.encrypt.EncryptProvider;
+import com.lzf.flyingsocks.jfr.FlightRecorderSupport;
+import com.lzf.flyingsocks.jfr.TlsHandshakeEvent;
 import com.lzf.flyingsocks.misc.FSMessageOutboundEncoder;
+import com.lzf.flyingsocks.server.core.AdmissionControl;
 import com.lzf.flyingsocks.server.core.ClientSession;
+import com.lzf.flyingsocks.server.core.ListenerStats;
+import com.lzf.flyingsocks.server.core.NodeMetrics;
+import com.lzf.flyingsocks.server.core.TargetResolver;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
@@ -35,25 +42,29 @@ import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.socket.ServerSocketChannel;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioDatagramChannel;
-import io.netty.resolver.ResolvedAddressTypes;
-import io.netty.resolver.dns.DefaultAuthoritativeDnsServerCache;
-import io.netty.resolver.dns.DefaultDnsCache;
-import io.netty.resolver.dns.DnsNameResolver;
-import io.netty.resolver.dns.DnsNameResolverBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.EventExecutor;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.validator.routines.IntegerValidator;
 
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @author lzf abc123lzf@126.com
@@ -61,11 +72,6 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 class ProxyRequestProcessor extends AbstractComponent<ClientProcessor> {
 
-    /**
-     * 最大客户端数量
-     */
-    private final int maxClient;
-
     /**
      * 端口
      */
@@ -81,23 +87,28 @@ class ProxyRequestProcessor extends AbstractComponent<ClientProcessor> {
      */
     private final ClientSessionHandler clientSessionHandler;
 
+    /**
+     * 所属节点的运行指标
+     */
+    private final NodeMetrics metrics;
+
 
     /**
-     * 代理服务Channel
+     * 代理服务Channel，开启SO_REUSEPORT时每个子EventLoop各有一个
      */
-    private volatile ServerSocketChannel serverSocketChannel;
+    private final List<ServerSocketChannel> serverSocketChannels = new CopyOnWriteArrayList<>();
 
 
     /**
-     * DNS解析工具，用于处理DNS请求
+     * DNS查询服务，用于处理DNS请求
      */
-    private DnsNameResolver dnsNameResolver;
+    private DnsQueryService dnsQueryService;
 
 
     ProxyRequestProcessor(ClientProcessor processor, EncryptProvider encryptProvider) {
         super("ProxyRequestProcessor [" + processor.getName() + "]", Objects.requireNonNull(processor));
         this.port = parent.getParentComponent().getPort();
-        this.maxClient = parent.getParentComponent().getMaxClient();
+        this.metrics = parent.getParentComponent().getMetrics();
         this.encryptProvider = encryptProvider;
         this.clientSessionHandler = new ClientSessionHandler();
     }
@@ -106,14 +117,10 @@ class ProxyRequestProcessor extends AbstractComponent<ClientProcessor> {
     @Override
     protected void initInternal() {
         EventLoopGroup bossGroup = parent.getParentComponent().getBossWorker();
-        // 初始化域名解析服务
-        DnsNameResolverBuilder nameResolverBuilder = new DnsNameResolverBuilder(bossGroup.next());
-        nameResolverBuilder.channelType(parent.getParentComponent().getDatagramChannelClass())
-                .resolveCache(new DefaultDnsCache())
-                .resolvedAddressTypes(ResolvedAddressTypes.IPV4_PREFERRED)
-                .authoritativeDnsServerCache(new DefaultAuthoritativeDnsServerCache())
-                .recursionDesired(true);
-        this.dnsNameResolver = nameResolverBuilder.build();
+        // 初始化域名解析服务，与目标服务器连接共用同一组DNS缓存
+        TargetResolver targetResolver = parent.getParentComponent().getTargetResolver();
+        EventLoop loop = bossGroup.next();
+        this.dnsQueryService = new DnsQueryService(targetResolver.newNameResolver(loop), loop, metrics);
 
         super.initInternal();
     }
@@ -140,15 +147,30 @@ class ProxyRequestProcessor extends AbstractComponent<ClientProcessor> {
 
         WriteBufferWaterMark waterMark = new WriteBufferWaterMark(Integer.parseInt(lowMarkStr), Integer.parseInt(highMarkStr));
 
-        bootstrap.group(bossGroup, childGroup)
-                .channel(channelClass)
+        // TCP Fast Open队列长度，客户端重连时可以在SYN中携带数据，0表示不开启
+        String fastOpenStr = configManager.getSystemProperties("flyingsocks.client.tcp-fastopen");
+        int fastOpenQueue = 0;
+        if (StringUtils.isNotBlank(fastOpenStr) && IntegerValidator.getInstance().isValid(fastOpenStr)) {
+            fastOpenQueue = Math.max(Integer.parseInt(fastOpenStr), 0);
+        }
+
+        if (fastOpenQueue > 0) {
+            if (EpollServerSocketChannel.class.isAssignableFrom(channelClass)) {
+                bootstrap.option(EpollChannelOption.TCP_FASTOPEN, fastOpenQueue);
+            } else {
+                log.warn("TCP Fast Open requires epoll transport, ignore option flyingsocks.client.tcp-fastopen");
+            }
+        }
+
+        bootstrap.channel(channelClass)
                 .option(ChannelOption.AUTO_CLOSE, true)
                 .option(ChannelOption.SO_KEEPALIVE, true)
                 .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark)
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) throws Exception {
-                        ConnectionContext.initial(ch, parent.getParentComponent(), parent::doAuth, dnsNameResolver);
+                        ConnectionContext.initial(ch, parent.getParentComponent(), parent::doAuth,
+                                parent::onAuthSuccess, dnsQueryService);
                         ChannelPipeline cp = ch.pipeline();
                         if (encryptProvider != null) {
                             Map<String, Object> params = Collections.singletonMap("alloc", ch.alloc());
@@ -158,46 +180,162 @@ class ProxyRequestProcessor extends AbstractComponent<ClientProcessor> {
                             cp.addLast(encryptProvider.decodeHandler(params));
                         }
 
+                        SslHandler sslHandler = cp.get(SslHandler.class);
+                        if (sslHandler != null) {
+                            long startNanos = System.nanoTime();
+                            TlsHandshakeEvent event = FlightRecorderSupport.beginTlsHandshake();
+                            sslHandler.handshakeFuture().addListener(future -> {
+                                if (future.isSuccess()) {
+                                    metrics.recordHandshake(System.nanoTime() - startNanos);
+                                } else {
+                                    metrics.recordHandshakeFailure();
+                                }
+
+                                if (event != null) {
+                                    event.remoteAddress = String.valueOf(ch.remoteAddress());
+                                    if (future.isSuccess()) {
+                                        SSLSession session = sslHandler.engine().getSession();
+                                        event.protocol = session.getProtocol();
+                                        event.cipherSuite = session.getCipherSuite();
+                                    }
+                                    event.success = future.isSuccess();
+                                    event.commit();
+                                }
+                            });
+                        }
+
                         cp.addLast(FSMessageOutboundEncoder.INSTANCE);
                         cp.addLast(clientSessionHandler);
                         cp.addLast(ProxyAuthenticationHandler.HANDLER_NAME, new ProxyAuthenticationHandler());
                     }
                 });
 
+        boolean reusePort = Boolean.parseBoolean(configManager.getSystemProperties("flyingsocks.client.reuseport"));
+        if (reusePort && !EpollServerSocketChannel.class.isAssignableFrom(channelClass)) {
+            log.warn("SO_REUSEPORT requires epoll transport, ignore option flyingsocks.client.reuseport");
+            reusePort = false;
+        }
+
+        if (reusePort) {
+            //每个子EventLoop各自监听同一端口，由内核分配新连接，accept和TLS握手分散到所有EventLoop中
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            for (EventExecutor executor : childGroup) {
+                EventLoop loop = (EventLoop) executor;
+                bind(bootstrap.clone().group(loop, loop));
+            }
+            log.info("Node \"{}\" bind {} listeners with SO_REUSEPORT", getName(), serverSocketChannels.size());
+        } else {
+            bind(bootstrap.clone().group(bossGroup, childGroup));
+        }
+
+        super.startInternal();
+    }
+
+
+    private void bind(ServerBootstrap bootstrap) {
+        ListenerStats stats = metrics.newListenerStats();
+        bootstrap.handler(new AdmissionHandler(parent.getParentComponent().getAdmissionControl(), stats));
         ChannelFuture future = bootstrap.bind(port).awaitUninterruptibly();
         if (!future.isSuccess()) {
             throw new ComponentException(String.format("[%s] Bind failure", getName()), future.cause());
         }
 
-        this.serverSocketChannel = (ServerSocketChannel) future.channel();
-        super.startInternal();
+        serverSocketChannels.add((ServerSocketChannel) future.channel());
     }
 
 
 
     @Override
     protected void stopInternal() {
-        ServerSocketChannel serverChannel = this.serverSocketChannel;
-        if (serverChannel != null) {
+        for (ServerSocketChannel serverChannel : serverSocketChannels) {
             serverChannel.close();
         }
+        serverSocketChannels.clear();
+
+        for (ListenerStats stats : metrics.listeners()) {
+            log.info("Node \"{}\" {}", getName(), stats);
+        }
 
-        dnsNameResolver.close();
-        dnsNameResolver = null;
+        dnsQueryService.close();
+        dnsQueryService = null;
         super.stopInternal();
     }
 
+    /**
+     * 位于ServerSocketChannel的Pipeline中，在ServerBootstrapAcceptor将客户端连接注册到EventLoop之前执行接入控制。
+     * 被拒绝的连接直接关闭，不会初始化Pipeline也不会进行TLS握手
+     */
+    class AdmissionHandler extends ChannelInboundHandlerAdapter {
+
+        private final AdmissionControl admissionControl;
+
+        private final ListenerStats stats;
+
+        AdmissionHandler(AdmissionControl admissionControl, ListenerStats stats) {
+            this.admissionControl = Objects.requireNonNull(admissionControl);
+            this.stats = Objects.requireNonNull(stats);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            Channel child = (Channel) msg;
+            InetSocketAddress address = (InetSocketAddress) child.remoteAddress();
+            if (address == null || !admissionControl.tryAcquireConnection(address.getAddress())) {
+                if (log.isDebugEnabled())
+                    log.debug("Node \"{}\" refuse connection from {}", getName(), address);
+                stats.recordRejected();
+                child.unsafe().closeForcibly();
+                return;
+            }
+
+            stats.recordAccepted();
+            ConnectionPermitHandler permit = new ConnectionPermitHandler(admissionControl);
+            child.pipeline().addFirst(permit);
+            child.closeFuture().addListener(future -> permit.release());
+            ctx.fireChannelRead(child);
+
+            //ServerBootstrapAcceptor注册失败时通过closeForcibly关闭连接，既不会完成closeFuture也不会触发channelUnregistered
+            if (!child.isRegistered() && !child.isOpen()) {
+                permit.release();
+            }
+        }
+    }
+
+    /**
+     * 位于客户端连接Pipeline的头部，连接从EventLoop注销或关闭时归还接入许可，多个路径触发时只归还一次
+     */
+    static class ConnectionPermitHandler extends ChannelInboundHandlerAdapter {
+
+        private final AdmissionControl admissionControl;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        ConnectionPermitHandler(AdmissionControl admissionControl) {
+            this.admissionControl = admissionControl;
+        }
+
+        @Override
+        public void channelUnregistered(ChannelHandlerContext ctx) {
+            release();
+            ctx.fireChannelUnregistered();
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                admissionControl.releaseConnection();
+            }
+        }
+    }
+
     /**
      * 用于管理客户端连接(ClientSession)
      */
     @ChannelHandler.Sharable
     class ClientSessionHandler extends ChannelInboundHandlerAdapter {
 
-        private final AtomicInteger counter = new AtomicInteger(0);
-
         @Override
         public void handlerAdded(ChannelHandlerContext ctx) {
-            ConnectionContext.putClientSession(ctx.channel(), new ClientSession(ctx.channel()));
+            ConnectionContext.putClientSession(ctx.channel(), new ClientSession(ctx.channel(), metrics));
         }
 
         @Override
@@ -207,16 +345,6 @@ class ProxyRequestProcessor extends AbstractComponent<ClientProcessor> {
             ctx.fireChannelRead(msg);
         }
 
-        @Override
-        public void channelActive(ChannelHandlerContext ctx) {
-            if (counter.incrementAndGet() > maxClient) {
-                log.info("Node \"{}\" Client number out of maxClient limit, value:{}", getName(), maxClient);
-                ctx.close();
-            }
-
-            ctx.fireChannelActive();
-        }
-
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
             if (cause instanceof SSLException || cause.getCause() instanceof SSLException) {
@@ -228,11 +356,5 @@ class ProxyRequestProcessor extends AbstractComponent<ClientProcessor> {
             }
             ctx.close();
         }
-
-        @Override
-        public void channelInactive(ChannelHandlerContext ctx) {
-            counter.decrementAndGet();
-            ctx.fireChannelInactive();
-        }
     }
 }
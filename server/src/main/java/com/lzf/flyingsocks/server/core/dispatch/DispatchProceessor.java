@@ -22,54 +22,105 @@
 package com.lzf.flyingsocks.server.core.dispatch;
 
 import com.lzf.flyingsocks.AbstractComponent;
+import com.lzf.flyingsocks.ConfigManager;
+import com.lzf.flyingsocks.jfr.FlightRecorderSupport;
+import com.lzf.flyingsocks.jfr.StreamCloseEvent;
+import com.lzf.flyingsocks.jfr.StreamFirstByteEvent;
+import com.lzf.flyingsocks.jfr.StreamOpenEvent;
+import com.lzf.flyingsocks.jfr.TargetConnectEvent;
 import com.lzf.flyingsocks.protocol.ProxyRequestMessage;
-import com.lzf.flyingsocks.protocol.ProxyResponseMessage;
-import com.lzf.flyingsocks.protocol.SerializationException;
+import com.lzf.flyingsocks.server.core.AdmissionControl;
 import com.lzf.flyingsocks.server.core.ClientSession;
 import com.lzf.flyingsocks.server.core.ProxyProcessor;
+import com.lzf.flyingsocks.server.core.ProxyStream;
 import com.lzf.flyingsocks.server.core.ProxyTask;
 import com.lzf.flyingsocks.server.core.ProxyTaskSubscriber;
+import com.lzf.flyingsocks.server.core.TrafficShaper;
+import com.lzf.flyingsocks.server.core.access.AccessRuleMatcher;
+import com.lzf.flyingsocks.server.usermanage.TrafficAccount;
 import com.lzf.flyingsocks.misc.BootstrapTemplate;
-import com.lzf.flyingsocks.misc.ReturnableLinkedHashSet;
-import com.lzf.flyingsocks.misc.ReturnableSet;
+import com.lzf.flyingsocks.misc.LatencyRecorder;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.DatagramPacket;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.NetUtil;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.validator.routines.IntegerValidator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
+/**
+ * 代理任务分发组件
+ *
+ * 代理任务直接在发布它的客户端会话的EventLoop中处理，目标服务器连接也注册在同一个EventLoop上，
+ * 代理流状态保存在{@link ClientSession}中，因此分发过程不需要跨线程传递，也不需要加锁
+ *
+ * 目标服务器域名通过{@link ProxyProcessor#getTargetResolver()}异步解析，解析完成后再对TCP目标的各个地址进行连接竞速
+ */
+public class DispatchProceessor extends AbstractComponent<ProxyProcessor> implements ProxyTaskSubscriber {
+
+    /**
+     * 对于长时间没有通信的活跃TCP连接，当超出这个时间(秒)时关闭连接
+     */
+    private static final int DEFAULT_TCP_IDLE_TIMEOUT = 60;
+
+    /**
+     * 对于长时间没有通信的UDP通信端口，当超出这个时间(秒)时关闭端口
+     */
+    private static final int DEFAULT_UDP_IDLE_TIMEOUT = 30;
+
+    /**
+     * UDP中继端口的收发缓冲区大小，中继端口由多条代理流共用
+     */
+    private static final int UDP_SOCKET_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * UDP数据报最大载荷
+     */
+    private static final int MAX_UDP_PAYLOAD_SIZE = 65507;
 
-public class DispatchProceessor extends AbstractComponent<ProxyProcessor> {
+    /**
+     * 单次批量读取的最大数据报数量
+     */
+    private static final int UDP_BATCH_SIZE = 8;
 
     /**
-     * 对于长时间没有通信的活跃TCP连接/UDP通信端口，当超出这个时间时关闭连接
+     * 连接尚未建立时，单个ActiveConnection最多缓存的客户端数据字节数，超出后关闭该连接
      */
-    private static final long DEFAULT_TIMEOUT = 60 * 1000L;
+    private static final int MAX_QUEUED_BYTES = 2 * 1024 * 1024;
 
     /**
      * TCP客户端连接引导模板
      */
-    private final BootstrapTemplate tcpBootstrapTemplate;
+    private BootstrapTemplate tcpBootstrapTemplate;
 
     /**
      * UDP引导模板
@@ -77,53 +128,93 @@ public class DispatchProceessor extends AbstractComponent<ProxyProcessor> {
     private final BootstrapTemplate udpBootstrapTemplate;
 
     /**
-     * 该模块核心线程池
+     * 每个EventLoop的UDP中继，UDP代理流共用中继的端口
+     */
+    private final ConcurrentMap<EventLoop, UdpRelay> udpRelays = new ConcurrentHashMap<>();
+
+    /**
+     * 空闲检查时间轮，所有代理流共用，每条代理流只在时间轮中保留一个定时任务
      */
-    private ExecutorService requestReceiver;
+    private HashedWheelTimer idleTimer;
+
+    /**
+     * TCP代理流空闲超时时间(纳秒)
+     */
+    private long tcpIdleTimeoutNanos;
+
+    /**
+     * UDP代理流空闲超时时间(纳秒)
+     */
+    private long udpIdleTimeoutNanos;
+
+    /**
+     * 是否对目标服务器连接开启TCP Fast Open，开启后代理流的首段数据随SYN发出
+     */
+    private boolean tcpFastOpen;
+
+    /**
+     * 目标服务器域名解析耗时，属于节点运行指标
+     */
+    private final LatencyRecorder resolveLatency;
+
+    /**
+     * 代理流建立耗时，从收到代理请求到与目标服务器的连接建立完成(包含域名解析)，属于节点运行指标
+     */
+    private final LatencyRecorder openLatency;
 
 
     public DispatchProceessor(ProxyProcessor parent) {
         super("DispatcherProcessor", Objects.requireNonNull(parent));
+        this.resolveLatency = parent.getMetrics().resolveLatency();
+        this.openLatency = parent.getMetrics().openLatency();
 
         EventLoopGroup group = parent.getChildWorker();
-        Class<? extends SocketChannel> socketChannelClass = parent.getSocketChannelClass();
         Class<? extends DatagramChannel> datagramChannelClass = parent.getDatagramChannelClass();
-        Bootstrap tcpBoot = new Bootstrap()
-                .group(group)
-                .channel(socketChannelClass)
-                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5000)
-                .option(ChannelOption.AUTO_READ, false);  // 防止服务端上传速度小于下载速度导致内存溢出
-        this.tcpBootstrapTemplate = new BootstrapTemplate(tcpBoot);
-
         Bootstrap udpBoot = new Bootstrap()
                 .group(group)
-                .channel(datagramChannelClass);
+                .channel(datagramChannelClass)
+                .option(ChannelOption.SO_RCVBUF, UDP_SOCKET_BUFFER_SIZE)
+                .option(ChannelOption.SO_SNDBUF, UDP_SOCKET_BUFFER_SIZE);
+
+        //epoll传输下使用recvmmsg一次读取多个数据报，发送时一次flush的多个数据报会通过sendmmsg发出。
+        //每个数据报占用一个最大UDP载荷大小的槽位，因此不会截断数据报
+        if (EpollDatagramChannel.class.isAssignableFrom(datagramChannelClass)) {
+            udpBoot.option(EpollChannelOption.MAX_DATAGRAM_PAYLOAD_SIZE, MAX_UDP_PAYLOAD_SIZE)
+                    .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(MAX_UDP_PAYLOAD_SIZE * UDP_BATCH_SIZE));
+        }
         this.udpBootstrapTemplate = new BootstrapTemplate(udpBoot);
     }
 
     @Override
     protected void initInternal() {
-        ExecutorService receiverPool = new ThreadPoolExecutor(0, 4, 30, TimeUnit.SECONDS,
-                new SynchronousQueue<>(), Executors.defaultThreadFactory(), new ThreadPoolExecutor.DiscardPolicy());
-
-        int cpus = Runtime.getRuntime().availableProcessors();
-        int task;
-        if (cpus <= 2) {
-            task = 2;
-        } else if (cpus <= 6) {
-            task = 3;
-        } else {
-            task = 4;
-        }
+        ConfigManager<?> configManager = getConfigManager();
+        this.tcpIdleTimeoutNanos = TimeUnit.SECONDS.toNanos(readTimeout(configManager,
+                "flyingsocks.dispatch.idle-timeout.tcp", DEFAULT_TCP_IDLE_TIMEOUT));
+        this.udpIdleTimeoutNanos = TimeUnit.SECONDS.toNanos(readTimeout(configManager,
+                "flyingsocks.dispatch.idle-timeout.udp", DEFAULT_UDP_IDLE_TIMEOUT));
 
-        log.info("Using {} dispatcher thread.", task);
+        Class<? extends SocketChannel> socketChannelClass = parent.getSocketChannelClass();
+        Bootstrap tcpBoot = new Bootstrap()
+                .group(parent.getChildWorker())
+                .channel(socketChannelClass)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5000)
+                .option(ChannelOption.AUTO_READ, false);  // 防止服务端上传速度小于下载速度导致内存溢出
 
-        for (int i = 0; i < task; i++) {
-            receiverPool.execute(new DispatcherTask());
+        if (Boolean.parseBoolean(configManager.getSystemProperties("flyingsocks.dispatch.tcp-fastopen"))) {
+            if (EpollSocketChannel.class.isAssignableFrom(socketChannelClass)) {
+                tcpBoot.option(ChannelOption.TCP_FASTOPEN_CONNECT, true);
+                this.tcpFastOpen = true;
+            } else {
+                log.warn("TCP Fast Open requires epoll transport, ignore option flyingsocks.dispatch.tcp-fastopen");
+            }
         }
+        this.tcpBootstrapTemplate = new BootstrapTemplate(tcpBoot);
 
-        this.requestReceiver = receiverPool;
+        //时间轮精度为1秒，512个槽位，空闲超时只需要秒级精度
+        this.idleTimer = new HashedWheelTimer(new DefaultThreadFactory("DispatchIdleTimer-" + parent.getHandlerId(), true),
+                1, TimeUnit.SECONDS, 512);
 
+        parent.registerSubscriber(this);
         super.initInternal();
     }
 
@@ -134,257 +225,649 @@ public class DispatchProceessor extends AbstractComponent<ProxyProcessor> {
 
     @Override
     protected void stopInternal() {
-        ExecutorService requestReceiver = this.requestReceiver;
-        if (requestReceiver != null) {
-            requestReceiver.shutdownNow();
+        parent.removeSubscriber(this);
+        idleTimer.stop();
+        for (UdpRelay relay : udpRelays.values()) {
+            try {
+                relay.eventLoop().execute(relay::close);
+            } catch (RejectedExecutionException ignore) {
+                //EventLoop已经关闭，中继端口会随之关闭
+            }
         }
-
+        udpRelays.clear();
+        log.info("Target resolve latency: {}", resolveLatency);
+        log.info("Stream open latency: {}", openLatency);
         super.stopInternal();
     }
 
 
+    private static int readTimeout(ConfigManager<?> configManager, String key, int defaultValue) {
+        String value = configManager.getSystemProperties(key);
+        if (StringUtils.isBlank(value) || !IntegerValidator.getInstance().isValid(value)) {
+            return defaultValue;
+        }
+
+        int timeout = Integer.parseInt(value);
+        return timeout > 0 ? timeout : defaultValue;
+    }
+
+
     /**
-     * 实现连接复用，可以预防客户端代理消息半包的现象
+     * @return 目标服务器域名解析耗时统计
      */
-    static final class ActiveConnection {
-        final String host;              //目标主机IP/域名
-        final int port;                 //目标主机端口号
-        final int clientSerialId;       //客户端事务ID
-        ChannelFuture future;           //该连接的ChannelFuture
-        final Queue<ByteBuf> msgQueue;  //若上述future持有的Channel尚未Active，则该队列负责保存该连接的客户端数据
-        long lastActiveTime;            //最近一次的数据发送/接收时间，对长时间无数据发送、接收的连接采取关闭策略
+    public LatencyRecorder getResolveLatency() {
+        return resolveLatency;
+    }
+
+    /**
+     * @return 代理流建立耗时统计
+     */
+    public LatencyRecorder getOpenLatency() {
+        return openLatency;
+    }
 
-        ActiveConnection(String host, int port, int clientSerialId) {
-            this.host = host;
-            this.port = port;
-            this.clientSerialId = clientSerialId;
-            msgQueue = new LinkedList<>();
-            lastActiveTime = System.currentTimeMillis();
+
+    @Override
+    public void receive(ProxyTask task) {
+        Objects.requireNonNull(task);
+        EventLoop loop = task.session().eventLoop();
+        if (loop.inEventLoop()) {
+            dispatch(task);
+            return;
         }
 
-        @Override
-        public int hashCode() {
-            return host.hashCode() ^ (port << 16) ^ clientSerialId;
+        try {
+            loop.execute(() -> dispatch(task));
+        } catch (RejectedExecutionException e) {
+            task.getRequestMessage().getMessage().release();
         }
+    }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) {
-                return true;
-            } else if (obj instanceof ActiveConnection) {
-                ActiveConnection c = (ActiveConnection) obj;
-                return this.host.equals(c.host) && this.port == c.port && this.clientSerialId == c.clientSerialId;
+
+    /**
+     * 处理代理任务，只在客户端会话的EventLoop中调用
+     */
+    private void dispatch(ProxyTask task) {
+        if (log.isTraceEnabled())
+            log.trace("Dispatch ProxyTask {}", task);
+
+        final ProxyRequestMessage prm = task.getRequestMessage();
+        final ClientSession cs = task.session();
+        final ByteBuf msg = prm.getMessage();
+
+        if (!cs.isActive()) {
+            msg.release();
+            return;
+        }
+
+        cs.recordUpload(msg.readableBytes());
+
+        //旧版本协议的每个代理请求都携带目标地址，序列号对应的代理流存在时直接转发
+        ProxyStream stream = cs.stream(prm.serialId());
+        if (stream != null) {
+            if (prm.getProtocol() == ProxyRequestMessage.Protocol.CLOSE) {
+                msg.release();
+                cs.removeStream(stream);
+                stream.close();
+                return;
+            }
+
+            stream.upload(msg);
+            return;
+        }
+
+        TrafficAccount account = cs.trafficAccount();
+
+        //流量配额用完后不再建立新的代理流，已建立的代理流不受影响
+        if (account != null && account.isExhausted() && prm.getProtocol() != ProxyRequestMessage.Protocol.CLOSE) {
+            if (log.isDebugEnabled())
+                log.debug("User {} traffic quota exhausted, refuse stream to {}:{}", account.username(), prm.getHost(), prm.getPort());
+            msg.release();
+            writeFailureResponse(cs, prm.serialId());
+            return;
+        }
+
+        //按照用户组的访问规则过滤目标，域名未命中任何规则时再使用解析得到的地址匹配网段规则
+        AccessRuleMatcher addressFilter = null;
+        if (account != null && prm.getProtocol() != ProxyRequestMessage.Protocol.CLOSE) {
+            AccessRuleMatcher matcher = account.accessRuleMatcher();
+            AccessRuleMatcher.Decision decision = matcher.match(prm.getHost(), prm.getPort());
+            if (decision == AccessRuleMatcher.Decision.DENY) {
+                if (log.isDebugEnabled())
+                    log.debug("User {} access to {}:{} is denied", account.username(), prm.getHost(), prm.getPort());
+                msg.release();
+                writeFailureResponse(cs, prm.serialId());
+                return;
+            }
+
+            if (decision == AccessRuleMatcher.Decision.NONE && matcher.hasNetworkRules() && !NetUtil.isValidIpV4Address(prm.getHost())
+                    && !NetUtil.isValidIpV6Address(prm.getHost())) {
+                addressFilter = matcher;
+            }
+        }
+
+        //用户并发代理流数超出上限时拒绝，计数在代理流从会话中移除时释放
+        AdmissionControl.UserQuota quota = cs.userQuota();
+        if (quota != null && prm.getProtocol() != ProxyRequestMessage.Protocol.CLOSE && !quota.tryAcquireStream()) {
+            if (log.isDebugEnabled())
+                log.debug("User {} has too many streams, refuse stream to {}:{}", quota.username(), prm.getHost(), prm.getPort());
+            msg.release();
+            writeFailureResponse(cs, prm.serialId());
+            return;
+        }
+
+        switch (prm.getProtocol()) {
+            case TCP: {
+                ActiveConnection c = new ActiveConnection(cs, prm.getHost(), prm.getPort(), prm.serialId(), tcpIdleTimeoutNanos);
+                c.addressFilter = addressFilter;
+                c.beginEvents(prm.getProtocol());
+                c.recordUpload(msg.readableBytes());
+                c.enqueue(msg);
+                cs.putStream(c);
+                scheduleIdleCheck(c, c.idleTimeoutNanos);
+                resolve(c, addresses -> {
+                    //TcpDispatchHandler在竞速胜出后才添加，落选连接的关闭不会影响代理流
+                    Bootstrap b = tcpBootstrapTemplate.newInstance(cs.eventLoop(), ch -> { });
+                    ByteBuf first = tcpFastOpen ? c.msgQueue.peek() : null;
+                    c.connectEvent = FlightRecorderSupport.beginTargetConnect();
+                    c.connector = new HappyEyeballsConnector(b, cs.eventLoop(), addresses,
+                            first != null ? first.retainedDuplicate() : null, future -> connectComplete(c, future));
+                    c.connector.start();
+                });
+            }
+            break;
+
+            case UDP: {
+                ActiveConnection c = new ActiveConnection(cs, prm.getHost(), prm.getPort(), prm.serialId(), udpIdleTimeoutNanos);
+                c.addressFilter = addressFilter;
+                c.beginEvents(prm.getProtocol());
+                c.recordUpload(msg.readableBytes());
+                c.enqueue(msg);
+                cs.putStream(c);
+                scheduleIdleCheck(c, c.idleTimeoutNanos);
+                resolve(c, addresses -> {
+                    c.udpTarget = addresses.get(0);
+                    UdpRelay relay = udpRelays.computeIfAbsent(cs.eventLoop(), loop -> new UdpRelay(loop, udpBootstrapTemplate));
+                    ChannelFuture future = relay.associate(c);
+                    c.future = future;
+                    future.addListener(f -> connectComplete(c, future));
+                });
+            }
+            break;
+
+            case CLOSE:
+                msg.release();
+                break;
+        }
+    }
+
+    /**
+     * 异步解析目标服务器地址，IP地址和hosts文件中的域名不会发出DNS查询，解析结果在客户端会话的EventLoop中回调
+     */
+    private void resolve(ActiveConnection conn, Consumer<List<InetSocketAddress>> action) {
+        EventLoop loop = conn.session.eventLoop();
+        Future<List<InetSocketAddress>> future = parent.getTargetResolver().resolver(loop)
+                .resolveAll(InetSocketAddress.createUnresolved(conn.host(), conn.port()));
+
+        future.addListener(f -> {
+            if (conn.closed) {
+                return;
+            }
+
+            if (!future.isSuccess() || future.getNow().isEmpty()) {
+                if (log.isDebugEnabled())
+                    log.debug("Can not resolve {}", conn.host(), future.cause());
+                connectFailed(conn);
+                return;
+            }
+
+            resolveLatency.record(System.nanoTime() - conn.createNanos);
+            List<InetSocketAddress> addresses = future.getNow();
+            AccessRuleMatcher filter = conn.addressFilter;
+            if (filter != null) {
+                addresses = filterAddresses(filter, addresses, conn.port());
+                if (addresses.isEmpty()) {
+                    if (log.isDebugEnabled())
+                        log.debug("All addresses of {} are denied by access rules", conn.host());
+                    connectFailed(conn);
+                    return;
+                }
+            }
+
+            action.accept(addresses);
+        });
+    }
+
+    /**
+     * 移除被访问规则拒绝的地址，没有地址被拒绝时返回原列表
+     */
+    private static List<InetSocketAddress> filterAddresses(AccessRuleMatcher filter, List<InetSocketAddress> addresses, int port) {
+        List<InetSocketAddress> result = null;
+        for (int i = 0; i < addresses.size(); i++) {
+            InetSocketAddress address = addresses.get(i);
+            if (filter.match(address.getAddress(), port) == AccessRuleMatcher.Decision.DENY) {
+                if (result == null) {
+                    result = new ArrayList<>(addresses.subList(0, i));
+                }
+            } else if (result != null) {
+                result.add(address);
+            }
+        }
+        return result != null ? result : addresses;
+    }
+
+    /**
+     * 目标服务器连接建立(UDP端口绑定)完成后调用，写出连接期间缓存的客户端数据
+     */
+    private void connectComplete(ActiveConnection conn, ChannelFuture future) {
+        //连接可能在doBind返回之前就已经完成
+        HappyEyeballsConnector connector = conn.connector;
+        conn.future = future;
+        conn.connector = null;
+        Channel channel = future.channel();
+        conn.commitConnectEvent(future.isSuccess() && channel.isActive() ? channel.remoteAddress() : null);
+        if (conn.closed) {
+            if (conn.udpSocket == null) {
+                channel.close();
+            }
+            return;
+        }
+
+        if (!future.isSuccess() || !channel.isActive()) { //如果连接没有建立成功，那么向客户端返回一个错误的消息
+            log.warn("Can not connect to {}:{}", conn.host(), conn.port());
+            if (conn.udpSocket == null) {
+                channel.close();
             }
+            connectFailed(conn);
+            return;
+        }
+
+        if (channel instanceof SocketChannel) {
+            channel.pipeline().addLast(new TcpDispatchHandler(conn));
+            openLatency.record(System.nanoTime() - conn.createNanos);
+        }
+        conn.commitOpenEvent(true);
+
+        log.trace("Connect to {}:{} success", conn.host(), conn.port());
+        ByteBuf buf;
+        if (connector != null && connector.isInitialDataSent(channel)) {
+            //首段数据已经随SYN写出，只需要从队列中移除并累计流量控制窗口
+            buf = conn.msgQueue.poll();
+            int length = buf.readableBytes();
+            buf.release();
+            TcpDispatchHandler.releaseWindow(conn.session, conn.serialId(), conn.window(), length);
+        }
+
+        while ((buf = conn.msgQueue.poll()) != null) {
+            conn.write(buf);
+        }
+        conn.queuedBytes = 0;
+        conn.flush();
+        conn.resumeRead();
+    }
 
-            return false;
+
+    /**
+     * 在时间轮中登记代理流的空闲检查。代理流有数据往来时只更新{@link ActiveConnection#lastActiveNanos}，
+     * 到期后再根据最后活跃时间决定关闭连接还是顺延检查，因此每条代理流在时间轮中始终只有一个定时任务
+     */
+    private void scheduleIdleCheck(ActiveConnection conn, long delayNanos) {
+        try {
+            conn.idleTimeout = idleTimer.newTimeout(timeout -> {
+                try {
+                    conn.session.eventLoop().execute(() -> checkIdle(conn));
+                } catch (RejectedExecutionException ignore) {
+                    //EventLoop已经关闭，目标服务器连接会随之关闭
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (IllegalStateException e) {
+            //时间轮已经停止，说明该组件正在关闭
+            conn.idleTimeout = null;
         }
     }
 
-    private final class DispatcherTask implements Runnable, ProxyTaskSubscriber {
+    /**
+     * 空闲检查到期后调用，只在客户端会话的EventLoop中调用
+     */
+    private void checkIdle(ActiveConnection conn) {
+        if (conn.closed) {
+            return;
+        }
 
-        private final Map<ClientSession, ReturnableSet<ActiveConnection>> activeConnectionMap = new LinkedHashMap<>(64);
+        ChannelFuture f = conn.future;
+        if (f == null || !f.isDone()) { //仍在进行域名解析或连接，连接建立之前不会被回收，顺延检查
+            scheduleIdleCheck(conn, conn.idleTimeoutNanos);
+            return;
+        }
 
-        private final BlockingQueue<ProxyTask> taskQueue = new ArrayBlockingQueue<>(1024);
+        if (!f.channel().isOpen()) { //连接建立失败或已经关闭
+            conn.idleTimeout = null;
+            return;
+        }
+
+        long idle = System.nanoTime() - conn.lastActiveNanos;
+        if (idle < conn.idleTimeoutNanos) {
+            scheduleIdleCheck(conn, conn.idleTimeoutNanos - idle);
+            return;
+        }
 
-        private DispatcherTask() {
-            parent.registerSubscriber(this);
+        log.trace("Connection to {}:{} idle timeout", conn.host(), conn.port());
+        conn.idleTimeout = null;
+        if (conn.udpSocket != null) {
+            //UDP代理流只需要从中继的NAT表中移除
+            conn.session.removeStream(conn);
+            conn.close();
+        } else {
+            //与目标服务器连接的关闭回调会通知客户端关闭该代理流
+            f.channel().close();
         }
+    }
+
+
+    /**
+     * 域名解析或连接失败，向客户端返回一个错误的消息
+     */
+    private void connectFailed(ActiveConnection conn) {
+        conn.session.removeStream(conn);
+        conn.cancelIdleCheck();
+        conn.releaseQueue();
+        if (conn.udpSocket != null) {
+            conn.udpSocket.remove(conn);
+        }
+        writeFailureResponse(conn.session, conn.serialId());
+    }
+
+
+    private void writeFailureResponse(ClientSession session, int serialId) {
+        try {
+            session.writeAndFlushMessage(session.createFailureMessage(serialId));
+        } catch (IllegalStateException e) {
+            if (log.isTraceEnabled())
+                log.trace("Client from {} has disconnect.", session.remoteAddress().getAddress());
+        }
+    }
+
+
+    /**
+     * 代理流与目标服务器连接，所有字段只在客户端会话的EventLoop中访问
+     */
+    static final class ActiveConnection extends ProxyStream {
+        private static final Logger log = LoggerFactory.getLogger(ActiveConnection.class);
+
+        final ClientSession session;    //所属客户端会话
+        ChannelFuture future;           //该连接的ChannelFuture，域名解析和连接竞速期间为null
+        HappyEyeballsConnector connector; //正在进行的TCP连接竞速
+        final Queue<ByteBuf> msgQueue;  //若上述future持有的Channel尚未Active，则该队列负责保存该连接的客户端数据
+        int queuedBytes;                //msgQueue中缓存的字节数
+        InetSocketAddress udpTarget;    //UDP目标地址，分配中继端口前解析
+        UdpRelay.RelaySocket udpSocket; //UDP代理流所在的中继端口
+        boolean closed;                 //是否已经被关闭
+        final long createNanos;         //收到代理请求的时间
+        final long idleTimeoutNanos;    //空闲超时时间
+        long lastActiveNanos;           //最后一次收发数据的时间
+        Timeout idleTimeout;            //时间轮中的空闲检查任务
+        long throttleDeadline;          //因下载限速暂停读取目标服务器数据的截止时间
+        boolean throttleScheduled;      //是否已经安排了限速结束后恢复读取的任务
+        AccessRuleMatcher addressFilter; //目标为域名且未命中访问规则时，用于过滤解析得到的地址
+        //以下为JFR事件，未开启记录时为null，提交后置为null
+        StreamOpenEvent openEvent;
+        TargetConnectEvent connectEvent;
+        StreamFirstByteEvent firstByteEvent;
+        StreamCloseEvent closeEvent;
+
+        ActiveConnection(ClientSession session, String host, int port, int clientSerialId, long idleTimeoutNanos) {
+            super(clientSerialId, host, port);
+            this.session = session;
+            this.msgQueue = new ArrayDeque<>(4);
+            this.idleTimeoutNanos = idleTimeoutNanos;
+            this.createNanos = System.nanoTime();
+            this.lastActiveNanos = createNanos;
+        }
+
+        /**
+         * 开始记录代理流的JFR事件
+         */
+        void beginEvents(ProxyRequestMessage.Protocol protocol) {
+            StreamOpenEvent open = FlightRecorderSupport.beginStreamOpen();
+            if (open != null) {
+                open.protocol = protocol.name();
+            }
+            this.openEvent = open;
+            this.firstByteEvent = FlightRecorderSupport.beginStreamFirstByte();
+            this.closeEvent = FlightRecorderSupport.beginStreamClose();
+        }
+
+        /**
+         * @param bytes 客户端发往目标服务器的字节数
+         */
+        void recordUpload(int bytes) {
+            StreamCloseEvent event = this.closeEvent;
+            if (event != null) {
+                event.uploadBytes += bytes;
+            }
+        }
+
+        /**
+         * @param bytes 目标服务器返回的字节数
+         */
+        void recordDownload(int bytes) {
+            StreamFirstByteEvent first = this.firstByteEvent;
+            if (first != null) {
+                this.firstByteEvent = null;
+                first.host = host();
+                first.port = port();
+                first.serialId = serialId();
+                first.bytes = bytes;
+                first.commit();
+            }
 
+            StreamCloseEvent event = this.closeEvent;
+            if (event != null) {
+                event.downloadBytes += bytes;
+            }
+        }
+
+        void commitOpenEvent(boolean success) {
+            StreamOpenEvent event = this.openEvent;
+            if (event != null) {
+                this.openEvent = null;
+                event.host = host();
+                event.port = port();
+                event.serialId = serialId();
+                event.success = success;
+                event.commit();
+            }
+        }
+
+        /**
+         * @param address 连接成功的目标服务器地址，连接失败时为null
+         */
+        void commitConnectEvent(SocketAddress address) {
+            TargetConnectEvent event = this.connectEvent;
+            if (event != null) {
+                this.connectEvent = null;
+                event.host = host();
+                event.port = port();
+                event.serialId = serialId();
+                event.address = address != null ? address.toString() : "";
+                event.success = address != null;
+                event.commit();
+            }
+        }
+
+        /**
+         * 从会话中移除时提交关闭事件，尚未建立完成的代理流同时提交失败的建立事件
+         */
         @Override
-        public void run() {
-            try {
-                final Thread thread = Thread.currentThread();
-                while (!thread.isInterrupted()) {
-                    final ProxyTask task = taskQueue.poll(1, TimeUnit.MILLISECONDS);
-                    if (task == null) {
-                        checkoutConnection();
-                        continue;
-                    }
+        protected void removed() {
+            commitOpenEvent(false);
+            StreamCloseEvent event = this.closeEvent;
+            if (event != null) {
+                this.closeEvent = null;
+                this.firstByteEvent = null;
+                event.host = host();
+                event.port = port();
+                event.serialId = serialId();
+                event.commit();
+            }
+        }
 
-                    if (log.isTraceEnabled())
-                        log.trace("Receive ProxyTask at DispatcherTask thread");
+        /**
+         * 取消时间轮中的空闲检查任务
+         */
+        void cancelIdleCheck() {
+            Timeout timeout = this.idleTimeout;
+            if (timeout != null) {
+                timeout.cancel();
+                this.idleTimeout = null;
+            }
+        }
 
+        /**
+         * 缓存客户端数据
+         *
+         * @return 缓存是否成功，若超出{@link #MAX_QUEUED_BYTES}则返回false且不会持有该ByteBuf
+         */
+        @Override
+        public void upload(ByteBuf data) {
+            ChannelFuture f = this.future;
+            if (f == null || !f.isDone()) { //如果正处于域名解析或连接状态
+                recordUpload(data.readableBytes());
+                if (!enqueue(data)) {
+                    log.warn("Too many pending bytes to {}:{}, close the connection", host(), port());
+                    session.removeStream(this);
+                    close();
                     try {
-                        final ProxyRequestMessage prm = task.getRequestMessage();
-                        final ClientSession cs = task.session();
-
-                        if (!cs.isActive()) {
-                            continue;
-                        }
-
-                        final ReturnableSet<ActiveConnection> set = activeConnectionMap.computeIfAbsent(cs,
-                                key -> new ReturnableLinkedHashSet<>(128));
-
-                        final String host = prm.getHost();
-                        final int port = prm.getPort();
-
-                        ActiveConnection conn = new ActiveConnection(host, port, prm.serialId());
-                        ActiveConnection sconn;
-                        if ((sconn = set.getIfContains(conn)) != null) {
-                            conn = sconn;
-                        }
-
-                        if (sconn != null) {
-                            if (prm.getProtocol() == ProxyRequestMessage.Protocol.CLOSE) {
-                                conn.future.channel().close();
-                                set.remove(conn);
-                                continue;
-                            }
-
-                            ChannelFuture f = conn.future;
-                            Channel c = f.channel();
-                            if (f.isDone() && f.isSuccess()) { //如果连接成功
-                                if (c.isActive()) { //如果连接仍处于活跃状态
-                                    ByteBuf buf;
-                                    while ((buf = conn.msgQueue.poll()) != null) {  //优先处理消息队列中的消息,保证其顺序
-                                        c.write(buf);
-                                    }
-                                    c.writeAndFlush(prm.getMessage());
-                                    conn.lastActiveTime = System.currentTimeMillis();
-                                }
-                            } else if (!f.isDone()) { //如果正处于连接状态
-                                conn.msgQueue.add(prm.getMessage());
-                            } else { //如果连接建立失败
-                                set.remove(conn);
-                            }
-                        } else {
-                            switch (prm.getProtocol()) {
-                                case TCP: {
-                                    conn.future = tcpBootstrapTemplate.doConnect(host, port, new TcpDispatchHandler(task),
-                                            future -> {
-                                                if (!future.isSuccess()) { //如果连接没有建立成功，那么向客户端返回一个错误的消息
-                                                    log.warn("Can not connect to {}:{}", host, port);
-                                                    writeFailureResponse(cs, prm);
-                                                } else {
-                                                    log.trace("Connect to {}:{} success", host, port);
-                                                }
-                                            });
-                                    set.add(conn);
-                                }
-                                break;
-
-                                case UDP: {
-                                    conn.future = udpBootstrapTemplate.doBind(0, new UdpDispatchHandler(task),
-                                            future -> {
-                                                if (!future.isSuccess()) {
-                                                    log.warn("Can not bind UDP Port");
-                                                    writeFailureResponse(cs, prm);
-                                                } else {
-                                                    log.trace("Bind UDP Port success, ready to send packet to {}:{}", host, port);
-                                                }
-                                            });
-                                    set.add(conn);
-                                }
-                                break;
-
-                                case CLOSE: break;
-                            }
-                        }
-
-                        checkoutConnection();
-                    } catch (Exception e) {
-                        if (log.isWarnEnabled())
-                            log.warn("Exception occur, at RequestReceiver thread", e);
+                        session.writeAndFlushMessage(session.createFailureMessage(serialId()));
+                    } catch (IllegalStateException ignore) {
+                        //客户端连接已经关闭
                     }
                 }
-            } catch (InterruptedException e) {
-                if (log.isInfoEnabled())
-                    log.info("RequestReceiver interrupt, from {}", getName());
-            } finally {
-                parent.removeSubscriber(this);
+            } else if (f.isSuccess() && f.channel().isActive()) { //如果连接成功且仍处于活跃状态
+                recordUpload(data.readableBytes());
+                lastActiveNanos = System.nanoTime();
+                write(data);
+                flush();
+            } else { //如果连接建立失败或已经关闭
+                data.release();
+                session.removeStream(this);
             }
         }
 
-        @Override
-        public void receive(ProxyTask task) {
-            Objects.requireNonNull(task);
-            taskQueue.add(task);
+        boolean enqueue(ByteBuf buf) {
+            int bytes = queuedBytes + buf.readableBytes();
+            if (bytes > MAX_QUEUED_BYTES) {
+                buf.release();
+                return false;
+            }
+
+            queuedBytes = bytes;
+            msgQueue.add(buf);
+            return true;
         }
 
+        /**
+         * 将客户端数据写入目标服务器连接(不执行flush)
+         */
+        void write(ByteBuf buf) {
+            if (udpSocket != null) {
+                udpSocket.write(new DatagramPacket(buf, udpTarget));
+            } else {
+                TcpDispatchHandler.writeClientMessage(future.channel(), buf, session, serialId(), window());
+            }
+        }
 
-        private void writeFailureResponse(ClientSession session, ProxyRequestMessage request) {
-            ProxyResponseMessage resp = new ProxyResponseMessage(request.serialId());
-            resp.setState(ProxyResponseMessage.State.FAILURE);
-            try {
-                session.writeAndFlushMessage(resp.serialize(PooledByteBufAllocator.DEFAULT));
-            } catch (SerializationException e) {  //不应该发生
-                log.error("Serialize FailureResponse occur a exception", e);
-            } catch (IllegalStateException e) {
-                if (log.isTraceEnabled())
-                    log.trace("Client from {} has disconnect.", session.remoteAddress().getAddress());
+        /**
+         * TCP连接立即flush，UDP中继端口在当前任务完成后统一flush
+         */
+        void flush() {
+            if (udpSocket != null) {
+                udpSocket.scheduleFlush();
+            } else {
+                future.channel().flush();
             }
         }
 
         /**
-         * 检查ActiveConnection对象
+         * 释放msgQueue中所有缓存的客户端数据
          */
-        private void checkoutConnection() {
-            Iterator<Map.Entry<ClientSession, ReturnableSet<ActiveConnection>>> it = activeConnectionMap.entrySet().iterator();
-            it.forEachRemaining(entry -> {
-                ClientSession session = entry.getKey();
-                ReturnableSet<ActiveConnection> set = entry.getValue();
-                boolean remove = checkoutConnection0(session, set);
-                if (remove) {
-                    it.remove();
-                }
-            });
+        void releaseQueue() {
+            ByteBuf buf;
+            while ((buf = msgQueue.poll()) != null) {
+                buf.release();
+            }
+            queuedBytes = 0;
         }
 
+        @Override
+        public void resumeRead() {
+            ChannelFuture f = this.future;
+            if (closed || f == null || !f.isSuccess()) {
+                return;
+            }
 
-        private boolean checkoutConnection0(ClientSession session, ReturnableSet<ActiveConnection> connectionSet) {
-            if (!session.isActive()) {
-                //清除连接中断的客户端中所有ActiveConnection的msgQueue队列中的ByteBuf对象
-                connectionSet.forEach(ac -> {
-                    if (!ac.msgQueue.isEmpty()) {
-                        ac.msgQueue.forEach(ByteBuf::release);
-                    }
-                });
-                return true;
-            }
-
-            long now = System.currentTimeMillis();
-            Iterator<ActiveConnection> it = connectionSet.iterator();
-            while (it.hasNext()) {
-                ActiveConnection ac = it.next();
-                if (ac.future.isDone()) {
-                    //如果已经建立过连接但是该连接已经不活跃了，那么清除这个ActiveConnection
-                    if (!ac.future.channel().isActive()) {
-                        if (!ac.msgQueue.isEmpty()) {
-                            ac.msgQueue.forEach(ByteBuf::release);
-                        }
-                        it.remove();
-                    } else {
-                        Channel ch = ac.future.channel();
-                        if (ac.msgQueue.isEmpty() && now - ac.lastActiveTime > DEFAULT_TIMEOUT) {
-                            ch.close();
-                            it.remove();
-                        } else {
-                            if (ch instanceof SocketChannel) {
-                                ByteBuf buf;
-                                while ((buf = ac.msgQueue.poll()) != null) {
-                                    ch.write(buf);
-                                }
-                                ch.flush();
-                                if (session.isWriteable()) {
-                                    ch.read();
-                                }
-                                ac.lastActiveTime = now;
-                            } else if (ch instanceof DatagramChannel) {
-                                InetSocketAddress addr = new InetSocketAddress(ac.host, ac.port);
-                                ByteBuf buf;
-                                while ((buf = ac.msgQueue.poll()) != null)
-                                    ch.write(new DatagramPacket(buf, addr));
-                                ch.flush();
-                                ac.lastActiveTime = now;
-                            } else {
-                                log.error("Unsupport Channel type: {}", ch.getClass().getName());
-                            }
-                        }
-                    }
+            Channel ch = f.channel();
+            if (!(ch instanceof SocketChannel) || !ch.isActive()) {
+                return;
+            }
+
+            //客户端连接不可写时暂停读取，由ClientSession在客户端连接恢复可写后恢复
+            if (!session.isWriteable()) {
+                session.suspendStream(this);
+                return;
+            }
+
+            //客户端声明支持流量控制时，只有该代理流还有剩余信用才继续读取目标服务器的数据，否则等待窗口更新消息
+            if (session.isFlowControlEnabled() && !window().hasCredit()) {
+                return;
+            }
+
+            //下载限速期间不读取，到期后重新检查上述条件
+            long delay = throttleDeadline - System.nanoTime();
+            if (delay > 0) {
+                if (!throttleScheduled) {
+                    throttleScheduled = true;
+                    ch.eventLoop().schedule(() -> {
+                        throttleScheduled = false;
+                        resumeRead();
+                    }, delay, TimeUnit.NANOSECONDS);
                 }
+                return;
+            }
+
+            ch.read();
+        }
+
+        /**
+         * 从目标服务器读取数据后按限速份额计算需要暂停读取的时间
+         *
+         * @param bytes 读取的字节数
+         */
+        void throttleRead(int bytes) {
+            TrafficShaper.Share share = session.trafficShare();
+            if (share == null) {
+                return;
             }
 
-            return false;
+            long wait = share.acquireDownload(bytes);
+            if (wait > 0) {
+                throttleDeadline = Math.max(throttleDeadline, System.nanoTime() + wait);
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            cancelIdleCheck();
+            releaseQueue();
+            if (udpSocket != null) {
+                udpSocket.remove(this);
+            } else if (future != null) {
+                future.channel().close();
+            } else if (connector != null) {
+                connector.cancel();
+                connector = null;
+            }
         }
     }
 }
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.core.dispatch;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 双栈连接竞速(参考RFC 8305 Happy Eyeballs)：按照IPv4/IPv6交替的顺序依次向目标服务器的各个地址发起连接，
+ * 上一个连接尝试在{@link #ATTEMPT_DELAY_MILLIS}毫秒内没有结果或者已经失败时立即发起下一个，
+ * 最先建立成功的连接胜出，其余连接尝试全部关闭
+ *
+ * 开启TCP Fast Open时，第一个连接尝试会在连接建立前写入首段数据，由内核随SYN一起发出，
+ * 其余连接尝试不携带数据，由调用方在连接建立后自行写出
+ *
+ * 所有方法只在连接所属的EventLoop中调用
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/20 16:05
+ */
+final class HappyEyeballsConnector implements ChannelFutureListener {
+
+    /**
+     * 两次连接尝试之间的间隔(毫秒)
+     */
+    static final long ATTEMPT_DELAY_MILLIS = 250L;
+
+    private final Bootstrap bootstrap;
+
+    private final EventLoop eventLoop;
+
+    private final List<InetSocketAddress> addresses;
+
+    /**
+     * 连接建立成功时回调胜出的ChannelFuture，全部失败时回调最后一个失败的ChannelFuture，取消后不会回调
+     */
+    private final Consumer<ChannelFuture> callback;
+
+    private final List<ChannelFuture> attempts;
+
+    /**
+     * 随第一个连接尝试的SYN发出的数据，交给第一个连接尝试后置为null
+     */
+    private ByteBuf initialData;
+
+    /**
+     * 携带首段数据的连接
+     */
+    private Channel initialDataChannel;
+
+    /**
+     * 下一个尝试连接的地址下标
+     */
+    private int next;
+
+    /**
+     * 尚未完成的连接尝试数量
+     */
+    private int inFlight;
+
+    private ScheduledFuture<?> delayTask;
+
+    private boolean done;
+
+
+    /**
+     * @param bootstrap 已经指定EventLoop的引导对象
+     * @param addresses 目标服务器的全部地址，不能为空
+     * @param initialData 随第一个连接尝试的SYN发出的数据，由该对象负责释放，不使用TCP Fast Open时为null
+     * @param callback  连接结果回调
+     */
+    HappyEyeballsConnector(Bootstrap bootstrap, EventLoop eventLoop, List<InetSocketAddress> addresses,
+                           ByteBuf initialData, Consumer<ChannelFuture> callback) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("No address to connect");
+        }
+
+        this.bootstrap = bootstrap;
+        this.eventLoop = eventLoop;
+        this.addresses = interleave(addresses);
+        this.initialData = initialData;
+        this.callback = callback;
+        this.attempts = new ArrayList<>(this.addresses.size());
+    }
+
+    /**
+     * 按照地址族交替排列，首个地址的地址族(由解析器的首选地址类型决定)优先
+     */
+    private static List<InetSocketAddress> interleave(List<InetSocketAddress> addresses) {
+        if (addresses.size() == 1) {
+            return addresses;
+        }
+
+        boolean preferV6 = addresses.get(0).getAddress() instanceof Inet6Address;
+        List<InetSocketAddress> preferred = new ArrayList<>(addresses.size());
+        List<InetSocketAddress> other = new ArrayList<>(addresses.size());
+        for (InetSocketAddress address : addresses) {
+            if ((address.getAddress() instanceof Inet6Address) == preferV6) {
+                preferred.add(address);
+            } else {
+                other.add(address);
+            }
+        }
+
+        List<InetSocketAddress> result = new ArrayList<>(addresses.size());
+        for (int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+            if (i < preferred.size()) {
+                result.add(preferred.get(i));
+            }
+            if (i < other.size()) {
+                result.add(other.get(i));
+            }
+        }
+        return result;
+    }
+
+
+    void start() {
+        connectNext();
+    }
+
+    private void connectNext() {
+        cancelDelayTask();
+        if (done || next >= addresses.size()) {
+            return;
+        }
+
+        InetSocketAddress address = addresses.get(next++);
+        ByteBuf data = this.initialData;
+        ChannelFuture future;
+        if (data != null) {
+            this.initialData = null;
+            future = connectWithData(address, data);
+            initialDataChannel = future.channel();
+        } else {
+            future = bootstrap.connect(address);
+        }
+
+        attempts.add(future);
+        inFlight++;
+        future.addListener(this);
+
+        if (!done && next < addresses.size()) {
+            delayTask = eventLoop.schedule(this::connectNext, ATTEMPT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 先注册Channel并写入数据再发起连接，开启TCP_FASTOPEN_CONNECT的Channel会将待写出的数据随SYN发出
+     */
+    private ChannelFuture connectWithData(InetSocketAddress address, ByteBuf data) {
+        ChannelFuture regFuture = bootstrap.register();
+        if (regFuture.isDone() && !regFuture.isSuccess()) {
+            data.release();
+            return regFuture;
+        }
+
+        Channel channel = regFuture.channel();
+        ChannelPromise promise = channel.newPromise();
+        regFuture.addListener(f -> {
+            if (!f.isSuccess()) {
+                data.release();
+                promise.setFailure(f.cause());
+                return;
+            }
+
+            channel.write(data, channel.voidPromise());
+            channel.connect(address, promise);
+        });
+        return promise;
+    }
+
+    /**
+     * @return 该连接是否在连接建立前写入了首段数据
+     */
+    boolean isInitialDataSent(Channel channel) {
+        return channel == initialDataChannel;
+    }
+
+    @Override
+    public void operationComplete(ChannelFuture future) {
+        inFlight--;
+        if (done) {
+            future.channel().close();
+            return;
+        }
+
+        if (future.isSuccess()) {
+            done = true;
+            cancelDelayTask();
+            for (ChannelFuture attempt : attempts) {
+                if (attempt != future) {
+                    attempt.channel().close();
+                }
+            }
+            attempts.clear();
+            callback.accept(future);
+            return;
+        }
+
+        if (next < addresses.size()) {
+            connectNext();
+        } else if (inFlight == 0) {
+            done = true;
+            attempts.clear();
+            callback.accept(future);
+        }
+    }
+
+    /**
+     * 放弃连接，关闭所有连接尝试
+     */
+    void cancel() {
+        if (done) {
+            return;
+        }
+
+        done = true;
+        cancelDelayTask();
+        for (ChannelFuture attempt : attempts) {
+            attempt.channel().close();
+        }
+        attempts.clear();
+    }
+
+    private void cancelDelayTask() {
+        ScheduledFuture<?> task = this.delayTask;
+        if (task != null) {
+            task.cancel(false);
+            this.delayTask = null;
+        }
+    }
+}
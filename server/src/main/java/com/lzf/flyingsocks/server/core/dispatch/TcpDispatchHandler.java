@@ -21,9 +21,13 @@
  */
 package com.lzf.flyingsocks.server.core.dispatch;
 
-import com.lzf.flyingsocks.protocol.ProxyResponseMessage;
-import com.lzf.flyingsocks.server.core.ProxyTask;
+import com.lzf.flyingsocks.misc.FlowControlWindow;
+import com.lzf.flyingsocks.protocol.ProtocolVersion;
+import com.lzf.flyingsocks.protocol.StreamMessage;
+import com.lzf.flyingsocks.protocol.WindowUpdateMessage;
+import com.lzf.flyingsocks.server.core.ClientSession;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.util.ReferenceCountUtil;
@@ -40,16 +44,16 @@ class TcpDispatchHandler extends ChannelInboundHandlerAdapter {
 
     private static final Logger log = LoggerFactory.getLogger(TcpDispatchHandler.class);
 
-    private final ProxyTask proxyTask;
+    private final DispatchProceessor.ActiveConnection conn;
 
-    TcpDispatchHandler(ProxyTask task) {
-        this.proxyTask = task;
+    TcpDispatchHandler(DispatchProceessor.ActiveConnection conn) {
+        this.conn = conn;
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         if (cause instanceof IOException) {
-            log.info("Target remote host {}:{} close, cause IOException", host(), port());
+            log.info("Target remote host {}:{} close, cause IOException", conn.host(), conn.port());
         } else {
             log.warn("DispathcerHandelr occur a exception", cause);
         }
@@ -57,14 +61,21 @@ class TcpDispatchHandler extends ChannelInboundHandlerAdapter {
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
-        log.trace("Connection close by {}:{}", host(), port());
-    }
+        log.trace("Connection close by {}:{}", conn.host(), conn.port());
 
-    @Override
-    public void channelActive(ChannelHandlerContext ctx) {
-        ByteBuf buf = proxyTask.getRequestMessage().getMessage();
-        ctx.writeAndFlush(buf);
-        ctx.fireChannelActive();
+        ClientSession session = conn.session;
+        session.removeStream(conn);
+        conn.cancelIdleCheck();
+        conn.releaseQueue();
+
+        //协议版本2可以通知客户端关闭该代理流，由客户端主动关闭的代理流无需通知
+        if (!conn.closed && session.protocolVersion() >= ProtocolVersion.V2 && session.isActive()) {
+            try {
+                session.writeAndFlushMessage(StreamMessage.close(conn.serialId(), false));
+            } catch (IllegalStateException ignore) {
+                //客户端连接已经关闭
+            }
+        }
     }
 
     @Override
@@ -81,13 +92,16 @@ class TcpDispatchHandler extends ChannelInboundHandlerAdapter {
     }
 
     protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) {
-        log.trace("Receive from {}:{} response.", host(), port());
+        log.trace("Receive from {}:{} response.", conn.host(), conn.port());
 
-        ProxyResponseMessage prm = new ProxyResponseMessage(proxyTask.getRequestMessage().serialId());
-        prm.setState(ProxyResponseMessage.State.SUCCESS);
-        prm.setMessage(msg.retain());
+        int length = msg.readableBytes();
+        ClientSession session = conn.session;
+        conn.lastActiveNanos = System.nanoTime();
+        conn.recordDownload(length);
         try {
-            proxyTask.session().writeAndFlushMessage(prm);
+            session.writeAndFlushMessage(session.createDataMessage(conn.serialId(), msg.retain()));
+            conn.window().consume(length);
+            conn.throttleRead(length);
         } catch (IllegalStateException e) {
             log.debug("Remote client connection closed", e);
             msg.release();
@@ -95,13 +109,52 @@ class TcpDispatchHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        //目标服务器连接关闭了自动读取，客户端连接可写、仍有信用且未被限速时继续读取，否则等待ClientSession恢复
+        conn.resumeRead();
+        ctx.fireChannelReadComplete();
+    }
+
+
+    /**
+     * 将客户端数据写入目标服务器连接(不执行flush)，写出成功后累计窗口，必要时向客户端发送窗口更新消息
+     *
+     * @param channel  目标服务器连接
+     * @param buf      客户端数据
+     * @param session  客户端会话
+     * @param serialId 客户端代理请求序列号
+     * @param window   该代理流的流量控制窗口
+     */
+    static void writeClientMessage(Channel channel, ByteBuf buf, ClientSession session, int serialId, FlowControlWindow window) {
+        if (!session.isFlowControlEnabled()) {
+            channel.write(buf, channel.voidPromise());
+            return;
+        }
 
-    private int port() {
-        return proxyTask.getRequestMessage().getPort();
+        int length = buf.readableBytes();
+        channel.write(buf).addListener(future -> {
+            if (future.isSuccess()) {
+                releaseWindow(session, serialId, window, length);
+            }
+        });
     }
 
+    /**
+     * 客户端数据写出后累计窗口，必要时向客户端发送窗口更新消息，客户端未开启流量控制时不做任何处理
+     */
+    static void releaseWindow(ClientSession session, int serialId, FlowControlWindow window, int length) {
+        if (!session.isFlowControlEnabled()) {
+            return;
+        }
 
-    private String host() {
-        return proxyTask.getRequestMessage().getHost();
+        int increment = window.release(length);
+        if (increment > 0) {
+            try {
+                session.writeAndFlushMessage(new WindowUpdateMessage(serialId, increment));
+            } catch (IllegalStateException ignore) {
+                //客户端连接已经关闭
+            }
+        }
     }
 }
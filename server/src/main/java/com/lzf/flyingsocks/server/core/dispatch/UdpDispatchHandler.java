@@ -21,8 +21,9 @@
  */
 package com.lzf.flyingsocks.server.core.dispatch;
 
-import com.lzf.flyingsocks.protocol.ProxyResponseMessage;
-import com.lzf.flyingsocks.server.core.ProxyTask;
+import com.lzf.flyingsocks.protocol.ServiceStageMessage;
+import com.lzf.flyingsocks.server.core.ClientSession;
+import com.lzf.flyingsocks.server.core.TrafficShaper;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
@@ -31,9 +32,15 @@ import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 
 /**
+ * UDP中继端口的处理器，按照发送方地址将目标服务器返回的数据报转发给对应的代理流，
+ * 一次读取的所有数据报写出后再统一flush客户端连接
+ *
  * @author lzf abc123lzf@126.com
  * @since 2021/1/19 19:55
  */
@@ -41,24 +48,25 @@ class UdpDispatchHandler extends ChannelInboundHandlerAdapter {
 
     private static final Logger log = LoggerFactory.getLogger(UdpDispatchHandler.class);
 
-    private final ProxyTask proxyTask;
-
-    private final String host;
+    private final UdpRelay.RelaySocket socket;
 
-    private final int port;
+    /**
+     * 本次读取中写入了数据但尚未flush的客户端会话
+     */
+    private final Set<ClientSession> pendingFlush = Collections.newSetFromMap(new IdentityHashMap<>());
 
-    UdpDispatchHandler(ProxyTask task) {
-        this.proxyTask = task;
-        this.host = proxyTask.getRequestMessage().getHost();
-        this.port = proxyTask.getRequestMessage().getPort();
+    UdpDispatchHandler(UdpRelay.RelaySocket socket) {
+        this.socket = socket;
     }
 
     @Override
-    public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        ByteBuf buf = proxyTask.getRequestMessage().getMessage();
-        DatagramPacket packet = new DatagramPacket(buf, new InetSocketAddress(host, port));
-        ctx.writeAndFlush(packet);
-        super.channelActive(ctx);
+    public void channelInactive(ChannelHandlerContext ctx) {
+        List<DispatchProceessor.ActiveConnection> list = socket.closed();
+        for (DispatchProceessor.ActiveConnection conn : list) {
+            conn.session.removeStream(conn);
+            conn.cancelIdleCheck();
+            conn.releaseQueue();
+        }
     }
 
 
@@ -76,16 +84,53 @@ class UdpDispatchHandler extends ChannelInboundHandlerAdapter {
     }
 
     protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket msg) throws Exception {
-        log.trace("Receive from {}:{} Datagram.", host, port);
+        DispatchProceessor.ActiveConnection conn = socket.association(msg.sender());
+        if (conn == null || conn.closed) {
+            if (log.isTraceEnabled())
+                log.trace("Drop datagram from {}, no association", msg.sender());
+            return;
+        }
+
+        log.trace("Receive from {}:{} Datagram.", conn.host(), conn.port());
+
+        //批量读取时数据报是同一块大缓冲区的切片，复制出来以免该缓冲区被客户端连接的写队列长时间占用
+        ByteBuf content = msg.content();
+        ByteBuf data = ctx.alloc().buffer(content.readableBytes());
+        data.writeBytes(content);
 
-        ProxyResponseMessage prm = new ProxyResponseMessage(proxyTask.getRequestMessage().serialId());
-        prm.setState(ProxyResponseMessage.State.SUCCESS);
-        prm.setMessage(msg.content().retain());
+        ClientSession session = conn.session;
+        conn.lastActiveNanos = System.nanoTime();
+        conn.recordDownload(data.readableBytes());
+        //中继端口由多个代理流共享，无法单独暂停读取，只扣减令牌，透支的部分由该用户的TCP代理流偿还
+        TrafficShaper.Share share = session.trafficShare();
+        if (share != null) {
+            share.acquireDownload(data.readableBytes());
+        }
+
+        ServiceStageMessage message = session.createDataMessage(conn.serialId(), data);
         try {
-            proxyTask.session().writeAndFlushMessage(prm.serialize(ctx.alloc()));
+            session.writeMessage(message);
+            pendingFlush.add(session);
         } catch (IllegalStateException e) {
-            ctx.close();
+            ReferenceCountUtil.release(message.detachPayload());
+            message.recycle();
+            session.removeStream(conn);
+            conn.close();
         }
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (!pendingFlush.isEmpty()) {
+            for (ClientSession session : pendingFlush) {
+                try {
+                    session.flushMessage();
+                } catch (IllegalStateException ignore) {
+                    //客户端连接已经关闭
+                }
+            }
+            pendingFlush.clear();
+        }
+        ctx.fireChannelReadComplete();
+    }
 }
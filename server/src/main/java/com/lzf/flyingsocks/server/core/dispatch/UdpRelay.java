@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.core.dispatch;
+
+import com.lzf.flyingsocks.misc.BootstrapTemplate;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.DatagramPacket;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * UDP中继，每个EventLoop一个实例，该EventLoop上所有客户端会话的UDP代理流共用一小组UDP端口
+ *
+ * 每个端口维护一张NAT表，Key为目标地址，Value为代理流，同一个端口上一个目标地址只能对应一条代理流，
+ * 因此为代理流分配端口时选择第一个尚未与该目标地址关联的端口，所有端口都已关联时再绑定新的端口。
+ * 目标服务器返回的数据报按照发送方地址在NAT表中查找对应的代理流，找不到时丢弃。
+ * 关联的过期由代理流的空闲检查负责，代理流关闭时从NAT表中移除
+ *
+ * 所有方法只在该EventLoop中调用
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/21 15:40
+ */
+final class UdpRelay {
+
+    private final EventLoop eventLoop;
+
+    private final BootstrapTemplate bootstrapTemplate;
+
+    /**
+     * 已绑定(或正在绑定)的端口，第一个端口在NAT表为空时也不会关闭
+     */
+    private final List<RelaySocket> sockets = new ArrayList<>(4);
+
+    private boolean closed;
+
+
+    UdpRelay(EventLoop eventLoop, BootstrapTemplate bootstrapTemplate) {
+        this.eventLoop = eventLoop;
+        this.bootstrapTemplate = bootstrapTemplate;
+    }
+
+
+    /**
+     * 为代理流分配端口并登记到该端口的NAT表中，代理流的目标地址必须已经解析完成
+     *
+     * @return 端口的绑定结果
+     */
+    ChannelFuture associate(DispatchProceessor.ActiveConnection conn) {
+        if (closed) {
+            throw new IllegalStateException("UdpRelay closed");
+        }
+
+        InetSocketAddress target = conn.udpTarget;
+        RelaySocket socket = null;
+        for (RelaySocket s : sockets) {
+            if (!s.nat.containsKey(target)) {
+                socket = s;
+                break;
+            }
+        }
+
+        if (socket == null) {
+            socket = newSocket();
+        }
+
+        socket.nat.put(target, conn);
+        conn.udpSocket = socket;
+        return socket.bindFuture;
+    }
+
+
+    private RelaySocket newSocket() {
+        RelaySocket socket = new RelaySocket();
+        sockets.add(socket);
+        socket.bindFuture = bootstrapTemplate.doBind(eventLoop, 0,
+                ch -> ch.pipeline().addLast(new UdpDispatchHandler(socket)), future -> {
+                    if (!future.isSuccess()) {
+                        sockets.remove(socket);
+                    }
+                });
+        return socket;
+    }
+
+
+    EventLoop eventLoop() {
+        return eventLoop;
+    }
+
+    /**
+     * 关闭所有端口
+     */
+    void close() {
+        closed = true;
+        for (RelaySocket socket : new ArrayList<>(sockets)) {
+            socket.bindFuture.channel().close();
+        }
+    }
+
+
+    /**
+     * 中继使用的一个UDP端口
+     */
+    final class RelaySocket {
+
+        /**
+         * NAT表，Key为目标地址
+         */
+        private final Map<InetSocketAddress, DispatchProceessor.ActiveConnection> nat = new HashMap<>();
+
+        private ChannelFuture bindFuture;
+
+        /**
+         * 是否已经提交了flush任务
+         */
+        private boolean flushPending;
+
+        private final Runnable flushTask = () -> {
+            flushPending = false;
+            bindFuture.channel().flush();
+        };
+
+
+        /**
+         * @return 与该发送方地址关联的代理流
+         */
+        DispatchProceessor.ActiveConnection association(InetSocketAddress sender) {
+            return nat.get(sender);
+        }
+
+        /**
+         * 写出数据报(不执行flush)
+         */
+        void write(DatagramPacket packet) {
+            Channel channel = bindFuture.channel();
+            channel.write(packet, channel.voidPromise());
+        }
+
+        /**
+         * 在当前任务执行完成后统一flush，同一批客户端数据产生的数据报可以通过一次系统调用(sendmmsg)发出
+         */
+        void scheduleFlush() {
+            if (!flushPending) {
+                flushPending = true;
+                eventLoop.execute(flushTask);
+            }
+        }
+
+        /**
+         * 从NAT表中移除该代理流，非第一个端口的NAT表为空时关闭该端口
+         */
+        void remove(DispatchProceessor.ActiveConnection conn) {
+            if (nat.get(conn.udpTarget) != conn) {
+                return;
+            }
+
+            nat.remove(conn.udpTarget);
+            if (nat.isEmpty() && !sockets.isEmpty() && sockets.get(0) != this) {
+                sockets.remove(this);
+                bindFuture.channel().close();
+            }
+        }
+
+        /**
+         * 端口关闭后调用，返回并清空NAT表中所有的代理流
+         */
+        List<DispatchProceessor.ActiveConnection> closed() {
+            sockets.remove(this);
+            List<DispatchProceessor.ActiveConnection> list = new ArrayList<>(nat.values());
+            nat.clear();
+            return list;
+        }
+    }
+}
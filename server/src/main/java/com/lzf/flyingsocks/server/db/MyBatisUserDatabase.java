@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.db;
+
+import com.lzf.flyingsocks.AbstractConfig;
+import com.lzf.flyingsocks.ConfigInitializationException;
+import com.lzf.flyingsocks.ConfigManager;
+import com.lzf.flyingsocks.server.usermanage.MyBatisConfig;
+import com.lzf.flyingsocks.server.usermanage.mapper.UserMapper;
+import com.lzf.flyingsocks.server.usermanage.po.UserPO;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.Promise;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.validator.routines.IntegerValidator;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.SqlSessionFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于MyBatis的用户数据库实现：用户保存在user表中，用户组名对应user_group表的name字段，
+ * 密码使用{@link PasswordHasher}生成的加盐慢哈希保存
+ *
+ * 认证通过的用户名和密码摘要(使用进程内随机密钥的HMAC)保存在有界的LRU缓存中，
+ * 缓存命中时直接在调用线程中完成认证；未命中时数据库查询和慢哈希校验在专门的线程池中执行，
+ * 相同用户名和密码的并发认证请求只会执行一次校验，避免大量客户端同时重连时阻塞EventLoop
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/25 21:00
+ */
+public class MyBatisUserDatabase extends AbstractConfig implements UserDatabase {
+    private static final Logger log = LoggerFactory.getLogger("MyBatisUserDatabase");
+
+    public static final String NAME = "userdatabase.mybatis";
+
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+
+    /**
+     * 默认缓存有效期(秒)，数据库中修改的密码最迟在有效期后生效
+     */
+    private static final int DEFAULT_CACHE_TTL = 600;
+
+    /**
+     * 等待校验的认证请求上限，超出后认证直接失败
+     */
+    private static final int MAX_PENDING_TASKS = 4096;
+
+    /**
+     * user表status字段：0为正常，其它值为禁用
+     */
+    private static final int STATUS_NORMAL = 0;
+
+    private static final String DIGEST_ALGORITHM = "HmacSHA256";
+
+    private SqlSessionFactory sqlSessionFactory;
+
+    /**
+     * 认证缓存，Key为用户组名和用户名
+     */
+    private Map<String, CachedCredential> cache;
+
+    private long cacheTtlNanos;
+
+    /**
+     * 正在校验的认证请求，Key为用户组名、用户名和密码摘要
+     */
+    private final ConcurrentMap<String, CompletableFuture<Boolean>> pending = new ConcurrentHashMap<>();
+
+    private ExecutorService authExecutor;
+
+    /**
+     * 每个线程各自的密码摘要计算器，密钥在进程启动时随机生成
+     */
+    private final FastThreadLocal<Mac> digester;
+
+
+    public MyBatisUserDatabase(ConfigManager<?> configManager) {
+        super(configManager, NAME);
+
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        SecretKeySpec keySpec = new SecretKeySpec(key, DIGEST_ALGORITHM);
+        this.digester = new FastThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() throws GeneralSecurityException {
+                Mac mac = Mac.getInstance(DIGEST_ALGORITHM);
+                mac.init(keySpec);
+                return mac;
+            }
+        };
+    }
+
+    @Override
+    protected void initInternal() throws ConfigInitializationException {
+        MyBatisConfig config = configManager.getConfig(MyBatisConfig.NAME, MyBatisConfig.class);
+        if (config == null) {
+            config = new MyBatisConfig(configManager);
+            configManager.registerConfig(config);
+        }
+
+        try (InputStream is = config.openConfigInputStream()) {
+            this.sqlSessionFactory = new SqlSessionFactoryBuilder().build(is, config.getEnvironmentId());
+        } catch (IOException e) {
+            throw new ConfigInitializationException(e);
+        }
+
+        int cacheSize = intProperty("flyingsocks.userdatabase.cache.size", DEFAULT_CACHE_SIZE);
+        this.cache = new LinkedHashMap<String, CachedCredential>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedCredential> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        this.cacheTtlNanos = TimeUnit.SECONDS.toNanos(intProperty("flyingsocks.userdatabase.cache.ttl", DEFAULT_CACHE_TTL));
+
+        int threads = intProperty("flyingsocks.userdatabase.auth-threads", 0);
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        this.authExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING_TASKS), new DefaultThreadFactory("UserDatabaseAuth", true));
+    }
+
+
+    private int intProperty(String key, int defaultValue) {
+        String value = configManager.getSystemProperties(key);
+        if (StringUtils.isBlank(value) || !IntegerValidator.getInstance().isValid(value)) {
+            return defaultValue;
+        }
+        return Math.max(0, Integer.parseInt(value));
+    }
+
+
+    @Override
+    public boolean doAuth(String group, String username, String password) {
+        if (username == null || password == null) {
+            return false;
+        }
+
+        String key = cacheKey(group, username);
+        byte[] digest = digest(password);
+        return isCached(key, digest) || verify(group, username, password, key, digest);
+    }
+
+
+    @Override
+    public void doAuth(String group, String username, String password, Promise<Boolean> promise) {
+        if (username == null || password == null) {
+            promise.trySuccess(false);
+            return;
+        }
+
+        String key = cacheKey(group, username);
+        byte[] digest = digest(password);
+        if (isCached(key, digest)) {
+            promise.trySuccess(true);
+            return;
+        }
+
+        String pendingKey = key + '\n' + Base64.getEncoder().encodeToString(digest);
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        CompletableFuture<Boolean> exists = pending.putIfAbsent(pendingKey, future);
+        if (exists != null) {
+            future = exists;
+        } else {
+            CompletableFuture<Boolean> f = future;
+            try {
+                authExecutor.execute(() -> {
+                    try {
+                        f.complete(verify(group, username, password, key, digest));
+                    } catch (Throwable t) {
+                        f.completeExceptionally(t);
+                    } finally {
+                        pending.remove(pendingKey, f);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                pending.remove(pendingKey, f);
+                log.warn("Too many pending authentication, refuse user {}", username);
+                f.completeExceptionally(e);
+            }
+        }
+
+        future.whenComplete((result, cause) -> {
+            if (cause != null) {
+                promise.tryFailure(cause);
+            } else {
+                promise.trySuccess(result);
+            }
+        });
+    }
+
+
+    /**
+     * 查询数据库并校验密码，校验通过后写入缓存
+     */
+    private boolean verify(String group, String username, String password, String key, byte[] digest) {
+        UserPO user;
+        try (SqlSession session = sqlSessionFactory.openSession()) {
+            UserMapper mapper = session.getMapper(UserMapper.class);
+            user = mapper.selectCredential(group, username);
+            if (user == null || (user.getStatus() != null && user.getStatus() != STATUS_NORMAL)) {
+                invalidate(key);
+                return false;
+            }
+
+            if (!PasswordHasher.verify(password, user.getPassword())) {
+                return false;
+            }
+
+            if (PasswordHasher.needsRehash(user.getPassword())) {
+                try {
+                    mapper.updatePassword(user.getId(), PasswordHasher.hash(password));
+                    session.commit();
+                } catch (Exception e) {
+                    log.warn("Upgrade password hash of user {} failure", username, e);
+                }
+            }
+        }
+
+        synchronized (cache) {
+            cache.put(key, new CachedCredential(digest, System.nanoTime() + cacheTtlNanos));
+        }
+        return true;
+    }
+
+
+    private boolean isCached(String key, byte[] digest) {
+        CachedCredential credential;
+        synchronized (cache) {
+            credential = cache.get(key);
+        }
+
+        return credential != null && credential.expireNanos - System.nanoTime() > 0 &&
+                MessageDigest.isEqual(credential.digest, digest);
+    }
+
+
+    private void invalidate(String key) {
+        synchronized (cache) {
+            cache.remove(key);
+        }
+    }
+
+
+    private byte[] digest(String password) {
+        return digester.get().doFinal(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    private static String cacheKey(String group, String username) {
+        return (group == null ? "" : group) + '\n' + username;
+    }
+
+
+    @Override
+    public boolean register(String group, String username, String password) {
+        try (SqlSession session = sqlSessionFactory.openSession()) {
+            UserMapper mapper = session.getMapper(UserMapper.class);
+            Integer groupId = group != null ? mapper.selectGroupId(group) : null;
+            if ((group != null && groupId == null) || mapper.selectCredential(null, username) != null) {
+                return false;
+            }
+
+            UserPO user = new UserPO();
+            user.setUsername(username);
+            user.setPassword(PasswordHasher.hash(password));
+            user.setGroupId(groupId);
+            user.setStatus(STATUS_NORMAL);
+            mapper.insertUser(user);
+            session.commit();
+            return true;
+        }
+    }
+
+    @Override
+    public boolean delete(String group, String username) {
+        try (SqlSession session = sqlSessionFactory.openSession()) {
+            UserMapper mapper = session.getMapper(UserMapper.class);
+            UserPO user = mapper.selectCredential(group, username);
+            if (user == null) {
+                return false;
+            }
+
+            mapper.deleteUser(user.getId());
+            session.commit();
+        }
+
+        invalidate(cacheKey(group, username));
+        return true;
+    }
+
+    @Override
+    public boolean changePassword(String group, String username, String newPassword) {
+        try (SqlSession session = sqlSessionFactory.openSession()) {
+            UserMapper mapper = session.getMapper(UserMapper.class);
+            UserPO user = mapper.selectCredential(group, username);
+            if (user == null) {
+                return false;
+            }
+
+            mapper.updatePassword(user.getId(), PasswordHasher.hash(newPassword));
+            session.commit();
+        }
+
+        invalidate(cacheKey(group, username));
+        return true;
+    }
+
+
+    /**
+     * 缓存的认证结果
+     */
+    private static final class CachedCredential {
+        final byte[] digest;
+        final long expireNanos;
+
+        CachedCredential(byte[] digest, long expireNanos) {
+            this.digest = digest;
+            this.expireNanos = expireNanos;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.db;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Objects;
+
+/**
+ * 用户密码的加盐慢哈希，数据库中保存的格式为：pbkdf2$迭代次数$盐(Base64)$哈希值(Base64)
+ * 为兼容旧数据，也可以校验32位十六进制MD5格式的密码，校验通过后应当使用{@link #hash(String)}重新生成
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/25 20:10
+ */
+public final class PasswordHasher {
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+    private static final String PREFIX = "pbkdf2";
+
+    /**
+     * 新生成的密码哈希使用的迭代次数，单次校验约需数十毫秒
+     */
+    public static final int DEFAULT_ITERATIONS = 100_000;
+
+    private static final int SALT_LENGTH = 16;
+
+    private static final int HASH_LENGTH = 32;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private PasswordHasher() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * 生成密码哈希
+     *
+     * @param password 明文密码
+     * @return 保存到数据库中的密码哈希
+     */
+    public static String hash(String password) {
+        return hash(password, DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * 生成密码哈希
+     *
+     * @param password   明文密码
+     * @param iterations 迭代次数
+     * @return 保存到数据库中的密码哈希
+     */
+    public static String hash(String password, int iterations) {
+        Objects.requireNonNull(password);
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("Iterations: " + iterations);
+        }
+
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        byte[] hash = pbkdf2(password, salt, iterations, HASH_LENGTH);
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return PREFIX + '$' + iterations + '$' + encoder.encodeToString(salt) + '$' + encoder.encodeToString(hash);
+    }
+
+    /**
+     * 校验密码，比较过程耗时与密码内容无关
+     *
+     * @param password 明文密码
+     * @param stored   数据库中保存的密码哈希
+     * @return 密码是否正确，密码哈希格式错误时返回false
+     */
+    public static boolean verify(String password, String stored) {
+        if (password == null || stored == null) {
+            return false;
+        }
+
+        if (isLegacy(stored)) {
+            return MessageDigest.isEqual(md5Hex(password).getBytes(StandardCharsets.US_ASCII),
+                    stored.toLowerCase().getBytes(StandardCharsets.US_ASCII));
+        }
+
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4 || !parts[0].equals(PREFIX)) {
+            return false;
+        }
+
+        try {
+            int iterations = Integer.parseInt(parts[1]);
+            Base64.Decoder decoder = Base64.getDecoder();
+            byte[] salt = decoder.decode(parts[2]);
+            byte[] hash = decoder.decode(parts[3]);
+            if (iterations <= 0 || hash.length == 0) {
+                return false;
+            }
+            return MessageDigest.isEqual(hash, pbkdf2(password, salt, iterations, hash.length));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return 密码哈希是否为旧的MD5格式，或者迭代次数低于当前默认值
+     */
+    public static boolean needsRehash(String stored) {
+        if (stored == null || isLegacy(stored)) {
+            return true;
+        }
+
+        String[] parts = stored.split("\\$");
+        try {
+            return parts.length != 4 || Integer.parseInt(parts[1]) < DEFAULT_ITERATIONS;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private static boolean isLegacy(String stored) {
+        if (stored.length() != 32) {
+            return false;
+        }
+
+        for (int i = 0; i < 32; i++) {
+            if (Character.digit(stored.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations, int length) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, length * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static String md5Hex(String password) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(password.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(32);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0x0F, 16)).append(Character.forDigit(b & 0x0F, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+    }
+}
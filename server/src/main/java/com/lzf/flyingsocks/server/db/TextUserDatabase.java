@@ -34,10 +34,9 @@ import com.lzf.flyingsocks.server.ServerConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -50,6 +49,8 @@ public class TextUserDatabase extends AbstractConfig implements UserDatabase {
 
     public static final String NAME = "userdatabase.text";
 
+    private static final String USER_FILE_NAME = "user.json";
+
     private final Map<String, UserGroupImpl> groupMap = new ConcurrentHashMap<>(8);
 
     /**
@@ -97,10 +98,8 @@ public class TextUserDatabase extends AbstractConfig implements UserDatabase {
 
 
     private void doInitial(ServerConfig cfg) throws ConfigInitializationException {
-        try (InputStream is = new FileInputStream(cfg.getLocation().toFile())) {
-            byte[] b = new byte[512000];
-            int len = is.read(b);
-            String json = new String(b, 0, len, StandardCharsets.UTF_8);
+        try {
+            String json = new String(Files.readAllBytes(cfg.getLocation().resolve(USER_FILE_NAME)), StandardCharsets.UTF_8);
 
             JSONArray arr = JSON.parseArray(json);
             for (int i = 0; i < arr.size(); i++) {
@@ -119,7 +118,7 @@ public class TextUserDatabase extends AbstractConfig implements UserDatabase {
             }
 
         } catch (IOException ignore) {
-            log.info("Can not open user db file user.json");
+            log.info("Can not open user db file {}", USER_FILE_NAME);
         } catch (Exception e) {
             throw new ConfigInitializationException(e);
         }
@@ -21,6 +21,8 @@
  */
 package com.lzf.flyingsocks.server.db;
 
+import io.netty.util.concurrent.Promise;
+
 /**
  * 用于实现用户认证方式
  */
@@ -36,6 +38,23 @@ public interface UserDatabase {
      */
     boolean doAuth(String group, String username, String password);
 
+    /**
+     * 异步执行认证，供EventLoop调用。需要访问磁盘或计算慢哈希的实现应当在其它线程中完成认证，
+     * 认证结果通过promise通知，promise的监听器在其所属的EventLoop中执行
+     *
+     * @param group    用户组名
+     * @param username 用户名
+     * @param password 密码
+     * @param promise  认证结果
+     */
+    default void doAuth(String group, String username, String password, Promise<Boolean> promise) {
+        try {
+            promise.trySuccess(doAuth(group, username, password));
+        } catch (Exception e) {
+            promise.tryFailure(e);
+        }
+    }
+
     /**
      * 注册用户
      *
@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.metrics;
+
+import com.lzf.flyingsocks.AbstractComponent;
+import com.lzf.flyingsocks.ComponentException;
+import com.lzf.flyingsocks.server.Server;
+import com.lzf.flyingsocks.server.core.AdmissionControl;
+import com.lzf.flyingsocks.server.core.ListenerStats;
+import com.lzf.flyingsocks.server.core.NodeMetrics;
+import com.lzf.flyingsocks.server.core.ProxyProcessor;
+import com.lzf.flyingsocks.server.core.TargetResolver;
+import com.lzf.flyingsocks.server.usermanage.TrafficAccount;
+import com.lzf.flyingsocks.server.usermanage.UserManageComponent;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetric;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import io.netty.util.internal.PlatformDependent;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * 以Prometheus文本格式输出服务器运行指标的HTTP端点，只监听本地回环地址。
+ * 请求由第一个代理节点的boss线程处理，采集时只读取各个计数器的当前值，不会阻塞代理连接所在的EventLoop
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/26 21:00
+ */
+public class MetricsComponent extends AbstractComponent<Server> {
+
+    public static final String NAME = "MetricsComponent";
+
+    private static final String PATH = "/metrics";
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * 请求体的最大长度，该端点只接受GET请求
+     */
+    private static final int MAX_CONTENT_LENGTH = 4096;
+
+    private final List<ProxyProcessor> nodes;
+
+    private final int port;
+
+    private ServerSocketChannel serverChannel;
+
+
+    /**
+     * @param nodes 需要采集指标的代理节点，不能为空
+     * @param port  监听端口
+     */
+    public MetricsComponent(Server server, List<ProxyProcessor> nodes, int port) {
+        super(NAME, Objects.requireNonNull(server));
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("No proxy node");
+        }
+        this.nodes = new ArrayList<>(nodes);
+        this.port = port;
+    }
+
+
+    @Override
+    protected void startInternal() {
+        ProxyProcessor node = nodes.get(0);
+        EventLoopGroup bossGroup = node.getBossWorker();
+        MetricsHttpHandler handler = new MetricsHttpHandler();
+
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(bossGroup, bossGroup)
+                .channel(node.getServerSocketChannelClass())
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new HttpServerCodec())
+                                .addLast(new HttpObjectAggregator(MAX_CONTENT_LENGTH))
+                                .addLast(handler);
+                    }
+                });
+
+        ChannelFuture future = bootstrap.bind("127.0.0.1", port).awaitUninterruptibly();
+        if (!future.isSuccess()) {
+            throw new ComponentException(String.format("[%s] Bind failure", getName()), future.cause());
+        }
+
+        this.serverChannel = (ServerSocketChannel) future.channel();
+        log.info("Metrics endpoint listen on http://127.0.0.1:{}{}", port, PATH);
+        super.startInternal();
+    }
+
+
+    @Override
+    protected void stopInternal() {
+        ServerSocketChannel channel = this.serverChannel;
+        if (channel != null) {
+            channel.close();
+            this.serverChannel = null;
+        }
+        super.stopInternal();
+    }
+
+
+    /**
+     * 采集所有指标
+     *
+     * @return Prometheus文本格式的指标
+     */
+    String scrape() {
+        PrometheusTextWriter w = new PrometheusTextWriter();
+
+        w.family("flyingsocks_node_bytes_total", "counter", "Proxy payload bytes, in: uploaded by clients, out: returned to clients");
+        for (ProxyProcessor node : nodes) {
+            NodeMetrics m = node.getMetrics();
+            w.sample("flyingsocks_node_bytes_total", m.bytesIn(), "node", node.getName(), "direction", "in");
+            w.sample("flyingsocks_node_bytes_total", m.bytesOut(), "node", node.getName(), "direction", "out");
+        }
+
+        UserManageComponent userManage = parent.getUserManageComponent();
+        if (userManage != null) {
+            w.family("flyingsocks_user_bytes_total", "counter", "Proxy payload bytes of each user since the user's traffic account was created");
+            for (TrafficAccount account : userManage.trafficAccounts()) {
+                w.sample("flyingsocks_user_bytes_total", account.uploadBytes(), "user", account.username(), "direction", "in");
+                w.sample("flyingsocks_user_bytes_total", account.downloadBytes(), "user", account.username(), "direction", "out");
+            }
+        }
+
+        w.family("flyingsocks_node_connections", "gauge", "Admitted client connections");
+        for (ProxyProcessor node : nodes) {
+            w.sample("flyingsocks_node_connections", node.getAdmissionControl().connectionCount(), "node", node.getName());
+        }
+
+        w.family("flyingsocks_node_sessions", "gauge", "Authenticated client sessions");
+        for (ProxyProcessor node : nodes) {
+            w.sample("flyingsocks_node_sessions", node.getMetrics().sessions(), "node", node.getName());
+        }
+
+        w.family("flyingsocks_node_streams", "gauge", "Proxy streams, including streams still resolving or connecting");
+        for (ProxyProcessor node : nodes) {
+            w.sample("flyingsocks_node_streams", node.getMetrics().streams(), "node", node.getName());
+        }
+
+        w.family("flyingsocks_node_rejected_total", "counter", "Connections, sessions and streams rejected by admission control");
+        for (ProxyProcessor node : nodes) {
+            AdmissionControl ac = node.getAdmissionControl();
+            w.sample("flyingsocks_node_rejected_total", ac.rejectedConnections(), "node", node.getName(), "kind", "connection");
+            w.sample("flyingsocks_node_rejected_total", ac.rejectedSessions(), "node", node.getName(), "kind", "session");
+            w.sample("flyingsocks_node_rejected_total", ac.rejectedStreams(), "node", node.getName(), "kind", "stream");
+        }
+
+        w.family("flyingsocks_listener_accepted_total", "counter", "Connections accepted by each listening socket");
+        for (ProxyProcessor node : nodes) {
+            for (ListenerStats stats : node.getMetrics().listeners()) {
+                w.sample("flyingsocks_listener_accepted_total", stats.accepted(), "node", node.getName(), "listener", Integer.toString(stats.index()));
+            }
+        }
+
+        w.family("flyingsocks_listener_rejected_total", "counter", "Connections rejected by each listening socket");
+        for (ProxyProcessor node : nodes) {
+            for (ListenerStats stats : node.getMetrics().listeners()) {
+                w.sample("flyingsocks_listener_rejected_total", stats.rejected(), "node", node.getName(), "listener", Integer.toString(stats.index()));
+            }
+        }
+
+        //代理任务在客户端会话所在的EventLoop中分发，因此以各个EventLoop的待执行任务数作为分发队列深度
+        w.family("flyingsocks_dispatch_queue_depth", "gauge", "Pending tasks of each child event loop");
+        for (ProxyProcessor node : nodes) {
+            int index = 0;
+            for (EventExecutor executor : node.getChildWorker()) {
+                if (executor instanceof SingleThreadEventExecutor) {
+                    w.sample("flyingsocks_dispatch_queue_depth", ((SingleThreadEventExecutor) executor).pendingTasks(),
+                            "node", node.getName(), "loop", Integer.toString(index));
+                }
+                index++;
+            }
+        }
+
+        w.family("flyingsocks_traffic_shaper_shares", "gauge", "Rate limited shares in the node traffic shaper");
+        for (ProxyProcessor node : nodes) {
+            w.sample("flyingsocks_traffic_shaper_shares", node.getTrafficShaper().shareCount(), "node", node.getName());
+        }
+
+        w.family("flyingsocks_stream_open_seconds", "histogram", "Time from proxy request to target connection established");
+        for (ProxyProcessor node : nodes) {
+            w.histogram("flyingsocks_stream_open_seconds", node.getMetrics().openLatency(), "node", node.getName());
+        }
+
+        w.family("flyingsocks_target_resolve_seconds", "histogram", "Time from proxy request to target host resolved");
+        for (ProxyProcessor node : nodes) {
+            w.histogram("flyingsocks_target_resolve_seconds", node.getMetrics().resolveLatency(), "node", node.getName());
+        }
+
+        w.family("flyingsocks_tls_handshake_seconds", "histogram", "Client TLS handshake time");
+        for (ProxyProcessor node : nodes) {
+            w.histogram("flyingsocks_tls_handshake_seconds", node.getMetrics().handshakeLatency(), "node", node.getName());
+        }
+
+        w.family("flyingsocks_tls_handshake_failures_total", "counter", "Failed client TLS handshakes");
+        for (ProxyProcessor node : nodes) {
+            w.sample("flyingsocks_tls_handshake_failures_total", node.getMetrics().handshakeFailures(), "node", node.getName());
+        }
+
+        w.family("flyingsocks_dns_cache_requests_total", "counter", "DNS cache lookups, cache=target for proxy targets, cache=query for client DNS queries");
+        for (ProxyProcessor node : nodes) {
+            TargetResolver resolver = node.getTargetResolver();
+            NodeMetrics m = node.getMetrics();
+            w.sample("flyingsocks_dns_cache_requests_total", resolver.cacheHits(), "node", node.getName(), "cache", "target", "result", "hit");
+            w.sample("flyingsocks_dns_cache_requests_total", resolver.cacheMisses(), "node", node.getName(), "cache", "target", "result", "miss");
+            w.sample("flyingsocks_dns_cache_requests_total", m.dnsQueryHits(), "node", node.getName(), "cache", "query", "result", "hit");
+            w.sample("flyingsocks_dns_cache_requests_total", m.dnsQueryMisses(), "node", node.getName(), "cache", "query", "result", "miss");
+        }
+
+        if (ByteBufAllocator.DEFAULT instanceof ByteBufAllocatorMetricProvider) {
+            ByteBufAllocatorMetric metric = ((ByteBufAllocatorMetricProvider) ByteBufAllocator.DEFAULT).metric();
+            w.family("flyingsocks_allocator_used_bytes", "gauge", "Memory used by the default ByteBuf allocator");
+            w.sample("flyingsocks_allocator_used_bytes", metric.usedDirectMemory(), "type", "direct");
+            w.sample("flyingsocks_allocator_used_bytes", metric.usedHeapMemory(), "type", "heap");
+        }
+
+        long direct = PlatformDependent.usedDirectMemory();
+        if (direct >= 0) {
+            w.family("flyingsocks_direct_memory_used_bytes", "gauge", "Direct memory reserved by netty");
+            w.sample("flyingsocks_direct_memory_used_bytes", direct);
+            w.family("flyingsocks_direct_memory_max_bytes", "gauge", "Max direct memory netty can reserve");
+            w.sample("flyingsocks_direct_memory_max_bytes", PlatformDependent.maxDirectMemory());
+        }
+
+        return w.toString();
+    }
+
+
+    /**
+     * 处理指标采集请求，只响应GET /metrics
+     */
+    @ChannelHandler.Sharable
+    class MetricsHttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            HttpResponseStatus status;
+            String body;
+            if (!PATH.equals(new QueryStringDecoder(request.uri()).path())) {
+                status = HttpResponseStatus.NOT_FOUND;
+                body = "Not Found\n";
+            } else if (!HttpMethod.GET.equals(request.method())) {
+                status = HttpResponseStatus.METHOD_NOT_ALLOWED;
+                body = "Method Not Allowed\n";
+            } else {
+                status = HttpResponseStatus.OK;
+                body = scrape();
+            }
+
+            ByteBuf content = ctx.alloc().buffer(body.length());
+            content.writeCharSequence(body, StandardCharsets.UTF_8);
+            FullHttpResponse response = new DefaultFullHttpResponse(request.protocolVersion(), status, content);
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE);
+            HttpUtil.setContentLength(response, content.readableBytes());
+
+            if (HttpUtil.isKeepAlive(request)) {
+                response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+                ctx.writeAndFlush(response, ctx.voidPromise());
+            } else {
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            if (log.isDebugEnabled())
+                log.debug("Metrics request failure", cause);
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.metrics;
+
+import com.lzf.flyingsocks.misc.LatencyRecorder;
+
+/**
+ * Prometheus文本格式(0.0.4)输出，同一个指标的所有样本必须连续写出
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/26 20:40
+ */
+final class PrometheusTextWriter {
+
+    private final StringBuilder sb = new StringBuilder(8192);
+
+    /**
+     * 写出指标的HELP和TYPE行
+     *
+     * @param type counter、gauge或histogram
+     */
+    PrometheusTextWriter family(String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    /**
+     * @param labels 标签名和标签值交替排列
+     */
+    PrometheusTextWriter sample(String name, long value, String... labels) {
+        appendName(name, labels, null);
+        sb.append(' ').append(value).append('\n');
+        return this;
+    }
+
+    PrometheusTextWriter sample(String name, double value, String... labels) {
+        appendName(name, labels, null);
+        sb.append(' ').append(formatDouble(value)).append('\n');
+        return this;
+    }
+
+    /**
+     * 将耗时统计写出为以秒为单位的直方图，桶的上界与{@link LatencyRecorder}的分桶一致，
+     * 最后一个桶没有上界，计入+Inf
+     */
+    PrometheusTextWriter histogram(String name, LatencyRecorder recorder, String... labels) {
+        long[] buckets = recorder.buckets();
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length - 1; i++) {
+            cumulative += buckets[i];
+            appendName(name + "_bucket", labels, formatDouble(LatencyRecorder.bucketUpperBoundMicros(i) / 1e6));
+            sb.append(' ').append(cumulative).append('\n');
+        }
+
+        cumulative += buckets[buckets.length - 1];
+        appendName(name + "_bucket", labels, "+Inf");
+        sb.append(' ').append(cumulative).append('\n');
+
+        appendName(name + "_sum", labels, null);
+        sb.append(' ').append(formatDouble(recorder.totalNanos() / 1e9)).append('\n');
+        appendName(name + "_count", labels, null);
+        sb.append(' ').append(cumulative).append('\n');
+        return this;
+    }
+
+    private void appendName(String name, String[] labels, String le) {
+        sb.append(name);
+        if (labels.length == 0 && le == null) {
+            return;
+        }
+
+        sb.append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"");
+            appendEscaped(labels[i + 1]);
+            sb.append('"');
+        }
+
+        if (le != null) {
+            if (labels.length > 0) {
+                sb.append(',');
+            }
+            sb.append("le=\"").append(le).append('"');
+        }
+        sb.append('}');
+    }
+
+    /**
+     * 标签值中的反斜杠、双引号和换行需要转义
+     */
+    private void appendEscaped(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': sb.append("\\\\"); break;
+                case '"': sb.append("\\\""); break;
+                case '\n': sb.append("\\n"); break;
+                default: sb.append(c);
+            }
+        }
+    }
+
+    private static String formatDouble(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        return Double.toString(value);
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+}
@@ -49,7 +49,7 @@ public class MyBatisConfig extends AbstractConfig {
 
     private URL configUrl;
 
-    MyBatisConfig(ConfigManager<?> configManager) {
+    public MyBatisConfig(ConfigManager<?> configManager) {
         super(Objects.requireNonNull(configManager), NAME);
     }
 
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.usermanage;
+
+import com.lzf.flyingsocks.misc.TokenBucket;
+import com.lzf.flyingsocks.server.core.access.AccessRuleMatcher;
+import com.lzf.flyingsocks.server.usermanage.po.TrafficRulePO;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 已认证用户的流量账户，同一个用户的所有客户端连接共用一个实例。
+ * 上传和下载流量由各个客户端会话的EventLoop并发累加，因此使用LongAdder避免多个EventLoop竞争同一个计数器；
+ * 流量写入数据库以及配额的计算只在{@link UserManageComponent}的后台线程中进行
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/22 20:40
+ */
+public final class TrafficAccount {
+
+    private final String username;
+
+    /**
+     * 客户端上传的流量(字节)，只增不减
+     */
+    private final LongAdder upload = new LongAdder();
+
+    /**
+     * 返回给客户端的流量(字节)，只增不减
+     */
+    private final LongAdder download = new LongAdder();
+
+    /**
+     * 用户上传限速，速率来自流量规则的speedLimit，由该用户的所有会话共享
+     */
+    private final TokenBucket uploadLimit = new TokenBucket(0);
+
+    /**
+     * 用户下载限速，速率来自流量规则的speedLimit，由该用户的所有会话共享
+     */
+    private final TokenBucket downloadLimit = new TokenBucket(0);
+
+    /**
+     * 引用该账户的客户端连接数量，为0且流量全部写入数据库后账户会被移除
+     */
+    private final AtomicInteger references = new AtomicInteger();
+
+    /**
+     * 是否已用完流量配额
+     */
+    private volatile boolean exhausted;
+
+    /**
+     * 用户所在用户组的访问规则，重新加载规则时整体替换
+     */
+    private volatile AccessRuleMatcher accessRuleMatcher = AccessRuleMatcher.EMPTY;
+
+    //以下字段只在后台线程中访问
+
+    /**
+     * 是否已从数据库加载用户ID、流量规则以及当前周期的流量使用记录
+     */
+    boolean loaded;
+
+    /**
+     * 数据库中的用户ID，用户不存在时为null，此时只统计不写入数据库
+     */
+    Integer userId;
+
+    /**
+     * 数据库中的用户组ID
+     */
+    Integer groupId;
+
+    /**
+     * 用户所在用户组的流量规则，没有时为null
+     */
+    TrafficRulePO rule;
+
+    /**
+     * 距离上次加载流量规则经过的写入次数
+     */
+    int ruleAge;
+
+    /**
+     * 每个统计周期当前对应的date字段值，下标为{@link TrafficPeriod#ordinal()}
+     */
+    final String[] periodKeys = new String[TrafficPeriod.values().length];
+
+    /**
+     * 每个统计周期已写入数据库的流量(上传+下载)，下标为{@link TrafficPeriod#ordinal()}
+     */
+    final long[] periodUsage = new long[TrafficPeriod.values().length];
+
+    /**
+     * 已经写入数据库的上传和下载流量
+     */
+    long flushedUpload, flushedDownload;
+
+
+    TrafficAccount(String username) {
+        this.username = username;
+    }
+
+    public String username() {
+        return username;
+    }
+
+    /**
+     * @param bytes 客户端上传的字节数
+     */
+    public void recordUpload(long bytes) {
+        upload.add(bytes);
+    }
+
+    /**
+     * @param bytes 返回给客户端的字节数
+     */
+    public void recordDownload(long bytes) {
+        download.add(bytes);
+    }
+
+    public long uploadBytes() {
+        return upload.sum();
+    }
+
+    public long downloadBytes() {
+        return download.sum();
+    }
+
+    public TokenBucket uploadLimit() {
+        return uploadLimit;
+    }
+
+    public TokenBucket downloadLimit() {
+        return downloadLimit;
+    }
+
+    /**
+     * 根据流量规则设置上传和下载限速
+     *
+     * @param rule 流量规则，为null时不限速
+     */
+    void applySpeedLimit(TrafficRulePO rule) {
+        Integer speedLimit = rule != null ? rule.getSpeedLimit() : null;
+        long rate = speedLimit != null && speedLimit > 0 ? speedLimit * 1024L : 0;
+        uploadLimit.setRate(rate);
+        downloadLimit.setRate(rate);
+    }
+
+    /**
+     * @return 是否已用完日/周/月流量配额中的任意一项，此时不再允许建立新的代理流
+     */
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    void setExhausted(boolean exhausted) {
+        this.exhausted = exhausted;
+    }
+
+    /**
+     * @return 用户组的访问规则，建立代理流前检查目标地址
+     */
+    public AccessRuleMatcher accessRuleMatcher() {
+        return accessRuleMatcher;
+    }
+
+    void setAccessRuleMatcher(AccessRuleMatcher accessRuleMatcher) {
+        this.accessRuleMatcher = accessRuleMatcher;
+    }
+
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * 客户端连接关闭时调用
+     */
+    public void release() {
+        references.decrementAndGet();
+    }
+
+    int references() {
+        return references.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TrafficAccount{" +
+                "username='" + username + '\'' +
+                ", upload=" + upload.sum() +
+                ", download=" + download.sum() +
+                ", exhausted=" + exhausted +
+                '}';
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.usermanage;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAdjusters;
+
+/**
+ * 流量统计周期，对应traffic_usage_log表的type字段，
+ * date字段保存周期第一天的日期(yyyyMMdd)
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/22 20:10
+ */
+enum TrafficPeriod {
+
+    DAILY(1) {
+        @Override
+        LocalDate begin(LocalDate date) {
+            return date;
+        }
+    },
+
+    WEEKLY(2) {
+        @Override
+        LocalDate begin(LocalDate date) {
+            return date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+        }
+    },
+
+    MONTHLY(3) {
+        @Override
+        LocalDate begin(LocalDate date) {
+            return date.withDayOfMonth(1);
+        }
+    };
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.BASIC_ISO_DATE;
+
+    /**
+     * traffic_usage_log表type字段的值，与枚举('daily', 'weekly', 'monthly')的下标一致
+     */
+    final int type;
+
+    TrafficPeriod(int type) {
+        this.type = type;
+    }
+
+    /**
+     * @param date 日期
+     * @return 该日期所在周期的第一天
+     */
+    abstract LocalDate begin(LocalDate date);
+
+    /**
+     * @param date 日期
+     * @return 该日期所在周期在traffic_usage_log表中的date字段值
+     */
+    String key(LocalDate date) {
+        return DATE_FORMATTER.format(begin(date));
+    }
+}
@@ -23,15 +23,50 @@ package com.lzf.flyingsocks.server.usermanage;
 
 import com.lzf.flyingsocks.AbstractComponent;
 import com.lzf.flyingsocks.ComponentException;
+import com.lzf.flyingsocks.ConfigManager;
 import com.lzf.flyingsocks.server.Server;
+import com.lzf.flyingsocks.server.core.access.AccessRule;
+import com.lzf.flyingsocks.server.core.access.AccessRuleMatcher;
+import com.lzf.flyingsocks.server.usermanage.mapper.AccessRuleMapper;
+import com.lzf.flyingsocks.server.usermanage.mapper.TrafficMapper;
+import com.lzf.flyingsocks.server.usermanage.po.AccessRulePO;
+import com.lzf.flyingsocks.server.usermanage.po.TrafficRulePO;
+import com.lzf.flyingsocks.server.usermanage.po.TrafficUsageLogPO;
+import com.lzf.flyingsocks.server.usermanage.po.UserGroupAccessRulePO;
+import com.lzf.flyingsocks.server.usermanage.po.UserPO;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.validator.routines.IntegerValidator;
+import org.apache.ibatis.exceptions.PersistenceException;
+import org.apache.ibatis.session.SqlSession;
 import org.apache.ibatis.session.SqlSessionFactory;
 import org.apache.ibatis.session.SqlSessionFactoryBuilder;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * 用户管理组件，负责统计已认证用户的流量并按日/周/月写入traffic_usage_log表，
+ * 同时根据用户组的流量规则判断用户是否已用完流量配额，并设置用户的限速，以及加载用户组的访问规则。
+ * 所有数据库操作都在后台线程中批量进行，EventLoop只负责累加计数器
+ *
  * @author lzf abc123lzf@126.com
  * @since 2021/2/15 1:02
  */
@@ -39,17 +74,54 @@ public class UserManageComponent extends AbstractComponent<Server> {
 
     public static final String NAME = "UserManagementComponent";
 
+    /**
+     * 默认流量写入数据库的间隔(秒)
+     */
+    private static final int DEFAULT_FLUSH_INTERVAL = 30;
+
+    /**
+     * 每隔多少次写入重新加载一次流量规则
+     */
+    private static final int RULE_REFRESH_PERIOD = 10;
+
+    /**
+     * 重新加载访问规则的间隔(秒)
+     */
+    private static final int ACCESS_RULE_RELOAD_INTERVAL = 60;
+
     private SqlSessionFactory sqlSessionFactory;
 
+    /**
+     * 流量账户，Key为用户名
+     */
+    private final ConcurrentMap<String, TrafficAccount> accounts = new ConcurrentHashMap<>();
+
+    /**
+     * 各个用户组编译后的访问规则，Key为用户组ID，只在后台线程中整体替换
+     */
+    private volatile Map<Integer, AccessRuleMatcher> accessRules = Collections.emptyMap();
+
+    /**
+     * 执行流量写入、加载流量规则和访问规则的后台线程
+     */
+    private ScheduledExecutorService flushExecutor;
+
+    /**
+     * 流量写入数据库的间隔(秒)
+     */
+    private int flushInterval;
+
     public UserManageComponent(Server server) {
         super(NAME, Objects.requireNonNull(server));
     }
 
     @Override
     protected void initInternal() {
-        MyBatisConfig config = getConfigManager().getConfig(MyBatisConfig.NAME, MyBatisConfig.class);
+        ConfigManager<?> configManager = getConfigManager();
+        MyBatisConfig config = configManager.getConfig(MyBatisConfig.NAME, MyBatisConfig.class);
         if (config == null) {
-            throw new ComponentException("MyBatis config not found");
+            config = new MyBatisConfig(configManager);
+            configManager.registerConfig(config);
         }
 
         String envId = config.getEnvironmentId();
@@ -59,12 +131,354 @@ public class UserManageComponent extends AbstractComponent<Server> {
             throw new ComponentException(e);
         }
 
+        String interval = configManager.getSystemProperties("flyingsocks.usermanage.traffic.flush-interval");
+        if (StringUtils.isBlank(interval) || !IntegerValidator.getInstance().isValid(interval)) {
+            this.flushInterval = DEFAULT_FLUSH_INTERVAL;
+        } else {
+            this.flushInterval = Math.max(1, Integer.parseInt(interval));
+        }
+
         super.initInternal();
     }
 
 
     @Override
     protected void startInternal() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("TrafficAccounting", true));
+        executor.scheduleWithFixedDelay(this::reloadAccessRulesSafely, 0, ACCESS_RULE_RELOAD_INTERVAL, TimeUnit.SECONDS);
+        executor.scheduleWithFixedDelay(this::flushSafely, flushInterval, flushInterval, TimeUnit.SECONDS);
+        this.flushExecutor = executor;
         super.startInternal();
     }
+
+
+    @Override
+    protected void stopInternal() {
+        ScheduledExecutorService executor = this.flushExecutor;
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                if (executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    flushSafely();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        super.stopInternal();
+    }
+
+
+    /**
+     * 获取用户的流量账户，客户端连接关闭时需要调用{@link TrafficAccount#release()}
+     *
+     * @param username 已通过认证的用户名
+     * @return 流量账户
+     */
+    public TrafficAccount acquireTrafficAccount(String username) {
+        Objects.requireNonNull(username);
+        boolean[] created = new boolean[1];
+        //引用计数在compute中增加，避免与后台线程移除账户的操作交错
+        TrafficAccount result = accounts.compute(username, (k, account) -> {
+            if (account == null) {
+                account = new TrafficAccount(k);
+                created[0] = true;
+            }
+            account.retain();
+            return account;
+        });
+
+        //新账户立即在后台线程加载访问规则和流量规则，不必等到下一次写入
+        ScheduledExecutorService executor = this.flushExecutor;
+        if (created[0] && executor != null) {
+            try {
+                executor.execute(() -> loadSafely(result));
+            } catch (RejectedExecutionException ignore) {
+                //组件已经停止
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * @return 当前所有流量账户的只读视图，包含尚未写入数据库的已断开用户
+     */
+    public Collection<TrafficAccount> trafficAccounts() {
+        return Collections.unmodifiableCollection(accounts.values());
+    }
+
+
+    private void loadSafely(TrafficAccount account) {
+        SqlSessionFactory factory = this.sqlSessionFactory;
+        if (factory == null || account.loaded) {
+            return;
+        }
+
+        try (SqlSession session = factory.openSession()) {
+            load(session.getMapper(TrafficMapper.class), account, LocalDate.now());
+        } catch (Exception e) {
+            account.loaded = false;
+            log.warn("Load user {} failure", account.username(), e);
+        }
+    }
+
+
+    private void reloadAccessRulesSafely() {
+        try {
+            reloadAccessRules();
+        } catch (Exception e) {
+            log.warn("Reload access rules failure", e);
+        }
+    }
+
+
+    /**
+     * 加载所有用户组的访问规则并编译，编译完成后整体替换，只在后台线程中调用
+     */
+    private void reloadAccessRules() {
+        SqlSessionFactory factory = this.sqlSessionFactory;
+        if (factory == null) {
+            return;
+        }
+
+        List<AccessRulePO> rules;
+        List<UserGroupAccessRulePO> relations;
+        try (SqlSession session = factory.openSession()) {
+            AccessRuleMapper mapper = session.getMapper(AccessRuleMapper.class);
+            rules = mapper.selectEnabledAccessRules();
+            relations = mapper.selectUserGroupAccessRules();
+        }
+
+        Map<Integer, AccessRule> ruleMap = new HashMap<>(rules.size() * 2);
+        for (AccessRulePO po : rules) {
+            Boolean allow = parseAccessRuleType(po.getType());
+            if (allow == null) {
+                log.warn("Unknown access rule type {} of rule {}", po.getType(), po.getId());
+                continue;
+            }
+
+            try {
+                ruleMap.put(po.getId(), AccessRule.parse(po.getPattern(), allow));
+            } catch (IllegalArgumentException e) {
+                log.warn("Illegal access rule {}: {}", po.getId(), e.getMessage());
+            }
+        }
+
+        Map<Integer, List<AccessRule>> groupRules = new HashMap<>();
+        for (UserGroupAccessRulePO relation : relations) {
+            AccessRule rule = relation.getAccessRuleId() == null ? null :
+                    ruleMap.get(Integer.valueOf(relation.getAccessRuleId().trim()));
+            if (rule != null && relation.getGroupId() != null) {
+                groupRules.computeIfAbsent(relation.getGroupId(), k -> new ArrayList<>()).add(rule);
+            }
+        }
+
+        Map<Integer, AccessRuleMatcher> matchers = new HashMap<>(groupRules.size() * 2);
+        groupRules.forEach((groupId, list) -> matchers.put(groupId, AccessRuleMatcher.compile(list)));
+        this.accessRules = matchers;
+
+        for (TrafficAccount account : accounts.values()) {
+            if (account.groupId != null) {
+                account.setAccessRuleMatcher(matchers.getOrDefault(account.groupId, AccessRuleMatcher.EMPTY));
+            }
+        }
+
+        log.info("Load {} access rules for {} user groups", ruleMap.size(), matchers.size());
+    }
+
+
+    /**
+     * access_rule表的type字段：1为允许，2为拒绝
+     *
+     * @return 是否为允许规则，无法识别时返回null
+     */
+    private static Boolean parseAccessRuleType(String type) {
+        if (type == null) {
+            return null;
+        }
+
+        switch (type.trim().toLowerCase(Locale.ROOT)) {
+            case "1":
+            case "allow":
+                return true;
+            case "2":
+            case "deny":
+                return false;
+            default:
+                return null;
+        }
+    }
+
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.warn("Flush traffic usage failure", e);
+        }
+    }
+
+
+    /**
+     * 将各个账户自上次写入以来的流量累加到当前日/周/月的流量使用记录中，在一个事务内完成，
+     * 提交成功后再更新内存中的已写入流量并重新计算配额，只在后台线程中调用
+     */
+    private void flush() {
+        SqlSessionFactory factory = this.sqlSessionFactory;
+        if (factory == null || accounts.isEmpty()) {
+            return;
+        }
+
+        LocalDate today = LocalDate.now();
+        TrafficPeriod[] periods = TrafficPeriod.values();
+        List<TrafficAccount> snapshot = new ArrayList<>(accounts.values());
+        List<long[]> flushed = new ArrayList<>(snapshot.size());
+
+        try (SqlSession session = factory.openSession(false)) {
+            TrafficMapper mapper = session.getMapper(TrafficMapper.class);
+            for (TrafficAccount account : snapshot) {
+                //数据库中不存在的用户同样按照流量规则的刷新周期重新查找
+                if (!account.loaded || account.userId == null && account.ruleAge >= RULE_REFRESH_PERIOD) {
+                    load(mapper, account, today);
+                } else if (account.userId != null && account.ruleAge >= RULE_REFRESH_PERIOD) {
+                    account.rule = mapper.selectTrafficRule(account.userId);
+                    account.applySpeedLimit(account.rule);
+                    account.ruleAge = 0;
+                }
+                account.ruleAge++;
+
+                for (TrafficPeriod period : periods) {
+                    String key = period.key(today);
+                    if (!key.equals(account.periodKeys[period.ordinal()])) {
+                        account.periodKeys[period.ordinal()] = key;
+                        account.periodUsage[period.ordinal()] = 0;
+                    }
+                }
+
+                long upload = account.uploadBytes(), download = account.downloadBytes();
+                long uploadDelta = upload - account.flushedUpload, downloadDelta = download - account.flushedDownload;
+                flushed.add(new long[] { upload, download });
+                if (account.userId == null || uploadDelta == 0 && downloadDelta == 0) {
+                    continue;
+                }
+
+                for (TrafficPeriod period : periods) {
+                    TrafficUsageLogPO delta = new TrafficUsageLogPO();
+                    delta.setUserId(account.userId);
+                    delta.setType(period.type);
+                    delta.setDate(account.periodKeys[period.ordinal()]);
+                    delta.setUploadTrafficUsage(uploadDelta);
+                    delta.setDownloadTrafficUsage(downloadDelta);
+                    if (mapper.increaseTrafficUsage(delta) == 0) {
+                        insertOrIncrease(mapper, delta);
+                    }
+                }
+            }
+
+            session.commit();
+        }
+
+        for (int i = 0; i < snapshot.size(); i++) {
+            TrafficAccount account = snapshot.get(i);
+            long[] bytes = flushed.get(i);
+            long delta = bytes[0] - account.flushedUpload + bytes[1] - account.flushedDownload;
+            account.flushedUpload = bytes[0];
+            account.flushedDownload = bytes[1];
+            for (TrafficPeriod period : periods) {
+                account.periodUsage[period.ordinal()] += delta;
+            }
+
+            account.setExhausted(isExhausted(account));
+            accounts.computeIfPresent(account.username(), (k, a) -> a.references() == 0 &&
+                    a.uploadBytes() == a.flushedUpload && a.downloadBytes() == a.flushedDownload ? null : a);
+        }
+    }
+
+
+    /**
+     * 共用同一个数据库的多个节点可能同时插入同一天的记录，唯一索引冲突时说明记录已被其他节点插入，改为累加
+     */
+    private static void insertOrIncrease(TrafficMapper mapper, TrafficUsageLogPO delta) {
+        try {
+            mapper.insertTrafficUsage(delta);
+        } catch (PersistenceException e) {
+            if (!isDuplicateKey(e) || mapper.increaseTrafficUsage(delta) == 0) {
+                throw e;
+            }
+        }
+    }
+
+
+    private static boolean isDuplicateKey(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof SQLIntegrityConstraintViolationException) {
+                return true;
+            }
+
+            if (t instanceof SQLException) {
+                String state = ((SQLException) t).getSQLState();
+                //SQLite的约束冲突错误码为19(SQLITE_CONSTRAINT)，扩展错误码2067(SQLITE_CONSTRAINT_UNIQUE)
+                int code = ((SQLException) t).getErrorCode();
+                if (state != null && state.startsWith("23") || code == 19 || code == 2067) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * 加载用户ID、流量规则以及当前各个周期已使用的流量
+     */
+    private void load(TrafficMapper mapper, TrafficAccount account, LocalDate today) {
+        account.loaded = true;
+        account.ruleAge = 0;
+        UserPO user = mapper.selectUser(account.username());
+        if (user == null || user.getId() == null) {
+            log.warn("User {} not found in database, traffic usage will not be recorded", account.username());
+            return;
+        }
+
+        int userId = user.getId();
+        account.userId = userId;
+        account.groupId = user.getGroupId();
+        if (user.getGroupId() != null) {
+            account.setAccessRuleMatcher(accessRules.getOrDefault(user.getGroupId(), AccessRuleMatcher.EMPTY));
+        }
+        account.rule = mapper.selectTrafficRule(userId);
+        account.applySpeedLimit(account.rule);
+        for (TrafficPeriod period : TrafficPeriod.values()) {
+            String key = period.key(today);
+            TrafficUsageLogPO usage = mapper.selectTrafficUsage(userId, period.type, key);
+            account.periodKeys[period.ordinal()] = key;
+            account.periodUsage[period.ordinal()] = usage == null ? 0 :
+                    nullToZero(usage.getUploadTrafficUsage()) + nullToZero(usage.getDownloadTrafficUsage());
+        }
+    }
+
+
+    private static boolean isExhausted(TrafficAccount account) {
+        TrafficRulePO rule = account.rule;
+        if (rule == null) {
+            return false;
+        }
+
+        long[] usage = account.periodUsage;
+        return exceed(usage[TrafficPeriod.DAILY.ordinal()], rule.getDailyLimit()) ||
+                exceed(usage[TrafficPeriod.WEEKLY.ordinal()], rule.getWeeklyLimit()) ||
+                exceed(usage[TrafficPeriod.MONTHLY.ordinal()], rule.getMonthlyLimit());
+    }
+
+
+    private static boolean exceed(long usage, Long limit) {
+        return limit != null && limit > 0 && usage >= limit;
+    }
+
+
+    private static long nullToZero(Long value) {
+        return value == null ? 0 : value;
+    }
 }
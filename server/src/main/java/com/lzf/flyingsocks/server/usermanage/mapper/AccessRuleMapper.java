@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.usermanage.mapper;
+
+import com.lzf.flyingsocks.server.usermanage.po.AccessRulePO;
+import com.lzf.flyingsocks.server.usermanage.po.UserGroupAccessRulePO;
+
+import java.util.List;
+
+/**
+ * 用户组访问规则相关的数据库操作，SQL定义在META-INF/mapper/AccessRuleMapper.xml
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/24 22:10
+ */
+public interface AccessRuleMapper {
+
+    /**
+     * @return 所有已启用的访问规则
+     */
+    List<AccessRulePO> selectEnabledAccessRules();
+
+    /**
+     * @return 用户组与访问规则的关联关系
+     */
+    List<UserGroupAccessRulePO> selectUserGroupAccessRules();
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.usermanage.mapper;
+
+import com.lzf.flyingsocks.server.usermanage.po.TrafficRulePO;
+import com.lzf.flyingsocks.server.usermanage.po.TrafficUsageLogPO;
+import com.lzf.flyingsocks.server.usermanage.po.UserPO;
+import org.apache.ibatis.annotations.Param;
+
+/**
+ * 用户流量统计相关的数据库操作，SQL定义在META-INF/mapper/TrafficMapper.xml
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/22 20:25
+ */
+public interface TrafficMapper {
+
+    /**
+     * @param username 用户名
+     * @return 用户ID以及用户组ID，用户不存在时返回null
+     */
+    UserPO selectUser(@Param("username") String username);
+
+    /**
+     * @param userId 用户ID
+     * @return 用户所在用户组已启用的流量规则，没有时返回null
+     */
+    TrafficRulePO selectTrafficRule(@Param("userId") int userId);
+
+    /**
+     * @param userId 用户ID
+     * @param type   统计周期
+     * @param date   统计周期第一天
+     * @return 该周期的流量使用记录，没有时返回null
+     */
+    TrafficUsageLogPO selectTrafficUsage(@Param("userId") int userId, @Param("type") int type, @Param("date") String date);
+
+    /**
+     * 在已有的流量使用记录上累加上传和下载流量
+     *
+     * @param delta 用户ID、统计周期以及本次需要累加的流量
+     * @return 更新的行数，记录不存在时返回0
+     */
+    int increaseTrafficUsage(TrafficUsageLogPO delta);
+
+    /**
+     * @param usage 新的流量使用记录
+     * @return 插入的行数
+     */
+    int insertTrafficUsage(TrafficUsageLogPO usage);
+}
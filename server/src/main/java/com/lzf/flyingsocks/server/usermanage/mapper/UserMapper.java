@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.usermanage.mapper;
+
+import com.lzf.flyingsocks.server.usermanage.po.UserPO;
+import org.apache.ibatis.annotations.Param;
+
+/**
+ * 用户认证和管理相关的数据库操作，SQL定义在META-INF/mapper/UserMapper.xml
+ *
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/25 20:40
+ */
+public interface UserMapper {
+
+    /**
+     * 查询用户的认证信息
+     *
+     * @param group    用户组名，为null时不限制用户组
+     * @param username 用户名
+     * @return 用户ID、密码哈希、用户组ID和状态，不存在时返回null
+     */
+    UserPO selectCredential(@Param("group") String group, @Param("username") String username);
+
+    /**
+     * @param group 用户组名
+     * @return 用户组ID，不存在时返回null
+     */
+    Integer selectGroupId(@Param("group") String group);
+
+    int insertUser(UserPO user);
+
+    int updatePassword(@Param("id") int id, @Param("password") String password);
+
+    int deleteUser(@Param("id") int id);
+}
@@ -29,7 +29,9 @@ create table traffic_usage_log
     download_traffic_usage bigint                              not null,
     type                   enum ('daily', 'weekly', 'monthly') not null,
     date                   char(8)                             not null,
-    update_time            timestamp default CURRENT_TIMESTAMP not null on update CURRENT_TIMESTAMP
+    update_time            timestamp default CURRENT_TIMESTAMP not null on update CURRENT_TIMESTAMP,
+    constraint traffic_usage_log_user_type_date_uindex
+        unique (user_id, type, date)
 );
 
 create table user
@@ -37,7 +39,7 @@ create table user
     id          int auto_increment
         primary key,
     username    varchar(255)                        not null,
-    password    char(32)                            not null,
+    password    varchar(128)                        not null,
     group_id    int                                 null,
     create_time timestamp default CURRENT_TIMESTAMP not null on update CURRENT_TIMESTAMP,
     status      int                                 not null,
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2019 abc123lzf <abc123lzf@126.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.lzf.flyingsocks.server.core.access;
+
+import com.lzf.flyingsocks.server.core.access.AccessRuleMatcher.Decision;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * @author lzf abc123lzf@126.com
+ * @since 2021/6/25 20:10
+ */
+public class AccessRuleMatcherTest {
+
+    public static void main(String[] args) throws UnknownHostException {
+        //"allow *"不能让解析到被拒绝网段的域名绕过网段规则
+        AccessRuleMatcher m = AccessRuleMatcher.compile(AccessRule.parse("*", true), AccessRule.parse("10.0.0.0/8", false));
+        check(m.match("www.example.com", 443), Decision.NONE);
+        check(m.match(InetAddress.getByName("10.1.2.3"), 443), Decision.DENY);
+        check(m.match(InetAddress.getByName("93.184.216.34"), 443), Decision.ALLOW);
+
+        m = AccessRuleMatcher.compile(AccessRule.parse("*:443", true), AccessRule.parse("10.0.0.0/8", false));
+        check(m.match("www.example.com", 443), Decision.NONE);
+        check(m.match(InetAddress.getByName("10.1.2.3"), 443), Decision.DENY);
+
+        //没有网段规则时域名直接使用主机为"*"的规则
+        m = AccessRuleMatcher.compile(AccessRule.parse("*", false));
+        check(m.match("www.example.com", 80), Decision.DENY);
+
+        //IPv4映射地址和IPv4兼容地址按照IPv4地址匹配
+        m = AccessRuleMatcher.compile(AccessRule.parse("10.0.0.0/8", false));
+        check(m.match("::ffff:10.0.0.1", 80), Decision.DENY);
+        check(m.match("::10.0.0.1", 80), Decision.DENY);
+        check(m.match(InetAddress.getByName("::10.0.0.1"), 80), Decision.DENY);
+        check(m.match("::ffff:11.0.0.1", 80), Decision.NONE);
+        check(m.match("::1", 80), Decision.NONE);
+
+        //端口列表和端口区间
+        m = AccessRuleMatcher.compile(AccessRule.parse("example.com:80,443,8000-8080", true), AccessRule.parse("example.com", false));
+        check(m.match("www.example.com", 80), Decision.ALLOW);
+        check(m.match("example.com", 443), Decision.ALLOW);
+        check(m.match("example.com", 8000), Decision.ALLOW);
+        check(m.match("example.com", 8080), Decision.ALLOW);
+        check(m.match("example.com", 8081), Decision.DENY);
+        check(m.match("example.org", 80), Decision.NONE);
+
+        //方括号中的IPv6网段，前缀长度写在方括号外
+        m = AccessRuleMatcher.compile(AccessRule.parse("[2001:db8::]/32:443", false), AccessRule.parse("[2001:db8::1]", true));
+        check(m.match("2001:db8::2", 443), Decision.DENY);
+        check(m.match("2001:db8::2", 80), Decision.NONE);
+        check(m.match("[2001:db8::1]", 443), Decision.ALLOW);
+        check(m.match("2001:db9::1", 443), Decision.NONE);
+
+        //同样具体的允许规则和拒绝规则重叠时拒绝优先，更长的前缀优先
+        m = AccessRuleMatcher.compile(AccessRule.parse("192.168.0.0/16:1-1000", true), AccessRule.parse("192.168.0.0/16:443", false),
+                AccessRule.parse("192.168.1.0/24", true));
+        check(m.match("192.168.2.1", 80), Decision.ALLOW);
+        check(m.match("192.168.2.1", 443), Decision.DENY);
+        check(m.match("192.168.1.1", 443), Decision.ALLOW);
+        check(m.match("192.168.1.1", 2000), Decision.ALLOW);
+
+        System.out.println("OK");
+    }
+
+    private static void check(Decision actual, Decision expected) {
+        if (actual != expected) {
+            throw new AssertionError("Expected " + expected + " but was " + actual);
+        }
+    }
+}